@@ -0,0 +1,108 @@
+package com.rollingstone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.ImportAutoConfiguration;
+import org.springframework.boot.autoconfigure.context.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceTransactionManagerAutoConfiguration;
+import org.springframework.boot.autoconfigure.jdbc.JdbcTemplateAutoConfiguration;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernateJpaAutoConfiguration;
+import org.springframework.boot.autoconfigure.transaction.TransactionAutoConfiguration;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import com.rollingstone.api.TodoJsonCache;
+import com.rollingstone.command.id.TimeOrderedCommandIdGenerator;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.readmodel.TodoReadModel;
+import com.rollingstone.readmodel.TodoVersionIndex;
+import com.rollingstone.repository.TodoIdBlockSeeder;
+import com.rollingstone.repository.TodoRepository;
+import com.rollingstone.service.TodoService;
+
+/*
+ * The read side of the application on an in memory H2 database, for the benchmarks.
+ *
+ * 1. Only the beans the benchmarks need are started, no web server, no SQS and no consumer
+ * 2. The database is filled with the given number of todos before the benchmark starts
+ * 3. With the read model on, the todos are written by a first context and a second one is started on the same database,
+ *    the read model fills itself from the database at startup and only sees what is there by then
+ * 4. The settings are passed like command line arguments so they win over the MySQL settings of application.properties
+ * 5. The read model is only created together with command.consumer.enabled, the flag is passed along with it,
+ *    the consumer itself is not imported
+ */
+@Configuration
+@ImportAutoConfiguration({ PropertyPlaceholderAutoConfiguration.class, DataSourceAutoConfiguration.class,
+		DataSourceTransactionManagerAutoConfiguration.class, JdbcTemplateAutoConfiguration.class, HibernateJpaAutoConfiguration.class,
+		TransactionAutoConfiguration.class, JacksonAutoConfiguration.class })
+@EntityScan(basePackageClasses = Todo.class)
+@EnableJpaRepositories(basePackageClasses = TodoRepository.class)
+@Import({ TodoIdBlockSeeder.class, TodoVersionIndex.class, TodoReadModel.class, TodoService.class, TodoJsonCache.class,
+		CommandLatencyRecorder.class, TimeOrderedCommandIdGenerator.class })
+public class EmbeddedTodoContext {
+
+	private static final int SEED_BATCH = 1000;
+
+	private static final AtomicInteger databases = new AtomicInteger();
+
+	public static ConfigurableApplicationContext start(int todos, boolean readModel) throws InterruptedException {
+		String url = "jdbc:h2:mem:todos-" + databases.incrementAndGet() + ";DB_CLOSE_DELAY=-1";
+		if (!readModel) {
+			ConfigurableApplicationContext context = run(url, false);
+			seed(context.getBean(TodoRepository.class), todos);
+			return context;
+		}
+		try (ConfigurableApplicationContext seeder = run(url, false)) {
+			seed(seeder.getBean(TodoRepository.class), todos);
+		}
+		ConfigurableApplicationContext context = run(url, true);
+		TodoReadModel model = context.getBean(TodoReadModel.class);
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		while (!model.isReady()) {
+			if (System.nanoTime() > deadline) {
+				context.close();
+				throw new IllegalStateException("The todo read model was not filled within a minute");
+			}
+			Thread.sleep(10);
+		}
+		return context;
+	}
+
+	private static ConfigurableApplicationContext run(String url, boolean readModel) {
+		return new SpringApplicationBuilder(EmbeddedTodoContext.class)
+				.web(WebApplicationType.NONE)
+				.bannerMode(Banner.Mode.OFF)
+				.run("--spring.datasource.url=" + url,
+						"--spring.datasource.driver-class-name=org.h2.Driver",
+						"--spring.datasource.username=sa",
+						"--spring.datasource.password=",
+						"--spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect",
+						"--spring.jpa.hibernate.ddl-auto=update",
+						"--todo.read-model.enabled=" + readModel,
+						"--command.consumer.enabled=" + readModel,
+						"--logging.level.root=WARN");
+	}
+
+	private static void seed(TodoRepository todoRepository, int todos) {
+		List<Todo> batch = new ArrayList<Todo>(SEED_BATCH);
+		for (int i = 1; i <= todos; i++) {
+			batch.add(new Todo(0, "Todo " + i, "Pick up the groceries, milk, bread, eggs and something for the weekend " + i));
+			if (batch.size() == SEED_BATCH || i == todos) {
+				todoRepository.saveAll(batch);
+				batch.clear();
+			}
+		}
+	}
+}
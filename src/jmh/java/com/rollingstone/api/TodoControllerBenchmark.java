@@ -0,0 +1,104 @@
+package com.rollingstone.api;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.EmbeddedTodoContext;
+import com.rollingstone.cloud.messaging.aws.InProcessAmazonSQS;
+import com.rollingstone.cloud.messaging.aws.SQSCommandDispatcher;
+import com.rollingstone.cloud.messaging.aws.SQSCommandQueueNameResolver;
+import com.rollingstone.cloud.messaging.aws.SQSQueueSender;
+import com.rollingstone.command.interfaces.CommandIdGenerator;
+import com.rollingstone.dispatcher.DispatchingCommandBus;
+import com.rollingstone.domain.RSResponse;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.service.TodoService;
+import com.rollingstone.threads.VirtualThreads;
+
+/*
+ * TodoController.createTodo from the deserialized request body to the response, the whole command path on the way:
+ * validation, DispatchingCommandBus, SQSCommandDispatcher and SQSQueueSender against the InProcessAmazonSQS without latency,
+ * purged after every iteration,
+ * and the TodoServiceEvent going to the listeners of the embedded read side
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TodoControllerBenchmark {
+
+	@Param({ "json", "binary" })
+	public String codec;
+
+	private ConfigurableApplicationContext context;
+
+	private InProcessAmazonSQS sqs;
+
+	private String queueUrl;
+
+	private SQSQueueSender sender;
+
+	private TodoController controller;
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		this.context = EmbeddedTodoContext.start(0, false);
+		this.sqs = new InProcessAmazonSQS(0, 0, 0, 30, Runtime.getRuntime().availableProcessors());
+		this.queueUrl = this.sqs.getQueueUrl("TODO_New_Queue").getQueueUrl();
+		CommandLatencyRecorder commandLatencyRecorder = this.context.getBean(CommandLatencyRecorder.class);
+		this.sender = new SQSQueueSender(this.sqs, 10, 20, this.codec, 1024, 16);
+		SQSCommandDispatcher dispatcher = new SQSCommandDispatcher(this.sender, new SQSCommandQueueNameResolver(this.sqs, "TODO_New_Queue", 1),
+				commandLatencyRecorder, new VirtualThreads(false), Integer.MAX_VALUE);
+		this.controller = new TodoController(new DispatchingCommandBus(dispatcher, false, 50), this.context.getBean(TodoService.class),
+				this.context.getBean(ObjectMapper.class), this.context.getBean(TodoJsonCache.class), this.context.getBean(CommandIdGenerator.class),
+				commandLatencyRecorder, 100000, 86400, 15000, 500, 30000, 10000, false);
+		this.controller.setApplicationEventPublisher(this.context);
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() {
+		this.sqs.purgeQueue(new PurgeQueueRequest(this.queueUrl));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.sender.flushPendingBatches();
+		this.sqs.stop();
+		this.context.close();
+	}
+
+	@Benchmark
+	public RSResponse createTodo() {
+		return this.controller.createTodo(newTodo(), null).join();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public RSResponse createTodoContended() {
+		return this.controller.createTodo(newTodo(), null).join();
+	}
+
+	private static Todo newTodo() {
+		return new Todo(0, "Pick up the groceries", "Milk, bread, eggs and something for the weekend");
+	}
+}
@@ -0,0 +1,96 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.threads.VirtualThreads;
+
+/*
+ * SQSCommandDispatcher.dispatch against the InProcessAmazonSQS without latency, that is queue resolution, conversion of the command
+ * in the json or the binary codec and our part of the send, sent the blocking way or through the asynchronous client.
+ * Asynchronous sends are answered on a callback thread of the InProcessAmazonSQS, the queue is purged after every iteration.
+ * The batched mode is left out, on a single thread it would measure queue.batch.linger-ms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SQSCommandDispatcherBenchmark {
+
+	@Param({ "json", "binary" })
+	public String codec;
+
+	@Param({ "sync", "async" })
+	public String mode;
+
+	private InProcessAmazonSQS sqs;
+
+	private String queueUrl;
+
+	private SQSQueueSender sender;
+
+	private SQSCommandDispatcher dispatcher;
+
+	@Setup
+	public void setUp() {
+		this.sqs = new InProcessAmazonSQS(0, 0, 0, 30, Runtime.getRuntime().availableProcessors());
+		this.queueUrl = this.sqs.getQueueUrl("TODO_New_Queue").getQueueUrl();
+		this.sender = new SQSQueueSender(this.sqs, 10, 20, this.codec, 1024, 16);
+		this.dispatcher = new SQSCommandDispatcher(this.sender, new SQSCommandQueueNameResolver(this.sqs, "TODO_New_Queue", 1),
+				new CommandLatencyRecorder(20, 60), new VirtualThreads(false), Integer.MAX_VALUE);
+		this.dispatcher.asyncEnabled = "async".equals(this.mode);
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() {
+		this.sqs.purgeQueue(new PurgeQueueRequest(this.queueUrl));
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.sender.flushPendingBatches();
+		this.sqs.stop();
+	}
+
+	@Benchmark
+	public GenericCommandResult dispatch() throws Exception {
+		return this.dispatcher.dispatch(newCommand()).get();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public GenericCommandResult dispatchContended() throws Exception {
+		return this.dispatcher.dispatch(newCommand()).get();
+	}
+
+	static TodoCommand newCommand() {
+		return new TodoCommand(UUID.randomUUID(),
+				new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis())),
+				new Todo(0, "Pick up the groceries", "Milk, bread, eggs and something for the weekend"));
+	}
+}
@@ -0,0 +1,99 @@
+package com.rollingstone.command.codec;
+
+import java.sql.Timestamp;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+
+/*
+ * Serialization of a TodoCommand, the binary codec against the json the template writes by default,
+ * with a short longDescription and with one that is above the compression threshold
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TodoCommandCodecBenchmark {
+
+	@Param({ "64", "4096" })
+	public int longDescriptionLength;
+
+	private final TodoCommandBinaryCodec binaryCodec = new TodoCommandBinaryCodec(1024);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	private TodoCommand command;
+
+	private byte[] binary;
+
+	private byte[] json;
+
+	@Setup
+	public void setUp() throws Exception {
+		StringBuilder longDescription = new StringBuilder(this.longDescriptionLength);
+		while (longDescription.length() < this.longDescriptionLength) {
+			longDescription.append("milk, bread, eggs and something for the weekend ");
+		}
+		longDescription.setLength(this.longDescriptionLength);
+
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.putStageTiming("VALIDATE", 35L);
+		header.putStageTiming("BUS", 12L);
+		header.putStageTiming("RESOLVE_QUEUE", 2L);
+		this.command = new TodoCommand(UUID.randomUUID(), header, new Todo(123456L, "Pick up the groceries", longDescription.toString()));
+		this.binary = this.binaryCodec.encode(this.command);
+		this.json = this.objectMapper.writeValueAsBytes(this.command);
+	}
+
+	@Benchmark
+	public byte[] binaryEncode() {
+		return this.binaryCodec.encode(this.command);
+	}
+
+	@Benchmark
+	public TodoCommand binaryDecode() {
+		return this.binaryCodec.decode(this.binary);
+	}
+
+	@Benchmark
+	public byte[] jsonEncode() throws Exception {
+		return this.objectMapper.writeValueAsBytes(this.command);
+	}
+
+	@Benchmark
+	public TodoCommand jsonDecode() throws Exception {
+		return this.objectMapper.readValue(this.json, TodoCommand.class);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public byte[] binaryEncodeContended() {
+		return this.binaryCodec.encode(this.command);
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public byte[] jsonEncodeContended() throws Exception {
+		return this.objectMapper.writeValueAsBytes(this.command);
+	}
+}
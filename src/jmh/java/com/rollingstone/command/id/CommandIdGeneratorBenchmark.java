@@ -0,0 +1,55 @@
+package com.rollingstone.command.id;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The cost of a command id, the way the controller used to get it and with the time ordered generator.
+ * Every benchmark runs on one thread and on as many threads as there are processors, where the shared SecureRandom
+ * behind UUID.randomUUID starts to be contended. Run with ./gradlew jmh
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandIdGeneratorBenchmark {
+
+	private final RandomCommandIdGenerator random = new RandomCommandIdGenerator();
+
+	private final TimeOrderedCommandIdGenerator timeOrdered = new TimeOrderedCommandIdGenerator();
+
+	@Benchmark
+	public UUID randomUUID() {
+		return random.nextId();
+	}
+
+	@Benchmark
+	public UUID timeOrdered() {
+		return timeOrdered.nextId();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public UUID randomUUIDContended() {
+		return random.nextId();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public UUID timeOrderedContended() {
+		return timeOrdered.nextId();
+	}
+}
@@ -0,0 +1,98 @@
+package com.rollingstone.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.rollingstone.EmbeddedTodoContext;
+import com.rollingstone.api.TodoJsonCache;
+import com.rollingstone.domain.Todo;
+
+/*
+ * The query side, a page of todos from TodoService.getTodosAfter at a random position, read from the embedded database
+ * or from the read model, and the same page written as json the way the controller writes it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TodoServiceBenchmark {
+
+	private static final int TODOS = 20000;
+
+	@Param({ "database", "read-model" })
+	public String source;
+
+	@Param({ "20", "500" })
+	public int pageSize;
+
+	private ConfigurableApplicationContext context;
+
+	private TodoService todoService;
+
+	private TodoJsonCache todoJsonCache;
+
+	private final OutputStream discard = new OutputStream() {
+
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	@Setup
+	public void setUp() throws InterruptedException {
+		this.context = EmbeddedTodoContext.start(TODOS, "read-model".equals(this.source));
+		this.todoService = this.context.getBean(TodoService.class);
+		this.todoJsonCache = this.context.getBean(TodoJsonCache.class);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.context.close();
+	}
+
+	@Benchmark
+	public List<Todo> getTodosAfter() {
+		return this.todoService.getTodosAfter(randomAfterId(), this.pageSize).getContent();
+	}
+
+	@Benchmark
+	@Threads(Threads.MAX)
+	public List<Todo> getTodosAfterContended() {
+		return this.todoService.getTodosAfter(randomAfterId(), this.pageSize).getContent();
+	}
+
+	@Benchmark
+	public List<Todo> getTodosAfterAsJson() throws IOException {
+		List<Todo> todos = this.todoService.getTodosAfter(randomAfterId(), this.pageSize).getContent();
+		this.todoJsonCache.writeArray(todos, this.discard);
+		return todos;
+	}
+
+	private long randomAfterId() {
+		return ThreadLocalRandom.current().nextLong(TODOS - this.pageSize);
+	}
+}
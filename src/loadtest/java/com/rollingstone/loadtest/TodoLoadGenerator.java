@@ -0,0 +1,519 @@
+package com.rollingstone.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.rollingstone.RollingstoneEcommerceCqrsTodoRestApiApplication;
+import com.rollingstone.cloud.messaging.aws.InProcessAmazonSQS;
+import com.rollingstone.threads.VirtualThreads;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValuePercentile;
+
+/*
+ * Drives the TodoController of an application started in this JVM with the offline profile, at a fixed rate, and reports what it saw.
+ *
+ * 1. The application runs on the in memory H2 database and the InProcessAmazonSQS, on random ports, so a run needs no network and no AWS account
+ * 2. The load is an open model, request i is due at start + i / rate whether or not the requests before it have been answered,
+ *    --connections threads send them, a request that has to wait for a free thread waits on the clock
+ * 3. Response times are measured from the moment a request was due, not from when it was sent, so a stall of the application
+ *    shows up in every request it held back and not only in the one that was stuck, the service time from sending it is reported as well
+ * 4. The requests are mixed by --mix, create, update, get and list with their weights, get and update use ids the list requests have seen,
+ *    the list requests walk the todos page by page and start over at the end
+ * 5. Requests due in the first --warmup-seconds are sent but not recorded, the run lasts --duration-seconds after that
+ * 6. The queue lag, the messages on the in process queues and the age of the oldest of them, is sampled every second,
+ *    when the load stops the time the consumer needs to empty the queues is measured too
+ * 7. The concurrency is reported as the most requests that were ever in flight at once and, by Little's law,
+ *    as the throughput times the mean response time
+ * 8. The report is printed and written as json to --report, arguments that are not the generator's own are handed to the application,
+ *    an argument given twice counts the last time, so the arguments of a gradle task can be overridden
+ *
+ * ./gradlew loadTest -PloadTestArgs="--rate=500 --duration-seconds=60 --sqs.in-process.error-rate=0.01"
+ * ./gradlew loadTestCompare runs the same load on platform threads and on virtual threads and compares them
+ */
+public class TodoLoadGenerator {
+
+	private static final String API = "/rsecommerce/cqrs/todo/api";
+
+	private static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+
+	private static final int PAGE_SIZE = 100;
+
+	private static final int KNOWN_IDS = 10000;
+
+	private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+	private static final long DRAIN_TIMEOUT_SECONDS = 120;
+
+	enum Operation {
+		CREATE, UPDATE, GET, LIST
+	}
+
+	private final ObjectMapper objectMapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+	private final String baseUrl;
+
+	private final InProcessAmazonSQS sqs;
+
+	private final boolean virtualThreads;
+
+	private final Options options;
+
+	private final Operation[] schedule;
+
+	private final Map<Operation, OperationStats> stats = new LinkedHashMap<Operation, OperationStats>();
+
+	private final AtomicLongArray knownIds = new AtomicLongArray(KNOWN_IDS);
+
+	private final AtomicLong knownIdCount = new AtomicLong();
+
+	private final AtomicReference<String> nextPage = new AtomicReference<String>();
+
+	private final AtomicInteger maxLagMessages = new AtomicInteger();
+
+	private final AtomicLong maxLagAgeMillis = new AtomicLong();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final AtomicInteger peakInFlight = new AtomicInteger();
+
+	private volatile long measureFromNanos;
+
+	TodoLoadGenerator(String baseUrl, InProcessAmazonSQS sqs, boolean virtualThreads, Options options) {
+		this.baseUrl = baseUrl;
+		this.sqs = sqs;
+		this.virtualThreads = virtualThreads;
+		this.options = options;
+		this.schedule = options.schedule();
+		for (Operation operation : Operation.values()) {
+			this.stats.put(operation, new OperationStats());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		List<String> applicationArgs = new ArrayList<String>();
+		Options options = Options.parse(args, applicationArgs);
+		applicationArgs.add("--server.port=0");
+		applicationArgs.add("--management.server.port=0");
+		System.setProperty("http.maxConnections", Integer.toString(options.connections));
+
+		SpringApplication application = new SpringApplication(RollingstoneEcommerceCqrsTodoRestApiApplication.class);
+		application.setAdditionalProfiles("offline");
+		try (ConfigurableApplicationContext context = application.run(applicationArgs.toArray(new String[0]))) {
+			String baseUrl = "http://localhost:" + context.getEnvironment().getProperty("local.server.port");
+			TodoLoadGenerator generator = new TodoLoadGenerator(baseUrl, context.getBean(InProcessAmazonSQS.class),
+					context.getBean(VirtualThreads.class).isEnabled(), options);
+			Map<String, Object> report = generator.run();
+			generator.print(report);
+			Path reportFile = Paths.get(options.report);
+			if (reportFile.getParent() != null) {
+				Files.createDirectories(reportFile.getParent());
+			}
+			generator.objectMapper.writeValue(reportFile.toFile(), report);
+			System.out.println("Report written to " + reportFile.toAbsolutePath());
+		}
+		System.exit(0);
+	}
+
+	/*
+	 * 1. One thread hands out the requests at their due times, the sender threads send them
+	 * 2. After the last request is due the senders get DRAIN_TIMEOUT_SECONDS to finish, then the queues get as long to empty
+	 */
+	Map<String, Object> run() throws InterruptedException {
+		ExecutorService senders = Executors.newFixedThreadPool(this.options.connections, daemonThreads("load-sender"));
+		ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(daemonThreads("load-lag-sampler"));
+		sampler.scheduleAtFixedRate(this::sampleLag, 1, 1, TimeUnit.SECONDS);
+
+		long periodNanos = TimeUnit.SECONDS.toNanos(1) / this.options.rate;
+		long startNanos = System.nanoTime();
+		this.measureFromNanos = startNanos + TimeUnit.SECONDS.toNanos(this.options.warmupSeconds);
+		long endNanos = this.measureFromNanos + TimeUnit.SECONDS.toNanos(this.options.durationSeconds);
+		System.out.println("Sending " + this.options.rate + " requests a second for " + this.options.warmupSeconds + "s of warmup and "
+				+ this.options.durationSeconds + "s measured to " + this.baseUrl);
+
+		for (long i = 0;; i++) {
+			long dueNanos = startNanos + i * periodNanos;
+			if (dueNanos >= endNanos) {
+				break;
+			}
+			long waitNanos;
+			while ((waitNanos = dueNanos - System.nanoTime()) > 0) {
+				LockSupport.parkNanos(waitNanos);
+			}
+			Operation operation = this.schedule[(int) (i % this.schedule.length)];
+			senders.execute(() -> send(operation, dueNanos));
+		}
+		senders.shutdown();
+		boolean finished = senders.awaitTermination(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		long loadEndedAt = System.nanoTime();
+
+		long drainMillis = -1;
+		while (System.nanoTime() - loadEndedAt < TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS)) {
+			if (this.sqs.getLag().getMessages() == 0) {
+				drainMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadEndedAt);
+				break;
+			}
+			Thread.sleep(10);
+		}
+		sampler.shutdownNow();
+		return report(finished, drainMillis);
+	}
+
+	private void send(Operation operation, long dueNanos) {
+		long sentNanos = System.nanoTime();
+		int concurrent = this.inFlight.incrementAndGet();
+		boolean ok;
+		try {
+			ok = execute(operation);
+		}
+		catch (IOException | RuntimeException e) {
+			ok = false;
+		}
+		finally {
+			this.inFlight.decrementAndGet();
+		}
+		long doneNanos = System.nanoTime();
+		if (dueNanos < this.measureFromNanos) {
+			return;
+		}
+		this.peakInFlight.accumulateAndGet(concurrent, Math::max);
+		OperationStats operationStats = this.stats.get(operation);
+		operationStats.responseTime.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (doneNanos - dueNanos) / 1000));
+		operationStats.serviceTime.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, (doneNanos - sentNanos) / 1000));
+		if (!ok) {
+			operationStats.errors.incrementAndGet();
+		}
+	}
+
+	/*
+	 * True when the application answered with a 2xx, get and update fall back to a list request as long as no id is known
+	 */
+	private boolean execute(Operation operation) throws IOException {
+		long id = operation == Operation.GET || operation == Operation.UPDATE ? knownId() : 0;
+		if (id == 0 && operation != Operation.CREATE) {
+			return list();
+		}
+		switch (operation) {
+		case CREATE:
+			return request("POST", API, todoJson(0)).isSuccess();
+		case UPDATE:
+			return request("PUT", API + "/" + id, todoJson(id)).isSuccess();
+		default:
+			return request("GET", API + "/" + id, null).isSuccess();
+		}
+	}
+
+	private boolean list() throws IOException {
+		String token = this.nextPage.get();
+		Response response = request("GET", API + "?size=" + PAGE_SIZE + (token == null ? "" : "&continuationToken=" + token), null);
+		if (!response.isSuccess()) {
+			return false;
+		}
+		this.nextPage.compareAndSet(token, response.continuationToken);
+		for (JsonNode todo : this.objectMapper.readTree(response.body)) {
+			long slot = this.knownIdCount.getAndIncrement();
+			this.knownIds.set((int) (slot % KNOWN_IDS), todo.path("id").asLong());
+		}
+		return true;
+	}
+
+	private long knownId() {
+		long count = Math.min(KNOWN_IDS, this.knownIdCount.get());
+		return count == 0 ? 0 : this.knownIds.get(ThreadLocalRandom.current().nextInt((int) count));
+	}
+
+	private byte[] todoJson(long id) throws IOException {
+		Map<String, Object> todo = new LinkedHashMap<String, Object>();
+		todo.put("id", id);
+		todo.put("shortDescription", "Load test todo");
+		todo.put("longDescription", "Written by the load generator at " + System.currentTimeMillis());
+		return this.objectMapper.writeValueAsBytes(todo);
+	}
+
+	/*
+	 * The body is always read to the end, so the connection goes back to the keep alive pool
+	 */
+	private Response request(String method, String path, byte[] body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(this.baseUrl + path).openConnection();
+		connection.setRequestMethod(method);
+		connection.setConnectTimeout(5000);
+		connection.setReadTimeout(60000);
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setFixedLengthStreamingMode(body.length);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+		}
+		int status = connection.getResponseCode();
+		InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		if (in != null) {
+			try (InputStream stream = in) {
+				byte[] buffer = new byte[8192];
+				int n;
+				while ((n = stream.read(buffer)) != -1) {
+					read.write(buffer, 0, n);
+				}
+			}
+		}
+		return new Response(status, read.toByteArray(), connection.getHeaderField(CONTINUATION_TOKEN_HEADER));
+	}
+
+	private void sampleLag() {
+		InProcessAmazonSQS.Lag lag = this.sqs.getLag();
+		this.maxLagMessages.accumulateAndGet(lag.getMessages(), Math::max);
+		this.maxLagAgeMillis.accumulateAndGet(lag.getOldestMessageAgeMillis(), Math::max);
+	}
+
+	private Map<String, Object> report(boolean finished, long drainMillis) {
+		Map<String, Object> report = new LinkedHashMap<String, Object>();
+		report.put("virtualThreads", this.virtualThreads);
+		report.put("targetRate", this.options.rate);
+		report.put("durationSeconds", this.options.durationSeconds);
+		report.put("connections", this.options.connections);
+		report.put("mix", this.options.mix);
+		report.put("allRequestsFinished", finished);
+
+		long requests = 0;
+		long errors = 0;
+		double meanInFlight = 0;
+		Map<String, Object> operations = new LinkedHashMap<String, Object>();
+		for (Map.Entry<Operation, OperationStats> entry : this.stats.entrySet()) {
+			OperationStats operationStats = entry.getValue();
+			long count = operationStats.responseTime.getTotalCount();
+			if (count == 0) {
+				continue;
+			}
+			requests += count;
+			errors += operationStats.errors.get();
+			meanInFlight += (double) count / this.options.durationSeconds * operationStats.responseTime.getMean() / 1000000.0;
+			Map<String, Object> operation = new LinkedHashMap<String, Object>();
+			operation.put("requests", count);
+			operation.put("errors", operationStats.errors.get());
+			operation.put("throughput", (double) count / this.options.durationSeconds);
+			operation.put("responseTimeMs", percentiles(operationStats.responseTime));
+			operation.put("serviceTimeMs", percentiles(operationStats.serviceTime));
+			operations.put(entry.getKey().name().toLowerCase(), operation);
+		}
+		report.put("requests", requests);
+		report.put("errors", errors);
+		report.put("throughput", (double) requests / this.options.durationSeconds);
+		report.put("peakInFlight", this.peakInFlight.get());
+		report.put("meanInFlight", meanInFlight);
+		report.put("operations", operations);
+
+		Map<String, Object> queueLag = new LinkedHashMap<String, Object>();
+		queueLag.put("maxMessages", this.maxLagMessages.get());
+		queueLag.put("maxOldestMessageAgeMs", this.maxLagAgeMillis.get());
+		queueLag.put("drainMs", drainMillis);
+		queueLag.put("appliedCommandLatencyMs", appliedCommandLatency());
+		report.put("queueLag", queueLag);
+		return report;
+	}
+
+	private static Map<String, Number> percentiles(Histogram histogram) {
+		Map<String, Number> percentiles = new LinkedHashMap<String, Number>();
+		percentiles.put("p50", histogram.getValueAtPercentile(50) / 1000.0);
+		percentiles.put("p90", histogram.getValueAtPercentile(90) / 1000.0);
+		percentiles.put("p99", histogram.getValueAtPercentile(99) / 1000.0);
+		percentiles.put("p99.9", histogram.getValueAtPercentile(99.9) / 1000.0);
+		percentiles.put("max", histogram.getMaxValue() / 1000.0);
+		return percentiles;
+	}
+
+	/*
+	 * The percentiles CommandLatencyRecorder publishes for the commands from the controller until they were applied, warmup included
+	 */
+	private static Map<String, Map<String, Number>> appliedCommandLatency() {
+		Map<String, Map<String, Number>> latency = new LinkedHashMap<String, Map<String, Number>>();
+		for (Timer timer : Metrics.globalRegistry.find("com.rollingstone.command.latency").tag("completion", "APPLIED").timers()) {
+			Map<String, Number> percentiles = new LinkedHashMap<String, Number>();
+			percentiles.put("count", timer.count());
+			for (ValuePercentile percentile : timer.takeSnapshot().percentileValues()) {
+				long tenths = Math.round(percentile.percentile() * 1000);
+				percentiles.put("p" + tenths / 10 + (tenths % 10 == 0 ? "" : "." + tenths % 10), percentile.value(TimeUnit.MILLISECONDS));
+			}
+			percentiles.put("max", timer.max(TimeUnit.MILLISECONDS));
+			latency.put(timer.getId().getTag("type"), percentiles);
+		}
+		return latency;
+	}
+
+	@SuppressWarnings("unchecked")
+	void print(Map<String, Object> report) {
+		System.out.println();
+		System.out.println(String.format("%s threads, target %s/s, achieved %.1f/s, %s requests, %s errors, %s in flight at most, %.1f on average",
+				Boolean.TRUE.equals(report.get("virtualThreads")) ? "Virtual" : "Platform", report.get("targetRate"), report.get("throughput"),
+				report.get("requests"), report.get("errors"), report.get("peakInFlight"), report.get("meanInFlight")));
+		System.out.println(String.format("%-8s %10s %8s %10s %10s %10s %10s %10s %10s %12s", "", "requests", "errors", "req/s",
+				"p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms", "svc p99 ms"));
+		for (Map.Entry<String, Object> entry : ((Map<String, Object>) report.get("operations")).entrySet()) {
+			Map<String, Object> operation = (Map<String, Object>) entry.getValue();
+			Map<String, Number> response = (Map<String, Number>) operation.get("responseTimeMs");
+			Map<String, Number> service = (Map<String, Number>) operation.get("serviceTimeMs");
+			System.out.println(String.format("%-8s %10d %8d %10.1f %10.2f %10.2f %10.2f %10.2f %10.2f %12.2f", entry.getKey(),
+					operation.get("requests"), operation.get("errors"), operation.get("throughput"), response.get("p50"), response.get("p90"),
+					response.get("p99"), response.get("p99.9"), response.get("max"), service.get("p99")));
+		}
+		Map<String, Object> queueLag = (Map<String, Object>) report.get("queueLag");
+		System.out.println(String.format("Queue lag: at most %s messages, oldest %s ms, emptied %s ms after the load stopped",
+				queueLag.get("maxMessages"), queueLag.get("maxOldestMessageAgeMs"), queueLag.get("drainMs")));
+		System.out.println("Applied command latency: " + queueLag.get("appliedCommandLatencyMs"));
+	}
+
+	private static ThreadFactory daemonThreads(String name) {
+		AtomicInteger threads = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, name + "-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+	private static class OperationStats {
+
+		final Histogram responseTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+		final Histogram serviceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+		final AtomicLong errors = new AtomicLong();
+	}
+
+	private static class Response {
+
+		final int status;
+
+		final byte[] body;
+
+		final String continuationToken;
+
+		Response(int status, byte[] body, String continuationToken) {
+			this.status = status;
+			this.body = body;
+			this.continuationToken = continuationToken;
+		}
+
+		boolean isSuccess() {
+			return this.status >= 200 && this.status < 300;
+		}
+	}
+
+	/*
+	 * The generator's own arguments, --name=value like the application's
+	 */
+	static class Options {
+
+		int rate = 200;
+
+		long durationSeconds = 60;
+
+		long warmupSeconds = 10;
+
+		int connections = 64;
+
+		String mix = "create:50,update:10,get:30,list:10";
+
+		String report = "build/reports/loadtest/report.json";
+
+		static Options parse(String[] args, List<String> applicationArgs) {
+			Options options = new Options();
+			for (String arg : args) {
+				int equals = arg.indexOf('=');
+				String name = arg.startsWith("--") && equals > 0 ? arg.substring(2, equals) : "";
+				String value = equals > 0 ? arg.substring(equals + 1) : "";
+				switch (name) {
+				case "rate":
+					options.rate = Integer.parseInt(value);
+					break;
+				case "duration-seconds":
+					options.durationSeconds = Long.parseLong(value);
+					break;
+				case "warmup-seconds":
+					options.warmupSeconds = Long.parseLong(value);
+					break;
+				case "connections":
+					options.connections = Integer.parseInt(value);
+					break;
+				case "mix":
+					options.mix = value;
+					break;
+				case "report":
+					options.report = value;
+					break;
+				default:
+					applicationArgs.removeIf(earlier -> !name.isEmpty() && earlier.startsWith("--" + name + "="));
+					applicationArgs.add(arg);
+				}
+			}
+			if (options.rate < 1 || options.durationSeconds < 1 || options.connections < 1) {
+				throw new IllegalArgumentException("--rate, --duration-seconds and --connections must be positive");
+			}
+			return options;
+		}
+
+		/*
+		 * The operations of 100 consecutive requests in the proportions of the mix, spread out evenly rather than in runs
+		 */
+		Operation[] schedule() {
+			Map<Operation, Integer> weights = new LinkedHashMap<Operation, Integer>();
+			int total = 0;
+			for (String part : this.mix.split(",")) {
+				String[] weight = part.trim().split(":");
+				Operation operation = Operation.valueOf(weight[0].trim().toUpperCase());
+				int value = Integer.parseInt(weight[1].trim());
+				weights.put(operation, value);
+				total += value;
+			}
+			if (total <= 0) {
+				throw new IllegalArgumentException("The mix " + this.mix + " has no weight");
+			}
+			Operation[] schedule = new Operation[100];
+			double[] credit = new double[Operation.values().length];
+			for (int i = 0; i < schedule.length; i++) {
+				Operation next = null;
+				for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+					credit[weight.getKey().ordinal()] += (double) weight.getValue() / total;
+					if (next == null || credit[weight.getKey().ordinal()] > credit[next.ordinal()]) {
+						next = weight.getKey();
+					}
+				}
+				credit[next.ordinal()] -= 1;
+				schedule[i] = next;
+			}
+			return schedule;
+		}
+	}
+}
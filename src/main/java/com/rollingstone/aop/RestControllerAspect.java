@@ -1,5 +1,6 @@
 package com.rollingstone.aop;
 
+import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.annotation.AfterReturning;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Before;
@@ -7,26 +8,38 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Component;
 
+import com.rollingstone.domain.RSResponse;
+
 import io.micrometer.core.instrument.Counter;
 import io.micrometer.core.instrument.Metrics;
 
+/*
+ * 1. Applies to the controllers in com.rollingstone.api, the request latencies themselves are measured by the EndpointLatencyFilter
+ * 2. Every call is logged at debug level only, this runs on every request
+ */
 @Aspect
 @Component
 public class RestControllerAspect {
 
 	private final Logger logger = LoggerFactory.getLogger(RestControllerAspect.class);
 	
-	Counter accountCreatedCounter = Metrics.counter("com.rollingstone.account.created");
+	Counter todoCreatedCounter = Metrics.counter("com.rollingstone.todo.created");
 	
-	@Before("execution(public * com.rollingstone.spring.controller.*Controller.*(..))")
-	public void generalAllMethodAspect() {
-		logger.info("All Method Calls invoke this general aspect method");
+	@Before("execution(public * com.rollingstone.api.*Controller.*(..))")
+	public void generalAllMethodAspect(JoinPoint joinPoint) {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Calling " + joinPoint.getSignature().toShortString());
+		}
 	}
 	
-	@AfterReturning("execution(public * com.rollingstone.spring.controller.*Controller.createAccount(..))")
-	public void getCalledOnAccountSave() {
-		logger.info("This Aspect method is called only on Account Save");
-		accountCreatedCounter.increment();
+	/*
+	 * Counts the todos sent for creation, a todo that failed validation comes back with an error message and is not counted
+	 */
+	@AfterReturning(pointcut = "execution(public * com.rollingstone.api.TodoController.createTodo(..))", returning = "response")
+	public void getCalledOnTodoSave(RSResponse<?> response) {
+		if (response != null && response.getErrorMEssage() == null) {
+			todoCreatedCounter.increment();
+		}
 	}
 	
 }
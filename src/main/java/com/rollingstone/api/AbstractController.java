@@ -6,6 +6,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.ApplicationEventPublisherAware;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.bind.annotation.ResponseBody;
@@ -14,6 +15,12 @@ import org.springframework.web.context.request.WebRequest;
 
 import com.rollingstone.exception.HTTP400Exception;
 import com.rollingstone.exception.HTTP404Exception;
+import com.rollingstone.exception.HTTP409Exception;
+import com.rollingstone.exception.HTTP412Exception;
+import com.rollingstone.exception.HTTP422Exception;
+import com.rollingstone.exception.HTTP429Exception;
+import com.rollingstone.exception.HTTP502Exception;
+import com.rollingstone.exception.HTTP503Exception;
 import com.rollingstone.exception.RestAPIExceptionInfo;
 
 import io.micrometer.core.instrument.Counter;
@@ -33,6 +40,20 @@ public abstract class AbstractController implements ApplicationEventPublisherAwa
 	
 	Counter http404ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP404");
 	
+	Counter http409ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP409");
+	
+	Counter http412ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP412");
+	
+	Counter http422ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP422");
+	
+	Counter http429ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP429");
+	
+	Counter http502ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP502");
+	
+	Counter http503ExceptionCounter = Metrics.counter("com.rollingstone.AccountController.HTTP503");
+	
+	protected static final String RETRY_AFTER_SECONDS = "1";
+	
 	@ResponseStatus(HttpStatus.BAD_REQUEST)
 	@ExceptionHandler(HTTP400Exception.class)
 	public @ResponseBody RestAPIExceptionInfo handleBadRequestException(HTTP400Exception ex, WebRequest request, HttpServletResponse response) {
@@ -49,6 +70,57 @@ public abstract class AbstractController implements ApplicationEventPublisherAwa
 		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "This Requested Resource Was Not found");
 	}
 
+	@ResponseStatus(HttpStatus.CONFLICT)
+	@ExceptionHandler(HTTP409Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handleConflictException(HTTP409Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Conflict Exception Info" + ex.getLocalizedMessage());
+		http409ExceptionCounter.increment();
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "A request with the same Idempotency-Key is still being processed, please retry later");
+	}
+
+	@ResponseStatus(HttpStatus.PRECONDITION_FAILED)
+	@ExceptionHandler(HTTP412Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handlePreconditionFailedException(HTTP412Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Precondition Failed Exception Info" + ex.getLocalizedMessage());
+		http412ExceptionCounter.increment();
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "The Requested Resource Has Changed Since It Was Read");
+	}
+
+	@ResponseStatus(HttpStatus.UNPROCESSABLE_ENTITY)
+	@ExceptionHandler(HTTP422Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handleUnprocessableEntityException(HTTP422Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Unprocessable Entity Exception Info" + ex.getLocalizedMessage());
+		http422ExceptionCounter.increment();
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "The Idempotency-Key was already used for a different request");
+	}
+
+	@ResponseStatus(HttpStatus.TOO_MANY_REQUESTS)
+	@ExceptionHandler(HTTP429Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handleTooManyRequestsException(HTTP429Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Too Many Requests Exception Info" + ex.getLocalizedMessage());
+		http429ExceptionCounter.increment();
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "Too many commands are waiting to be sent, please retry later");
+	}
+	
+	@ResponseStatus(HttpStatus.BAD_GATEWAY)
+	@ExceptionHandler(HTTP502Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handleBadGatewayException(HTTP502Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Bad Gateway Exception Info" + ex.getLocalizedMessage());
+		http502ExceptionCounter.increment();
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "The command was not accepted by the queue, it was not sent");
+	}
+	
+	@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+	@ExceptionHandler(HTTP503Exception.class)
+	public @ResponseBody RestAPIExceptionInfo handleServiceUnavailableException(HTTP503Exception ex, WebRequest request, HttpServletResponse response) {
+		log.info("Received Service Unavailable Exception Info" + ex.getLocalizedMessage());
+		http503ExceptionCounter.increment();
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+		return new RestAPIExceptionInfo(ex.getLocalizedMessage(), "The command could not be accepted right now, please retry later");
+	}
+
 	@Override
 	public void setApplicationEventPublisher(ApplicationEventPublisher eventPublisher) {
 		this.eventPublisher = eventPublisher;
@@ -1,10 +1,26 @@
 package com.rollingstone.api;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.validation.ConstraintViolation;
 import javax.validation.Validation;
 import javax.validation.Validator;
@@ -12,7 +28,11 @@ import javax.validation.ValidatorFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Slice;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.stereotype.Component;
 import org.springframework.stereotype.Service;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -21,16 +41,37 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.rollingstone.command.CommandStage;
 import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandResult;
 import com.rollingstone.command.GenericCommandType;
 import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.CommandIdGenerator;
 import com.rollingstone.command.interfaces.GenericCommandBus;
+import com.rollingstone.dispatcher.CompletableFutures;
+import com.rollingstone.dispatcher.IdempotencyCache;
 import com.rollingstone.domain.RSResponse;
 import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoBulkItemResult;
+import com.rollingstone.domain.TodoVersion;
+import com.rollingstone.exception.HTTP400Exception;
+import com.rollingstone.exception.HTTP404Exception;
+import com.rollingstone.exception.HTTP412Exception;
+import com.rollingstone.exception.HTTP429Exception;
+import com.rollingstone.exception.HTTP502Exception;
+import com.rollingstone.exception.HTTP503Exception;
+import com.rollingstone.metrics.CommandLatencyRecorder;
 import com.rollingstone.service.TodoService;
 import com.rollingstone.service.event.TodoServiceEvent;
 
@@ -38,10 +79,29 @@ import com.rollingstone.service.event.TodoServiceEvent;
 public class TodoController extends AbstractController {
 
 	private final static Logger log = LoggerFactory.getLogger("TodoController");
-	private final static String SCHEMA_VERSION = "1.0";
+	private final static String SCHEMA_VERSION = "1.1";
+	private final static String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+	private final static int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+	private final static String NDJSON_VALUE = "application/x-ndjson";
+	private final static String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+	private final static String CONTINUATION_TOKEN_PARAM = "continuationToken";
+	private final static String CONTINUATION_TOKEN_VERSION = "v1:";
+	private final static int MAX_PAGE_SIZE = 1000;
+	private final static int MAX_SEARCH_SIZE = 100;
+	private final static int MAX_SEARCH_QUERY_LENGTH = 256;
 	
 	private final GenericCommandBus commandBus;
+	private final IdempotencyCache<RSResponse> idempotencyCache;
+	private final ObjectMapper objectMapper;
+	private final ObjectReader todoReader;
+	private final int bulkChunkSize;
+	private final long bulkResultTimeoutMillis;
+	private final long sendTimeoutMillis;
+	private final boolean consumerInProcess;
 	private TodoService todoService;
+	private final TodoJsonCache todoJsonCache;
+	private final CommandIdGenerator commandIdGenerator;
+	private final CommandLatencyRecorder commandLatencyRecorder;
 	private static Validator validator;
 	
 	/*
@@ -68,25 +128,209 @@ public class TodoController extends AbstractController {
 	
 	 */
 	
-	public TodoController(GenericCommandBus commandBus, TodoService todoService) {
+	public TodoController(GenericCommandBus commandBus, TodoService todoService, ObjectMapper objectMapper, TodoJsonCache todoJsonCache,
+			CommandIdGenerator commandIdGenerator, CommandLatencyRecorder commandLatencyRecorder,
+			@Value("${command.idempotency.max-entries:100000}") int idempotencyMaxEntries,
+			@Value("${command.idempotency.ttl-seconds:86400}") long idempotencyTtlSeconds,
+			@Value("${command.idempotency.wait-ms:15000}") long idempotencyWaitMillis,
+			@Value("${command.bulk.chunk-size:500}") int bulkChunkSize,
+			@Value("${command.bulk.result-timeout-ms:30000}") long bulkResultTimeoutMillis,
+			@Value("${command.send-timeout-ms:10000}") long sendTimeoutMillis,
+			@Value("${command.consumer.enabled:false}") boolean consumerInProcess) {
 		this.commandBus = commandBus;
+		this.idempotencyCache = new IdempotencyCache<RSResponse>(idempotencyMaxEntries, idempotencyTtlSeconds, TimeUnit.SECONDS,
+				idempotencyWaitMillis);
+		this.objectMapper = objectMapper;
+		this.todoJsonCache = todoJsonCache;
+		this.commandIdGenerator = commandIdGenerator;
+		this.commandLatencyRecorder = commandLatencyRecorder;
+		this.todoReader = objectMapper.readerFor(Todo.class);
+		this.bulkChunkSize = Math.max(1, bulkChunkSize);
+		this.bulkResultTimeoutMillis = bulkResultTimeoutMillis;
+		this.sendTimeoutMillis = sendTimeoutMillis;
+		this.consumerInProcess = consumerInProcess;
 		ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
 		validator = factory.getValidator();
 		this.todoService = todoService;
 	}
 	
+	/*
+	 * 1. Returns one page of todos in id order, size todos at most, DEFAULT_PAGE_SIZE when the client does not ask for a size
+	 * 2. If there are more todos, the response carries an X-Continuation-Token header, sending it back as continuationToken returns the next page
+	 * 3. The token stands for the last id of the page, the next page is read with id > that id, so a deep page costs as much as the first one
+	 * 4. The token is opaque to clients, it is versioned so that its content can change without breaking clients holding older tokens
+	 * 5. The page carries a weak ETag computed from the ids and versions on it, a client sending it back as If-None-Match
+	 *    gets a 304 when no todo on the page changed, decided from the versions alone, the todos are not loaded
+	 * 6. The page is written as the cached json of its todos, see TodoJsonCache
+	 */
 	@GetMapping("rsecommerce/cqrs/todo/api")
-	@ResponseBody
-	@ResponseStatus(HttpStatus.OK)
-	public List<Todo> getTodos(){
-		return todoService.getAllTodos();
+	public void getTodos(@RequestParam(value = "size", defaultValue = DEFAULT_PAGE_SIZE) int size,
+			@RequestParam(value = CONTINUATION_TOKEN_PARAM, required = false) String continuationToken,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			HttpServletResponse response) throws IOException {
+		if (size < 1 || size > MAX_PAGE_SIZE) {
+			throw new HTTP400Exception("The page size must be between 1 and " + MAX_PAGE_SIZE);
+		}
+		long afterId = continuationToken == null ? 0 : decodeContinuationToken(continuationToken);
+		if (ifNoneMatch != null) {
+			Slice<TodoVersion> versions = todoService.getTodoVersionsAfter(afterId, size);
+			String etag = pageETag(versions.getContent(), versions.hasNext());
+			if (etagMatches(ifNoneMatch, etag)) {
+				if (versions.hasNext()) {
+					List<TodoVersion> content = versions.getContent();
+					response.setHeader(CONTINUATION_TOKEN_HEADER, encodeContinuationToken(content.get(content.size() - 1).getId()));
+				}
+				notModified(response, etag);
+				return;
+			}
+		}
+		Slice<Todo> page = todoService.getTodosAfter(afterId, size);
+		List<Todo> todos = page.getContent();
+		List<TodoVersion> versions = new ArrayList<TodoVersion>(todos.size());
+		for (Todo todo : todos) {
+			versions.add(new TodoVersion(todo.getId(), todo.getVersion()));
+		}
+		if (page.hasNext()) {
+			response.setHeader(CONTINUATION_TOKEN_HEADER, encodeContinuationToken(todos.get(todos.size() - 1).getId()));
+		}
+		startJson(response, pageETag(versions, page.hasNext()));
+		todoJsonCache.writeArray(todos, response.getOutputStream());
+	}
+	
+	/*
+	 * 1. Streams every todo as one json document per line (ndjson), in id order
+	 * 2. Each todo is written to the response as soon as it is read from the database cursor, nothing is collected in between,
+	 *    so the heap needed does not grow with the table
+	 */
+	@GetMapping(value = "rsecommerce/cqrs/todo/api/export", produces = NDJSON_VALUE)
+	public void exportTodos(HttpServletResponse response) throws IOException {
+		
+		log.info("Received Request to export all Todos");
+		
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(NDJSON_VALUE);
+		response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+			generator.setRootValueSeparator(null);
+			long exported = todoService.exportTodos(todo -> {
+				try {
+					generator.writeObject(todo);
+					generator.writeRaw('\n');
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+			log.info("Exported " + exported + " Todos");
+		}
+		catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+	
+	/*
+	 * 1. Full text search over the short and long descriptions, a todo has to match every word of q, a word ending with * matches as a prefix
+	 * 2. Returns the size best matching todos, best first, todos whose short description matches weigh more
+	 * 3. Answers 503 while the search index is switched off or still being filled
+	 */
+	@GetMapping("rsecommerce/cqrs/todo/api/search")
+	public void searchTodos(@RequestParam("q") String query,
+			@RequestParam(value = "size", defaultValue = DEFAULT_PAGE_SIZE) int size,
+			HttpServletResponse response) throws IOException {
+		if (size < 1 || size > MAX_SEARCH_SIZE) {
+			throw new HTTP400Exception("The number of results must be between 1 and " + MAX_SEARCH_SIZE);
+		}
+		if (query.trim().isEmpty() || query.length() > MAX_SEARCH_QUERY_LENGTH) {
+			throw new HTTP400Exception("The query must have between 1 and " + MAX_SEARCH_QUERY_LENGTH + " characters");
+		}
+		if (!todoService.isSearchReady()) {
+			throw new HTTP503Exception("Todo search is not available");
+		}
+		List<Todo> todos = todoService.searchTodos(query, size);
+		startJson(response, null);
+		todoJsonCache.writeArray(todos, response.getOutputStream());
 	}
 	
+	/*
+	 * 1. The ETag of a todo is its version, it changes with every update applied to the todo
+	 * 2. When the If-None-Match of the request still matches the version, the answer is a 304 and the todo is neither loaded nor serialized,
+	 *    the version comes from the version index, the read model or a query for the version column only
+	 * 3. That shortcut is only taken when the consumer runs in this service, otherwise the version index does not see the commands
+	 *    being applied and could answer 304 for a todo that has changed, then the todo is loaded and its own version is compared
+	 * 4. Otherwise the cached json of the todo is written as it is, a todo is only serialized again once its version changes
+	 */
 	@GetMapping("rsecommerce/cqrs/todo/api/{id}")
-	@ResponseBody
-	@ResponseStatus(HttpStatus.OK)
-	public Todo getTodo(@PathVariable("id") long id) {
-		return todoService.getTodo(id);
+	public void getTodo(@PathVariable("id") long id,
+			@RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch,
+			HttpServletResponse response) throws IOException {
+		if (ifNoneMatch != null && this.consumerInProcess) {
+			long version = todoService.getTodoVersion(id);
+			if (version >= 0 && etagMatches(ifNoneMatch, todoETag(version))) {
+				notModified(response, todoETag(version));
+				return;
+			}
+		}
+		Todo todo = todoService.getTodo(id);
+		String etag = todoETag(todo.getVersion());
+		if (ifNoneMatch != null && etagMatches(ifNoneMatch, etag)) {
+			notModified(response, etag);
+			return;
+		}
+		byte[] json = todoJsonCache.toJson(todo);
+		startJson(response, etag);
+		response.setContentLength(json.length);
+		response.getOutputStream().write(json);
+	}
+	
+	private static void startJson(HttpServletResponse response, String etag) {
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		if (etag != null) {
+			response.setHeader(HttpHeaders.ETAG, etag);
+		}
+	}
+	
+	private static void notModified(HttpServletResponse response, String etag) {
+		response.setStatus(HttpStatus.NOT_MODIFIED.value());
+		response.setHeader(HttpHeaders.ETAG, etag);
+	}
+	
+	private static String todoETag(long version) {
+		return "\"" + version + "\"";
+	}
+	
+	/*
+	 * A weak ETag, the same todos on a page always give the same tag but it is a hash, not the page itself
+	 */
+	private static String pageETag(List<TodoVersion> versions, boolean hasNext) {
+		long hash = 1125899906842597L;
+		for (TodoVersion version : versions) {
+			hash = 31 * hash + version.getId();
+			hash = 31 * hash + version.getVersion();
+		}
+		hash = 31 * hash + (hasNext ? 1 : 0);
+		return "W/\"" + Long.toHexString(hash) + "\"";
+	}
+	
+	/*
+	 * Compares an If-None-Match or If-Match header against an ETag, the header may list several tags or be *,
+	 * the W/ prefix is ignored since a todo or a page is only ever compared as a whole
+	 */
+	private static boolean etagMatches(String header, String etag) {
+		String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+		for (String candidate : header.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.equals("*")) {
+				return true;
+			}
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals(opaque)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
 	/*
@@ -123,12 +367,20 @@ public class TodoController extends AbstractController {
 	@PostMapping("rsecommerce/cqrs/todo/api")
 	@ResponseStatus(HttpStatus.CREATED)
 	@ResponseBody
-	public RSResponse createTodo(@RequestBody Todo todo) {
+	public CompletableFuture<RSResponse> createTodo(@RequestBody Todo todo, @RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey) {
+		
+		return idempotent(GenericCommandType.CREATE_TODO, idempotencyKey, () -> fingerprint("POST", "rsecommerce/cqrs/todo/api", todo.getId(), null, todo),
+				() -> sendCreateTodo(todo, idempotencyKey));
+	}
+	
+	private CompletableFuture<RSResponse> sendCreateTodo(Todo todo, String idempotencyKey) {
 		
 		RSResponse<Todo> rsResponse = new RSResponse<Todo>();
 		
 		log.info("Received Request to create Todo");
 		
+		long validationStarted = System.nanoTime();
+		
 		Set<ConstraintViolation<Todo>> constraintViolations = validator.validate(todo);
 		
 		String errorMessage = buildErrorMessage(constraintViolations);
@@ -136,37 +388,224 @@ public class TodoController extends AbstractController {
 		if (!errorMessage.isEmpty()) {
 			log.error("Error When Creating Todo :"+ errorMessage);
 			rsResponse.setErrorMEssage("Error When Creating Todo :"+ errorMessage);
-			return rsResponse;
+			return CompletableFuture.completedFuture(rsResponse);
 		}
 		else {
-			TodoCommand todoCommand = new TodoCommand();
-			todoCommand.setTodo(todo);
-			todoCommand.setId(UUID.randomUUID());
+			TodoCommand todoCommand = newTodoCommand(GenericCommandType.CREATE_TODO, todo, idempotencyKey);
+			commandLatencyRecorder.stage(todoCommand, CommandStage.VALIDATE, validationStarted);
 			
-			GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), SCHEMA_VERSION, new Timestamp(System.currentTimeMillis()));
+			return whenSent(todoCommand, commandBus.send(todoCommand)).thenApply(result -> {
+				eventPublisher.publishEvent(new TodoServiceEvent(this, todo, "TodoCreated"));
+				rsResponse.setMessage("Todo Sent to AWS for creation");
+				rsResponse.setPayload(todo);
+				return rsResponse;
+			});
 			
-			todoCommand.setHeader(header);
+		}
+		
+		
+	}
+	
+	/*
+	 * 1. Creates many todos with one request, the body is either a json array of todos or one todo per line (ndjson)
+	 * 2. The body is read one todo at a time, chunks of command.bulk.chunk-size todos are validated in parallel and handed to the bus as one batch
+	 * 3. While a chunk is on its way to SQS the next one is already being read, only the results of one chunk are awaited at a time
+	 * 4. The response is a json array with one TodoBulkItemResult per todo, in the order of the request, written out chunk by chunk
+	 * 5. If the body breaks off or turns unreadable, the todos before that point are still sent and a final UNREADABLE result says where it stopped
+	 */
+	@PostMapping(value = "rsecommerce/cqrs/todo/api/batch", consumes = { MediaType.APPLICATION_JSON_VALUE, NDJSON_VALUE })
+	public void createTodos(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		
+		log.info("Received Request to create Todos in bulk");
+		
+		MappingIterator<Todo> todos;
+		try {
+			todos = todoReader.readValues(request.getInputStream());
+		}
+		catch (IOException e) {
+			throw new HTTP400Exception("The request body is neither a json array nor ndjson of todos: " + e.getMessage());
+		}
+		
+		List<Todo> chunk = new ArrayList<Todo>(bulkChunkSize);
+		String unreadable = readChunk(todos, chunk);
+		if (chunk.isEmpty() && unreadable != null) {
+			throw new HTTP400Exception("The request body is neither a json array nor ndjson of todos: " + unreadable);
+		}
+		
+		response.setStatus(HttpStatus.OK.value());
+		response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+		try (JsonGenerator generator = objectMapper.getFactory().createGenerator(response.getOutputStream())) {
+			generator.writeStartArray();
 			
-			commandBus.send(todoCommand);
-			eventPublisher.publishEvent(new TodoServiceEvent(this, todo, "TodoCreated"));
-			rsResponse.setMessage("Todo Sent to AWS for creation");
-			rsResponse.setPayload(todo);
-			return rsResponse;
+			int index = 0;
+			BulkChunk sent = null;
+			while (!chunk.isEmpty()) {
+				BulkChunk next = sendBulkChunk(index, chunk);
+				index += chunk.size();
+				if (sent != null) {
+					writeBulkResults(sent, generator);
+				}
+				sent = next;
+				
+				chunk = new ArrayList<Todo>(bulkChunkSize);
+				if (unreadable == null) {
+					unreadable = readChunk(todos, chunk);
+				}
+			}
+			if (sent != null) {
+				writeBulkResults(sent, generator);
+			}
+			if (unreadable != null) {
+				log.error("Bulk request body unreadable after " + index + " todos: " + unreadable);
+				generator.writeObject(new TodoBulkItemResult(index, TodoBulkItemResult.UNREADABLE, null, unreadable));
+			}
 			
+			generator.writeEndArray();
+		}
+	}
+	
+	/*
+	 * Fills the chunk from the body, the message of the read error is returned if the body could not be read to the end
+	 */
+	private String readChunk(MappingIterator<Todo> todos, List<Todo> chunk) {
+		try {
+			while (chunk.size() < bulkChunkSize && todos.hasNextValue()) {
+				chunk.add(todos.nextValue());
+			}
+			return null;
+		}
+		catch (IOException | RuntimeException e) {
+			return e.getMessage();
 		}
+	}
+	
+	private BulkChunk sendBulkChunk(int firstIndex, List<Todo> chunk) {
 		
+		List<String> errorMessages = chunk.parallelStream()
+				.map(todo -> buildErrorMessage(validator.validate(todo)))
+				.collect(Collectors.toList());
 		
+		BulkChunk sent = new BulkChunk(firstIndex, errorMessages);
+		List<TodoCommand> commands = new ArrayList<TodoCommand>(chunk.size());
+		for (int i = 0; i < chunk.size(); i++) {
+			TodoCommand todoCommand = null;
+			if (errorMessages.get(i).isEmpty()) {
+				todoCommand = newTodoCommand(GenericCommandType.CREATE_TODO, chunk.get(i), null);
+				commands.add(todoCommand);
+			}
+			sent.commands.add(todoCommand);
+		}
+		
+		sent.futures = commands.isEmpty() ? new ArrayList<Future<GenericCommandResult>>() : commandBus.sendAll(commands);
+		for (TodoCommand todoCommand : commands) {
+			eventPublisher.publishEvent(new TodoServiceEvent(this, todoCommand.getTodo(), "TodoCreated"));
+		}
+		return sent;
+	}
+	
+	private void writeBulkResults(BulkChunk sent, JsonGenerator generator) throws IOException {
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(bulkResultTimeoutMillis);
+		int sentIndex = 0;
+		for (int i = 0; i < sent.commands.size(); i++) {
+			TodoCommand todoCommand = sent.commands.get(i);
+			TodoBulkItemResult result;
+			if (todoCommand == null) {
+				result = new TodoBulkItemResult(sent.firstIndex + i, TodoBulkItemResult.INVALID, null,
+						"Error When Creating Todo :" + sent.errorMessages.get(i));
+			}
+			else {
+				result = awaitBulkResult(sent.firstIndex + i, todoCommand, sent.futures.get(sentIndex++), deadline);
+			}
+			generator.writeObject(result);
+		}
+		generator.flush();
+	}
+	
+	private TodoBulkItemResult awaitBulkResult(int index, TodoCommand todoCommand, Future<GenericCommandResult> future, long deadline) {
+		
+		String commandId = todoCommand.getId().toString();
+		try {
+			GenericCommandResult commandResult = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			if (commandResult != null && commandResult.isFailure()) {
+				return new TodoBulkItemResult(index, TodoBulkItemResult.FAILED, commandId, commandResult.getConsolidatedMessage());
+			}
+			return new TodoBulkItemResult(index, TodoBulkItemResult.ACCEPTED, commandId, null);
+		}
+		catch (ExecutionException e) {
+			return new TodoBulkItemResult(index, TodoBulkItemResult.FAILED, commandId, e.getCause().getMessage());
+		}
+		catch (TimeoutException e) {
+			return new TodoBulkItemResult(index, TodoBulkItemResult.FAILED, commandId, "No answer from the command bus within " + bulkResultTimeoutMillis + " ms");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return new TodoBulkItemResult(index, TodoBulkItemResult.FAILED, commandId, "Interrupted while waiting for the command bus");
+		}
+	}
+	
+	/*
+	 * A chunk that has been handed to the bus, commands has a null for every todo that failed validation
+	 */
+	private static class BulkChunk {
+		
+		final int firstIndex;
+		final List<String> errorMessages;
+		final List<TodoCommand> commands;
+		List<Future<GenericCommandResult>> futures;
+		
+		BulkChunk(int firstIndex, List<String> errorMessages) {
+			this.firstIndex = firstIndex;
+			this.errorMessages = errorMessages;
+			this.commands = new ArrayList<TodoCommand>(errorMessages.size());
+		}
 	}
 	
 	@PutMapping("rsecommerce/cqrs/todo/api/{id}")
 	@ResponseStatus(HttpStatus.NO_CONTENT)
 	@ResponseBody
-	public RSResponse updateTodo(@RequestBody Todo todo) {
+	public CompletableFuture<RSResponse> updateTodo(@PathVariable("id") long id, @RequestBody Todo todo,
+			@RequestHeader(value = IDEMPOTENCY_KEY_HEADER, required = false) String idempotencyKey,
+			@RequestHeader(value = HttpHeaders.IF_MATCH, required = false) String ifMatch) {
+		
+		if (todo.getId() == 0) {
+			todo.setId(id);
+		}
+		else if (todo.getId() != id) {
+			throw new HTTP400Exception("The todo " + todo.getId() + " in the body is not the todo " + id + " of the path");
+		}
+		return idempotent(GenericCommandType.UPDATE_TODO, idempotencyKey, () -> fingerprint("PUT", "rsecommerce/cqrs/todo/api" + "/" + id, id, ifMatch, todo),
+				() -> sendUpdateTodo(id, todo, idempotencyKey, ifMatch));
+	}
+	
+	/*
+	 * 1. The todo updated is always the one of the path, a body without an id gets it, a body with another id was refused before
+	 * 2. With an If-Match header the update is only sent when the todo is still at the version the client read,
+	 *    otherwise the client gets a 412 and has to read the todo again, nothing is sent to the queue
+	 * 3. That version travels as the expected version of the command and the consumer checks it again when it applies the update,
+	 *    without If-Match the command has no expected version and the version in the body is ignored, the update is unconditional
+	 */
+	private CompletableFuture<RSResponse> sendUpdateTodo(long id, Todo todo, String idempotencyKey, String ifMatch) {
 		
 		RSResponse<Todo> rsResponse = new RSResponse<Todo>();
 		
 		log.info("Received Request to update Todo");
 		
+		Long expectedVersion = null;
+		if (ifMatch != null) {
+			long version = todoService.getTodoVersion(id);
+			if (version < 0) {
+				throw new HTTP404Exception("Todo " + id + " does not exist");
+			}
+			if (!etagMatches(ifMatch, todoETag(version))) {
+				throw new HTTP412Exception("Todo " + id + " is at version " + version + ", it does not match " + ifMatch);
+			}
+			expectedVersion = version;
+		}
+		todo.setVersion(expectedVersion == null ? 0 : expectedVersion);
+		
+		long validationStarted = System.nanoTime();
+		
 		Set<ConstraintViolation<Todo>> constraintViolations = validator.validate(todo);
 		
 		String errorMessage = buildErrorMessage(constraintViolations);
@@ -174,22 +613,20 @@ public class TodoController extends AbstractController {
 		if (!errorMessage.isEmpty()) {
 			log.error("Error When Updating Todo :"+ errorMessage);
 			rsResponse.setErrorMEssage("Error When Updating Todo :"+ errorMessage);
-			return rsResponse;
+			return CompletableFuture.completedFuture(rsResponse);
 		}
 		else {
-			TodoCommand todoCommand = new TodoCommand();
-			todoCommand.setTodo(todo);
-			todoCommand.setId(UUID.randomUUID());
-			
-			GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), SCHEMA_VERSION, new Timestamp(System.currentTimeMillis()));
+			TodoCommand todoCommand = newTodoCommand(GenericCommandType.UPDATE_TODO, todo, idempotencyKey);
+			todoCommand.setExpectedVersion(expectedVersion);
+			commandLatencyRecorder.stage(todoCommand, CommandStage.VALIDATE, validationStarted);
 			
-			todoCommand.setHeader(header);
+			return whenSent(todoCommand, commandBus.send(todoCommand)).thenApply(result -> {
+				eventPublisher.publishEvent(new TodoServiceEvent(this, todo, "TodoUpdated"));
 			
-			commandBus.send(todoCommand);
-		
-			rsResponse.setMessage("Todo Sent to AWS for update");
-			rsResponse.setPayload(todo);
-			return rsResponse;
+				rsResponse.setMessage("Todo Sent to AWS for update");
+				rsResponse.setPayload(todo);
+				return rsResponse;
+			});
 			
 		}
 		
@@ -199,41 +636,132 @@ public class TodoController extends AbstractController {
 	@DeleteMapping("rsecommerce/cqrs/todo/api/{id}")
 	@ResponseStatus(HttpStatus.NO_CONTENT)
 	@ResponseBody
-	public RSResponse deleteTodo(@PathVariable("id") Long id) {
+	public CompletableFuture<RSResponse> deleteTodo(@PathVariable("id") Long id) {
 		
 		RSResponse<Todo> rsResponse = new RSResponse<Todo>();
 		
 		log.info("Received Request to delete Todo");
 		
-		Todo todo = todoService.getTodo(id);
+		long validationStarted = System.nanoTime();
 		
-		Set<ConstraintViolation<Todo>> constraintViolations = validator.validate(todo);
+		Todo todo = todoService.getTodo(id);
 		
-		String errorMessage = buildErrorMessage(constraintViolations);
+		TodoCommand todoCommand = newTodoCommand(GenericCommandType.DELETE_TODO, todo, null);
+		commandLatencyRecorder.stage(todoCommand, CommandStage.VALIDATE, validationStarted);
 		
-		if (todo == null) {
-			log.error("Error When Deleting Todo :"+ errorMessage);
-			rsResponse.setErrorMEssage("Error When Deleting Todo :"+ errorMessage);
-			return rsResponse;
-		}
-		else {
-			TodoCommand todoCommand = new TodoCommand();
-			todoCommand.setTodo(todo);
-			todoCommand.setId(UUID.randomUUID());
-			
-			GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.DELETE_TODO.toString(), SCHEMA_VERSION, new Timestamp(System.currentTimeMillis()));
+		return whenSent(todoCommand, commandBus.send(todoCommand)).thenApply(result -> {
+			eventPublisher.publishEvent(new TodoServiceEvent(this, todo, "TodoDeleted"));
 			
-			todoCommand.setHeader(header);
-			
-			commandBus.send(todoCommand);
-		
 			rsResponse.setMessage("Todo Sent to AWS for Deletion");
 			rsResponse.setPayload(todo);
 			return rsResponse;
-			
+		});
+	}
+	
+	/*
+	 * 1. The dispatcher may only have queued the command, in the batched, async, coalescing or ring buffer modes,
+	 *    the client is only told the todo was sent once the send has actually succeeded, nothing is announced before
+	 * 2. The handlers return the future and the request thread goes back to Tomcat while the command is on its way,
+	 *    the response is written from whichever thread completes the send, so queue.async.max-in-flight-per-queue
+	 *    and not the Tomcat thread pool bounds the sends waiting for SQS and a send over that bound is answered with its 429
+	 * 3. A send that failed, SQS refused it or it ended in an exception, is a 502, a send that was shed is passed on as the 429 or 503 it was
+	 * 4. A send that has not finished within command.send-timeout-ms is a 503, the send itself is not cancelled and the command may still
+	 *    reach the queue. A retry with the same Idempotency-Key carries the same command id, the consumer records the id of every command
+	 *    it applied and skips the second copy, so the retry is safe. A retry without an Idempotency-Key is a new command
+	 */
+	private CompletableFuture<GenericCommandResult> whenSent(TodoCommand todoCommand, Future<GenericCommandResult> future) {
+		return CompletableFutures.within(CompletableFutures.of(future), sendTimeoutMillis, TimeUnit.MILLISECONDS).handle((result, error) -> {
+			if (error != null) {
+				Throwable cause = CompletableFutures.unwrap(error);
+				if (cause instanceof TimeoutException) {
+					throw new HTTP503Exception("Command " + todoCommand.getId() + " was not sent within " + sendTimeoutMillis
+							+ " ms, it may still be sent, retry with the same Idempotency-Key");
+				}
+				if (cause instanceof HTTP429Exception || cause instanceof HTTP503Exception) {
+					throw (RuntimeException) cause;
+				}
+				throw new HTTP502Exception("Command " + todoCommand.getId() + " could not be sent: " + cause.getMessage(), cause);
+			}
+			if (result != null && result.isFailure()) {
+				throw new HTTP502Exception("Command " + todoCommand.getId() + " could not be sent: " + result.getConsolidatedMessage());
+			}
+			return result;
+		});
+	}
+	
+	/*
+	 * 1. A request without an Idempotency-Key is simply sent, a request with one is sent at most once per key and command type
+	 *    while its entry is in the idempotency cache, repeats get the response of the first request
+	 * 2. A repeat must be the same request, its fingerprint is compared with the one of the first request, a different one is a 422
+	 */
+	private CompletableFuture<RSResponse> idempotent(GenericCommandType type, String idempotencyKey, Supplier<String> fingerprint,
+			Supplier<CompletableFuture<RSResponse>> send) {
+		if (idempotencyKey == null) {
+			return send.get();
+		}
+		if (idempotencyKey.isEmpty() || idempotencyKey.length() > MAX_IDEMPOTENCY_KEY_LENGTH) {
+			throw new HTTP400Exception("The Idempotency-Key header must have between 1 and " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters");
+		}
+		return idempotencyCache.computeIfAbsent(type + ":" + idempotencyKey, fingerprint.get(), send);
+	}
+	
+	/*
+	 * The SHA-256 of the method, the path, the todo id, the If-Match header and the json of the body, the body is serialized again
+	 * by the ObjectMapper so that whitespace or the order of the fields the client sent make no difference
+	 */
+	private String fingerprint(String method, String path, long todoId, String ifMatch, Todo todo) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update((method + " " + path + " " + todoId + " " + ifMatch + " ").getBytes(StandardCharsets.UTF_8));
+			digest.update(objectMapper.writeValueAsBytes(todo));
+			return Base64.getEncoder().encodeToString(digest.digest());
+		}
+		catch (JsonProcessingException e) {
+			throw new HTTP400Exception("The todo could not be serialized: " + e.getOriginalMessage(), e);
 		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/*
+	 * 1. Every command gets a fresh id from the CommandIdGenerator, unless the client sent an Idempotency-Key
+	 * 2. With a key the id is derived from the key, so a retry that slips past the idempotency cache, for example on another node,
+	 *    still carries the same command id and the same key in its header and can be recognised by the consumer
+	 */
+	private TodoCommand newTodoCommand(GenericCommandType type, Todo todo, String idempotencyKey) {
+		TodoCommand todoCommand = new TodoCommand();
+		todoCommand.setTodo(todo);
+		todoCommand.setId(idempotencyKey == null ? commandIdGenerator.nextId()
+				: UUID.nameUUIDFromBytes((type + ":" + idempotencyKey).getBytes(StandardCharsets.UTF_8)));
 		
+		GenericCommandHeader header = new GenericCommandHeader(type.toString(), SCHEMA_VERSION, new Timestamp(System.currentTimeMillis()));
+		header.setIdempotencyKey(idempotencyKey);
 		
+		todoCommand.setHeader(header);
+		return todoCommand;
+	}
+	
+	private static String encodeContinuationToken(long lastId) {
+		return Base64.getUrlEncoder().withoutPadding().encodeToString((CONTINUATION_TOKEN_VERSION + lastId).getBytes(StandardCharsets.UTF_8));
+	}
+	
+	private static long decodeContinuationToken(String continuationToken) {
+		try {
+			String token = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+			if (token.startsWith(CONTINUATION_TOKEN_VERSION)) {
+				long lastId = Long.parseLong(token.substring(CONTINUATION_TOKEN_VERSION.length()));
+				if (lastId >= 0) {
+					return lastId;
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			/*
+			 * Not base64 or not a number, both mean the token was not one of ours
+			 */
+		}
+		throw new HTTP400Exception("Invalid continuation token");
 	}
 	
 	private String buildErrorMessage(Set<ConstraintViolation<Todo>> constraintViolations) {
@@ -0,0 +1,109 @@
+package com.rollingstone.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/*
+ * The UTF-8 json of the todos the controller has returned, so a todo is serialized once per version instead of once per request.
+ *
+ * 1. An entry is the json of one version of a todo, it is only handed out for a todo of that same version,
+ *    a todo read at another version is serialized again and replaces the entry
+ * 2. The json is written with the ObjectMapper of the application, so it is byte for byte what Jackson would have written
+ * 3. At most todo.json-cache.max-bytes of json are kept, the todos read most often stay
+ * 4. An entry is dropped as soon as a TodoServiceEvent about its todo is published, like the todo cache of TodoService
+ */
+@Component
+public class TodoJsonCache {
+
+	private static final byte[] EMPTY_ARRAY = { '[', ']' };
+
+	/*
+	 * Roughly what an entry costs besides its json
+	 */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	private final ObjectMapper objectMapper;
+
+	private final Cache<Long, Entry> jsonCache;
+
+	public TodoJsonCache(ObjectMapper objectMapper, @Value("${todo.json-cache.max-bytes:67108864}") long maxBytes) {
+		this.objectMapper = objectMapper;
+		this.jsonCache = Caffeine.newBuilder()
+				.maximumWeight(maxBytes)
+				.<Long, Entry>weigher((id, entry) -> entry.json.length + ENTRY_OVERHEAD)
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.jsonCache, "todo-json");
+	}
+
+	/*
+	 * The json of the todo, it must not be changed by the caller
+	 */
+	public byte[] toJson(Todo todo) throws JsonProcessingException {
+		Entry entry = this.jsonCache.getIfPresent(todo.getId());
+		if (entry != null && entry.version == todo.getVersion()) {
+			return entry.json;
+		}
+		byte[] json = this.objectMapper.writeValueAsBytes(todo);
+		if (todo.getId() != 0) {
+			this.jsonCache.put(todo.getId(), new Entry(todo.getVersion(), json));
+		}
+		return json;
+	}
+
+	public void write(Todo todo, OutputStream out) throws IOException {
+		out.write(toJson(todo));
+	}
+
+	/*
+	 * Writes the todos as a json array, one cached fragment after the other
+	 */
+	public void writeArray(List<Todo> todos, OutputStream out) throws IOException {
+		if (todos.isEmpty()) {
+			out.write(EMPTY_ARRAY);
+			return;
+		}
+		char separator = '[';
+		for (Todo todo : todos) {
+			out.write(separator);
+			out.write(toJson(todo));
+			separator = ',';
+		}
+		out.write(']');
+	}
+
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		Todo todo = todoServiceEvent.getEventTodo();
+		if (todo != null && todo.getId() != 0) {
+			this.jsonCache.invalidate(todo.getId());
+		}
+	}
+
+	private static class Entry {
+
+		final long version;
+
+		final byte[] json;
+
+		Entry(long version, byte[] json) {
+			this.version = version;
+			this.json = json;
+		}
+	}
+}
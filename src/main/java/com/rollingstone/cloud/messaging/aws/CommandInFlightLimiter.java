@@ -0,0 +1,65 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+/*
+ * Caps the number of sends that may be outstanding against a single queue.
+ *
+ * 1. Every queue gets its own semaphore the first time a command is dispatched to it
+ * 2. tryAcquire never waits, so a request thread finds out immediately that the queue is saturated
+ * 3. Bulk dispatch uses acquire instead, it waits up to a timeout so that a large import is slowed down to what SQS takes rather than shed
+ * 4. The permit is given back when the send future completes, successfully or not
+ */
+class CommandInFlightLimiter {
+
+	private final int maxInFlightPerQueue;
+
+	private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<String, Semaphore>();
+
+	Counter rejectedCounter = Metrics.counter("com.rollingstone.command.dispatch.rejected");
+
+	CommandInFlightLimiter(int maxInFlightPerQueue) {
+		this.maxInFlightPerQueue = maxInFlightPerQueue;
+	}
+
+	boolean tryAcquire(String queue) {
+		Semaphore semaphore = this.permits.computeIfAbsent(queue, this::newQueueSemaphore);
+		if (semaphore.tryAcquire()) {
+			return true;
+		}
+		rejectedCounter.increment();
+		return false;
+	}
+
+	boolean acquire(String queue, long timeout, TimeUnit unit) {
+		Semaphore semaphore = this.permits.computeIfAbsent(queue, this::newQueueSemaphore);
+		try {
+			if (semaphore.tryAcquire(timeout, unit)) {
+				return true;
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		rejectedCounter.increment();
+		return false;
+	}
+
+	void release(String queue) {
+		this.permits.get(queue).release();
+	}
+
+	private Semaphore newQueueSemaphore(String queue) {
+		Semaphore semaphore = new Semaphore(this.maxInFlightPerQueue);
+		Metrics.gauge("com.rollingstone.command.dispatch.inflight", Tags.of("queue", queue), semaphore,
+				s -> this.maxInFlightPerQueue - s.availablePermits());
+		return semaphore;
+	}
+}
@@ -0,0 +1,527 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Primary;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.AmazonServiceException.ErrorType;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AbstractAmazonSQSAsync;
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageRequest;
+import com.amazonaws.services.sqs.model.DeleteMessageResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.GetQueueAttributesResult;
+import com.amazonaws.services.sqs.model.GetQueueUrlRequest;
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.PurgeQueueRequest;
+import com.amazonaws.services.sqs.model.PurgeQueueResult;
+import com.amazonaws.services.sqs.model.ReceiptHandleIsInvalidException;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.amazonaws.services.sqs.model.ReceiveMessageResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * SQS inside the application, switched on with sqs.in-process.enabled=true, so the whole command path runs without a network.
+ *
+ * 1. It takes the place of the AmazonSQSAsync client of Spring Cloud AWS, which does not create its own client when there is a bean named amazonSQS
+ * 2. It answers the calls SQSQueueSender, SQSSendBatcher, SQSCommandQueueNameResolver and TodoCommandConsumer make,
+ *    every other call fails like it does on AbstractAmazonSQSAsync
+ * 3. A queue is created the first time its url is asked for, messages are kept in memory and are gone with the application
+ * 4. Every call takes sqs.in-process.latency-ms plus up to sqs.in-process.latency-jitter-ms, blocking calls sleep,
+ *    asynchronous calls are answered that much later on a thread of their own, like the SDK answers on its executor
+ * 5. Every call fails with probability sqs.in-process.error-rate with a 500 InternalError, in a batch that does not fail
+ *    each entry fails on its own with the same probability
+ * 6. A received message is invisible for sqs.in-process.visibility-timeout-seconds, if it is not deleted by then it is received again
+ * 7. A long poll waits for messages for the wait time of the request, like a ReceiveMessage with WaitTimeSeconds does
+ * 8. GetQueueAttributes answers ApproximateNumberOfMessages and ApproximateNumberOfMessagesNotVisible exactly and PurgeQueue
+ *    drops every message of a queue at once, so tests and benchmarks can look at and empty the queues through the SQS api
+ */
+@Component("amazonSQS")
+@Primary
+@ConditionalOnProperty(name = "sqs.in-process.enabled", havingValue = "true")
+public class InProcessAmazonSQS extends AbstractAmazonSQSAsync {
+
+	private static final Logger log = LoggerFactory.getLogger(InProcessAmazonSQS.class);
+
+	private static final String URL_PREFIX = "https://sqs.in-process/";
+
+	private static final String SENT_TIMESTAMP = "SentTimestamp";
+
+	private static final String APPROXIMATE_RECEIVE_COUNT = "ApproximateReceiveCount";
+
+	private static final String ALL = "All";
+
+	private static final String NUMBER_OF_MESSAGES = "ApproximateNumberOfMessages";
+
+	private static final String NUMBER_OF_MESSAGES_NOT_VISIBLE = "ApproximateNumberOfMessagesNotVisible";
+
+	private final ConcurrentHashMap<String, InProcessQueue> queues = new ConcurrentHashMap<String, InProcessQueue>();
+
+	private final long latencyMillis;
+
+	private final long latencyJitterMillis;
+
+	private final double errorRate;
+
+	private final long visibilityTimeoutMillis;
+
+	private final ScheduledExecutorService callbackExecutor;
+
+	Counter sentCounter = Metrics.counter("com.rollingstone.sqs.in-process.sent");
+
+	Counter receivedCounter = Metrics.counter("com.rollingstone.sqs.in-process.received");
+
+	Counter deletedCounter = Metrics.counter("com.rollingstone.sqs.in-process.deleted");
+
+	Counter injectedErrorCounter = Metrics.counter("com.rollingstone.sqs.in-process.injected-errors");
+
+	public InProcessAmazonSQS(@Value("${sqs.in-process.latency-ms:5}") long latencyMillis,
+			@Value("${sqs.in-process.latency-jitter-ms:5}") long latencyJitterMillis,
+			@Value("${sqs.in-process.error-rate:0}") double errorRate,
+			@Value("${sqs.in-process.visibility-timeout-seconds:30}") long visibilityTimeoutSeconds,
+			@Value("${sqs.in-process.callback-threads:4}") int callbackThreads) {
+		this.latencyMillis = Math.max(0, latencyMillis);
+		this.latencyJitterMillis = Math.max(0, latencyJitterMillis);
+		this.errorRate = errorRate;
+		this.visibilityTimeoutMillis = TimeUnit.SECONDS.toMillis(visibilityTimeoutSeconds);
+		AtomicInteger threads = new AtomicInteger();
+		this.callbackExecutor = Executors.newScheduledThreadPool(Math.max(1, callbackThreads), runnable -> {
+			Thread thread = new Thread(runnable, "sqs-in-process-" + threads.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		Metrics.gauge("com.rollingstone.sqs.in-process.messages", this, sqs -> sqs.getLag().getMessages());
+		Metrics.gauge("com.rollingstone.sqs.in-process.oldest-message-age", this, sqs -> sqs.getLag().getOldestMessageAgeMillis());
+		log.info("In process SQS with " + latencyMillis + "+" + latencyJitterMillis + " ms latency and an error rate of " + errorRate);
+	}
+
+	@PreDestroy
+	public void stop() {
+		this.callbackExecutor.shutdownNow();
+	}
+
+	@Override
+	public void shutdown() {
+		stop();
+	}
+
+	@Override
+	public GetQueueUrlResult getQueueUrl(String queueName) {
+		queue(URL_PREFIX + queueName);
+		return new GetQueueUrlResult().withQueueUrl(URL_PREFIX + queueName);
+	}
+
+	@Override
+	public GetQueueUrlResult getQueueUrl(GetQueueUrlRequest request) {
+		return getQueueUrl(request.getQueueName());
+	}
+
+	@Override
+	public SendMessageResult sendMessage(SendMessageRequest request) {
+		call();
+		return doSendMessage(request);
+	}
+
+	@Override
+	public Future<SendMessageResult> sendMessageAsync(SendMessageRequest request, AsyncHandler<SendMessageRequest, SendMessageResult> asyncHandler) {
+		return callAsync(request, asyncHandler, () -> doSendMessage(request));
+	}
+
+	@Override
+	public SendMessageBatchResult sendMessageBatch(SendMessageBatchRequest request) {
+		call();
+		return doSendMessageBatch(request);
+	}
+
+	@Override
+	public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+			AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> asyncHandler) {
+		return callAsync(request, asyncHandler, () -> doSendMessageBatch(request));
+	}
+
+	@Override
+	public ReceiveMessageResult receiveMessage(String queueUrl) {
+		return receiveMessage(new ReceiveMessageRequest(queueUrl));
+	}
+
+	@Override
+	public ReceiveMessageResult receiveMessage(ReceiveMessageRequest request) {
+		call();
+		int max = request.getMaxNumberOfMessages() == null ? 1 : request.getMaxNumberOfMessages();
+		long waitMillis = request.getWaitTimeSeconds() == null ? 0 : TimeUnit.SECONDS.toMillis(request.getWaitTimeSeconds());
+		long visibilityMillis = request.getVisibilityTimeout() == null ? this.visibilityTimeoutMillis : TimeUnit.SECONDS.toMillis(request.getVisibilityTimeout());
+		boolean sentTimestamp = wants(request.getAttributeNames(), SENT_TIMESTAMP);
+		boolean receiveCount = wants(request.getAttributeNames(), APPROXIMATE_RECEIVE_COUNT);
+		List<Message> received;
+		try {
+			received = queue(request.getQueueUrl()).receive(max, waitMillis, visibilityMillis, sentTimestamp, receiveCount);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			received = new ArrayList<Message>();
+		}
+		receivedCounter.increment(received.size());
+		return new ReceiveMessageResult().withMessages(received);
+	}
+
+	@Override
+	public DeleteMessageResult deleteMessage(DeleteMessageRequest request) {
+		call();
+		if (!queue(request.getQueueUrl()).delete(request.getReceiptHandle())) {
+			throw new ReceiptHandleIsInvalidException("The receipt handle " + request.getReceiptHandle() + " is not valid");
+		}
+		deletedCounter.increment();
+		return new DeleteMessageResult();
+	}
+
+	@Override
+	public DeleteMessageBatchResult deleteMessageBatch(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+		return deleteMessageBatch(new DeleteMessageBatchRequest(queueUrl, entries));
+	}
+
+	@Override
+	public DeleteMessageBatchResult deleteMessageBatch(DeleteMessageBatchRequest request) {
+		call();
+		InProcessQueue queue = queue(request.getQueueUrl());
+		DeleteMessageBatchResult result = new DeleteMessageBatchResult();
+		for (DeleteMessageBatchRequestEntry entry : request.getEntries()) {
+			if (queue.delete(entry.getReceiptHandle())) {
+				deletedCounter.increment();
+				result.withSuccessful(new DeleteMessageBatchResultEntry().withId(entry.getId()));
+			}
+			else {
+				result.withFailed(new BatchResultErrorEntry().withId(entry.getId()).withCode("ReceiptHandleIsInvalid")
+						.withMessage("The receipt handle has expired").withSenderFault(true));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public GetQueueAttributesResult getQueueAttributes(GetQueueAttributesRequest request) {
+		call();
+		InProcessQueue queue = queue(request.getQueueUrl());
+		GetQueueAttributesResult result = new GetQueueAttributesResult();
+		queue.lock.lock();
+		try {
+			queue.requeueExpired();
+			if (wants(request.getAttributeNames(), NUMBER_OF_MESSAGES)) {
+				result.addAttributesEntry(NUMBER_OF_MESSAGES, Integer.toString(queue.visible.size()));
+			}
+			if (wants(request.getAttributeNames(), NUMBER_OF_MESSAGES_NOT_VISIBLE)) {
+				result.addAttributesEntry(NUMBER_OF_MESSAGES_NOT_VISIBLE, Integer.toString(queue.inFlight.size()));
+			}
+		}
+		finally {
+			queue.lock.unlock();
+		}
+		return result;
+	}
+
+	@Override
+	public PurgeQueueResult purgeQueue(PurgeQueueRequest request) {
+		call();
+		InProcessQueue queue = queue(request.getQueueUrl());
+		queue.lock.lock();
+		try {
+			queue.visible.clear();
+			queue.inFlight.clear();
+			queue.expiries.clear();
+		}
+		finally {
+			queue.lock.unlock();
+		}
+		return new PurgeQueueResult();
+	}
+
+	/*
+	 * The messages on all queues, received or not, and the age of the oldest of them
+	 */
+	public Lag getLag() {
+		long now = System.currentTimeMillis();
+		int messages = 0;
+		long oldestSentAt = now;
+		for (InProcessQueue queue : this.queues.values()) {
+			queue.lock.lock();
+			try {
+				messages += queue.visible.size() + queue.inFlight.size();
+				if (!queue.visible.isEmpty()) {
+					oldestSentAt = Math.min(oldestSentAt, queue.visible.peekFirst().sentAt);
+				}
+				for (StoredMessage message : queue.inFlight.values()) {
+					oldestSentAt = Math.min(oldestSentAt, message.sentAt);
+				}
+			}
+			finally {
+				queue.lock.unlock();
+			}
+		}
+		return new Lag(messages, now - oldestSentAt);
+	}
+
+	private SendMessageResult doSendMessage(SendMessageRequest request) {
+		String messageId = queue(request.getQueueUrl()).add(request.getMessageBody(), request.getMessageAttributes());
+		sentCounter.increment();
+		return new SendMessageResult().withMessageId(messageId);
+	}
+
+	private SendMessageBatchResult doSendMessageBatch(SendMessageBatchRequest request) {
+		InProcessQueue queue = queue(request.getQueueUrl());
+		SendMessageBatchResult result = new SendMessageBatchResult();
+		for (SendMessageBatchRequestEntry entry : request.getEntries()) {
+			if (injectError()) {
+				result.withFailed(new BatchResultErrorEntry().withId(entry.getId()).withCode("InternalError")
+						.withMessage("Injected failure").withSenderFault(false));
+				continue;
+			}
+			String messageId = queue.add(entry.getMessageBody(), entry.getMessageAttributes());
+			sentCounter.increment();
+			result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId(messageId));
+		}
+		return result;
+	}
+
+	/*
+	 * The latency and the injected error of a blocking call
+	 */
+	private void call() {
+		long latency = latency();
+		if (latency > 0) {
+			try {
+				Thread.sleep(latency);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		if (injectError()) {
+			throw injectedFailure();
+		}
+	}
+
+	private <Q extends com.amazonaws.AmazonWebServiceRequest, R> Future<R> callAsync(Q request, AsyncHandler<Q, R> asyncHandler, Supplier<R> operation) {
+		CompletableFuture<R> future = new CompletableFuture<R>();
+		this.callbackExecutor.schedule(() -> {
+			try {
+				if (injectError()) {
+					throw injectedFailure();
+				}
+				R result = operation.get();
+				future.complete(result);
+				if (asyncHandler != null) {
+					asyncHandler.onSuccess(request, result);
+				}
+			}
+			catch (RuntimeException e) {
+				future.completeExceptionally(e);
+				if (asyncHandler != null) {
+					asyncHandler.onError(e);
+				}
+			}
+		}, latency(), TimeUnit.MILLISECONDS);
+		return future;
+	}
+
+	private long latency() {
+		return this.latencyMillis + (this.latencyJitterMillis == 0 ? 0 : ThreadLocalRandom.current().nextLong(this.latencyJitterMillis + 1));
+	}
+
+	private boolean injectError() {
+		if (this.errorRate > 0 && ThreadLocalRandom.current().nextDouble() < this.errorRate) {
+			injectedErrorCounter.increment();
+			return true;
+		}
+		return false;
+	}
+
+	private static AmazonSQSException injectedFailure() {
+		AmazonSQSException exception = new AmazonSQSException("Injected failure");
+		exception.setStatusCode(500);
+		exception.setErrorCode("InternalError");
+		exception.setErrorType(ErrorType.Service);
+		return exception;
+	}
+
+	private static boolean wants(List<String> attributeNames, String attribute) {
+		return attributeNames != null && (attributeNames.contains(attribute) || attributeNames.contains(ALL));
+	}
+
+	private InProcessQueue queue(String queueUrl) {
+		InProcessQueue queue = this.queues.get(queueUrl);
+		return queue != null ? queue : this.queues.computeIfAbsent(queueUrl, url -> new InProcessQueue());
+	}
+
+	public static class Lag {
+
+		private final int messages;
+
+		private final long oldestMessageAgeMillis;
+
+		Lag(int messages, long oldestMessageAgeMillis) {
+			this.messages = messages;
+			this.oldestMessageAgeMillis = oldestMessageAgeMillis;
+		}
+
+		public int getMessages() {
+			return messages;
+		}
+
+		public long getOldestMessageAgeMillis() {
+			return oldestMessageAgeMillis;
+		}
+	}
+
+	private static class StoredMessage {
+
+		final String messageId = UUID.randomUUID().toString();
+
+		final String body;
+
+		final Map<String, MessageAttributeValue> attributes;
+
+		final long sentAt = System.currentTimeMillis();
+
+		int receiveCount;
+
+		String receiptHandle;
+
+		long visibleAgainAt;
+
+		StoredMessage(String body, Map<String, MessageAttributeValue> attributes) {
+			this.body = body;
+			this.attributes = attributes == null ? new HashMap<String, MessageAttributeValue>() : new HashMap<String, MessageAttributeValue>(attributes);
+		}
+	}
+
+	/*
+	 * One queue, guarded by its lock, received messages wait in inFlight, ordered by when they become visible again in expiries
+	 */
+	private static class InProcessQueue {
+
+		final ReentrantLock lock = new ReentrantLock();
+
+		final Condition notEmpty = this.lock.newCondition();
+
+		final Deque<StoredMessage> visible = new ArrayDeque<StoredMessage>();
+
+		final Map<String, StoredMessage> inFlight = new HashMap<String, StoredMessage>();
+
+		final PriorityQueue<StoredMessage> expiries = new PriorityQueue<StoredMessage>((a, b) -> Long.compare(a.visibleAgainAt, b.visibleAgainAt));
+
+		String add(String body, Map<String, MessageAttributeValue> attributes) {
+			StoredMessage message = new StoredMessage(body, attributes);
+			this.lock.lock();
+			try {
+				this.visible.addLast(message);
+				this.notEmpty.signal();
+			}
+			finally {
+				this.lock.unlock();
+			}
+			return message.messageId;
+		}
+
+		List<Message> receive(int max, long waitMillis, long visibilityMillis, boolean sentTimestamp, boolean receiveCount) throws InterruptedException {
+			long waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			List<Message> received = new ArrayList<Message>(max);
+			this.lock.lock();
+			try {
+				requeueExpired();
+				while (this.visible.isEmpty() && waitNanos > 0) {
+					waitNanos = this.notEmpty.awaitNanos(Math.min(waitNanos, TimeUnit.SECONDS.toNanos(1)));
+					requeueExpired();
+				}
+				long now = System.currentTimeMillis();
+				while (received.size() < max && !this.visible.isEmpty()) {
+					StoredMessage stored = this.visible.pollFirst();
+					stored.receiveCount++;
+					stored.receiptHandle = UUID.randomUUID().toString();
+					stored.visibleAgainAt = now + visibilityMillis;
+					this.inFlight.put(stored.receiptHandle, stored);
+					this.expiries.add(stored);
+					Message message = new Message().withMessageId(stored.messageId).withReceiptHandle(stored.receiptHandle)
+							.withBody(stored.body).withMessageAttributes(stored.attributes);
+					if (sentTimestamp) {
+						message.addAttributesEntry(SENT_TIMESTAMP, Long.toString(stored.sentAt));
+					}
+					if (receiveCount) {
+						message.addAttributesEntry(APPROXIMATE_RECEIVE_COUNT, Integer.toString(stored.receiveCount));
+					}
+					received.add(message);
+				}
+			}
+			finally {
+				this.lock.unlock();
+			}
+			return received;
+		}
+
+		boolean delete(String receiptHandle) {
+			this.lock.lock();
+			try {
+				StoredMessage message = this.inFlight.remove(receiptHandle);
+				if (message == null) {
+					return false;
+				}
+				this.expiries.remove(message);
+				return true;
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		/*
+		 * Must hold the lock, messages whose visibility timeout is over go back to the front of the queue with a new receipt handle next time
+		 */
+		private void requeueExpired() {
+			long now = System.currentTimeMillis();
+			while (!this.expiries.isEmpty() && this.expiries.peek().visibleAgainAt <= now) {
+				StoredMessage expired = this.expiries.poll();
+				this.inFlight.remove(expired.receiptHandle);
+				this.visible.addFirst(expired);
+			}
+		}
+	}
+}
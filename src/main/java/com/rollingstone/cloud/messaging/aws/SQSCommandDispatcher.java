@@ -1,16 +1,31 @@
 package com.rollingstone.cloud.messaging.aws;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.AsyncResult;
 import org.springframework.stereotype.Component;
 
+import com.rollingstone.command.CommandStage;
 import com.rollingstone.command.GenericCommandResult;
 import com.rollingstone.command.interfaces.CommandQueueNameResolver;
 import com.rollingstone.command.interfaces.GenericCommand;
 import com.rollingstone.command.interfaces.GenericCommandDispatcher;
+import com.rollingstone.exception.HTTP429Exception;
+import com.rollingstone.exception.HTTP503Exception;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.metrics.CommandLatencyRecorder.Completion;
+import com.rollingstone.threads.VirtualThreads;
 
 @Component
+@ConditionalOnProperty(name = "command.dispatcher", havingValue = "sqs", matchIfMissing = true)
 public class SQSCommandDispatcher implements GenericCommandDispatcher {
 
 	/*
@@ -23,6 +38,40 @@ public class SQSCommandDispatcher implements GenericCommandDispatcher {
 	 */
 	private final CommandQueueNameResolver queueNameResolver;
 	
+	/*
+	 * When batching is switched on the command is not sent right away but grouped with other commands for the same queue
+	 */
+	@Value("${queue.batch.enabled:false}")
+	boolean batchEnabled;
+	
+	/*
+	 * When async dispatch is switched on the request thread only hands the command to the asynchronous SQS client and returns
+	 */
+	@Value("${queue.async.enabled:false}")
+	boolean asyncEnabled;
+	
+	/*
+	 * Bounds the sends that may be outstanding per queue in the batched and async modes so that a slow SQS sheds load instead of piling it up
+	 */
+	private final CommandInFlightLimiter inFlightLimiter;
+	
+	/*
+	 * How long a bulk dispatch waits for a free permit of a queue before it gives up on a command
+	 */
+	@Value("${queue.bulk.permit-wait-ms:5000}")
+	long bulkPermitWaitMillis;
+	
+	/*
+	 * Times the BUS, RESOLVE_QUEUE and SEND stages of every command this dispatcher takes
+	 */
+	private final CommandLatencyRecorder commandLatencyRecorder;
+	
+	/*
+	 * With virtual threads on, async dispatch sends every command on a virtual thread of its own with the blocking client,
+	 * instead of queueing it for the bounded executor of the asynchronous SQS client, null otherwise
+	 */
+	private final ExecutorService virtualSendExecutor;
+	
 	/*
 	 * (non-Javadoc)
 	 * @see com.rollingstone.command.interfaces.GenericCommandDispatcher#dispatch(com.rollingstone.command.interfaces.GenericCommand)
@@ -40,27 +89,125 @@ public class SQSCommandDispatcher implements GenericCommandDispatcher {
 	 * 11. Finally we use the SQSQueueSender class instance to actually send the message to AWS SQS.
 	 * 12. Lets see how the SQSQueueSender works.
 	 * 13. Before we go over there, however, we must notice that we are sending back an AsyncResult to the CommandBus which called us
+	 * 14. The command has left the bus when it gets here, the time since the controller handed it over is its BUS stage
 	 */
 	@Override
 	public Future<GenericCommandResult> dispatch(GenericCommand command) {
 		
-		String type = command.getHeader().getCommandType();
+		commandLatencyRecorder.stage(command, CommandStage.BUS);
+		String queue = resolveQueue(command);
+		commandLatencyRecorder.stage(command, CommandStage.RESOLVE_QUEUE);
+		
+		if (this.batchEnabled || this.asyncEnabled) {
+			return dispatchNonBlocking(queue, command);
+		}
+		
+		GenericCommandResult result = this.sqsQueueSender.send(queue, command);
+		sent(command);
+		return new AsyncResult<>(result);
+	}
+	
+	/*
+	 * 1. A bulk of commands always goes through the batcher, whatever queue.batch.enabled says, that is what the batcher is for
+	 * 2. Instead of a 429 the caller waits for a permit of the queue, so the bulk moves at the pace SQS takes the messages
+	 * 3. A command that gets no permit within queue.bulk.permit-wait-ms fails on its own, the others are still sent
+	 */
+	@Override
+	public List<Future<GenericCommandResult>> dispatchAll(List<? extends GenericCommand> commands) {
+		
+		List<Future<GenericCommandResult>> futures = new ArrayList<Future<GenericCommandResult>>(commands.size());
+		for (GenericCommand command : commands) {
+			commandLatencyRecorder.stage(command, CommandStage.BUS);
+			String queue = resolveQueue(command);
+			commandLatencyRecorder.stage(command, CommandStage.RESOLVE_QUEUE);
+			if (!this.inFlightLimiter.acquire(queue, this.bulkPermitWaitMillis, TimeUnit.MILLISECONDS)) {
+				futures.add(CompletableFuture.completedFuture(SQSQueueSender.failureResult("Too many commands in flight for queue " + queue)));
+				continue;
+			}
+			CompletableFuture<GenericCommandResult> future;
+			try {
+				future = this.sqsQueueSender.sendBatched(queue, command);
+			}
+			catch (RuntimeException e) {
+				this.inFlightLimiter.release(queue);
+				futures.add(CompletableFuture.completedFuture(SQSQueueSender.failureResult(e.getMessage())));
+				continue;
+			}
+			future.whenComplete((result, error) -> {
+				this.inFlightLimiter.release(queue);
+				sent(command);
+			});
+			futures.add(future);
+		}
+		return futures;
+	}
+	
+	/*
+	 * The resolver is asked once per command, it hands back the already resolved url of the queue (or queue shard) for this command
+	 */
+	private String resolveQueue(GenericCommand command) {
+		
+		String queue = queueNameResolver == null ? null : queueNameResolver.resolve(command);
 		
-		String queue;
+		if (queue == null) {
+			queue = new DefaultQueueNameResolver().resolve(command.getHeader().getCommandType());
+		}
+		return queue;
+	}
+	
+	/*
+	 * 1. A permit for the queue is taken without waiting, if there is none left the caller gets a 429 right away
+	 * 2. The command is handed to the batcher, to a virtual thread or to the asynchronous SQS client, none of them blocks the request thread
+	 * 3. If the SDK's own executor, or the virtual thread executor, refuses the work the caller gets a 503
+	 * 4. The permit is released when the send future completes
+	 */
+	private Future<GenericCommandResult> dispatchNonBlocking(String queue, GenericCommand command) {
 		
-		if (queueNameResolver == null || queueNameResolver.resolve(type) == null) {
-			queue = new DefaultQueueNameResolver().resolve(type);
+		if (!this.inFlightLimiter.tryAcquire(queue)) {
+			throw new HTTP429Exception("Too many commands in flight for queue " + queue);
 		}
-		else {
-			queue = queueNameResolver.resolve(type);
+		
+		CompletableFuture<GenericCommandResult> future;
+		try {
+			if (this.batchEnabled) {
+				future = this.sqsQueueSender.sendBatched(queue, command);
+			}
+			else if (this.virtualSendExecutor != null) {
+				future = CompletableFuture.supplyAsync(() -> this.sqsQueueSender.send(queue, command), this.virtualSendExecutor)
+						.exceptionally(error -> SQSQueueSender.failureResult(error.getMessage()));
+			}
+			else {
+				future = this.sqsQueueSender.sendAsync(queue, command);
+			}
+		}
+		catch (RejectedExecutionException e) {
+			this.inFlightLimiter.release(queue);
+			throw new HTTP503Exception("Command dispatch to queue " + queue + " is unavailable", e);
 		}
 		
-		return new AsyncResult<>(this.sqsQueueSender.send(queue, command));
+		future.whenComplete((result, error) -> {
+			this.inFlightLimiter.release(queue);
+			sent(command);
+		});
+		return future;
+	}
+	
+	/*
+	 * SQS has answered, whether the send worked or not, that ends the SEND stage and the command's way through this process
+	 */
+	private void sent(GenericCommand command) {
+		commandLatencyRecorder.stage(command, CommandStage.SEND);
+		commandLatencyRecorder.complete(command, Completion.DISPATCHED);
 	}
 	
-	public SQSCommandDispatcher(SQSQueueSender sqsQueueSender, CommandQueueNameResolver queueNameResolver) {
+	public SQSCommandDispatcher(SQSQueueSender sqsQueueSender, CommandQueueNameResolver queueNameResolver,
+			CommandLatencyRecorder commandLatencyRecorder, VirtualThreads virtualThreads,
+			@Value("${queue.async.max-in-flight-per-queue:256}") int maxInFlightPerQueue) {
 		this.queueNameResolver = queueNameResolver;
+		this.commandLatencyRecorder = commandLatencyRecorder;
 		this.sqsQueueSender = sqsQueueSender;
+		this.inFlightLimiter = new CommandInFlightLimiter(maxInFlightPerQueue);
+		this.virtualSendExecutor = virtualThreads.newExecutor("sqs-send");
 	}
 	
 	
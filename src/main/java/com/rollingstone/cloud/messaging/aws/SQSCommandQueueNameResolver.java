@@ -1,23 +1,139 @@
 package com.rollingstone.cloud.messaging.aws;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.aws.messaging.support.destination.DynamicQueueUrlDestinationResolver;
+import org.springframework.messaging.core.DestinationResolver;
 import org.springframework.stereotype.Component;
 
+import com.amazonaws.services.sqs.AmazonSQSAsync;
 import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
 import com.rollingstone.command.interfaces.CommandQueueNameResolver;
+import com.rollingstone.command.interfaces.GenericCommand;
 
+/*
+ * 1. The routing table is built once when the resolver is created, one route per GenericCommandType, and is never changed afterwards
+ * 2. A route holds the names of all queue shards of the command type, the todo queue is split into sqs.todo.queue.shards shards
+ * 3. Shard 0 keeps the plain queue name, further shards get _1, _2 ... appended, so one shard is exactly the queue we had before
+ * 4. A todo command always goes to the shard picked by the hash of its todo id, so all commands of one todo stay in order on one queue
+ * 5. The url of every shard is looked up once and then kept, the dispatch path never asks SQS for a queue url again,
+ *    the todo commands share one route so a shard url looked up for a create is reused by the updates and deletes
+ */
 @Component
 public class SQSCommandQueueNameResolver implements CommandQueueNameResolver {
 
+	private static final Logger log = LoggerFactory.getLogger(SQSCommandQueueNameResolver.class);
+
 	@Value("${queue.debug}")
 	boolean debug;
-	
+
+	private final Map<String, QueueRoute> routes = new HashMap<String, QueueRoute>();
+
+	private final DestinationResolver<String> queueUrlResolver;
+
+	public SQSCommandQueueNameResolver(AmazonSQSAsync amazonSqs,
+			@Value("${sqs.todo.queue:TODO_New_Queue}") String todoQueue,
+			@Value("${sqs.todo.queue.shards:1}") int todoQueueShards) {
+		this.queueUrlResolver = new DynamicQueueUrlDestinationResolver(amazonSqs);
+
+		QueueRoute todoRoute = new QueueRoute(todoQueue, todoQueueShards);
+		for (GenericCommandType type : GenericCommandType.values()) {
+			String queue = CommandQueues.commandQueueMap.get(type.toString());
+			if (queue == null) {
+				continue;
+			}
+			boolean todoCommand = type == GenericCommandType.CREATE_TODO || type == GenericCommandType.UPDATE_TODO || type == GenericCommandType.DELETE_TODO;
+			this.routes.put(type.toString(), todoCommand ? todoRoute : new QueueRoute(queue, 1));
+		}
+	}
+
 	@Override
 	public String resolve(String commandType) {
 		if (this.debug) {
 			return CommandQueues.commandQueueMap.get(GenericCommandType.DEBUG_QUEUE.toString());
 		}
-		return CommandQueues.commandQueueMap.get(commandType);
+		QueueRoute route = this.routes.get(commandType);
+		return route == null ? null : route.queueUrl(0);
 	}
 
+	@Override
+	public String resolve(GenericCommand command) {
+		if (this.debug) {
+			return CommandQueues.commandQueueMap.get(GenericCommandType.DEBUG_QUEUE.toString());
+		}
+		QueueRoute route = this.routes.get(command.getHeader().getCommandType());
+		if (route == null) {
+			return null;
+		}
+		if (route.shards() == 1 || !(command instanceof TodoCommand) || ((TodoCommand) command).getTodo() == null) {
+			return route.queueUrl(0);
+		}
+		TodoCommand todoCommand = (TodoCommand) command;
+		long todoId = todoCommand.getTodo().getId();
+		/*
+		 * A todo that is being created has no id yet and nothing can be ordered after it, so its create is spread by the command id instead
+		 */
+		if (todoId == 0 && todoCommand.getId() != null) {
+			todoId = todoCommand.getId().getLeastSignificantBits();
+		}
+		return route.queueUrl(shardOf(todoId, route.shards()));
+	}
+
+	/*
+	 * All queue names of a command type, used by consumers that have to read every shard
+	 */
+	public String[] getQueueNames(GenericCommandType type) {
+		QueueRoute route = this.routes.get(type.toString());
+		return route == null ? new String[0] : route.names.clone();
+	}
+
+	static int shardOf(long todoId, int shards) {
+		long h = todoId * 0x9E3779B97F4A7C15L;
+		h ^= (h >>> 32);
+		return (int) ((h & Long.MAX_VALUE) % shards);
+	}
+
+	private class QueueRoute {
+
+		private final String[] names;
+
+		private final AtomicReferenceArray<String> urls;
+
+		QueueRoute(String queue, int shards) {
+			this.names = new String[Math.max(1, shards)];
+			for (int i = 0; i < this.names.length; i++) {
+				this.names[i] = i == 0 ? queue : queue + "_" + i;
+			}
+			this.urls = new AtomicReferenceArray<String>(this.names.length);
+		}
+
+		int shards() {
+			return this.names.length;
+		}
+
+		/*
+		 * Two threads may race to look up the same url on first use, both get the same answer so the loser's write does no harm
+		 */
+		String queueUrl(int shard) {
+			String url = this.urls.get(shard);
+			if (url != null) {
+				return url;
+			}
+			try {
+				url = queueUrlResolver.resolveDestination(this.names[shard]);
+				this.urls.set(shard, url);
+				return url;
+			}
+			catch (RuntimeException e) {
+				log.warn("Could not resolve the url of queue " + this.names[shard] + ", sending by name", e);
+				return this.names[shard];
+			}
+		}
+	}
 }
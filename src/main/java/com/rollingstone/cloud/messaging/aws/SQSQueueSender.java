@@ -2,13 +2,29 @@ package com.rollingstone.cloud.messaging.aws;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.aws.core.env.ResourceIdResolver;
 import org.springframework.cloud.aws.messaging.core.QueueMessagingTemplate;
+import org.springframework.cloud.aws.messaging.support.destination.DynamicQueueUrlDestinationResolver;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.core.CachingDestinationResolverProxy;
+import org.springframework.messaging.core.DestinationResolver;
 import org.springframework.stereotype.Component;
 
+import com.amazonaws.handlers.AsyncHandler;
 import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.amazonaws.services.sqs.model.SendMessageResult;
 import com.rollingstone.command.GenericCommandResult;
 import com.rollingstone.command.ResultCode;
 
@@ -16,15 +32,34 @@ import com.rollingstone.command.ResultCode;
 public class SQSQueueSender {
 
 	private final static Logger log = LoggerFactory.getLogger("SQSQueueSender");
-	
+
+	private final AmazonSQSAsync amazonSqs;
+
 	private final QueueMessagingTemplate queueMessagingTemplate;
-	
-	public SQSQueueSender(AmazonSQSAsync amazonSqs) {
-		this.queueMessagingTemplate = new QueueMessagingTemplate(amazonSqs);
+
+	private final DestinationResolver<String> queueUrlResolver;
+
+	private final SQSSendBatcher batcher;
+
+	public SQSQueueSender(AmazonSQSAsync amazonSqs,
+			@Value("${queue.batch.max-entries:10}") int batchMaxEntries,
+			@Value("${queue.batch.linger-ms:20}") long batchLingerMillis,
+			@Value("${queue.codec:json}") String codec,
+			@Value("${queue.codec.compression-threshold:1024}") int compressionThreshold,
+			@Value("${queue.codec.max-inflate-ratio:16}") int maxInflateRatio) {
+		this.amazonSqs = amazonSqs;
+		/*
+		 * With queue.codec=binary todo commands are sent in the compact binary format, everything else stays json.
+		 * Without a converter the template falls back to its default json conversion.
+		 */
+		MessageConverter messageConverter = "binary".equalsIgnoreCase(codec) ? TodoCommandMessageConverter.withJsonFallback(compressionThreshold, maxInflateRatio) : null;
+		this.queueMessagingTemplate = new QueueMessagingTemplate(amazonSqs, (ResourceIdResolver) null, messageConverter);
+		this.queueUrlResolver = new CachingDestinationResolverProxy<String>(new DynamicQueueUrlDestinationResolver(amazonSqs));
+		this.batcher = new SQSSendBatcher(amazonSqs, batchMaxEntries, batchLingerMillis);
 	}
-	
-	
-	
+
+
+
 	public GenericCommandResult send(String queue, Object message) {
 		log.info("The Queue name is : "+ queue);
 		this.queueMessagingTemplate.convertAndSend(queue, message);
@@ -32,7 +67,102 @@ public class SQSQueueSender {
 		GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS, messages, "Success");
 		cr.setAsSuccessful("Success", "The message was sent successfully" );
 		return cr;
-		
+
+	}
+
+	/*
+	 * 1. Instead of one SQS round trip per message, the message is converted exactly like convertAndSend would convert it
+	 * 2. It is then handed to the batcher which groups it with other messages for the same queue into one SendMessageBatch call
+	 * 3. The returned future completes with the result of this message's own batch entry, not of the batch as a whole
+	 */
+	public CompletableFuture<GenericCommandResult> sendBatched(String queue, Object message) {
+		String queueUrl;
+		SendMessageBatchRequestEntry entry;
+		try {
+			queueUrl = this.queueUrlResolver.resolveDestination(queue);
+			entry = toEntry(message);
+		}
+		catch (RuntimeException e) {
+			log.error("Could not prepare message for queue " + queue, e);
+			return completed(failureResult(e.getMessage()));
+		}
+		return this.batcher.add(queueUrl, entry);
+	}
+
+	/*
+	 * 1. Sends a single message through the asynchronous SQS client and returns immediately
+	 * 2. The returned future is completed on the SDK's callback thread once SQS has answered
+	 * 3. A RejectedExecutionException from the SDK's executor is passed on to the caller so it can shed load
+	 */
+	public CompletableFuture<GenericCommandResult> sendAsync(String queue, Object message) {
+		SendMessageRequest request;
+		try {
+			SendMessageBatchRequestEntry entry = toEntry(message);
+			request = new SendMessageRequest(this.queueUrlResolver.resolveDestination(queue), entry.getMessageBody())
+					.withMessageAttributes(entry.getMessageAttributes());
+		}
+		catch (RuntimeException e) {
+			log.error("Could not prepare message for queue " + queue, e);
+			return completed(failureResult(e.getMessage()));
+		}
+
+		CompletableFuture<GenericCommandResult> future = new CompletableFuture<GenericCommandResult>();
+		this.amazonSqs.sendMessageAsync(request, new AsyncHandler<SendMessageRequest, SendMessageResult>() {
+
+			@Override
+			public void onError(Exception exception) {
+				log.error("Send to " + queue + " failed", exception);
+				future.complete(failureResult(exception.getMessage()));
+			}
+
+			@Override
+			public void onSuccess(SendMessageRequest sendRequest, SendMessageResult result) {
+				future.complete(successResult(result.getMessageId()));
+			}
+		});
+		return future;
+	}
+
+	public MessageConverter getMessageConverter() {
+		return this.queueMessagingTemplate.getMessageConverter();
+	}
+
+	private SendMessageBatchRequestEntry toEntry(Object message) {
+		Message<?> converted = this.queueMessagingTemplate.getMessageConverter().toMessage(message, null);
+		SendMessageBatchRequestEntry entry = new SendMessageBatchRequestEntry().withMessageBody(converted.getPayload().toString());
+		Object contentType = converted.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+		if (contentType != null) {
+			entry.addMessageAttributesEntry(MessageHeaders.CONTENT_TYPE,
+					new MessageAttributeValue().withDataType("String").withStringValue(contentType.toString()));
+		}
+		return entry;
+	}
+
+	private static CompletableFuture<GenericCommandResult> completed(GenericCommandResult result) {
+		CompletableFuture<GenericCommandResult> future = new CompletableFuture<GenericCommandResult>();
+		future.complete(result);
+		return future;
+	}
+
+	@PreDestroy
+	public void flushPendingBatches() {
+		this.batcher.close();
+	}
+
+	static GenericCommandResult successResult(String messageId) {
+		Map<String, String> messages = new HashMap<String, String>();
+		GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS, messages, "Success");
+		cr.setAsSuccessful("Success", "The message was sent successfully" );
+		messages.put("messageId", messageId);
+		return cr;
+	}
+
+	static GenericCommandResult failureResult(String reason) {
+		Map<String, String> messages = new HashMap<String, String>();
+		messages.put("error", reason == null ? "Unknown error" : reason);
+		GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_FAILURE, new HashMap<String, String>(), "Failure");
+		cr.setAsFailed(messages.entrySet());
+		return cr;
 	}
 
 }
@@ -0,0 +1,227 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.rollingstone.command.GenericCommandResult;
+
+/*
+ * Groups messages per queue url into SendMessageBatch calls.
+ *
+ * 1. A batch is flushed as soon as it holds maxEntries messages (SQS allows at most 10)
+ * 2. A batch is also flushed when the next message would push it over the 256 KB SQS request limit, a message counts
+ *    like SQS counts it, with the name, data type and value of every message attribute on top of the body
+ * 3. Otherwise the batch is flushed by a timer lingerMillis after its first message arrived
+ * 4. Every caller gets its own future which completes with the outcome of its own entry in the batch
+ */
+class SQSSendBatcher {
+
+	private final static Logger log = LoggerFactory.getLogger("SQSSendBatcher");
+
+	static final int MAX_BATCH_ENTRIES = 10;
+
+	static final int MAX_BATCH_BYTES = 256 * 1024;
+
+	private final AmazonSQSAsync amazonSqs;
+
+	private final int maxEntries;
+
+	private final long lingerMillis;
+
+	private final ScheduledExecutorService lingerTimer;
+
+	private final ConcurrentMap<String, QueueBatch> batches = new ConcurrentHashMap<String, QueueBatch>();
+
+	SQSSendBatcher(AmazonSQSAsync amazonSqs, int maxEntries, long lingerMillis) {
+		this.amazonSqs = amazonSqs;
+		this.maxEntries = Math.max(1, Math.min(maxEntries, MAX_BATCH_ENTRIES));
+		this.lingerMillis = Math.max(0, lingerMillis);
+		this.lingerTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "sqs-batch-linger");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	CompletableFuture<GenericCommandResult> add(String queueUrl, SendMessageBatchRequestEntry entry) {
+		CompletableFuture<GenericCommandResult> future = new CompletableFuture<GenericCommandResult>();
+		QueueBatch batch = this.batches.computeIfAbsent(queueUrl, QueueBatch::new);
+		List<PendingEntry> ready = batch.add(new PendingEntry(entry, entryBytes(entry), future));
+		if (ready != null) {
+			send(queueUrl, ready);
+		}
+		return future;
+	}
+
+	static int entryBytes(SendMessageBatchRequestEntry entry) {
+		int bytes = utf8Length(entry.getMessageBody());
+		if (entry.getMessageAttributes() != null) {
+			for (Map.Entry<String, MessageAttributeValue> attribute : entry.getMessageAttributes().entrySet()) {
+				MessageAttributeValue value = attribute.getValue();
+				bytes += utf8Length(attribute.getKey()) + utf8Length(value.getDataType()) + utf8Length(value.getStringValue());
+				if (value.getBinaryValue() != null) {
+					bytes += value.getBinaryValue().remaining();
+				}
+			}
+		}
+		return bytes;
+	}
+
+	private static int utf8Length(String value) {
+		return value == null ? 0 : value.getBytes(StandardCharsets.UTF_8).length;
+	}
+
+	void close() {
+		this.lingerTimer.shutdownNow();
+		for (Map.Entry<String, QueueBatch> batch : this.batches.entrySet()) {
+			List<PendingEntry> remaining = batch.getValue().drain(-1);
+			if (remaining != null) {
+				send(batch.getKey(), remaining);
+			}
+		}
+	}
+
+	private void send(String queueUrl, List<PendingEntry> pending) {
+		List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(pending.size());
+		for (int i = 0; i < pending.size(); i++) {
+			entries.add(pending.get(i).entry.withId(Integer.toString(i)));
+		}
+
+		try {
+			this.amazonSqs.sendMessageBatchAsync(new SendMessageBatchRequest(queueUrl, entries),
+					new AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult>() {
+
+						@Override
+						public void onError(Exception exception) {
+							log.error("Batch send of " + pending.size() + " messages to " + queueUrl + " failed", exception);
+							for (PendingEntry entry : pending) {
+								entry.future.complete(SQSQueueSender.failureResult(exception.getMessage()));
+							}
+						}
+
+						@Override
+						public void onSuccess(SendMessageBatchRequest request, SendMessageBatchResult result) {
+							for (SendMessageBatchResultEntry success : result.getSuccessful()) {
+								pending.get(Integer.parseInt(success.getId())).future
+										.complete(SQSQueueSender.successResult(success.getMessageId()));
+							}
+							for (BatchResultErrorEntry failure : result.getFailed()) {
+								log.error("Batch entry to " + queueUrl + " failed : " + failure.getCode() + " " + failure.getMessage());
+								pending.get(Integer.parseInt(failure.getId())).future
+										.complete(SQSQueueSender.failureResult(failure.getCode() + " " + failure.getMessage()));
+							}
+						}
+					});
+		}
+		catch (RuntimeException e) {
+			log.error("Could not submit batch to " + queueUrl, e);
+			for (PendingEntry entry : pending) {
+				entry.future.complete(SQSQueueSender.failureResult(e.getMessage()));
+			}
+		}
+	}
+
+	private static class PendingEntry {
+
+		final SendMessageBatchRequestEntry entry;
+		final int bytes;
+		final CompletableFuture<GenericCommandResult> future;
+
+		PendingEntry(SendMessageBatchRequestEntry entry, int bytes, CompletableFuture<GenericCommandResult> future) {
+			this.entry = entry;
+			this.bytes = bytes;
+			this.future = future;
+		}
+	}
+
+	private class QueueBatch {
+
+		private final String queueUrl;
+
+		private List<PendingEntry> entries = new ArrayList<PendingEntry>(MAX_BATCH_ENTRIES);
+
+		private int bytes;
+
+		/*
+		 * Incremented on every flush so that a linger timer armed for an earlier batch does not flush a newer one early
+		 */
+		private long generation;
+
+		QueueBatch(String queueUrl) {
+			this.queueUrl = queueUrl;
+		}
+
+		/*
+		 * Returns the entries that must be sent right away, or null if the new entry is still lingering.
+		 * When the new entry does not fit the byte budget the current batch is returned and the entry starts the next one.
+		 */
+		synchronized List<PendingEntry> add(PendingEntry entry) {
+			List<PendingEntry> ready = null;
+			if (!this.entries.isEmpty() && this.bytes + entry.bytes > MAX_BATCH_BYTES) {
+				ready = cut();
+			}
+
+			this.entries.add(entry);
+			this.bytes += entry.bytes;
+
+			if (this.entries.size() >= maxEntries) {
+				if (ready != null) {
+					send(this.queueUrl, ready);
+				}
+				return cut();
+			}
+			if (this.entries.size() == 1) {
+				armLingerTimer(this.generation);
+			}
+			return ready;
+		}
+
+		synchronized List<PendingEntry> drain(long expectedGeneration) {
+			if (this.entries.isEmpty() || (expectedGeneration >= 0 && expectedGeneration != this.generation)) {
+				return null;
+			}
+			return cut();
+		}
+
+		private List<PendingEntry> cut() {
+			List<PendingEntry> ready = this.entries;
+			this.entries = new ArrayList<PendingEntry>(MAX_BATCH_ENTRIES);
+			this.bytes = 0;
+			this.generation++;
+			return ready;
+		}
+
+		private void armLingerTimer(long armedGeneration) {
+			try {
+				lingerTimer.schedule(() -> {
+					List<PendingEntry> ready = drain(armedGeneration);
+					if (ready != null) {
+						send(this.queueUrl, ready);
+					}
+				}, lingerMillis, TimeUnit.MILLISECONDS);
+			}
+			catch (RuntimeException e) {
+				log.warn("Linger timer rejected the flush of " + this.queueUrl + ", the batch waits for the next size based flush", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.AbstractMessageConverter;
+import org.springframework.messaging.converter.CompositeMessageConverter;
+import org.springframework.messaging.converter.MappingJackson2MessageConverter;
+import org.springframework.messaging.converter.MessageConversionException;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.util.MimeType;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.codec.TodoCommandBinaryCodec;
+
+/*
+ * Converts a TodoCommand to and from the compact binary format of the TodoCommandBinaryCodec.
+ *
+ * 1. SQS message bodies are text, so the binary form travels base64 encoded with an application/x-rs-todo-command content type
+ * 2. While producers are being switched over, receivers still get json todo commands; those carry the application/json
+ *    content type and are left to the jackson converter, or are recognised by their opening brace when the content type is missing
+ */
+public class TodoCommandMessageConverter extends AbstractMessageConverter {
+
+	public static final MimeType BINARY_TODO_COMMAND = new MimeType("application", "x-rs-todo-command");
+
+	private final TodoCommandBinaryCodec codec;
+
+	private final ObjectMapper objectMapper;
+
+	public TodoCommandMessageConverter(int compressionThreshold, int maxInflateRatio, ObjectMapper objectMapper) {
+		super(BINARY_TODO_COMMAND);
+		setSerializedPayloadClass(String.class);
+		this.codec = new TodoCommandBinaryCodec(compressionThreshold, maxInflateRatio);
+		this.objectMapper = objectMapper;
+	}
+
+	/*
+	 * 1. The binary converter goes first, it only claims TodoCommand payloads
+	 * 2. Everything else, and every json message on the way in, is handled by the jackson converter exactly as before
+	 */
+	public static MessageConverter withJsonFallback(int compressionThreshold, int maxInflateRatio) {
+		MappingJackson2MessageConverter jsonConverter = new MappingJackson2MessageConverter();
+		jsonConverter.setSerializedPayloadClass(String.class);
+		TodoCommandMessageConverter binaryConverter = new TodoCommandMessageConverter(compressionThreshold, maxInflateRatio, jsonConverter.getObjectMapper());
+		return new CompositeMessageConverter(Arrays.<MessageConverter> asList(binaryConverter, jsonConverter));
+	}
+
+	@Override
+	protected boolean supports(Class<?> clazz) {
+		return TodoCommand.class.isAssignableFrom(clazz);
+	}
+
+	/*
+	 * A command whose schema version has no binary format returns null here, which makes the composite converter send it as json
+	 */
+	@Override
+	protected Object convertToInternal(Object payload, MessageHeaders headers, Object conversionHint) {
+		try {
+			return Base64.getEncoder().encodeToString(this.codec.encode((TodoCommand) payload));
+		}
+		catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	@Override
+	protected Object convertFromInternal(Message<?> message, Class<?> targetClass, Object conversionHint) {
+		Object payload = message.getPayload();
+		String body = payload instanceof byte[] ? new String((byte[]) payload, StandardCharsets.UTF_8) : payload.toString();
+		try {
+			if (body.startsWith("{")) {
+				return this.objectMapper.readValue(body, TodoCommand.class);
+			}
+			return this.codec.decode(Base64.getDecoder().decode(body));
+		}
+		catch (IOException | IllegalArgumentException e) {
+			throw new MessageConversionException(message, "Could not read todo command: " + e.getMessage(), e);
+		}
+	}
+}
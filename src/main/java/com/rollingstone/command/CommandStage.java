@@ -0,0 +1,24 @@
+package com.rollingstone.command;
+
+/*
+ * The stages a command passes on its way from the controller to the todo table, in that order.
+ *
+ * 1. VALIDATE, the controller validating the todo and building the command
+ * 2. BUS, from the controller handing the command to the GenericCommandBus until a dispatcher takes it,
+ *    this includes the update coalescer, the ring buffer and the local outbox when they are switched on
+ * 3. RESOLVE_QUEUE, finding the queue or queue shard of the command
+ * 4. SEND, the conversion of the command and the SQS round trip, including the wait for a batch to fill up
+ * 5. DWELL, from SQS taking the message until a consumer received it
+ * 6. APPLY, from the consumer receiving the command until the transaction that applied it committed
+ *
+ * SEND is measured after the message has left, so it is only known to the producer, the consumer sees the other stages.
+ */
+public enum CommandStage {
+
+	VALIDATE,
+	BUS,
+	RESOLVE_QUEUE,
+	SEND,
+	DWELL,
+	APPLY
+}
@@ -1,12 +1,25 @@
 package com.rollingstone.command;
 
 import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 public class GenericCommandHeader {
 
 	private String commandType;
 	private String schemaVersion;
 	private Timestamp createDate;
+	private String idempotencyKey;
+	/*
+	 * Microseconds spent in each CommandStage the command has passed so far, in the order it passed them
+	 */
+	private Map<String, Long> stageTimings;
+	/*
+	 * System.nanoTime() at the end of the last stage, it only means something in the process that set it and is never sent
+	 */
+	private transient long stageMark;
 	
 	public String getCommandType() {
 		return commandType;
@@ -26,6 +39,31 @@ public class GenericCommandHeader {
 	public void setCreateDate(Timestamp createDate) {
 		this.createDate = createDate;
 	}
+	public String getIdempotencyKey() {
+		return idempotencyKey;
+	}
+	public void setIdempotencyKey(String idempotencyKey) {
+		this.idempotencyKey = idempotencyKey;
+	}
+	public Map<String, Long> getStageTimings() {
+		return stageTimings;
+	}
+	public void setStageTimings(Map<String, Long> stageTimings) {
+		this.stageTimings = stageTimings;
+	}
+	public void putStageTiming(String stage, long micros) {
+		if (this.stageTimings == null) {
+			this.stageTimings = new LinkedHashMap<String, Long>();
+		}
+		this.stageTimings.put(stage, micros);
+	}
+	@JsonIgnore
+	public long getStageMark() {
+		return stageMark;
+	}
+	public void setStageMark(long stageMark) {
+		this.stageMark = stageMark;
+	}
 	public GenericCommandHeader(String commandType, String schemaVersion, Timestamp createDate) {
 		super();
 		this.commandType = commandType;
@@ -38,7 +76,7 @@ public class GenericCommandHeader {
 	@Override
 	public String toString() {
 		return "GenericCommandHeader [commandType=" + commandType + ", schemaVersion=" + schemaVersion + ", createDate="
-				+ createDate + "]";
+				+ createDate + ", idempotencyKey=" + idempotencyKey + ", stageTimings=" + stageTimings + "]";
 	}
 	@Override
 	public int hashCode() {
@@ -46,7 +84,9 @@ public class GenericCommandHeader {
 		int result = 1;
 		result = prime * result + ((commandType == null) ? 0 : commandType.hashCode());
 		result = prime * result + ((createDate == null) ? 0 : createDate.hashCode());
+		result = prime * result + ((idempotencyKey == null) ? 0 : idempotencyKey.hashCode());
 		result = prime * result + ((schemaVersion == null) ? 0 : schemaVersion.hashCode());
+		result = prime * result + ((stageTimings == null) ? 0 : stageTimings.hashCode());
 		return result;
 	}
 	@Override
@@ -68,11 +108,21 @@ public class GenericCommandHeader {
 				return false;
 		} else if (!createDate.equals(other.createDate))
 			return false;
+		if (idempotencyKey == null) {
+			if (other.idempotencyKey != null)
+				return false;
+		} else if (!idempotencyKey.equals(other.idempotencyKey))
+			return false;
 		if (schemaVersion == null) {
 			if (other.schemaVersion != null)
 				return false;
 		} else if (!schemaVersion.equals(other.schemaVersion))
 			return false;
+		if (stageTimings == null) {
+			if (other.stageTimings != null)
+				return false;
+		} else if (!stageTimings.equals(other.stageTimings))
+			return false;
 		return true;
 	}
 	
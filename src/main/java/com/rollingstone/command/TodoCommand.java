@@ -11,6 +11,11 @@ public class TodoCommand implements GenericCommand {
 	GenericCommandHeader header;
 	Todo todo;
 	
+	/*
+	 * The version an update was made against, taken from the If-Match of the request, null when the update is unconditional
+	 */
+	Long expectedVersion;
+	
 	public UUID getId() {
 		return id;
 	}
@@ -29,6 +34,12 @@ public class TodoCommand implements GenericCommand {
 	public void setTodo(Todo todo) {
 		this.todo = todo;
 	}
+	public Long getExpectedVersion() {
+		return expectedVersion;
+	}
+	public void setExpectedVersion(Long expectedVersion) {
+		this.expectedVersion = expectedVersion;
+	}
 	public TodoCommand(UUID id, GenericCommandHeader header, Todo todo) {
 		super();
 		this.id = id;
@@ -0,0 +1,467 @@
+package com.rollingstone.command.codec;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+
+/*
+ * A compact binary encoding of a TodoCommand.
+ *
+ * 1. The first byte is a magic number and the second one the binary format version
+ * 2. The format version is picked from GenericCommandHeader.schemaVersion, schema version 1.0 is written as format 1
+ * 3. A presence byte says which of the optional parts follow, so nulls cost a single bit
+ * 4. The command id is written as two longs, the command type as its enum ordinal and the create date as epoch millis
+ * 5. Numbers are written as variable length integers and strings as a length followed by their UTF-8 bytes
+ * 6. A longDescription above the compression threshold is deflated when that actually makes it smaller
+ * 7. Schema version 1.1 is written as format 2, a second presence byte follows the first one and the todo version
+ *    and the stage timings of the header are written after everything format 1 has, format 1 is still read
+ * 8. Since the idempotency key schema version 1.1 is written as format 3, which is format 2 with the key behind the stage timings,
+ *    formats 1 and 2 are still read, a presence bit the format does not define is refused instead of misreading what follows
+ * 9. Since the expected version of a conditional update schema version 1.1 is written as format 4, which is format 3 with the
+ *    expected version behind the idempotency key, formats 1 to 3 are still read
+ * 10. Bytes off the queue are not trusted, a deflated longDescription may not claim more than maxInflateRatio times the largest
+ *    SQS message and a message that ends early or carries a negative or oversized length is refused with an IllegalArgumentException
+ */
+public class TodoCommandBinaryCodec {
+
+	public static final byte MAGIC = (byte) 0xC7;
+
+	public static final byte FORMAT_V1 = 1;
+
+	public static final byte FORMAT_V2 = 2;
+
+	public static final byte FORMAT_V3 = 3;
+
+	public static final byte FORMAT_V4 = 4;
+
+	public static final String SCHEMA_VERSION_1 = "1.0";
+
+	public static final String SCHEMA_VERSION_1_1 = "1.1";
+
+	public static final int SQS_MAX_MESSAGE_BYTES = 256 * 1024;
+
+	public static final int DEFAULT_MAX_INFLATE_RATIO = 16;
+
+	private static final int HAS_ID = 1;
+	private static final int HAS_HEADER = 1 << 1;
+	private static final int HAS_CREATE_DATE = 1 << 2;
+	private static final int HAS_TODO = 1 << 3;
+	private static final int HAS_SHORT_DESCRIPTION = 1 << 4;
+	private static final int HAS_LONG_DESCRIPTION = 1 << 5;
+	private static final int LONG_DESCRIPTION_DEFLATED = 1 << 6;
+	private static final int PRESENCE_BITS = (1 << 7) - 1;
+
+	/*
+	 * The second presence byte of format 2 to 4, the idempotency key is only defined from format 3 on, the expected version by format 4
+	 */
+	private static final int HAS_VERSION = 1;
+	private static final int HAS_STAGE_TIMINGS = 1 << 1;
+	private static final int HAS_IDEMPOTENCY_KEY = 1 << 2;
+	private static final int HAS_EXPECTED_VERSION = 1 << 3;
+	private static final int EXTRA_PRESENCE_BITS_V2 = HAS_VERSION | HAS_STAGE_TIMINGS;
+	private static final int EXTRA_PRESENCE_BITS_V3 = EXTRA_PRESENCE_BITS_V2 | HAS_IDEMPOTENCY_KEY;
+	private static final int EXTRA_PRESENCE_BITS_V4 = EXTRA_PRESENCE_BITS_V3 | HAS_EXPECTED_VERSION;
+
+	private static final GenericCommandType[] COMMAND_TYPES = GenericCommandType.values();
+
+	private final int compressionThreshold;
+
+	private final int maxInflatedBytes;
+
+	public TodoCommandBinaryCodec(int compressionThreshold) {
+		this(compressionThreshold, DEFAULT_MAX_INFLATE_RATIO);
+	}
+
+	public TodoCommandBinaryCodec(int compressionThreshold, int maxInflateRatio) {
+		this.compressionThreshold = compressionThreshold;
+		this.maxInflatedBytes = (int) Math.min(Integer.MAX_VALUE - 8, (long) SQS_MAX_MESSAGE_BYTES * Math.max(1, maxInflateRatio));
+	}
+
+	public byte[] encode(TodoCommand command) {
+		GenericCommandHeader header = command.getHeader();
+		byte format = FORMAT_V1;
+		if (header != null && SCHEMA_VERSION_1_1.equals(header.getSchemaVersion())) {
+			format = FORMAT_V4;
+		}
+		else if (header != null && header.getSchemaVersion() != null && !SCHEMA_VERSION_1.equals(header.getSchemaVersion())) {
+			throw new IllegalArgumentException("No binary format for schema version " + header.getSchemaVersion());
+		}
+		if (format == FORMAT_V1 && header != null && header.getIdempotencyKey() != null) {
+			throw new IllegalArgumentException("Schema version " + SCHEMA_VERSION_1 + " has no idempotency key, send schema version " + SCHEMA_VERSION_1_1);
+		}
+		if (format == FORMAT_V1 && command.getExpectedVersion() != null) {
+			throw new IllegalArgumentException("Schema version " + SCHEMA_VERSION_1 + " has no expected version, send schema version " + SCHEMA_VERSION_1_1);
+		}
+
+		Todo todo = command.getTodo();
+		byte[] shortDescription = todo == null || todo.getShortDescription() == null ? null : todo.getShortDescription().getBytes(StandardCharsets.UTF_8);
+		byte[] longDescription = todo == null || todo.getLongDescription() == null ? null : todo.getLongDescription().getBytes(StandardCharsets.UTF_8);
+
+		int presence = 0;
+		if (command.getId() != null) {
+			presence |= HAS_ID;
+		}
+		if (header != null) {
+			presence |= HAS_HEADER;
+			if (header.getCreateDate() != null) {
+				presence |= HAS_CREATE_DATE;
+			}
+		}
+		if (todo != null) {
+			presence |= HAS_TODO;
+			if (shortDescription != null) {
+				presence |= HAS_SHORT_DESCRIPTION;
+			}
+			if (longDescription != null) {
+				presence |= HAS_LONG_DESCRIPTION;
+				if (longDescription.length > this.compressionThreshold) {
+					byte[] deflated = deflate(longDescription);
+					if (deflated.length < longDescription.length) {
+						longDescription = deflated;
+						presence |= LONG_DESCRIPTION_DEFLATED;
+					}
+				}
+			}
+		}
+
+		int extraPresence = 0;
+		if (format == FORMAT_V4) {
+			if (todo != null && todo.getVersion() != 0) {
+				extraPresence |= HAS_VERSION;
+			}
+			if (header.getStageTimings() != null && !header.getStageTimings().isEmpty()) {
+				extraPresence |= HAS_STAGE_TIMINGS;
+			}
+			if (header.getIdempotencyKey() != null) {
+				extraPresence |= HAS_IDEMPOTENCY_KEY;
+			}
+			if (command.getExpectedVersion() != null) {
+				extraPresence |= HAS_EXPECTED_VERSION;
+			}
+		}
+
+		ByteWriter out = new ByteWriter(64 + (shortDescription == null ? 0 : shortDescription.length) + (longDescription == null ? 0 : longDescription.length));
+		out.writeByte(MAGIC);
+		out.writeByte(format);
+		out.writeByte(presence);
+		if (format == FORMAT_V4) {
+			out.writeByte(extraPresence);
+		}
+		if ((presence & HAS_ID) != 0) {
+			out.writeLong(command.getId().getMostSignificantBits());
+			out.writeLong(command.getId().getLeastSignificantBits());
+		}
+		if ((presence & HAS_HEADER) != 0) {
+			out.writeByte(GenericCommandType.valueOf(header.getCommandType()).ordinal());
+			if ((presence & HAS_CREATE_DATE) != 0) {
+				out.writeVarLong(header.getCreateDate().getTime());
+			}
+		}
+		if ((presence & HAS_TODO) != 0) {
+			out.writeVarLong(todo.getId());
+			if (shortDescription != null) {
+				out.writeBytes(shortDescription);
+			}
+			if ((presence & HAS_LONG_DESCRIPTION) != 0) {
+				out.writeBytes(longDescription);
+			}
+		}
+		if ((extraPresence & HAS_VERSION) != 0) {
+			out.writeVarLong(todo.getVersion());
+		}
+		if ((extraPresence & HAS_STAGE_TIMINGS) != 0) {
+			out.writeVarLong(header.getStageTimings().size());
+			for (Map.Entry<String, Long> stage : header.getStageTimings().entrySet()) {
+				out.writeBytes(stage.getKey().getBytes(StandardCharsets.UTF_8));
+				out.writeVarLong(stage.getValue() == null ? 0 : stage.getValue());
+			}
+		}
+		if ((extraPresence & HAS_IDEMPOTENCY_KEY) != 0) {
+			out.writeBytes(header.getIdempotencyKey().getBytes(StandardCharsets.UTF_8));
+		}
+		if ((extraPresence & HAS_EXPECTED_VERSION) != 0) {
+			out.writeVarLong(command.getExpectedVersion());
+		}
+		return out.toByteArray();
+	}
+
+	public TodoCommand decode(byte[] bytes) {
+		ByteReader in = new ByteReader(bytes);
+		if (in.readByte() != MAGIC) {
+			throw new IllegalArgumentException("Not a binary todo command");
+		}
+		int format = in.readByte();
+		switch (format) {
+		case FORMAT_V1:
+			return decodeV1(in);
+		case FORMAT_V2:
+			return decodeV2OrV3(in, EXTRA_PRESENCE_BITS_V2);
+		case FORMAT_V3:
+			return decodeV2OrV3(in, EXTRA_PRESENCE_BITS_V3);
+		case FORMAT_V4:
+			return decodeV2OrV3(in, EXTRA_PRESENCE_BITS_V4);
+		default:
+			throw new IllegalArgumentException("Unknown binary todo command format " + format);
+		}
+	}
+
+	public static boolean isBinary(byte[] bytes) {
+		return bytes.length > 1 && bytes[0] == MAGIC;
+	}
+
+	private TodoCommand decodeV1(ByteReader in) {
+		return decodeBody(in, in.readByte(), SCHEMA_VERSION_1);
+	}
+
+	/*
+	 * Format 3 only adds the idempotency key to format 2 and format 4 the expected version to format 3,
+	 * knownBits says which of the extra presence bits the format defines
+	 */
+	private TodoCommand decodeV2OrV3(ByteReader in, int knownBits) {
+		int presence = in.readByte();
+		int extraPresence = checkPresence(in.readByte(), knownBits);
+		TodoCommand command = decodeBody(in, presence, SCHEMA_VERSION_1_1);
+		if ((extraPresence & HAS_VERSION) != 0) {
+			command.getTodo().setVersion(in.readVarLong());
+		}
+		if ((extraPresence & HAS_STAGE_TIMINGS) != 0) {
+			int stages = (int) in.readVarLong();
+			Map<String, Long> stageTimings = new LinkedHashMap<String, Long>();
+			for (int i = 0; i < stages; i++) {
+				stageTimings.put(new String(in.readBytes(), StandardCharsets.UTF_8), in.readVarLong());
+			}
+			command.getHeader().setStageTimings(stageTimings);
+		}
+		if ((extraPresence & HAS_IDEMPOTENCY_KEY) != 0) {
+			command.getHeader().setIdempotencyKey(new String(in.readBytes(), StandardCharsets.UTF_8));
+		}
+		if ((extraPresence & HAS_EXPECTED_VERSION) != 0) {
+			command.setExpectedVersion(in.readVarLong());
+		}
+		return command;
+	}
+
+	private static int checkPresence(int presence, int knownBits) {
+		presence &= 0xFF;
+		if ((presence & ~knownBits) != 0) {
+			throw new IllegalArgumentException("Unknown presence bits " + Integer.toBinaryString(presence & ~knownBits) + " in binary todo command");
+		}
+		return presence;
+	}
+
+	/*
+	 * The part that format 1 and 2 have in common
+	 */
+	private TodoCommand decodeBody(ByteReader in, int presence, String schemaVersion) {
+		checkPresence(presence, PRESENCE_BITS);
+		TodoCommand command = new TodoCommand();
+		if ((presence & HAS_ID) != 0) {
+			command.setId(new UUID(in.readLong(), in.readLong()));
+		}
+		if ((presence & HAS_HEADER) != 0) {
+			GenericCommandHeader header = new GenericCommandHeader();
+			int commandType = in.readByte() & 0xFF;
+			if (commandType >= COMMAND_TYPES.length) {
+				throw new IllegalArgumentException("Unknown command type " + commandType + " in binary todo command");
+			}
+			header.setCommandType(COMMAND_TYPES[commandType].toString());
+			header.setSchemaVersion(schemaVersion);
+			if ((presence & HAS_CREATE_DATE) != 0) {
+				header.setCreateDate(new Timestamp(in.readVarLong()));
+			}
+			command.setHeader(header);
+		}
+		if ((presence & HAS_TODO) != 0) {
+			Todo todo = new Todo();
+			todo.setId(in.readVarLong());
+			if ((presence & HAS_SHORT_DESCRIPTION) != 0) {
+				todo.setShortDescription(new String(in.readBytes(), StandardCharsets.UTF_8));
+			}
+			if ((presence & HAS_LONG_DESCRIPTION) != 0) {
+				byte[] longDescription = in.readBytes();
+				if ((presence & LONG_DESCRIPTION_DEFLATED) != 0) {
+					longDescription = inflate(longDescription);
+				}
+				todo.setLongDescription(new String(longDescription, StandardCharsets.UTF_8));
+			}
+			command.setTodo(todo);
+		}
+		return command;
+	}
+
+	private static byte[] deflate(byte[] bytes) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try {
+			deflater.setInput(bytes);
+			deflater.finish();
+			ByteWriter out = new ByteWriter(bytes.length / 2 + 16);
+			byte[] chunk = new byte[4096];
+			while (!deflater.finished()) {
+				int written = deflater.deflate(chunk);
+				out.write(chunk, 0, written);
+			}
+			ByteWriter framed = new ByteWriter(out.size() + 5);
+			framed.writeVarLong(bytes.length);
+			framed.write(out.buffer, 0, out.size());
+			return framed.toByteArray();
+		}
+		finally {
+			deflater.end();
+		}
+	}
+
+	private byte[] inflate(byte[] framed) {
+		ByteReader in = new ByteReader(framed);
+		long claimed = in.readVarLong();
+		if (claimed < 0 || claimed > this.maxInflatedBytes) {
+			throw new IllegalArgumentException("Deflated longDescription claims " + claimed + " bytes, at most " + this.maxInflatedBytes + " are accepted");
+		}
+		int length = (int) claimed;
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(framed, in.position, framed.length - in.position);
+			byte[] bytes = new byte[length];
+			int read = 0;
+			while (read < length) {
+				int n = inflater.inflate(bytes, read, length - read);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new IllegalArgumentException("Truncated longDescription");
+				}
+				read += n;
+			}
+			return bytes;
+		}
+		catch (DataFormatException e) {
+			throw new IllegalArgumentException("Corrupt longDescription", e);
+		}
+		finally {
+			inflater.end();
+		}
+	}
+
+	static class ByteWriter {
+
+		private byte[] buffer;
+
+		private int size;
+
+		ByteWriter(int capacity) {
+			this.buffer = new byte[Math.max(16, capacity)];
+		}
+
+		void writeByte(int value) {
+			ensure(1);
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		void writeLong(long value) {
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				this.buffer[this.size++] = (byte) (value >>> shift);
+			}
+		}
+
+		void writeVarLong(long value) {
+			ensure(10);
+			while ((value & ~0x7FL) != 0) {
+				this.buffer[this.size++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			this.buffer[this.size++] = (byte) value;
+		}
+
+		void writeBytes(byte[] bytes) {
+			writeVarLong(bytes.length);
+			write(bytes, 0, bytes.length);
+		}
+
+		void write(byte[] bytes, int offset, int length) {
+			ensure(length);
+			System.arraycopy(bytes, offset, this.buffer, this.size, length);
+			this.size += length;
+		}
+
+		int size() {
+			return this.size;
+		}
+
+		byte[] toByteArray() {
+			return this.size == this.buffer.length ? this.buffer : Arrays.copyOf(this.buffer, this.size);
+		}
+
+		private void ensure(int extra) {
+			if (this.size + extra > this.buffer.length) {
+				this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.size + extra));
+			}
+		}
+	}
+
+	static class ByteReader {
+
+		private final byte[] buffer;
+
+		private int position;
+
+		ByteReader(byte[] buffer) {
+			this.buffer = buffer;
+		}
+
+		int readByte() {
+			require(1);
+			return this.buffer[this.position++];
+		}
+
+		long readLong() {
+			require(8);
+			long value = 0;
+			for (int i = 0; i < 8; i++) {
+				value = (value << 8) | (this.buffer[this.position++] & 0xFF);
+			}
+			return value;
+		}
+
+		long readVarLong() {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				if (shift > 63) {
+					throw new IllegalArgumentException("Variable length integer longer than 10 bytes in binary todo command");
+				}
+				require(1);
+				b = this.buffer[this.position++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return value;
+		}
+
+		byte[] readBytes() {
+			long length = readVarLong();
+			if (length < 0 || length > this.buffer.length - this.position) {
+				throw new IllegalArgumentException("Length " + length + " at " + this.position + " runs past the " + this.buffer.length
+						+ " bytes of the binary todo command");
+			}
+			byte[] bytes = Arrays.copyOfRange(this.buffer, this.position, this.position + (int) length);
+			this.position += (int) length;
+			return bytes;
+		}
+
+		private void require(int count) {
+			if (this.position + count > this.buffer.length) {
+				throw new IllegalArgumentException("Binary todo command truncated at " + this.position + " of " + this.buffer.length + " bytes");
+			}
+		}
+	}
+}
@@ -0,0 +1,22 @@
+package com.rollingstone.command.id;
+
+import java.util.UUID;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.command.interfaces.CommandIdGenerator;
+
+/*
+ * Random version 4 ids from UUID.randomUUID, every id draws from the one SecureRandom of the JVM,
+ * used when command.id-generator=random
+ */
+@Component
+@ConditionalOnProperty(name = "command.id-generator", havingValue = "random")
+public class RandomCommandIdGenerator implements CommandIdGenerator {
+
+	@Override
+	public UUID nextId() {
+		return UUID.randomUUID();
+	}
+}
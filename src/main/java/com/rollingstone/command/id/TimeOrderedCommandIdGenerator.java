@@ -0,0 +1,60 @@
+package com.rollingstone.command.id;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.command.interfaces.CommandIdGenerator;
+
+/*
+ * Time ordered version 7 ids, the default command.id-generator.
+ *
+ * 1. An id is [48 bits unix milliseconds][version 7][12 bits sequence][variant][62 random bits]
+ * 2. Every thread keeps its own last millisecond and sequence, nothing is shared between threads and nothing is locked,
+ *    the random bits come from ThreadLocalRandom instead of the shared SecureRandom behind UUID.randomUUID
+ * 3. The sequence starts at a random value below 2048 every millisecond and counts up, once it runs out within a millisecond
+ *    the thread moves on to the next millisecond early, so the ids of one thread always increase, also when the clock goes back
+ * 4. Ids of different threads are ordered to the millisecond, the random bits keep them apart within it
+ * 5. The random bits are not meant to be unguessable, command ids are not secrets
+ */
+@Component
+@ConditionalOnProperty(name = "command.id-generator", havingValue = "time-ordered", matchIfMissing = true)
+public class TimeOrderedCommandIdGenerator implements CommandIdGenerator {
+
+	private static final int SEQUENCE_BITS = 12;
+
+	private static final int MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+	private static final long VERSION = 7L << SEQUENCE_BITS;
+
+	private static final long VARIANT = 0x8000000000000000L;
+
+	private static final long RANDOM_MASK = 0x3FFFFFFFFFFFFFFFL;
+
+	private static final ThreadLocal<State> STATE = ThreadLocal.withInitial(State::new);
+
+	@Override
+	public UUID nextId() {
+		State state = STATE.get();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long now = System.currentTimeMillis();
+		if (now > state.millis) {
+			state.millis = now;
+			state.sequence = random.nextInt(1 << (SEQUENCE_BITS - 1));
+		}
+		else if (++state.sequence > MAX_SEQUENCE) {
+			state.millis++;
+			state.sequence = 0;
+		}
+		return new UUID((state.millis << 16) | VERSION | state.sequence, VARIANT | (random.nextLong() & RANDOM_MASK));
+	}
+
+	private static class State {
+
+		long millis;
+
+		int sequence;
+	}
+}
@@ -0,0 +1,11 @@
+package com.rollingstone.command.interfaces;
+
+import java.util.UUID;
+
+/*
+ * Hands out the ids of new commands, the implementation is chosen with command.id-generator
+ */
+public interface CommandIdGenerator {
+
+	UUID nextId();
+}
@@ -3,4 +3,8 @@ package com.rollingstone.command.interfaces;
 public interface CommandQueueNameResolver {
 
 	String resolve(String commandType);
+
+	default String resolve(GenericCommand command) {
+		return resolve(command.getHeader().getCommandType());
+	}
 }
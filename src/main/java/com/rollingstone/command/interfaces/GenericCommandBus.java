@@ -1,5 +1,6 @@
 package com.rollingstone.command.interfaces;
 
+import java.util.List;
 import java.util.concurrent.Future;
 
 import com.rollingstone.command.GenericCommandResult;
@@ -7,5 +8,10 @@ import com.rollingstone.command.GenericCommandResult;
 public interface GenericCommandBus {
 
 	<T extends GenericCommand> Future<GenericCommandResult> send(T command);
+	
+	/*
+	 * Sends a batch of commands, one future per command in the order of the commands
+	 */
+	List<Future<GenericCommandResult>> sendAll(List<? extends GenericCommand> commands);
 
 }
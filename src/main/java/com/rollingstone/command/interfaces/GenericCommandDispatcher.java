@@ -1,5 +1,8 @@
 package com.rollingstone.command.interfaces;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
 import com.rollingstone.command.GenericCommandResult;
@@ -7,4 +10,24 @@ import com.rollingstone.command.GenericCommandResult;
 public interface GenericCommandDispatcher {
 
 	Future<GenericCommandResult> dispatch(GenericCommand command);
+	
+	/*
+	 * 1. Dispatches a whole batch of commands, the returned futures are in the order of the commands
+	 * 2. A command the dispatcher refuses fails its own future instead of the whole batch
+	 * 3. Dispatchers that can do better than one dispatch per command, like the SQS one, override this
+	 */
+	default List<Future<GenericCommandResult>> dispatchAll(List<? extends GenericCommand> commands) {
+		List<Future<GenericCommandResult>> futures = new ArrayList<Future<GenericCommandResult>>(commands.size());
+		for (GenericCommand command : commands) {
+			try {
+				futures.add(dispatch(command));
+			}
+			catch (RuntimeException e) {
+				CompletableFuture<GenericCommandResult> failed = new CompletableFuture<GenericCommandResult>();
+				failed.completeExceptionally(e);
+				futures.add(failed);
+			}
+		}
+		return futures;
+	}
 }
@@ -0,0 +1,10 @@
+package com.rollingstone.command.interfaces;
+
+import com.rollingstone.command.GenericCommandResult;
+
+public interface GenericCommandHandler {
+
+	boolean canHandle(String commandType);
+
+	GenericCommandResult handle(GenericCommand command);
+}
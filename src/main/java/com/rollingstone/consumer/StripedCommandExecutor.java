@@ -0,0 +1,137 @@
+package com.rollingstone.consumer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+
+/*
+ * Runs work on a fixed number of single threaded lanes, picked by a key.
+ *
+ * 1. The same key always lands on the same lane and a lane runs its work one piece after the other,
+ *    so all work for one key happens in the order it was submitted while different keys run in parallel
+ * 2. Every lane has a bounded queue, submit waits while the lane is full, which slows the submitter down to the pace of the lane
+ * 3. Each lane reports how much work is waiting in it, and the skew gauge is the busiest lane's share of the work divided by the average,
+ *    1.0 means the keys are spread evenly, a high value means a few hot keys keep one lane busy while the others idle
+ */
+class StripedCommandExecutor {
+
+	private static final Logger log = LoggerFactory.getLogger(StripedCommandExecutor.class);
+
+	private static final Runnable STOP = () -> {
+	};
+
+	private final Lane[] lanes;
+
+	private final AtomicLongArray submitted;
+
+	StripedCommandExecutor(String name, int laneCount, int laneCapacity) {
+		this.lanes = new Lane[Math.max(1, laneCount)];
+		this.submitted = new AtomicLongArray(this.lanes.length);
+		for (int i = 0; i < this.lanes.length; i++) {
+			Lane lane = new Lane(name + "-" + i, Math.max(1, laneCapacity), Metrics.counter("com.rollingstone.command.consumer.lane.completed", "lane", Integer.toString(i)));
+			Metrics.gauge("com.rollingstone.command.consumer.lane.depth", Tags.of("lane", Integer.toString(i)), lane.queue, BlockingQueue::size);
+			this.lanes[i] = lane;
+			lane.thread.start();
+		}
+		Metrics.gauge("com.rollingstone.command.consumer.lane.skew", this, StripedCommandExecutor::getSkew);
+	}
+
+	int getLaneCount() {
+		return this.lanes.length;
+	}
+
+	int laneOf(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		h ^= (h >>> 32);
+		return (int) ((h & Long.MAX_VALUE) % this.lanes.length);
+	}
+
+	/*
+	 * Waits while the lane is full, an interrupted submitter gets a failed future and the work is not run
+	 */
+	<T> CompletableFuture<T> submit(int lane, Callable<T> work) {
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		Runnable task = () -> {
+			try {
+				future.complete(work.call());
+			}
+			catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		};
+		try {
+			this.lanes[lane].queue.put(task);
+			this.submitted.incrementAndGet(lane);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	int getDepth(int lane) {
+		return this.lanes[lane].queue.size();
+	}
+
+	double getSkew() {
+		long total = 0;
+		long busiest = 0;
+		for (int i = 0; i < this.submitted.length(); i++) {
+			long count = this.submitted.get(i);
+			total += count;
+			busiest = Math.max(busiest, count);
+		}
+		return total == 0 ? 0 : busiest / ((double) total / this.submitted.length());
+	}
+
+	/*
+	 * Lets every lane finish the work already queued and then stops its thread
+	 */
+	void close() throws InterruptedException {
+		for (Lane lane : this.lanes) {
+			lane.queue.put(STOP);
+		}
+		for (Lane lane : this.lanes) {
+			lane.thread.join();
+		}
+	}
+
+	private static class Lane {
+
+		final BlockingQueue<Runnable> queue;
+
+		final Thread thread;
+
+		Lane(String name, int capacity, Counter completed) {
+			this.queue = new ArrayBlockingQueue<Runnable>(capacity);
+			this.thread = new Thread(() -> {
+				while (true) {
+					Runnable task;
+					try {
+						task = this.queue.take();
+					}
+					catch (InterruptedException e) {
+						log.warn("Lane " + name + " interrupted, " + this.queue.size() + " tasks left unrun");
+						return;
+					}
+					if (task == STOP) {
+						return;
+					}
+					task.run();
+					completed.increment();
+				}
+			}, name);
+			this.thread.setDaemon(true);
+		}
+	}
+}
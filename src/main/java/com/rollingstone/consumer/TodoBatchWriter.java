@@ -0,0 +1,163 @@
+package com.rollingstone.consumer;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.ProcessedCommand;
+import com.rollingstone.domain.Todo;
+
+/*
+ * Applies a batch of todo commands in one transaction.
+ *
+ * 1. All todos the updates and deletes refer to are loaded with a single query, so merging them costs no select per command
+ * 2. Creates are persisted, their ids come from the id block so Hibernate does not have to insert them one by one to learn the id
+ * 3. Updates copy the new state onto the loaded todo and deletes remove it, the commands are applied in the order they were received
+ * 4. Nothing is written until the transaction commits, then hibernate.jdbc.batch_size inserts, updates and deletes go out per statement
+ * 5. The todos as they are after the batch are returned, index by index, null for a command that found nothing to apply to
+ * 6. The id of every applied command is written to the processed command table in the same transaction, a command whose id
+ *    is already there, because SQS delivered its message again or the batch holds it twice, is skipped and returns null
+ * 7. An update with an expected version is checked against the version the todo has within the batch, Hibernate only raises the
+ *    version once at the flush, so the batch keeps it itself: the first update applied to a loaded todo moves it one version on,
+ *    a second update made against the loaded version is skipped like it would have been in a batch of its own
+ * 8. The processed command table is purged of ids older than the time a message can still be delivered again, see purgeProcessedCommands
+ */
+@Component
+@DependsOn("todoIdBlockSeeder")
+public class TodoBatchWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoBatchWriter.class);
+
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Transactional
+	public List<Todo> apply(List<TodoCommand> commands) {
+
+		Map<Long, Todo> existing = loadReferencedTodos(commands);
+		Set<String> processed = loadProcessedCommandIds(commands);
+		Map<Long, Long> versions = new HashMap<Long, Long>();
+		Timestamp processedAt = new Timestamp(System.currentTimeMillis());
+
+		List<Todo> applied = new ArrayList<Todo>(commands.size());
+		for (TodoCommand command : commands) {
+			Todo todo = command.getTodo();
+			if (command.getId() != null) {
+				String commandId = command.getId().toString();
+				if (!processed.add(commandId)) {
+					log.info("Command " + commandId + " skipped, it has already been applied");
+					applied.add(null);
+					continue;
+				}
+				this.entityManager.persist(new ProcessedCommand(commandId, processedAt));
+			}
+			GenericCommandType type = GenericCommandType.valueOf(command.getHeader().getCommandType());
+			switch (type) {
+			case CREATE_TODO:
+				Todo created = new Todo();
+				created.setShortDescription(todo.getShortDescription());
+				created.setLongDescription(todo.getLongDescription());
+				this.entityManager.persist(created);
+				existing.put(created.getId(), created);
+				/*
+				 * A todo inserted by this batch is written with the state of its last update and keeps version 0
+				 */
+				versions.put(created.getId(), created.getVersion());
+				applied.add(created);
+				break;
+			case UPDATE_TODO:
+				Todo updated = existing.get(todo.getId());
+				if (updated == null) {
+					log.warn("Update of todo " + todo.getId() + " skipped, the todo does not exist");
+				}
+				else if (command.getExpectedVersion() != null && command.getExpectedVersion() != versionOf(versions, updated)) {
+					/*
+					 * The update was sent with If-Match for a version the todo has moved past since, another update got here first
+					 */
+					log.warn("Update of todo " + todo.getId() + " skipped, it was made against version " + command.getExpectedVersion()
+							+ " but the todo is at version " + versionOf(versions, updated));
+					updated = null;
+				}
+				else {
+					updated.setShortDescription(todo.getShortDescription());
+					updated.setLongDescription(todo.getLongDescription());
+					versions.putIfAbsent(todo.getId(), updated.getVersion() + 1);
+				}
+				applied.add(updated);
+				break;
+			case DELETE_TODO:
+				Todo deleted = existing.remove(todo.getId());
+				if (deleted != null) {
+					this.entityManager.remove(deleted);
+				}
+				applied.add(deleted);
+				break;
+			default:
+				throw new IllegalArgumentException("Not a todo command: " + type);
+			}
+		}
+		return applied;
+	}
+
+	private static long versionOf(Map<Long, Long> versions, Todo todo) {
+		Long version = versions.get(todo.getId());
+		return version == null ? todo.getVersion() : version;
+	}
+
+	/*
+	 * Removes the ids of the commands processed before the given time, returns how many were removed
+	 */
+	@Transactional
+	public int purgeProcessedCommands(Timestamp processedBefore) {
+		return this.entityManager.createQuery("delete from ProcessedCommand p where p.processedAt < :processedBefore")
+				.setParameter("processedBefore", processedBefore).executeUpdate();
+	}
+
+	private Set<String> loadProcessedCommandIds(List<TodoCommand> commands) {
+		Set<String> ids = new HashSet<String>();
+		for (TodoCommand command : commands) {
+			if (command.getId() != null) {
+				ids.add(command.getId().toString());
+			}
+		}
+		if (ids.isEmpty()) {
+			return ids;
+		}
+		return new HashSet<String>(this.entityManager
+				.createQuery("select p.commandId from ProcessedCommand p where p.commandId in :ids", String.class)
+				.setParameter("ids", ids).getResultList());
+	}
+
+	private Map<Long, Todo> loadReferencedTodos(List<TodoCommand> commands) {
+		Set<Long> ids = new HashSet<Long>();
+		for (TodoCommand command : commands) {
+			if (!GenericCommandType.CREATE_TODO.toString().equals(command.getHeader().getCommandType())) {
+				ids.add(command.getTodo().getId());
+			}
+		}
+		Map<Long, Todo> todos = new HashMap<Long, Todo>();
+		if (ids.isEmpty()) {
+			return todos;
+		}
+		for (Todo todo : this.entityManager.createQuery("select t from Todo t where t.id in :ids", Todo.class)
+				.setParameter("ids", ids).getResultList()) {
+			todos.put(todo.getId(), todo);
+		}
+		return todos;
+	}
+}
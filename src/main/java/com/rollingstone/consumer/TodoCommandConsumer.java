@@ -0,0 +1,395 @@
+package com.rollingstone.consumer;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.messaging.support.MessageBuilder;
+import org.springframework.stereotype.Component;
+
+import com.amazonaws.services.sqs.AmazonSQSAsync;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.Message;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.ReceiveMessageRequest;
+import com.rollingstone.cloud.messaging.aws.SQSCommandQueueNameResolver;
+import com.rollingstone.cloud.messaging.aws.TodoCommandMessageConverter;
+import com.rollingstone.command.CommandStage;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.metrics.CommandLatencyRecorder.Completion;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * The write side of the todo queue, switched on with command.consumer.enabled=true.
+ *
+ * 1. Every shard of the todo queue gets its own poller thread
+ * 2. A poller long polls for messages and keeps receiving until it has command.consumer.batch-size messages or the queue has no more right now
+ * 3. The messages are decoded with the same converters the producer uses, binary or json
+ * 4. The commands are spread over command.consumer.lanes lanes by their todo id, all commands of one todo go to the same lane
+ *    and a lane applies them one after the other, so an update never overtakes the create or update before it
+ * 5. A lane applies its part of the batch with the TodoBatchWriter in one transaction, and only after the commit are its messages deleted from the queue,
+ *    messages waiting in a full lane are not acknowledged yet, command.consumer.lane-capacity keeps that wait well below the visibility timeout
+ * 6. If the batch transaction fails, every command is retried in a transaction of its own so that one bad command does not hold back the others,
+ *    the commands that still fail stay on the queue and come back after the visibility timeout, or end up in the dead letter queue
+ * 7. Every applied command is announced with a TodoServiceEvent once it is committed
+ * 8. The time a message spent on the queue is the DWELL stage of its command, counted from the SentTimestamp SQS gives the message,
+ *    the time from receiving it until its transaction committed is the APPLY stage
+ * 9. Once an hour the processed command ids older than command.consumer.processed-retention-hours are purged, the default of 14 days
+ *    is the longest SQS keeps a message, so a message can no longer be delivered again once the id of its command is gone
+ */
+@Component
+@ConditionalOnProperty(name = "command.consumer.enabled", havingValue = "true")
+public class TodoCommandConsumer {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoCommandConsumer.class);
+
+	public static final String TODO_CREATE_APPLIED = "TodoCreateApplied";
+	public static final String TODO_UPDATE_APPLIED = "TodoUpdateApplied";
+	public static final String TODO_DELETE_APPLIED = "TodoDeleteApplied";
+
+	private static final int MAX_MESSAGES_PER_RECEIVE = 10;
+
+	private static final String SENT_TIMESTAMP = "SentTimestamp";
+
+	private static final long PURGE_INTERVAL_MINUTES = 60;
+
+	private final AmazonSQSAsync amazonSqs;
+
+	private final SQSCommandQueueNameResolver queueNameResolver;
+
+	private final TodoBatchWriter batchWriter;
+
+	private final ApplicationEventPublisher eventPublisher;
+
+	private final CommandLatencyRecorder commandLatencyRecorder;
+
+	private final MessageConverter messageConverter;
+
+	private final int batchSize;
+
+	private final int waitTimeSeconds;
+
+	private final StripedCommandExecutor lanes;
+
+	private final List<Thread> pollers = new ArrayList<Thread>();
+
+	private final long processedRetentionMillis;
+
+	private ScheduledExecutorService purger;
+
+	private volatile boolean running;
+
+	Counter appliedCounter = Metrics.counter("com.rollingstone.command.consumer.applied");
+
+	Counter failedCounter = Metrics.counter("com.rollingstone.command.consumer.failed");
+
+	Counter undecodableCounter = Metrics.counter("com.rollingstone.command.consumer.undecodable");
+
+	public TodoCommandConsumer(AmazonSQSAsync amazonSqs, SQSCommandQueueNameResolver queueNameResolver, TodoBatchWriter batchWriter,
+			ApplicationEventPublisher eventPublisher, CommandLatencyRecorder commandLatencyRecorder,
+			@Value("${command.consumer.batch-size:100}") int batchSize,
+			@Value("${command.consumer.wait-time-seconds:20}") int waitTimeSeconds,
+			@Value("${queue.codec.compression-threshold:1024}") int compressionThreshold,
+			@Value("${queue.codec.max-inflate-ratio:16}") int maxInflateRatio,
+			@Value("${command.consumer.lanes:0}") int lanes,
+			@Value("${command.consumer.lane-capacity:16}") int laneCapacity,
+			@Value("${command.consumer.processed-retention-hours:336}") long processedRetentionHours) {
+		this.amazonSqs = amazonSqs;
+		this.queueNameResolver = queueNameResolver;
+		this.batchWriter = batchWriter;
+		this.eventPublisher = eventPublisher;
+		this.commandLatencyRecorder = commandLatencyRecorder;
+		this.messageConverter = TodoCommandMessageConverter.withJsonFallback(compressionThreshold, maxInflateRatio);
+		this.batchSize = Math.max(1, batchSize);
+		this.waitTimeSeconds = waitTimeSeconds;
+		this.lanes = new StripedCommandExecutor("todo-command-lane", lanes > 0 ? lanes : Runtime.getRuntime().availableProcessors(), laneCapacity);
+		this.processedRetentionMillis = TimeUnit.HOURS.toMillis(processedRetentionHours);
+	}
+
+	@PostConstruct
+	public void start() {
+		this.running = true;
+		for (String queue : this.queueNameResolver.getQueueNames(GenericCommandType.CREATE_TODO)) {
+			String queueUrl = this.amazonSqs.getQueueUrl(queue).getQueueUrl();
+			Thread poller = new Thread(() -> poll(queueUrl), "todo-command-consumer-" + queue);
+			poller.setDaemon(true);
+			this.pollers.add(poller);
+			poller.start();
+		}
+		this.purger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "processed-command-purger");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.purger.scheduleWithFixedDelay(this::purgeProcessedCommands, PURGE_INTERVAL_MINUTES, PURGE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		this.running = false;
+		if (this.purger != null) {
+			this.purger.shutdownNow();
+		}
+		for (Thread poller : this.pollers) {
+			poller.join(TimeUnit.SECONDS.toMillis(this.waitTimeSeconds + 5));
+		}
+		this.lanes.close();
+	}
+
+	void purgeProcessedCommands() {
+		try {
+			int purged = this.batchWriter.purgeProcessedCommands(new Timestamp(System.currentTimeMillis() - this.processedRetentionMillis));
+			log.info("Purged " + purged + " processed command ids");
+		}
+		catch (RuntimeException e) {
+			log.error("Purging processed command ids failed", e);
+		}
+	}
+
+	private void poll(String queueUrl) {
+		while (this.running) {
+			try {
+				pollOnce(queueUrl);
+			}
+			catch (RuntimeException e) {
+				log.error("Polling " + queueUrl + " failed", e);
+				sleepQuietly(1000);
+			}
+		}
+	}
+
+	/*
+	 * 1. Receives one batch and splits it by lane, the lane of a command is picked by its todo id
+	 * 2. Each lane gets its part of the batch in the order the messages were received and applies it on its own thread
+	 * 3. The poller does not wait for the lanes, it goes on receiving until a lane is full
+	 * 4. The returned future completes with the number of applied commands once every lane is done with its part
+	 */
+	CompletableFuture<Integer> pollOnce(String queueUrl) {
+		List<Message> messages = receiveBatch(queueUrl);
+
+		Map<Integer, List<Message>> laneMessages = new HashMap<Integer, List<Message>>();
+		Map<Integer, List<TodoCommand>> laneCommands = new HashMap<Integer, List<TodoCommand>>();
+		for (Message message : messages) {
+			TodoCommand command = decode(message);
+			if (command != null) {
+				received(message, command);
+				int lane = this.lanes.laneOf(stripeKey(command));
+				laneMessages.computeIfAbsent(lane, l -> new ArrayList<Message>()).add(message);
+				laneCommands.computeIfAbsent(lane, l -> new ArrayList<TodoCommand>()).add(command);
+			}
+		}
+
+		List<CompletableFuture<Integer>> applied = new ArrayList<CompletableFuture<Integer>>(laneCommands.size());
+		for (Map.Entry<Integer, List<TodoCommand>> lane : laneCommands.entrySet()) {
+			List<Message> decoded = laneMessages.get(lane.getKey());
+			applied.add(this.lanes.submit(lane.getKey(), () -> apply(queueUrl, lane.getValue(), decoded)));
+		}
+		return CompletableFuture.allOf(applied.toArray(new CompletableFuture<?>[applied.size()]))
+				.thenApply(done -> applied.stream().mapToInt(CompletableFuture::join).sum());
+	}
+
+	/*
+	 * A todo that is being created has no id yet, its create is striped by the command id like the queue shards do
+	 */
+	private static long stripeKey(TodoCommand command) {
+		long todoId = command.getTodo().getId();
+		if (todoId == 0 && command.getId() != null) {
+			return command.getId().getLeastSignificantBits();
+		}
+		return todoId;
+	}
+
+	/*
+	 * 1. Runs on a lane, applies the commands and deletes their messages, returns how many commands were applied
+	 * 2. Only when the batch could not be written the commands are applied one by one, so one bad command keeps only itself on the queue
+	 * 3. Once the transaction has committed the commands are applied, whatever happens while deleting or announcing them is logged
+	 *    and nothing is applied again, a message that could not be deleted comes back and its command is skipped as processed then
+	 */
+	private int apply(String queueUrl, List<TodoCommand> commands, List<Message> decoded) {
+		List<Todo> applied;
+		try {
+			applied = this.batchWriter.apply(commands);
+		}
+		catch (RuntimeException e) {
+			log.warn("Applying a batch of " + commands.size() + " todo commands failed, applying them one by one", e);
+			return applyOneByOne(queueUrl, commands, decoded);
+		}
+		committed(queueUrl, commands, decoded, applied);
+		appliedCounter.increment(commands.size());
+		return commands.size();
+	}
+
+	private int applyOneByOne(String queueUrl, List<TodoCommand> commands, List<Message> decoded) {
+		int appliedCount = 0;
+		for (int i = 0; i < commands.size(); i++) {
+			List<TodoCommand> single = Collections.singletonList(commands.get(i));
+			List<Todo> applied;
+			try {
+				applied = this.batchWriter.apply(single);
+			}
+			catch (RuntimeException e) {
+				log.error("Applying " + commands.get(i) + " failed, it stays on the queue", e);
+				failedCounter.increment();
+				continue;
+			}
+			committed(queueUrl, single, Collections.singletonList(decoded.get(i)), applied);
+			appliedCounter.increment();
+			appliedCount++;
+		}
+		return appliedCount;
+	}
+
+	private void committed(String queueUrl, List<TodoCommand> commands, List<Message> decoded, List<Todo> applied) {
+		applied(commands);
+		try {
+			delete(queueUrl, decoded);
+		}
+		catch (RuntimeException e) {
+			log.warn("Could not delete " + decoded.size() + " applied messages from " + queueUrl
+					+ ", they will be delivered again and skipped as processed", e);
+		}
+		try {
+			announce(commands, applied);
+		}
+		catch (RuntimeException e) {
+			log.error("Announcing " + commands.size() + " applied todo commands failed", e);
+		}
+	}
+
+	private List<Message> receiveBatch(String queueUrl) {
+		List<Message> messages = new ArrayList<Message>(this.batchSize);
+		int waitSeconds = this.waitTimeSeconds;
+		while (messages.size() < this.batchSize) {
+			ReceiveMessageRequest request = new ReceiveMessageRequest(queueUrl)
+					.withMaxNumberOfMessages(Math.min(MAX_MESSAGES_PER_RECEIVE, this.batchSize - messages.size()))
+					.withWaitTimeSeconds(waitSeconds)
+					.withMessageAttributeNames("All")
+					.withAttributeNames(SENT_TIMESTAMP);
+			List<Message> received = this.amazonSqs.receiveMessage(request).getMessages();
+			messages.addAll(received);
+			if (received.size() < request.getMaxNumberOfMessages()) {
+				break;
+			}
+			/*
+			 * Only the first receive waits for messages, the following ones just pick up what is already there
+			 */
+			waitSeconds = 0;
+		}
+		return messages;
+	}
+
+	private TodoCommand decode(Message message) {
+		MessageBuilder<String> builder = MessageBuilder.withPayload(message.getBody());
+		MessageAttributeValue contentType = message.getMessageAttributes().get(MessageHeaders.CONTENT_TYPE);
+		if (contentType != null) {
+			builder.setHeader(MessageHeaders.CONTENT_TYPE, contentType.getStringValue());
+		}
+		try {
+			TodoCommand command = (TodoCommand) this.messageConverter.fromMessage(builder.build(), TodoCommand.class);
+			if (command == null || command.getHeader() == null || command.getTodo() == null) {
+				throw new IllegalArgumentException("Not a todo command");
+			}
+			return command;
+		}
+		catch (RuntimeException e) {
+			log.error("Message " + message.getMessageId() + " is not a todo command, it stays on the queue", e);
+			undecodableCounter.increment();
+			return null;
+		}
+	}
+
+	/*
+	 * Without a SentTimestamp, for example from a queue that does not give one, the DWELL stage is counted from the createDate of the command
+	 */
+	private void received(Message message, TodoCommand command) {
+		String sentTimestamp = message.getAttributes() == null ? null : message.getAttributes().get(SENT_TIMESTAMP);
+		if (sentTimestamp != null) {
+			try {
+				this.commandLatencyRecorder.stageSince(command, CommandStage.DWELL, Long.parseLong(sentTimestamp));
+				return;
+			}
+			catch (NumberFormatException e) {
+				log.debug("Message " + message.getMessageId() + " has an unreadable SentTimestamp " + sentTimestamp);
+			}
+		}
+		this.commandLatencyRecorder.stage(command, CommandStage.DWELL);
+	}
+
+	private void applied(List<TodoCommand> commands) {
+		for (TodoCommand command : commands) {
+			this.commandLatencyRecorder.stage(command, CommandStage.APPLY);
+			this.commandLatencyRecorder.complete(command, Completion.APPLIED);
+		}
+	}
+
+	private void delete(String queueUrl, List<Message> messages) {
+		for (int from = 0; from < messages.size(); from += MAX_MESSAGES_PER_RECEIVE) {
+			List<DeleteMessageBatchRequestEntry> entries = new ArrayList<DeleteMessageBatchRequestEntry>(MAX_MESSAGES_PER_RECEIVE);
+			for (int i = from; i < Math.min(messages.size(), from + MAX_MESSAGES_PER_RECEIVE); i++) {
+				entries.add(new DeleteMessageBatchRequestEntry(Integer.toString(i), messages.get(i).getReceiptHandle()));
+			}
+			DeleteMessageBatchResult result = this.amazonSqs.deleteMessageBatch(queueUrl, entries);
+			for (BatchResultErrorEntry failed : result.getFailed()) {
+				log.warn("Could not delete applied message " + failed.getId() + " from " + queueUrl + ", it will be delivered again: " + failed.getMessage());
+			}
+		}
+	}
+
+	private void announce(List<TodoCommand> commands, List<Todo> applied) {
+		for (int i = 0; i < commands.size(); i++) {
+			TodoCommand command = commands.get(i);
+			Todo todo = applied.get(i);
+			switch (GenericCommandType.valueOf(command.getHeader().getCommandType())) {
+			case CREATE_TODO:
+				if (todo != null) {
+					this.eventPublisher.publishEvent(new TodoServiceEvent(this, todo, TODO_CREATE_APPLIED));
+				}
+				break;
+			case UPDATE_TODO:
+				if (todo != null) {
+					this.eventPublisher.publishEvent(new TodoServiceEvent(this, todo, TODO_UPDATE_APPLIED));
+				}
+				break;
+			case DELETE_TODO:
+				this.eventPublisher.publishEvent(new TodoServiceEvent(this, todo == null ? command.getTodo() : todo, TODO_DELETE_APPLIED));
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	private static void sleepQuietly(long millis) {
+		try {
+			Thread.sleep(millis);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package com.rollingstone.dispatcher;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.util.concurrent.ListenableFuture;
+
+/*
+ * Lets the futures of the command bus be waited for without parking a thread.
+ *
+ * 1. of turns the future a dispatcher returned into a CompletableFuture, the dispatchers hand back either a CompletableFuture
+ *    or a Spring ListenableFuture such as the already completed AsyncResult of a synchronous send,
+ *    any other future is waited for on the common pool
+ * 2. within gives a future that fails with a TimeoutException once the timeout has passed,
+ *    the future it watches is not cancelled and may still complete later
+ */
+public final class CompletableFutures {
+
+	private static final ScheduledExecutorService timeoutTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "future-timeout");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private CompletableFutures() {
+	}
+
+	@SuppressWarnings("unchecked")
+	public static <T> CompletableFuture<T> of(Future<T> future) {
+		if (future instanceof CompletableFuture) {
+			return (CompletableFuture<T>) future;
+		}
+		if (future instanceof ListenableFuture) {
+			return ((ListenableFuture<T>) future).completable();
+		}
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return future.get();
+			}
+			catch (ExecutionException e) {
+				throw new CompletionException(e.getCause());
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CompletionException(e);
+			}
+		});
+	}
+
+	public static <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeout, TimeUnit unit) {
+		if (future.isDone()) {
+			return future;
+		}
+		CompletableFuture<T> bounded = new CompletableFuture<T>();
+		ScheduledFuture<?> timer = timeoutTimer.schedule(
+				() -> bounded.completeExceptionally(new TimeoutException("Not completed within " + unit.toMillis(timeout) + " ms")),
+				timeout, unit);
+		future.whenComplete((value, error) -> {
+			timer.cancel(false);
+			if (error != null) {
+				bounded.completeExceptionally(unwrap(error));
+			}
+			else {
+				bounded.complete(value);
+			}
+		});
+		return bounded;
+	}
+
+	/*
+	 * The exception a future failed with, without the CompletionException or ExecutionException it arrives wrapped in
+	 */
+	public static Throwable unwrap(Throwable error) {
+		while ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+			error = error.getCause();
+		}
+		return error;
+	}
+}
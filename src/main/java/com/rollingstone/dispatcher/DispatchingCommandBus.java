@@ -1,7 +1,13 @@
 package com.rollingstone.dispatcher;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Future;
 
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import com.rollingstone.command.GenericCommandResult;
@@ -14,6 +20,11 @@ public class DispatchingCommandBus implements GenericCommandBus {
 
 	private final GenericCommandDispatcher commandDispatcher;
 	
+	/*
+	 * Only there when command.coalesce.enabled=true, it then sits between the bus and the dispatcher
+	 */
+	private final UpdateCoalescer updateCoalescer;
+	
 	/*
 	 * Now lets see how the constructor of the class DispatchingCommandBus will be created by Spring Boot
 	 * This class DispatchingCommandBus depends on GenericCommandDispatcher which is an interface
@@ -29,8 +40,11 @@ public class DispatchingCommandBus implements GenericCommandBus {
 	 * It is annotated with the @Component annotation and Spring will find no problem finding it, making an instance and assinging it to the 
 	 * DispatchingCommandBus class
 	 */
-	public DispatchingCommandBus(GenericCommandDispatcher commandDispatcher) {
+	public DispatchingCommandBus(GenericCommandDispatcher commandDispatcher,
+			@Value("${command.coalesce.enabled:false}") boolean coalesceEnabled,
+			@Value("${command.coalesce.window-ms:50}") long coalesceWindowMillis) {
 		this.commandDispatcher = commandDispatcher;
+		this.updateCoalescer = coalesceEnabled ? new UpdateCoalescer(commandDispatcher, coalesceWindowMillis) : null;
 	}
 
 	@Override
@@ -39,8 +53,41 @@ public class DispatchingCommandBus implements GenericCommandBus {
 		/*
 		 * So the next class we need to understand is the SQSCommandDispatcher.java
 		 */
+		if (this.updateCoalescer != null) {
+			return this.updateCoalescer.send(command);
+		}
 		return this.commandDispatcher.dispatch(command);
 	}
 	
+	/*
+	 * A batch goes to the dispatcher in one piece so it can send it as such, unless updates are being coalesced,
+	 * then every command has to pass the coalescer on its own
+	 */
+	@Override
+	public List<Future<GenericCommandResult>> sendAll(List<? extends GenericCommand> commands) {
+		if (this.updateCoalescer == null) {
+			return this.commandDispatcher.dispatchAll(commands);
+		}
+		List<Future<GenericCommandResult>> futures = new ArrayList<Future<GenericCommandResult>>(commands.size());
+		for (GenericCommand command : commands) {
+			try {
+				futures.add(this.updateCoalescer.send(command));
+			}
+			catch (RuntimeException e) {
+				CompletableFuture<GenericCommandResult> failed = new CompletableFuture<GenericCommandResult>();
+				failed.completeExceptionally(e);
+				futures.add(failed);
+			}
+		}
+		return futures;
+	}
+	
+	@PreDestroy
+	public void flushCoalescedUpdates() {
+		if (this.updateCoalescer != null) {
+			this.updateCoalescer.close();
+		}
+	}
+	
 	
 }
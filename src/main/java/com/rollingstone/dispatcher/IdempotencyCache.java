@@ -0,0 +1,105 @@
+package com.rollingstone.dispatcher;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rollingstone.exception.HTTP409Exception;
+import com.rollingstone.exception.HTTP422Exception;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * Remembers the response given for an idempotency key so that a retried request gets the same answer instead of sending its command again.
+ *
+ * 1. The first request for a key puts a pending entry into a bounded Caffeine cache and runs the supplier, concurrent retries wait for that same entry,
+ *    the supplier hands back a future and nobody blocks a thread for it, a retry gets a future that completes along with the entry
+ * 2. An entry expires ttl after it was written, at most maxEntries are kept, Caffeine evicts single entries beyond that
+ * 3. Every entry carries the fingerprint of the request that created it, a request reusing the key with a different method, path,
+ *    todo or body gets a HTTP422Exception instead of the response of the other request
+ * 4. The response is only remembered once the future of the supplier completed, that is once the command has been sent, if the supplier throws
+ *    or its future fails, for example because the dispatcher shed the command or the send failed, the entry is removed before the waiting
+ *    retries are woken, and one of them runs again
+ * 5. A retry waits at most waitMillis for the first request, then its future fails with a HTTP409Exception and it may try again later
+ */
+public class IdempotencyCache<V> {
+
+	private final Cache<String, Entry<V>> entries;
+
+	private final long waitMillis;
+
+	Counter replayCounter = Metrics.counter("com.rollingstone.command.idempotency.replayed");
+
+	Counter mismatchCounter = Metrics.counter("com.rollingstone.command.idempotency.mismatched");
+
+	public IdempotencyCache(long maxEntries, long ttl, TimeUnit unit, long waitMillis) {
+		this.entries = Caffeine.newBuilder()
+				.maximumSize(maxEntries)
+				.expireAfterWrite(ttl, unit)
+				.build();
+		this.waitMillis = waitMillis;
+	}
+
+	public CompletableFuture<V> computeIfAbsent(String key, String fingerprint, Supplier<CompletableFuture<V>> supplier) {
+		Entry<V> created = new Entry<V>(fingerprint);
+
+		Entry<V> existing = this.entries.asMap().computeIfAbsent(key, k -> created);
+		if (existing != created) {
+			if (!existing.fingerprint.equals(fingerprint)) {
+				mismatchCounter.increment();
+				throw new HTTP422Exception("The Idempotency-Key " + key + " was already used for a different request");
+			}
+			return CompletableFutures.within(existing.value, this.waitMillis, TimeUnit.MILLISECONDS).handle((value, error) -> {
+				if (error == null) {
+					replayCounter.increment();
+					return CompletableFuture.completedFuture(value);
+				}
+				if (CompletableFutures.unwrap(error) instanceof TimeoutException) {
+					throw new HTTP409Exception("A request with the Idempotency-Key " + key + " is still being processed");
+				}
+				/*
+				 * The original request failed and its entry has already been removed, this one takes over
+				 */
+				return computeIfAbsent(key, fingerprint, supplier);
+			}).thenCompose(Function.identity());
+		}
+
+		CompletableFuture<V> sent;
+		try {
+			sent = supplier.get();
+		}
+		catch (RuntimeException e) {
+			this.entries.asMap().remove(key, created);
+			created.value.completeExceptionally(e);
+			throw e;
+		}
+		return sent.whenComplete((value, error) -> {
+			if (error != null) {
+				this.entries.asMap().remove(key, created);
+				created.value.completeExceptionally(CompletableFutures.unwrap(error));
+			}
+			else {
+				created.value.complete(value);
+			}
+		});
+	}
+
+	public long size() {
+		return this.entries.estimatedSize();
+	}
+
+	private static class Entry<V> {
+
+		final String fingerprint;
+		final CompletableFuture<V> value = new CompletableFuture<V>();
+
+		Entry(String fingerprint) {
+			this.fingerprint = fingerprint;
+		}
+	}
+}
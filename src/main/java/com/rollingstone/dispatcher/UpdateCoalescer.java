@@ -0,0 +1,166 @@
+package com.rollingstone.dispatcher;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.GenericCommand;
+import com.rollingstone.command.interfaces.GenericCommandDispatcher;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * Holds UPDATE_TODO commands per todo id for a short window and only dispatches the latest one.
+ *
+ * 1. The first update of a todo opens a window, every further update of that todo within the window replaces the held command
+ * 2. When the window closes the held command is dispatched and every caller that was coalesced into it gets its result
+ * 3. A DELETE_TODO drops the held update of its todo, the callers of that update get the result of the delete
+ * 4. All other commands, and updates of todos without an id, are dispatched right away
+ * 5. The timer thread only closes the windows, the held commands are dispatched on the flusher threads because a dispatch may block,
+ *    the outbox for one waits for its fsync, and the callers are completed when the future of the dispatcher completes,
+ *    so one slow dispatch does not hold up the windows of the other todos
+ */
+class UpdateCoalescer {
+
+	private static final Logger log = LoggerFactory.getLogger(UpdateCoalescer.class);
+
+	private final GenericCommandDispatcher commandDispatcher;
+
+	private final long windowMillis;
+
+	private final ConcurrentHashMap<Long, PendingUpdate> pending = new ConcurrentHashMap<Long, PendingUpdate>();
+
+	private final ScheduledExecutorService flushTimer;
+
+	private final ExecutorService flushers;
+
+	Counter coalescedCounter = Metrics.counter("com.rollingstone.command.coalesced");
+
+	UpdateCoalescer(GenericCommandDispatcher commandDispatcher, long windowMillis) {
+		this.commandDispatcher = commandDispatcher;
+		this.windowMillis = windowMillis;
+		this.flushTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "command-coalescer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		AtomicInteger flusherCount = new AtomicInteger();
+		this.flushers = Executors.newFixedThreadPool(Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+			Thread thread = new Thread(runnable, "command-coalescer-flush-" + flusherCount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	Future<GenericCommandResult> send(GenericCommand command) {
+		String type = command.getHeader().getCommandType();
+		long todoId = todoId(command);
+		if (todoId == 0) {
+			return this.commandDispatcher.dispatch(command);
+		}
+
+		if (GenericCommandType.UPDATE_TODO.toString().equals(type)) {
+			CompletableFuture<GenericCommandResult> caller = new CompletableFuture<GenericCommandResult>();
+			this.pending.compute(todoId, (id, held) -> {
+				if (held == null) {
+					held = new PendingUpdate();
+					held.flush = this.flushTimer.schedule(() -> this.flushers.execute(() -> flush(id)), this.windowMillis, TimeUnit.MILLISECONDS);
+				}
+				else {
+					coalescedCounter.increment();
+				}
+				held.command = command;
+				held.callers.add(caller);
+				return held;
+			});
+			return caller;
+		}
+
+		if (GenericCommandType.DELETE_TODO.toString().equals(type)) {
+			PendingUpdate superseded = this.pending.remove(todoId);
+			if (superseded == null) {
+				return this.commandDispatcher.dispatch(command);
+			}
+			superseded.flush.cancel(false);
+			coalescedCounter.increment(superseded.callers.size());
+			Future<GenericCommandResult> deleted;
+			try {
+				deleted = this.commandDispatcher.dispatch(command);
+			}
+			catch (RuntimeException e) {
+				complete(superseded.callers, null, e);
+				throw e;
+			}
+			completeWhenDone(deleted, superseded.callers);
+			return deleted;
+		}
+
+		return this.commandDispatcher.dispatch(command);
+	}
+
+	void close() {
+		this.flushTimer.shutdownNow();
+		for (Long todoId : new ArrayList<Long>(this.pending.keySet())) {
+			flush(todoId);
+		}
+		this.flushers.shutdown();
+	}
+
+	private void flush(Long todoId) {
+		PendingUpdate held = this.pending.remove(todoId);
+		if (held == null) {
+			return;
+		}
+		try {
+			completeWhenDone(this.commandDispatcher.dispatch(held.command), held.callers);
+		}
+		catch (RuntimeException e) {
+			log.error("Dispatching coalesced update of todo " + todoId + " failed", e);
+			complete(held.callers, null, e);
+		}
+	}
+
+	private static void complete(List<CompletableFuture<GenericCommandResult>> callers, GenericCommandResult result, Throwable error) {
+		for (CompletableFuture<GenericCommandResult> caller : callers) {
+			if (error != null) {
+				caller.completeExceptionally(error);
+			}
+			else {
+				caller.complete(result);
+			}
+		}
+	}
+
+	private static void completeWhenDone(Future<GenericCommandResult> future, List<CompletableFuture<GenericCommandResult>> callers) {
+		CompletableFutures.of(future).whenComplete((result, error) -> complete(callers, result, error == null ? null : CompletableFutures.unwrap(error)));
+	}
+
+	private static long todoId(GenericCommand command) {
+		if (!(command instanceof TodoCommand) || ((TodoCommand) command).getTodo() == null) {
+			return 0;
+		}
+		return ((TodoCommand) command).getTodo().getId();
+	}
+
+	private static class PendingUpdate {
+
+		GenericCommand command;
+		final List<CompletableFuture<GenericCommandResult>> callers = new ArrayList<CompletableFuture<GenericCommandResult>>(2);
+		ScheduledFuture<?> flush;
+	}
+}
@@ -0,0 +1,412 @@
+package com.rollingstone.dispatcher.outbox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * A segmented, memory mapped, append only log of serialized commands.
+ *
+ * 1. Records are laid out as [int length][int crc32][payload] inside fixed size segment files named after their index
+ * 2. A length of -1 marks the end of a segment, a length of 0 means nothing has been written there yet
+ * 3. A position is the segment index in the upper 32 bits and the offset inside the segment in the lower 32 bits,
+ *    so positions can be compared as plain longs
+ * 4. Appends only copy into the mapped buffer; a single sync thread forces all dirty segments to disk and then
+ *    publishes the durable position, so every append that arrived in the meantime shares one fsync (group commit)
+ * 5. Readers only see records below the durable position
+ * 6. The checkpoint file remembers up to which position the records have been forwarded, segments entirely
+ *    below it are deleted
+ */
+public class MappedCommandLog implements Closeable {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedCommandLog.class);
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+
+	private static final String CHECKPOINT_FILE = "checkpoint";
+
+	private static final int HEADER_BYTES = 8;
+
+	private static final int END_OF_SEGMENT = -1;
+
+	private final Path directory;
+
+	private final int segmentBytes;
+
+	private final long syncIntervalMillis;
+
+	private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<Long, Segment>();
+
+	private final List<Segment> dirtySegments = new ArrayList<Segment>();
+
+	private final Object durableMonitor = new Object();
+
+	private final FileChannel checkpointChannel;
+
+	private final Thread syncThread;
+
+	private Segment head;
+
+	private int headOffset;
+
+	private long writtenPosition;
+
+	private volatile long durablePosition;
+
+	private volatile long checkpointPosition;
+
+	private volatile boolean closed;
+
+	public MappedCommandLog(Path directory, int segmentBytes, long syncIntervalMillis) throws IOException {
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.syncIntervalMillis = Math.max(1, syncIntervalMillis);
+
+		Files.createDirectories(directory);
+		this.checkpointChannel = FileChannel.open(directory.resolve(CHECKPOINT_FILE),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.checkpointPosition = readCheckpoint();
+
+		recover();
+
+		this.syncThread = new Thread(this::syncLoop, "command-outbox-sync");
+		this.syncThread.setDaemon(true);
+		this.syncThread.start();
+	}
+
+	/*
+	 * Copies the payload into the head segment and returns the position right behind it.
+	 * The record is not durable before awaitDurable returns for that position.
+	 */
+	public synchronized long append(byte[] payload) throws IOException {
+		if (this.closed) {
+			throw new IOException("Command log is closed");
+		}
+		int recordBytes = HEADER_BYTES + payload.length;
+		if (recordBytes > this.segmentBytes) {
+			throw new IOException("Record of " + payload.length + " bytes does not fit into a segment of " + this.segmentBytes + " bytes");
+		}
+
+		if (this.headOffset + recordBytes > this.head.size) {
+			if (this.headOffset + 4 <= this.head.size) {
+				this.head.buffer.putInt(this.headOffset, END_OF_SEGMENT);
+			}
+			markDirty(this.head);
+			this.head = openSegment(this.head.index + 1, this.segmentBytes);
+			this.headOffset = 0;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		ByteBuffer buffer = this.head.buffer.duplicate();
+		buffer.position(this.headOffset + 4);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(payload);
+		/*
+		 * The length is written last so that a reader or a recovery never sees a length whose payload is still missing
+		 */
+		this.head.buffer.putInt(this.headOffset, payload.length);
+
+		this.headOffset += recordBytes;
+		this.writtenPosition = position(this.head.index, this.headOffset);
+		markDirty(this.head);
+		return this.writtenPosition;
+	}
+
+	/*
+	 * Blocks until the sync thread has forced everything up to the given position to disk
+	 */
+	public boolean awaitDurable(long position, long timeoutMillis) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (this.durableMonitor) {
+			while (this.durablePosition < position) {
+				long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if (remaining <= 0 || this.closed) {
+					return false;
+				}
+				this.durableMonitor.wait(remaining);
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Returns the durable record stored at the given position, or null if the reader has caught up with the writer
+	 */
+	public Record read(long position) {
+		long current = position;
+		while (current < this.durablePosition) {
+			Segment segment = this.segments.get(segmentIndex(current));
+			if (segment == null) {
+				Map.Entry<Long, Segment> next = this.segments.higherEntry(segmentIndex(current));
+				if (next == null) {
+					return null;
+				}
+				current = position(next.getKey(), 0);
+				continue;
+			}
+			int offset = segmentOffset(current);
+			int length = offset + 4 <= segment.size ? segment.buffer.getInt(offset) : END_OF_SEGMENT;
+			if (length == END_OF_SEGMENT) {
+				current = position(segment.index + 1, 0);
+				continue;
+			}
+			if (length <= 0) {
+				return null;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(offset + HEADER_BYTES);
+			buffer.get(payload);
+			return new Record(payload, position(segment.index, offset + HEADER_BYTES + length));
+		}
+		return null;
+	}
+
+	/*
+	 * Remembers that everything below the position has been forwarded and drops the segments that are no longer needed
+	 */
+	public void checkpoint(long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, position);
+		this.checkpointChannel.write(buffer, 0);
+		this.checkpointChannel.force(false);
+		this.checkpointPosition = position;
+
+		long headIndex;
+		synchronized (this) {
+			headIndex = this.head.index;
+		}
+		for (Segment segment : this.segments.headMap(Math.min(segmentIndex(position), headIndex)).values()) {
+			this.segments.remove(segment.index);
+			segment.channel.close();
+			Files.deleteIfExists(segmentPath(segment.index));
+		}
+	}
+
+	public long getCheckpointPosition() {
+		return this.checkpointPosition;
+	}
+
+	public long getDurablePosition() {
+		return this.durablePosition;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+		}
+		this.syncThread.interrupt();
+		try {
+			this.syncThread.join(TimeUnit.SECONDS.toMillis(5));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sync();
+		synchronized (this.durableMonitor) {
+			this.durableMonitor.notifyAll();
+		}
+		for (Segment segment : this.segments.values()) {
+			segment.channel.close();
+		}
+		this.checkpointChannel.close();
+	}
+
+	private void syncLoop() {
+		while (!this.closed) {
+			try {
+				sync();
+				Thread.sleep(this.syncIntervalMillis);
+			}
+			catch (InterruptedException e) {
+				return;
+			}
+			catch (RuntimeException e) {
+				log.error("Syncing the command outbox failed, retrying", e);
+			}
+		}
+	}
+
+	private void sync() {
+		List<Segment> toForce;
+		long target;
+		synchronized (this) {
+			if (this.writtenPosition == this.durablePosition) {
+				return;
+			}
+			target = this.writtenPosition;
+			toForce = new ArrayList<Segment>(this.dirtySegments);
+			this.dirtySegments.clear();
+		}
+		for (Segment segment : toForce) {
+			segment.buffer.force();
+		}
+		synchronized (this.durableMonitor) {
+			this.durablePosition = target;
+			this.durableMonitor.notifyAll();
+		}
+	}
+
+	private void markDirty(Segment segment) {
+		if (this.dirtySegments.isEmpty() || this.dirtySegments.get(this.dirtySegments.size() - 1) != segment) {
+			this.dirtySegments.add(segment);
+		}
+	}
+
+	/*
+	 * 1. Maps every segment file that is still on disk
+	 * 2. Walks every segment record by record, stopping at the first record whose crc does not match,
+	 *    which is where a crash interrupted the appends to it
+	 * 3. An older segment whose end of segment mark is missing or that ends in a torn record is closed with an end of segment mark
+	 *    right behind its last intact record, so read moves on to the next segment instead of stopping there or returning the torn record
+	 * 4. Everything before the end of the newest segment was forced before the crash or is intact anyway and counts as durable
+	 */
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				String name = file.getFileName().toString();
+				long index = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+				openSegment(index, (int) Files.size(file));
+			}
+		}
+
+		if (this.segments.isEmpty()) {
+			this.head = openSegment(segmentIndex(this.checkpointPosition), this.segmentBytes);
+			this.headOffset = 0;
+		}
+		else {
+			this.head = this.segments.lastEntry().getValue();
+			this.headOffset = scanValidEnd(this.head);
+			for (Segment segment : this.segments.headMap(this.head.index).values()) {
+				int validEnd = scanValidEnd(segment);
+				if (validEnd + 4 <= segment.size && segment.buffer.getInt(validEnd) != END_OF_SEGMENT) {
+					log.warn("Closing segment " + segment.index + " behind its last intact record at " + describe(position(segment.index, validEnd)));
+					segment.buffer.putInt(validEnd, END_OF_SEGMENT);
+					segment.buffer.force();
+				}
+			}
+		}
+		this.writtenPosition = position(this.head.index, this.headOffset);
+		this.durablePosition = this.writtenPosition;
+		if (this.checkpointPosition > this.durablePosition) {
+			this.checkpointPosition = this.durablePosition;
+		}
+		log.info("Command outbox recovered, replaying from " + describe(this.checkpointPosition) + " up to " + describe(this.durablePosition));
+	}
+
+	private int scanValidEnd(Segment segment) {
+		int offset = 0;
+		while (offset + HEADER_BYTES <= segment.size) {
+			int length = segment.buffer.getInt(offset);
+			if (length <= 0 || offset + HEADER_BYTES + length > segment.size) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			ByteBuffer buffer = segment.buffer.duplicate();
+			buffer.position(offset + HEADER_BYTES);
+			buffer.get(payload);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, payload.length);
+			if ((int) crc.getValue() != segment.buffer.getInt(offset + 4)) {
+				log.warn("Discarding torn record at " + describe(position(segment.index, offset)));
+				break;
+			}
+			offset += HEADER_BYTES + length;
+		}
+		return offset;
+	}
+
+	private Segment openSegment(long index, int size) throws IOException {
+		FileChannel channel = FileChannel.open(segmentPath(index),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		Segment segment = new Segment(index, size, channel, buffer);
+		this.segments.put(index, segment);
+		return segment;
+	}
+
+	private long readCheckpoint() throws IOException {
+		if (this.checkpointChannel.size() < 8) {
+			return 0L;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		this.checkpointChannel.read(buffer, 0);
+		return buffer.getLong(0);
+	}
+
+	private Path segmentPath(long index) {
+		return this.directory.resolve(String.format("%020d%s", index, SEGMENT_SUFFIX));
+	}
+
+	static long position(long segmentIndex, int offset) {
+		return (segmentIndex << 32) | (offset & 0xFFFFFFFFL);
+	}
+
+	static long segmentIndex(long position) {
+		return position >>> 32;
+	}
+
+	static int segmentOffset(long position) {
+		return (int) position;
+	}
+
+	static String describe(long position) {
+		return segmentIndex(position) + ":" + segmentOffset(position);
+	}
+
+	public static class Record {
+
+		private final byte[] payload;
+		private final long nextPosition;
+
+		Record(byte[] payload, long nextPosition) {
+			this.payload = payload;
+			this.nextPosition = nextPosition;
+		}
+
+		public byte[] getPayload() {
+			return payload;
+		}
+
+		public long getNextPosition() {
+			return nextPosition;
+		}
+	}
+
+	private static class Segment {
+
+		final long index;
+		final int size;
+		final FileChannel channel;
+		final MappedByteBuffer buffer;
+
+		Segment(long index, int size, FileChannel channel, MappedByteBuffer buffer) {
+			this.index = index;
+			this.size = size;
+			this.channel = channel;
+			this.buffer = buffer;
+		}
+	}
+}
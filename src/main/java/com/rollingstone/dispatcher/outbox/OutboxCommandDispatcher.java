@@ -0,0 +1,362 @@
+package com.rollingstone.dispatcher.outbox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.Primary;
+import org.springframework.scheduling.annotation.AsyncResult;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.cloud.messaging.aws.SQSCommandDispatcher;
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.GenericCommand;
+import com.rollingstone.command.interfaces.GenericCommandDispatcher;
+import com.rollingstone.exception.HTTP503Exception;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+@Component
+@Primary
+@ConditionalOnExpression("${command.outbox.enabled:false} and '${command.dispatcher:sqs}' == 'sqs'")
+public class OutboxCommandDispatcher implements GenericCommandDispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(OutboxCommandDispatcher.class);
+
+	private static final String DEAD_LETTER_FILE = "dead-letter.jsonl";
+
+	/*
+	 * How long an idle drainer parks before it looks at the log again, dispatch wakes it up as soon as a record is durable
+	 */
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/*
+	 * Commands are still sent to SQS by the SQSCommandDispatcher, the outbox only sits in front of it
+	 */
+	private final SQSCommandDispatcher sqsCommandDispatcher;
+
+	private final ObjectMapper objectMapper;
+
+	private final MappedCommandLog commandLog;
+
+	private final Path deadLetterFile;
+
+	@Value("${command.outbox.durable-timeout-ms:1000}")
+	long durableTimeoutMillis;
+
+	@Value("${command.outbox.checkpoint-every:100}")
+	int checkpointEvery;
+
+	@Value("${command.outbox.retry-max-backoff-ms:5000}")
+	long retryMaxBackoffMillis;
+
+	@Value("${command.outbox.window:100}")
+	int windowSize;
+
+	@Value("${command.outbox.forward-timeout-ms:30000}")
+	long forwardTimeoutMillis;
+
+	@Value("${command.outbox.max-attempts:10}")
+	int maxAttempts;
+
+	Counter appendedCounter = Metrics.counter("com.rollingstone.command.outbox.appended");
+
+	Counter forwardedCounter = Metrics.counter("com.rollingstone.command.outbox.forwarded");
+
+	Counter retriedCounter = Metrics.counter("com.rollingstone.command.outbox.retried");
+
+	Counter deadLetteredCounter = Metrics.counter("com.rollingstone.command.outbox.dead-lettered");
+
+	private volatile Thread drainer;
+
+	private volatile boolean running;
+
+	/*
+	 * 1. The outbox is switched on with command.outbox.enabled=true, it then becomes the primary GenericCommandDispatcher
+	 * 2. The DispatchingCommandBus hands every command to this class instead of the SQSCommandDispatcher
+	 * 3. The command is serialized to json and appended to the memory mapped command log
+	 * 4. The request thread waits until the sync thread has forced the record to disk, which is shared with all other appends of the same sync interval
+	 * 5. After that the command is safe even if SQS is down or the service crashes, so we can acknowledge it to the caller
+	 * 6. A single drainer thread reads the log in order and forwards the commands to the SQSCommandDispatcher a window at a time
+	 */
+	public OutboxCommandDispatcher(SQSCommandDispatcher sqsCommandDispatcher, ObjectMapper objectMapper,
+			@Value("${command.outbox.directory:outbox}") String directory,
+			@Value("${command.outbox.segment-bytes:67108864}") int segmentBytes,
+			@Value("${command.outbox.sync-interval-ms:2}") long syncIntervalMillis) throws IOException {
+		this.sqsCommandDispatcher = sqsCommandDispatcher;
+		this.objectMapper = objectMapper;
+		this.commandLog = new MappedCommandLog(Paths.get(directory), segmentBytes, syncIntervalMillis);
+		this.deadLetterFile = Paths.get(directory).resolve(DEAD_LETTER_FILE);
+	}
+
+	@Override
+	public Future<GenericCommandResult> dispatch(GenericCommand command) {
+		long position;
+		try {
+			position = this.commandLog.append(this.objectMapper.writeValueAsBytes(command));
+			if (!this.commandLog.awaitDurable(position, this.durableTimeoutMillis)) {
+				throw new HTTP503Exception("Command could not be made durable in the local outbox in time");
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not append command to the local outbox", e);
+			throw new HTTP503Exception("Local command outbox is unavailable", e);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HTTP503Exception("Interrupted while waiting for the local command outbox", e);
+		}
+
+		appendedCounter.increment();
+		Thread drainer = this.drainer;
+		if (drainer != null) {
+			LockSupport.unpark(drainer);
+		}
+		Map<String, String> messages = new HashMap<String, String>();
+		GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS, messages, "Success");
+		cr.setAsSuccessful("Success", "The command was stored in the local outbox");
+		return new AsyncResult<GenericCommandResult>(cr);
+	}
+
+	@PostConstruct
+	public void startDrainer() {
+		this.running = true;
+		this.drainer = new Thread(this::drain, "command-outbox-drainer");
+		this.drainer.setDaemon(true);
+		this.drainer.start();
+	}
+
+	@PreDestroy
+	public void stop() throws IOException, InterruptedException {
+		this.running = false;
+		this.drainer.interrupt();
+		this.drainer.join(TimeUnit.SECONDS.toMillis(5));
+		this.commandLog.close();
+	}
+
+	/*
+	 * 1. Starts from the last checkpoint, so everything that was not confirmed before a restart is sent again
+	 * 2. Up to command.outbox.window records are read ahead and forwarded together through SQSCommandDispatcher.dispatchAll,
+	 *    so they go out in SendMessageBatch calls instead of one send and one wait per record
+	 * 3. Each result is awaited for at most command.outbox.forward-timeout-ms, a record that failed or timed out is sent again
+	 *    with the next window after an exponential backoff
+	 * 4. Only the oldest unconfirmed record of a todo is forwarded at a time, the later updates and the delete of that todo wait
+	 *    in the window until it is confirmed, so a retried record never overtakes them, creates carry no todo id yet and never wait
+	 * 5. A record that failed command.outbox.max-attempts times, or that cannot be read as a command, is written to the dead letter file
+	 *    and skipped, so a command SQS keeps rejecting does not stop the outbox
+	 * 6. The checkpoint only ever moves up to the oldest record that is not confirmed yet, it is written every checkpointEvery records
+	 *    and whenever the drainer catches up with the writers
+	 * 7. A drainer that has caught up parks until dispatch unparks it for the next durable record, or IDLE_PARK_NANOS at the latest
+	 */
+	private void drain() {
+		long confirmedPosition = this.commandLog.getCheckpointPosition();
+		long readPosition = confirmedPosition;
+		List<PendingRecord> window = new ArrayList<PendingRecord>(this.windowSize);
+		int sinceCheckpoint = 0;
+		long backoff = 10;
+
+		while (this.running) {
+			try {
+				MappedCommandLog.Record record;
+				while (window.size() < this.windowSize && (record = this.commandLog.read(readPosition)) != null) {
+					window.add(new PendingRecord(record, readCommand(record)));
+					readPosition = record.getNextPosition();
+				}
+				if (window.isEmpty()) {
+					if (sinceCheckpoint > 0) {
+						this.commandLog.checkpoint(confirmedPosition);
+						sinceCheckpoint = 0;
+					}
+					LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					if (Thread.interrupted()) {
+						break;
+					}
+					continue;
+				}
+
+				boolean failed = forwardWindow(window);
+
+				while (!window.isEmpty() && window.get(0).done) {
+					confirmedPosition = window.remove(0).record.getNextPosition();
+					sinceCheckpoint++;
+				}
+				if (sinceCheckpoint >= this.checkpointEvery) {
+					this.commandLog.checkpoint(confirmedPosition);
+					sinceCheckpoint = 0;
+				}
+
+				if (failed) {
+					retriedCounter.increment();
+					Thread.sleep(backoff);
+					backoff = Math.min(backoff * 2, this.retryMaxBackoffMillis);
+				}
+				else {
+					backoff = 10;
+				}
+			}
+			catch (InterruptedException e) {
+				break;
+			}
+			catch (IOException e) {
+				log.error("Command outbox drainer failed, retrying in " + backoff + " ms", e);
+				try {
+					Thread.sleep(backoff);
+				}
+				catch (InterruptedException interrupted) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, this.retryMaxBackoffMillis);
+			}
+		}
+
+		try {
+			if (sinceCheckpoint > 0) {
+				this.commandLog.checkpoint(confirmedPosition);
+			}
+		}
+		catch (IOException e) {
+			log.error("Could not write the final outbox checkpoint", e);
+		}
+	}
+
+	/*
+	 * Forwards the records of the window that are not done yet and not waiting for an older record of their todo,
+	 * waits for their results and returns true if any of them failed
+	 */
+	private boolean forwardWindow(List<PendingRecord> window) throws InterruptedException, IOException {
+		List<PendingRecord> sending = new ArrayList<PendingRecord>(window.size());
+		List<TodoCommand> commands = new ArrayList<TodoCommand>(window.size());
+		Set<Long> inFlightTodos = new HashSet<Long>();
+		for (PendingRecord pending : window) {
+			if (pending.done) {
+				continue;
+			}
+			if (pending.command == null) {
+				deadLetter(pending, "it cannot be read as a TodoCommand");
+				continue;
+			}
+			long todoId = todoIdOf(pending.command);
+			if (todoId != 0 && !inFlightTodos.add(todoId)) {
+				continue;
+			}
+			sending.add(pending);
+			commands.add(pending.command);
+		}
+		if (commands.isEmpty()) {
+			return false;
+		}
+
+		List<Future<GenericCommandResult>> futures = this.sqsCommandDispatcher.dispatchAll(commands);
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.forwardTimeoutMillis);
+		boolean failed = false;
+		for (int i = 0; i < sending.size(); i++) {
+			PendingRecord pending = sending.get(i);
+			String failure = awaitForwarded(pending.command, futures.get(i), deadline);
+			if (failure == null) {
+				pending.done = true;
+				forwardedCounter.increment();
+				continue;
+			}
+			failed = true;
+			if (++pending.attempts >= this.maxAttempts) {
+				deadLetter(pending, "SQS rejected it " + pending.attempts + " times, last with: " + failure);
+			}
+			else {
+				log.warn("Forwarding " + pending.command + " from the outbox failed, attempt " + pending.attempts + " of " + this.maxAttempts + ": " + failure);
+			}
+		}
+		return failed;
+	}
+
+	/*
+	 * Null when SQS accepted the command, otherwise why it did not
+	 */
+	private String awaitForwarded(TodoCommand command, Future<GenericCommandResult> future, long deadline) throws InterruptedException {
+		try {
+			GenericCommandResult result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			if (result == null) {
+				return "no result";
+			}
+			return result.isFailure() ? result.getConsolidatedMessage() : null;
+		}
+		catch (ExecutionException e) {
+			log.error("SQS dispatch of " + command + " failed", e.getCause());
+			return String.valueOf(e.getCause());
+		}
+		catch (TimeoutException e) {
+			return "no answer within " + this.forwardTimeoutMillis + " ms";
+		}
+	}
+
+	/*
+	 * Appends the record to the dead letter file, one json command per line, and forces it to disk before the record is skipped
+	 */
+	private void deadLetter(PendingRecord pending, String reason) throws IOException {
+		log.error("Moving outbox record " + (pending.command == null ? "" : pending.command + " ") + "to " + this.deadLetterFile + ", " + reason);
+		try (FileChannel channel = FileChannel.open(this.deadLetterFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			byte[] payload = pending.record.getPayload();
+			ByteBuffer line = ByteBuffer.allocate(payload.length + 1);
+			line.put(payload).put((byte) '\n');
+			line.flip();
+			while (line.hasRemaining()) {
+				channel.write(line);
+			}
+			channel.force(false);
+		}
+		pending.done = true;
+		deadLetteredCounter.increment();
+	}
+
+	private static long todoIdOf(TodoCommand command) {
+		return command.getTodo() == null ? 0 : command.getTodo().getId();
+	}
+
+	private TodoCommand readCommand(MappedCommandLog.Record record) throws IOException {
+		try {
+			return this.objectMapper.readValue(record.getPayload(), TodoCommand.class);
+		}
+		catch (JsonProcessingException e) {
+			log.error("Outbox record cannot be read as a TodoCommand, it goes to the dead letter file", e);
+			return null;
+		}
+	}
+
+	private static class PendingRecord {
+
+		final MappedCommandLog.Record record;
+		final TodoCommand command;
+		int attempts;
+		boolean done;
+
+		PendingRecord(MappedCommandLog.Record record, TodoCommand command) {
+			this.record = record;
+			this.command = command;
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package com.rollingstone.dispatcher.ringbuffer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.interfaces.GenericCommand;
+
+/*
+ * A preallocated, lock free ring of command slots with many producers and a single consumer thread.
+ *
+ * 1. The capacity is a power of two so a sequence is turned into a slot index with a mask
+ * 2. A producer claims the next sequence with a compare and set, it fails fast when the consumer is a full lap behind
+ * 3. After filling its slot the producer marks it available by storing the lap number of the sequence,
+ *    which lets the consumer tell a freshly published slot from one that is still holding the previous lap
+ * 4. The consumer walks the sequences in order, handles every available slot and then publishes how far it got,
+ *    which frees those slots for the producers
+ */
+public class CommandRingBuffer {
+
+	private static final Logger log = LoggerFactory.getLogger(CommandRingBuffer.class);
+
+	private final int mask;
+
+	private final int indexShift;
+
+	private final Slot[] slots;
+
+	private final AtomicIntegerArray availableLaps;
+
+	private final AtomicLong claimed = new AtomicLong(-1);
+
+	private final AtomicLong consumed = new AtomicLong(-1);
+
+	private final WaitStrategy waitStrategy;
+
+	private final Function<GenericCommand, GenericCommandResult> handler;
+
+	private final Thread consumer;
+
+	private volatile boolean running = true;
+
+	public CommandRingBuffer(int capacity, WaitStrategy waitStrategy, Function<GenericCommand, GenericCommandResult> handler) {
+		if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring buffer capacity must be a power of two, was " + capacity);
+		}
+		this.mask = capacity - 1;
+		this.indexShift = Integer.numberOfTrailingZeros(capacity);
+		this.slots = new Slot[capacity];
+		this.availableLaps = new AtomicIntegerArray(capacity);
+		for (int i = 0; i < capacity; i++) {
+			this.slots[i] = new Slot();
+			this.availableLaps.set(i, -1);
+		}
+		this.waitStrategy = waitStrategy;
+		this.handler = handler;
+
+		this.consumer = new Thread(this::consume, "command-ring-buffer-consumer");
+		this.consumer.setDaemon(true);
+		this.consumer.start();
+	}
+
+	/*
+	 * Returns null when the ring is full, the caller decides whether to retry or to shed the command
+	 */
+	public CompletableFuture<GenericCommandResult> tryPublish(GenericCommand command) {
+		long sequence;
+		do {
+			sequence = this.claimed.get() + 1;
+			if (sequence - this.slots.length > this.consumed.get()) {
+				return null;
+			}
+		} while (!this.claimed.compareAndSet(sequence - 1, sequence));
+
+		int index = (int) sequence & this.mask;
+		Slot slot = this.slots[index];
+		CompletableFuture<GenericCommandResult> future = new CompletableFuture<GenericCommandResult>();
+		slot.command = command;
+		slot.future = future;
+		this.availableLaps.set(index, (int) (sequence >>> this.indexShift));
+		this.waitStrategy.signal();
+		return future;
+	}
+
+	public long getBacklog() {
+		return this.claimed.get() - this.consumed.get();
+	}
+
+	public int getCapacity() {
+		return this.slots.length;
+	}
+
+	public void close() throws InterruptedException {
+		this.running = false;
+		this.consumer.interrupt();
+		this.consumer.join();
+	}
+
+	private boolean isAvailable(long sequence) {
+		return this.availableLaps.get((int) sequence & this.mask) == (int) (sequence >>> this.indexShift);
+	}
+
+	private void consume() {
+		long next = 0;
+		int idleAttempts = 0;
+		while (this.running || isAvailable(next)) {
+			if (!isAvailable(next)) {
+				try {
+					this.waitStrategy.idle(++idleAttempts);
+				}
+				catch (InterruptedException e) {
+					this.running = false;
+				}
+				continue;
+			}
+			idleAttempts = 0;
+
+			long last = next;
+			while (isAvailable(last + 1) && last + 1 - next < this.slots.length) {
+				last++;
+			}
+			for (long sequence = next; sequence <= last; sequence++) {
+				Slot slot = this.slots[(int) sequence & this.mask];
+				handle(slot.command, slot.future);
+				slot.command = null;
+				slot.future = null;
+			}
+			this.consumed.lazySet(last);
+			next = last + 1;
+		}
+	}
+
+	private void handle(GenericCommand command, CompletableFuture<GenericCommandResult> future) {
+		try {
+			future.complete(this.handler.apply(command));
+		}
+		catch (RuntimeException e) {
+			log.error("Handling " + command + " failed", e);
+			future.completeExceptionally(e);
+		}
+	}
+
+	private static class Slot {
+
+		GenericCommand command;
+		CompletableFuture<GenericCommandResult> future;
+	}
+}
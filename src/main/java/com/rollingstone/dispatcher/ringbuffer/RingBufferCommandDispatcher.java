@@ -0,0 +1,95 @@
+package com.rollingstone.dispatcher.ringbuffer;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.command.CommandStage;
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.interfaces.GenericCommand;
+import com.rollingstone.command.interfaces.GenericCommandDispatcher;
+import com.rollingstone.command.interfaces.GenericCommandHandler;
+import com.rollingstone.exception.HTTP429Exception;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.metrics.CommandLatencyRecorder.Completion;
+
+import io.micrometer.core.instrument.Metrics;
+
+@Component
+@ConditionalOnProperty(name = "command.dispatcher", havingValue = "ring-buffer")
+public class RingBufferCommandDispatcher implements GenericCommandDispatcher {
+
+	private static final Logger log = LoggerFactory.getLogger(RingBufferCommandDispatcher.class);
+
+	private final Map<String, GenericCommandHandler> handlersByType = new HashMap<String, GenericCommandHandler>();
+
+	private final CommandRingBuffer ringBuffer;
+
+	private final CommandLatencyRecorder commandLatencyRecorder;
+
+	/*
+	 * 1. This dispatcher is used instead of the SQSCommandDispatcher when command.dispatcher=ring-buffer
+	 * 2. Nothing leaves the process, every GenericCommand is handed to a GenericCommandHandler bean on the ring buffer's consumer thread
+	 * 3. The handler for every command type is looked up once here, so the consumer does a single map lookup per command
+	 * 4. The ring buffer and all of its slots are allocated up front, publishing a command only claims a slot
+	 * 5. There is no queue in between, a command goes from BUS straight to APPLY
+	 */
+	public RingBufferCommandDispatcher(List<GenericCommandHandler> handlers, CommandLatencyRecorder commandLatencyRecorder,
+			@Value("${command.ring-buffer.size:1024}") int size,
+			@Value("${command.ring-buffer.wait-strategy:sleeping}") String waitStrategy) {
+		for (GenericCommandType type : GenericCommandType.values()) {
+			for (GenericCommandHandler handler : handlers) {
+				if (handler.canHandle(type.toString())) {
+					this.handlersByType.put(type.toString(), handler);
+					break;
+				}
+			}
+		}
+		this.commandLatencyRecorder = commandLatencyRecorder;
+		this.ringBuffer = new CommandRingBuffer(size, WaitStrategy.forName(waitStrategy), this::handle);
+		Metrics.gauge("com.rollingstone.command.ringbuffer.backlog", this.ringBuffer, CommandRingBuffer::getBacklog);
+		log.info("In process command dispatch with a ring buffer of " + size + " slots and " + waitStrategy + " wait strategy");
+	}
+
+	@Override
+	public Future<GenericCommandResult> dispatch(GenericCommand command) {
+		CompletableFuture<GenericCommandResult> future = this.ringBuffer.tryPublish(command);
+		if (future == null) {
+			throw new HTTP429Exception("Command ring buffer is full");
+		}
+		return future;
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		this.ringBuffer.close();
+	}
+
+	private GenericCommandResult handle(GenericCommand command) {
+		this.commandLatencyRecorder.stage(command, CommandStage.BUS);
+		GenericCommandHandler handler = this.handlersByType.get(command.getHeader().getCommandType());
+		if (handler == null) {
+			Map<String, String> messages = new HashMap<String, String>();
+			messages.put("error", "No handler for command type " + command.getHeader().getCommandType());
+			GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_FAILURE, new HashMap<String, String>(), "Failure");
+			cr.setAsFailed(messages.entrySet());
+			return cr;
+		}
+		GenericCommandResult result = handler.handle(command);
+		this.commandLatencyRecorder.stage(command, CommandStage.APPLY);
+		this.commandLatencyRecorder.complete(command, Completion.APPLIED);
+		return result;
+	}
+}
@@ -0,0 +1,122 @@
+package com.rollingstone.dispatcher.ringbuffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Decides what the consumer thread of the CommandRingBuffer does while there is nothing to consume.
+ *
+ * 1. BUSY_SPIN burns a core but reacts within nanoseconds
+ * 2. YIELDING spins for a while and then gives the core to other threads
+ * 3. SLEEPING spins, yields and then parks for a short time, which is cheap on CPU and still reacts quickly
+ * 4. BLOCKING waits on a condition that producers signal, which is the cheapest on CPU and the slowest to react
+ */
+public abstract class WaitStrategy {
+
+	private static final int SPIN_TRIES = 100;
+
+	private static final int YIELD_TRIES = 200;
+
+	/*
+	 * Called by the consumer with the number of times it already found nothing to consume in a row
+	 */
+	abstract void idle(int attempt) throws InterruptedException;
+
+	/*
+	 * Called by producers after they published a slot
+	 */
+	void signal() {
+	}
+
+	public static WaitStrategy forName(String name) {
+		switch (name.trim().toLowerCase()) {
+		case "busy-spin":
+			return new BusySpin();
+		case "yielding":
+			return new Yielding();
+		case "sleeping":
+			return new Sleeping();
+		case "blocking":
+			return new Blocking();
+		default:
+			throw new IllegalArgumentException("Unknown ring buffer wait strategy " + name);
+		}
+	}
+
+	static class BusySpin extends WaitStrategy {
+
+		@Override
+		void idle(int attempt) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	static class Yielding extends WaitStrategy {
+
+		@Override
+		void idle(int attempt) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (attempt > SPIN_TRIES) {
+				Thread.yield();
+			}
+		}
+	}
+
+	static class Sleeping extends WaitStrategy {
+
+		private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+		@Override
+		void idle(int attempt) throws InterruptedException {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			if (attempt > YIELD_TRIES) {
+				LockSupport.parkNanos(PARK_NANOS);
+			}
+			else if (attempt > SPIN_TRIES) {
+				Thread.yield();
+			}
+		}
+	}
+
+	static class Blocking extends WaitStrategy {
+
+		private static final long MAX_WAIT_MILLIS = 10;
+
+		private final ReentrantLock lock = new ReentrantLock();
+
+		private final Condition published = this.lock.newCondition();
+
+		@Override
+		void idle(int attempt) throws InterruptedException {
+			this.lock.lockInterruptibly();
+			try {
+				/*
+				 * The timeout covers a signal that was sent between the consumer's last check and this wait
+				 */
+				this.published.await(MAX_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+
+		@Override
+		void signal() {
+			this.lock.lock();
+			try {
+				this.published.signalAll();
+			}
+			finally {
+				this.lock.unlock();
+			}
+		}
+	}
+}
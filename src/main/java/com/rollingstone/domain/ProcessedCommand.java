@@ -0,0 +1,57 @@
+package com.rollingstone.domain;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+/*
+ * The id of a command the consumer has applied, written in the transaction that applied it.
+ * SQS delivers a message at least once, a command whose id is already here is not applied a second time.
+ * The ids are purged by processed_at once their messages can no longer come back.
+ */
+@Entity
+@Table(name = "rollingstone_aws_sqs_demo_processed_command", indexes = @Index(name = "idx_processed_command_processed_at", columnList = "processed_at"))
+public class ProcessedCommand {
+
+	@Id
+	@Column(name = "command_id", length = 36, nullable = false)
+	private String commandId;
+
+	@Column(name = "processed_at", nullable = false)
+	private Timestamp processedAt;
+
+	public ProcessedCommand(String commandId, Timestamp processedAt) {
+		super();
+		this.commandId = commandId;
+		this.processedAt = processedAt;
+	}
+
+	public ProcessedCommand() {
+		super();
+	}
+
+	public String getCommandId() {
+		return commandId;
+	}
+
+	public void setCommandId(String commandId) {
+		this.commandId = commandId;
+	}
+
+	public Timestamp getProcessedAt() {
+		return processedAt;
+	}
+
+	public void setProcessedAt(Timestamp processedAt) {
+		this.processedAt = processedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "ProcessedCommand [commandId=" + commandId + ", processedAt=" + processedAt + "]";
+	}
+}
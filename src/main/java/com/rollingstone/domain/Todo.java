@@ -6,13 +6,25 @@ import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.Table;
+import javax.persistence.TableGenerator;
+import javax.persistence.Version;
 
 @Entity
 @Table(name = "rollingstone_aws_sqs_demo_todo")
 public class Todo {
 
+	/*
+	 * Ids are handed out in blocks of ID_BLOCK_SIZE from the id block table, so Hibernate knows the id before the insert
+	 * and can batch inserts, which it cannot do with IDENTITY. TodoIdBlockSeeder moves the table past the ids that already exist.
+	 */
+	public static final int ID_BLOCK_SIZE = 50;
+	public static final String ID_BLOCK_TABLE = "rollingstone_aws_sqs_demo_todo_id_block";
+	public static final String ID_BLOCK_NAME = "todo";
+
 	@Id
-	@GeneratedValue(strategy = GenerationType.IDENTITY)
+	@GeneratedValue(strategy = GenerationType.TABLE, generator = "todo_id_block")
+	@TableGenerator(name = "todo_id_block", table = ID_BLOCK_TABLE, pkColumnName = "sequence_name", valueColumnName = "next_val",
+			pkColumnValue = ID_BLOCK_NAME, allocationSize = ID_BLOCK_SIZE)
 	private long id;
 	
 	@Column(name = "short_description", nullable = false)
@@ -20,6 +32,13 @@ public class Todo {
 	
 	@Column(name = "long_description", nullable = false)
 	String longDescription;
+	
+	/*
+	 * Raised by Hibernate on every update of the todo, it is also the ETag of the todo
+	 */
+	@Version
+	@Column(name = "version", nullable = false)
+	private long version;
 
 	public long getId() {
 		return id;
@@ -45,6 +64,14 @@ public class Todo {
 		this.longDescription = longDescription;
 	}
 
+	public long getVersion() {
+		return version;
+	}
+
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
 	public Todo(long id, String shortDescription, String longDescription) {
 		super();
 		this.id = id;
@@ -59,7 +86,7 @@ public class Todo {
 	@Override
 	public String toString() {
 		return "Todo [id=" + id + ", shortDescription=" + shortDescription + ", longDescription=" + longDescription
-				+ "]";
+				+ ", version=" + version + "]";
 	}
 
 	@Override
@@ -69,6 +96,7 @@ public class Todo {
 		result = prime * result + (int) (id ^ (id >>> 32));
 		result = prime * result + ((longDescription == null) ? 0 : longDescription.hashCode());
 		result = prime * result + ((shortDescription == null) ? 0 : shortDescription.hashCode());
+		result = prime * result + (int) (version ^ (version >>> 32));
 		return result;
 	}
 
@@ -93,6 +121,8 @@ public class Todo {
 				return false;
 		} else if (!shortDescription.equals(other.shortDescription))
 			return false;
+		if (version != other.version)
+			return false;
 		return true;
 	}
 	
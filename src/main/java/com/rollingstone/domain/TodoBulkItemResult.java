@@ -0,0 +1,96 @@
+package com.rollingstone.domain;
+
+/*
+ * The outcome of one todo of a bulk request, index is the position of the todo in the request body
+ */
+public class TodoBulkItemResult {
+
+	public static final String ACCEPTED = "ACCEPTED";
+	public static final String INVALID = "INVALID";
+	public static final String FAILED = "FAILED";
+	public static final String UNREADABLE = "UNREADABLE";
+
+	private int index;
+	private String status;
+	private String commandId;
+	private String errorMessage;
+
+	public int getIndex() {
+		return index;
+	}
+	public void setIndex(int index) {
+		this.index = index;
+	}
+	public String getStatus() {
+		return status;
+	}
+	public void setStatus(String status) {
+		this.status = status;
+	}
+	public String getCommandId() {
+		return commandId;
+	}
+	public void setCommandId(String commandId) {
+		this.commandId = commandId;
+	}
+	public String getErrorMessage() {
+		return errorMessage;
+	}
+	public void setErrorMessage(String errorMessage) {
+		this.errorMessage = errorMessage;
+	}
+	public TodoBulkItemResult(int index, String status, String commandId, String errorMessage) {
+		super();
+		this.index = index;
+		this.status = status;
+		this.commandId = commandId;
+		this.errorMessage = errorMessage;
+	}
+	public TodoBulkItemResult() {
+		super();
+	}
+	@Override
+	public String toString() {
+		return "TodoBulkItemResult [index=" + index + ", status=" + status + ", commandId=" + commandId
+				+ ", errorMessage=" + errorMessage + "]";
+	}
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + ((commandId == null) ? 0 : commandId.hashCode());
+		result = prime * result + ((errorMessage == null) ? 0 : errorMessage.hashCode());
+		result = prime * result + index;
+		result = prime * result + ((status == null) ? 0 : status.hashCode());
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TodoBulkItemResult other = (TodoBulkItemResult) obj;
+		if (commandId == null) {
+			if (other.commandId != null)
+				return false;
+		} else if (!commandId.equals(other.commandId))
+			return false;
+		if (errorMessage == null) {
+			if (other.errorMessage != null)
+				return false;
+		} else if (!errorMessage.equals(other.errorMessage))
+			return false;
+		if (index != other.index)
+			return false;
+		if (status == null) {
+			if (other.status != null)
+				return false;
+		} else if (!status.equals(other.status))
+			return false;
+		return true;
+	}
+
+}
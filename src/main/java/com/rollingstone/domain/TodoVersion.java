@@ -0,0 +1,59 @@
+package com.rollingstone.domain;
+
+/*
+ * Just the id and version of a todo, read instead of the whole todo when only its ETag is needed
+ */
+public class TodoVersion {
+
+	private long id;
+	private long version;
+
+	public long getId() {
+		return id;
+	}
+	public void setId(long id) {
+		this.id = id;
+	}
+	public long getVersion() {
+		return version;
+	}
+	public void setVersion(long version) {
+		this.version = version;
+	}
+	public TodoVersion(long id, long version) {
+		super();
+		this.id = id;
+		this.version = version;
+	}
+	public TodoVersion() {
+		super();
+	}
+	@Override
+	public String toString() {
+		return "TodoVersion [id=" + id + ", version=" + version + "]";
+	}
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		result = prime * result + (int) (id ^ (id >>> 32));
+		result = prime * result + (int) (version ^ (version >>> 32));
+		return result;
+	}
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (getClass() != obj.getClass())
+			return false;
+		TodoVersion other = (TodoVersion) obj;
+		if (id != other.id)
+			return false;
+		if (version != other.version)
+			return false;
+		return true;
+	}
+
+}
@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP409Exception extends RuntimeException {
+
+	public HTTP409Exception() {
+		super();
+	}
+	
+	public HTTP409Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP409Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP409Exception(Throwable cause) {
+		super(cause);
+	}
+}
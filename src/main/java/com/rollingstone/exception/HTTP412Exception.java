@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP412Exception extends RuntimeException {
+
+	public HTTP412Exception() {
+		super();
+	}
+	
+	public HTTP412Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP412Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP412Exception(Throwable cause) {
+		super(cause);
+	}
+}
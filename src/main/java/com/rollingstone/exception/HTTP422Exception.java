@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP422Exception extends RuntimeException {
+
+	public HTTP422Exception() {
+		super();
+	}
+	
+	public HTTP422Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP422Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP422Exception(Throwable cause) {
+		super(cause);
+	}
+}
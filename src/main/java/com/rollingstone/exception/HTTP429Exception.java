@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP429Exception extends RuntimeException {
+
+	public HTTP429Exception() {
+		super();
+	}
+	
+	public HTTP429Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP429Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP429Exception(Throwable cause) {
+		super(cause);
+	}
+}
@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP502Exception extends RuntimeException {
+
+	public HTTP502Exception() {
+		super();
+	}
+	
+	public HTTP502Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP502Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP502Exception(Throwable cause) {
+		super(cause);
+	}
+}
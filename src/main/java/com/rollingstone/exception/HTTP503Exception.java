@@ -0,0 +1,20 @@
+package com.rollingstone.exception;
+
+public class HTTP503Exception extends RuntimeException {
+
+	public HTTP503Exception() {
+		super();
+	}
+	
+	public HTTP503Exception(String message, Throwable cause) {
+		super(message, cause);
+	}
+	
+	public HTTP503Exception(String message) {
+		super(message);
+	}
+	
+	public HTTP503Exception(Throwable cause) {
+		super(cause);
+	}
+}
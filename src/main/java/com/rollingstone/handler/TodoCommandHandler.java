@@ -0,0 +1,84 @@
+package com.rollingstone.handler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.GenericCommand;
+import com.rollingstone.command.interfaces.GenericCommandHandler;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.repository.TodoRepository;
+
+/*
+ * Applies a TodoCommand directly to the TodoRepository, this is what the consumer of the todo queue does on the other side of SQS
+ */
+@Component
+@DependsOn("todoIdBlockSeeder")
+public class TodoCommandHandler implements GenericCommandHandler {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoCommandHandler.class);
+
+	private final TodoRepository todoRepository;
+
+	public TodoCommandHandler(TodoRepository todoRepository) {
+		this.todoRepository = todoRepository;
+	}
+
+	@Override
+	public boolean canHandle(String commandType) {
+		return GenericCommandType.CREATE_TODO.toString().equals(commandType)
+				|| GenericCommandType.UPDATE_TODO.toString().equals(commandType)
+				|| GenericCommandType.DELETE_TODO.toString().equals(commandType);
+	}
+
+	@Override
+	public GenericCommandResult handle(GenericCommand command) {
+		TodoCommand todoCommand = (TodoCommand) command;
+		GenericCommandType type = GenericCommandType.valueOf(command.getHeader().getCommandType());
+		Map<String, String> messages = new HashMap<String, String>();
+
+		try {
+			Todo todo = todoCommand.getTodo();
+			if (type == GenericCommandType.DELETE_TODO) {
+				this.todoRepository.deleteById(todo.getId());
+			}
+			else if (type == GenericCommandType.UPDATE_TODO) {
+				/*
+				 * The todo of the command is copied onto the stored todo rather than saved as it is, its version is not the stored one,
+				 * an update sent with If-Match carries the version the client read as its expected version
+				 */
+				Todo stored = this.todoRepository.findById(todo.getId())
+						.orElseThrow(() -> new IllegalStateException("Todo " + todoCommand.getTodo().getId() + " does not exist"));
+				if (todoCommand.getExpectedVersion() != null && todoCommand.getExpectedVersion() != stored.getVersion()) {
+					throw new IllegalStateException("Todo " + todo.getId() + " is at version " + stored.getVersion()
+							+ ", the update was made against version " + todoCommand.getExpectedVersion());
+				}
+				stored.setShortDescription(todo.getShortDescription());
+				stored.setLongDescription(todo.getLongDescription());
+				todo = this.todoRepository.save(stored);
+			}
+			else {
+				todo = this.todoRepository.save(todo);
+			}
+			GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS, messages, "Success");
+			cr.setAsSuccessful("Success", Long.toString(todo.getId()));
+			return cr;
+		}
+		catch (RuntimeException e) {
+			log.error("Applying " + todoCommand + " failed", e);
+			Map<String, String> failure = new HashMap<String, String>();
+			failure.put("error", e.getMessage() == null ? e.getClass().getSimpleName() : e.getMessage());
+			GenericCommandResult<String> cr = new GenericCommandResult<String>(ResultCode.OPERATION_FAILURE, messages, "Failure");
+			cr.setAsFailed(failure.entrySet());
+			return cr;
+		}
+	}
+}
@@ -1,22 +1,31 @@
 package com.rollingstone.listener;
 
+import java.util.List;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.context.event.EventListener;
 import org.springframework.stereotype.Component;
 
 import com.rollingstone.service.event.TodoServiceEvent;
+import com.rollingstone.service.event.TodoServiceEventBatchListener;
 
+/*
+ * Logs every todo event, on the thread of the TodoServiceEventBus rather than the thread that published the event
+ */
 @Component
-public class TodoEventListener {
+public class TodoEventListener implements TodoServiceEventBatchListener {
 
 	private static final Logger log  = LoggerFactory.getLogger(TodoEventListener.class);
 
-	@EventListener
-	public void onApplicationEvent(TodoServiceEvent totoServiceEvent) {
-		log.info("Recieved Sales Order Event :"+ totoServiceEvent.getEventType());
-		log.info("Received Todo from Todo Event :" + totoServiceEvent.getEventTodo().toString());
-		
+	@Override
+	public void onTodoEvents(List<TodoServiceEvent> todoServiceEvents) {
+		if (!log.isInfoEnabled()) {
+			return;
+		}
+		for (TodoServiceEvent totoServiceEvent : todoServiceEvents) {
+			log.info("Recieved Sales Order Event :" + totoServiceEvent.getEventType());
+			log.info("Received Todo from Todo Event :" + totoServiceEvent.getEventTodo());
+		}
 	}
 
 }
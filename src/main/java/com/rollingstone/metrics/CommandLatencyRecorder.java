@@ -0,0 +1,261 @@
+package com.rollingstone.metrics;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.command.CommandStage;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.GenericCommand;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * Stage by stage latency of the commands, from the controller to the queue and from the queue to the todo table.
+ *
+ * 1. Every stage a command passes is timed and written into its GenericCommandHeader, so the stages timed by the producer
+ *    travel with the message and the consumer knows them too
+ * 2. A stage is timed from the end of the stage before it, with System.nanoTime() as long as the command stays in one process,
+ *    a command that was read back from the outbox or received from the queue is timed from a wall clock instead
+ * 3. Every stage is recorded in a Timer per command type and stage, com.rollingstone.command.stage.latency, and when a command
+ *    is dispatched or applied the sum of its stages in a Timer per command type, com.rollingstone.command.latency,
+ *    the Timers publish their p50, p99 and p99.9
+ * 4. The command.latency.slowest-count slowest commands of the current and the previous window of command.latency.slowest-window-seconds
+ *    are kept with their stages, a command that is not among them costs one volatile read
+ */
+@Component
+public class CommandLatencyRecorder {
+
+	public enum Completion {
+		DISPATCHED, APPLIED
+	}
+
+	private static final double[] PERCENTILES = { 0.5, 0.99, 0.999 };
+
+	private static final CommandStage[] STAGES = CommandStage.values();
+
+	private static final Completion[] COMPLETIONS = Completion.values();
+
+	private static final String UNKNOWN_TYPE = "UNKNOWN";
+
+	private final ConcurrentHashMap<String, Timer[]> stageTimers = new ConcurrentHashMap<String, Timer[]>();
+
+	private final ConcurrentHashMap<String, Timer[]> totalTimers = new ConcurrentHashMap<String, Timer[]>();
+
+	private final int slowestCount;
+
+	private final long windowMillis;
+
+	private final Object slowestLock = new Object();
+
+	private final PriorityQueue<SlowCommand> currentWindow;
+
+	private List<SlowCommand> previousWindow = Collections.emptyList();
+
+	private volatile long windowEnd;
+
+	/*
+	 * The fastest of the slowest commands of the current window, -1 while there is still room
+	 */
+	private volatile long slowestThreshold = -1;
+
+	public CommandLatencyRecorder(@Value("${command.latency.slowest-count:20}") int slowestCount,
+			@Value("${command.latency.slowest-window-seconds:60}") long windowSeconds) {
+		this.slowestCount = Math.max(1, slowestCount);
+		this.windowMillis = TimeUnit.SECONDS.toMillis(Math.max(1, windowSeconds));
+		this.currentWindow = new PriorityQueue<SlowCommand>(this.slowestCount + 1, Comparator.comparingLong(slow -> slow.totalMicros));
+	}
+
+	/*
+	 * The first stage of a command, timed from startNanos
+	 */
+	public void stage(GenericCommand command, CommandStage stage, long startNanos) {
+		GenericCommandHeader header = command.getHeader();
+		if (header == null) {
+			return;
+		}
+		header.setStageMark(startNanos);
+		stage(command, stage);
+	}
+
+	/*
+	 * A stage that ends now, timed from the end of the stage before it, or from the createDate of a command that came from elsewhere
+	 */
+	public void stage(GenericCommand command, CommandStage stage) {
+		GenericCommandHeader header = command.getHeader();
+		if (header == null) {
+			return;
+		}
+		long now = System.nanoTime();
+		if (header.getStageMark() != 0) {
+			record(header, stage, (now - header.getStageMark()) / 1000, now);
+		}
+		else if (header.getCreateDate() != null) {
+			record(header, stage, microsSince(header.getCreateDate().getTime()), now);
+		}
+		else {
+			header.setStageMark(now);
+		}
+	}
+
+	/*
+	 * A stage that ends now and started at epochMillis on some clock of another host, like the SentTimestamp of a SQS message
+	 */
+	public void stageSince(GenericCommand command, CommandStage stage, long epochMillis) {
+		GenericCommandHeader header = command.getHeader();
+		if (header != null) {
+			record(header, stage, microsSince(epochMillis), System.nanoTime());
+		}
+	}
+
+	/*
+	 * The command has been handed to the queue or has been applied, its stages so far add up to its latency
+	 */
+	public void complete(GenericCommand command, Completion completion) {
+		GenericCommandHeader header = command.getHeader();
+		if (header == null || header.getStageTimings() == null) {
+			return;
+		}
+		long totalMicros = 0;
+		for (Long micros : header.getStageTimings().values()) {
+			totalMicros += micros;
+		}
+		timers(this.totalTimers, typeOf(header), "com.rollingstone.command.latency", "completion", COMPLETIONS)[completion.ordinal()]
+				.record(totalMicros, TimeUnit.MICROSECONDS);
+
+		long now = System.currentTimeMillis();
+		if (now < this.windowEnd && totalMicros <= this.slowestThreshold) {
+			return;
+		}
+		synchronized (this.slowestLock) {
+			rotate(now);
+			if (this.currentWindow.size() == this.slowestCount) {
+				if (totalMicros <= this.currentWindow.peek().totalMicros) {
+					return;
+				}
+				this.currentWindow.poll();
+			}
+			this.currentWindow.add(new SlowCommand(command, header, completion, totalMicros, now));
+			this.slowestThreshold = this.currentWindow.size() == this.slowestCount ? this.currentWindow.peek().totalMicros : -1;
+		}
+	}
+
+	/*
+	 * The slowest commands of the current and the previous window, slowest first, with their stages in milliseconds
+	 */
+	public List<Map<String, Object>> slowest() {
+		List<SlowCommand> slowest;
+		synchronized (this.slowestLock) {
+			rotate(System.currentTimeMillis());
+			slowest = new ArrayList<SlowCommand>(this.previousWindow);
+			slowest.addAll(this.currentWindow);
+		}
+		slowest.sort((a, b) -> Long.compare(b.totalMicros, a.totalMicros));
+
+		List<Map<String, Object>> snapshot = new ArrayList<Map<String, Object>>();
+		for (SlowCommand slow : slowest.subList(0, Math.min(this.slowestCount, slowest.size()))) {
+			Map<String, Object> entry = new LinkedHashMap<String, Object>();
+			entry.put("commandId", slow.commandId);
+			entry.put("commandType", slow.commandType);
+			entry.put("completion", slow.completion);
+			entry.put("completedAt", Instant.ofEpochMilli(slow.completedAt).toString());
+			entry.put("totalMs", toMillis(slow.totalMicros));
+			Map<String, Double> stages = new LinkedHashMap<String, Double>();
+			for (Map.Entry<String, Long> stage : slow.stageTimings.entrySet()) {
+				stages.put(stage.getKey(), toMillis(stage.getValue()));
+			}
+			entry.put("stagesMs", stages);
+			snapshot.add(entry);
+		}
+		return snapshot;
+	}
+
+	private void record(GenericCommandHeader header, CommandStage stage, long micros, long nowNanos) {
+		micros = Math.max(0, micros);
+		header.putStageTiming(stage.name(), micros);
+		header.setStageMark(nowNanos);
+		timers(this.stageTimers, typeOf(header), "com.rollingstone.command.stage.latency", "stage", STAGES)[stage.ordinal()]
+				.record(micros, TimeUnit.MICROSECONDS);
+	}
+
+	/*
+	 * Must hold the slowest lock, a window that has ended becomes the previous one, unless it ended more than a window ago
+	 */
+	private void rotate(long now) {
+		if (now < this.windowEnd) {
+			return;
+		}
+		this.previousWindow = now < this.windowEnd + this.windowMillis ? new ArrayList<SlowCommand>(this.currentWindow) : Collections.<SlowCommand>emptyList();
+		this.currentWindow.clear();
+		this.slowestThreshold = -1;
+		this.windowEnd = now + this.windowMillis;
+	}
+
+	/*
+	 * The Timers of a command type, one for every constant of tagValues, created the first time the type is seen
+	 */
+	private static Timer[] timers(ConcurrentHashMap<String, Timer[]> timers, String type, String name, String tag, Enum<?>[] tagValues) {
+		Timer[] typeTimers = timers.get(type);
+		return typeTimers != null ? typeTimers : timers.computeIfAbsent(type, key -> {
+			Timer[] created = new Timer[tagValues.length];
+			for (int i = 0; i < tagValues.length; i++) {
+				created[i] = Timer.builder(name)
+						.tag("type", key)
+						.tag(tag, tagValues[i].name())
+						.publishPercentiles(PERCENTILES)
+						.register(Metrics.globalRegistry);
+			}
+			return created;
+		});
+	}
+
+	private static String typeOf(GenericCommandHeader header) {
+		return header.getCommandType() == null ? UNKNOWN_TYPE : header.getCommandType();
+	}
+
+	private static long microsSince(long epochMillis) {
+		return TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis() - epochMillis);
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+	private static class SlowCommand {
+
+		final String commandId;
+
+		final String commandType;
+
+		final Completion completion;
+
+		final long totalMicros;
+
+		final Map<String, Long> stageTimings;
+
+		final long completedAt;
+
+		SlowCommand(GenericCommand command, GenericCommandHeader header, Completion completion, long totalMicros, long completedAt) {
+			UUID id = command instanceof TodoCommand ? ((TodoCommand) command).getId() : null;
+			this.commandId = id == null ? null : id.toString();
+			this.commandType = typeOf(header);
+			this.completion = completion;
+			this.totalMicros = totalMicros;
+			this.stageTimings = new LinkedHashMap<String, Long>(header.getStageTimings());
+			this.completedAt = completedAt;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.rollingstone.metrics;
+
+import java.io.IOException;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.method.HandlerMethod;
+import org.springframework.web.servlet.HandlerMapping;
+
+/*
+ * Measures every request handled by a controller in com.rollingstone.api, from the moment it enters the filter chain
+ * until the response is written, and records it in the EndpointLatencyRecorder under the handler method and the response status.
+ * A request that ends in an exception nobody handled is recorded as a 500.
+ * A handler that returned a future has not answered yet when the chain returns, its request is recorded once the async request completes.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class EndpointLatencyFilter extends OncePerRequestFilter {
+
+	private static final String API_PACKAGE = "com.rollingstone.api";
+
+	private final EndpointLatencyRecorder latencyRecorder;
+
+	public EndpointLatencyFilter(EndpointLatencyRecorder latencyRecorder) {
+		this.latencyRecorder = latencyRecorder;
+	}
+
+	@Override
+	protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+			throws ServletException, IOException {
+		long started = System.nanoTime();
+		boolean failed = true;
+		try {
+			filterChain.doFilter(request, response);
+			failed = false;
+		}
+		finally {
+			Object handler = request.getAttribute(HandlerMapping.BEST_MATCHING_HANDLER_ATTRIBUTE);
+			if (handler instanceof HandlerMethod && ((HandlerMethod) handler).getBeanType().getName().startsWith(API_PACKAGE)) {
+				HandlerMethod handlerMethod = (HandlerMethod) handler;
+				EndpointLatencyRecorder.EndpointLatency endpoint = this.latencyRecorder.endpoint(handlerMethod.getMethod(),
+						request.getMethod() + " " + request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE));
+				if (!failed && isAsyncStarted(request)) {
+					request.getAsyncContext().addListener(new AsyncListener() {
+						@Override
+						public void onComplete(AsyncEvent event) {
+							latencyRecorder.record(endpoint, response.getStatus(), System.nanoTime() - started);
+						}
+
+						@Override
+						public void onTimeout(AsyncEvent event) {
+						}
+
+						@Override
+						public void onError(AsyncEvent event) {
+						}
+
+						@Override
+						public void onStartAsync(AsyncEvent event) {
+						}
+					});
+				}
+				else {
+					this.latencyRecorder.record(endpoint, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : response.getStatus(),
+							System.nanoTime() - started);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,197 @@
+package com.rollingstone.metrics;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+ * Latency histograms per endpoint and response status.
+ *
+ * 1. Every endpoint and status has a HdrHistogram Recorder, recording is wait free and allocates nothing,
+ *    concurrent requests never wait for each other or for a reader
+ * 2. Every latency.bucket-seconds the recorded interval is taken out of each Recorder and kept in a ring of buckets,
+ *    enough buckets for the longest window of latency.window-seconds
+ * 3. A window is the sum of its most recent buckets, so it slides by one bucket at a time and the current bucket is not part of it yet
+ * 4. Latencies are recorded in microseconds with latency.significant-digits digits of precision,
+ *    anything above latency.highest-trackable-ms is recorded as latency.highest-trackable-ms
+ * 5. An endpoint is known by its handler method, the statuses of an endpoint are an array indexed by status code
+ */
+@Component
+public class EndpointLatencyRecorder {
+
+	private static final int MAX_STATUS = 600;
+
+	private final ConcurrentHashMap<Method, EndpointLatency> endpoints = new ConcurrentHashMap<Method, EndpointLatency>();
+
+	private final long bucketSeconds;
+
+	private final long[] windowSeconds;
+
+	private final int buckets;
+
+	private final long highestTrackableMicros;
+
+	private final int significantDigits;
+
+	private ScheduledExecutorService rotator;
+
+	public EndpointLatencyRecorder(@Value("${latency.bucket-seconds:15}") long bucketSeconds,
+			@Value("${latency.window-seconds:60,300}") long[] windowSeconds,
+			@Value("${latency.highest-trackable-ms:60000}") long highestTrackableMillis,
+			@Value("${latency.significant-digits:2}") int significantDigits) {
+		this.bucketSeconds = bucketSeconds;
+		this.windowSeconds = windowSeconds.clone();
+		long longestWindow = 0;
+		for (long window : windowSeconds) {
+			longestWindow = Math.max(longestWindow, window);
+		}
+		this.buckets = (int) Math.max(1, (longestWindow + bucketSeconds - 1) / bucketSeconds);
+		this.highestTrackableMicros = TimeUnit.MILLISECONDS.toMicros(highestTrackableMillis);
+		this.significantDigits = significantDigits;
+	}
+
+	@PostConstruct
+	public void start() {
+		this.rotator = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "endpoint-latency-rotator");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.rotator.scheduleAtFixedRate(this::rotate, this.bucketSeconds, this.bucketSeconds, TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		this.rotator.shutdownNow();
+	}
+
+	/*
+	 * The endpoint of a handler method, created once, name is only used then
+	 */
+	EndpointLatency endpoint(Method handler, String name) {
+		EndpointLatency endpoint = this.endpoints.get(handler);
+		return endpoint != null ? endpoint : this.endpoints.computeIfAbsent(handler, method -> new EndpointLatency(name));
+	}
+
+	void record(EndpointLatency endpoint, int status, long nanos) {
+		endpoint.recorder(status).recordValue(Math.min(this.highestTrackableMicros, Math.max(0, nanos / 1000)));
+	}
+
+	/*
+	 * For every endpoint and status the count, p50, p99, p99.9 and max in milliseconds of every window,
+	 * endpoints are keyed as "METHOD pattern", windows as "60s"
+	 */
+	public Map<String, Map<String, Map<String, Map<String, Number>>>> snapshot() {
+		Map<String, Map<String, Map<String, Map<String, Number>>>> snapshot = new LinkedHashMap<String, Map<String, Map<String, Map<String, Number>>>>();
+		List<EndpointLatency> sorted = new ArrayList<EndpointLatency>(this.endpoints.values());
+		sorted.sort((a, b) -> a.name.compareTo(b.name));
+		for (EndpointLatency endpoint : sorted) {
+			Map<String, Map<String, Map<String, Number>>> statuses = new LinkedHashMap<String, Map<String, Map<String, Number>>>();
+			for (int status = 0; status < MAX_STATUS; status++) {
+				StatusLatency latency = endpoint.statuses.get(status);
+				if (latency == null) {
+					continue;
+				}
+				Map<String, Map<String, Number>> windows = new LinkedHashMap<String, Map<String, Number>>();
+				for (long window : this.windowSeconds) {
+					Histogram histogram = latency.window((int) Math.max(1, window / this.bucketSeconds));
+					Map<String, Number> percentiles = new LinkedHashMap<String, Number>();
+					percentiles.put("count", histogram.getTotalCount());
+					percentiles.put("p50", toMillis(histogram.getValueAtPercentile(50)));
+					percentiles.put("p99", toMillis(histogram.getValueAtPercentile(99)));
+					percentiles.put("p99.9", toMillis(histogram.getValueAtPercentile(99.9)));
+					percentiles.put("max", toMillis(histogram.getMaxValue()));
+					windows.put(window + "s", percentiles);
+				}
+				statuses.put(Integer.toString(status), windows);
+			}
+			snapshot.put(endpoint.name, statuses);
+		}
+		return snapshot;
+	}
+
+	void rotate() {
+		for (EndpointLatency endpoint : this.endpoints.values()) {
+			for (int status = 0; status < MAX_STATUS; status++) {
+				StatusLatency latency = endpoint.statuses.get(status);
+				if (latency != null) {
+					latency.rotate();
+				}
+			}
+		}
+	}
+
+	private static double toMillis(long micros) {
+		return micros / 1000.0;
+	}
+
+	class EndpointLatency {
+
+		final String name;
+
+		final AtomicReferenceArray<StatusLatency> statuses = new AtomicReferenceArray<StatusLatency>(MAX_STATUS);
+
+		EndpointLatency(String name) {
+			this.name = name;
+		}
+
+		Recorder recorder(int status) {
+			int index = status >= 0 && status < MAX_STATUS ? status : 0;
+			StatusLatency latency = this.statuses.get(index);
+			if (latency == null) {
+				this.statuses.compareAndSet(index, null, new StatusLatency());
+				latency = this.statuses.get(index);
+			}
+			return latency.recorder;
+		}
+	}
+
+	/*
+	 * The recorder of one endpoint and status and its ring of buckets, the ring is guarded by the StatusLatency itself,
+	 * it is only touched by the rotator and by snapshot
+	 */
+	class StatusLatency {
+
+		final Recorder recorder = new Recorder(highestTrackableMicros, significantDigits);
+
+		final Histogram[] ring = new Histogram[buckets];
+
+		int newest = -1;
+
+		/*
+		 * Takes the interval recorded since the last rotation into the ring, reusing the histogram of the bucket that falls out
+		 */
+		synchronized void rotate() {
+			int next = (this.newest + 1) % this.ring.length;
+			Histogram recycled = this.ring[next];
+			this.ring[next] = recycled == null ? this.recorder.getIntervalHistogram() : this.recorder.getIntervalHistogram(recycled);
+			this.newest = next;
+		}
+
+		synchronized Histogram window(int bucketCount) {
+			Histogram sum = new Histogram(highestTrackableMicros, significantDigits);
+			for (int i = 0, index = this.newest; i < Math.min(bucketCount, this.ring.length) && index >= 0; i++) {
+				if (this.ring[index] != null) {
+					sum.add(this.ring[index]);
+				}
+				index = index == 0 ? this.ring.length - 1 : index - 1;
+			}
+			return sum;
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package com.rollingstone.metrics;
+
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/*
+ * GET /actuator/latency on the management port, p50, p99, p99.9 and max in milliseconds per endpoint, status and window
+ */
+@Component
+@Endpoint(id = "latency")
+public class LatencyEndpoint {
+
+	private final EndpointLatencyRecorder latencyRecorder;
+
+	public LatencyEndpoint(EndpointLatencyRecorder latencyRecorder) {
+		this.latencyRecorder = latencyRecorder;
+	}
+
+	@ReadOperation
+	public Map<String, Map<String, Map<String, Map<String, Number>>>> latency() {
+		return this.latencyRecorder.snapshot();
+	}
+}
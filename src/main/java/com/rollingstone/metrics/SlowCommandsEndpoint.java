@@ -0,0 +1,27 @@
+package com.rollingstone.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/*
+ * GET /actuator/slowcommands on the management port, the slowest recent commands with the milliseconds they spent in every stage
+ */
+@Component
+@Endpoint(id = "slowcommands")
+public class SlowCommandsEndpoint {
+
+	private final CommandLatencyRecorder commandLatencyRecorder;
+
+	public SlowCommandsEndpoint(CommandLatencyRecorder commandLatencyRecorder) {
+		this.commandLatencyRecorder = commandLatencyRecorder;
+	}
+
+	@ReadOperation
+	public List<Map<String, Object>> slowCommands() {
+		return this.commandLatencyRecorder.slowest();
+	}
+}
@@ -0,0 +1,179 @@
+package com.rollingstone.readmodel;
+
+import java.util.Arrays;
+
+/*
+ * A map from long to long on two plain arrays, without boxing and without an object per entry.
+ *
+ * 1. Open addressing with linear probing, a key is placed at the first free slot from its hashed position on
+ * 2. Key 0 marks a free slot, so 0 cannot be put as a key, todo ids start at 1, looking up or removing 0 finds nothing
+ * 3. Removing shifts the following entries of the probe run back, so there are no tombstones and lookups stay short
+ * 4. The table doubles when it is more than MAX_LOAD full, the capacity is always a power of two
+ * 5. Not thread safe, callers guard it with their own lock
+ */
+public class LongLongHashMap {
+
+	private static final double MAX_LOAD = 0.6;
+
+	private long[] keys;
+
+	private long[] values;
+
+	private int mask;
+
+	private int size;
+
+	private int resizeAt;
+
+	public LongLongHashMap(int expectedSize) {
+		int capacity = Integer.highestOneBit(Math.max(16, (int) Math.min(1 << 30, (long) (expectedSize / MAX_LOAD) + 1)) - 1) << 1;
+		allocate(capacity);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean containsKey(long key) {
+		return key != 0 && this.keys[indexOf(key)] == key;
+	}
+
+	/*
+	 * Returns the value of the key, or missingValue when the key is not in the map
+	 */
+	public long get(long key, long missingValue) {
+		if (key == 0) {
+			return missingValue;
+		}
+		int index = indexOf(key);
+		return this.keys[index] == key ? this.values[index] : missingValue;
+	}
+
+	/*
+	 * Returns the previous value of the key, or missingValue when the key was not in the map
+	 */
+	public long put(long key, long value, long missingValue) {
+		checkKey(key);
+		int index = indexOf(key);
+		if (this.keys[index] == key) {
+			long previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+		this.keys[index] = key;
+		this.values[index] = value;
+		if (++this.size > this.resizeAt) {
+			resize(this.keys.length << 1);
+		}
+		return missingValue;
+	}
+
+	/*
+	 * Returns the removed value, or missingValue when the key was not in the map
+	 */
+	public long remove(long key, long missingValue) {
+		if (key == 0) {
+			return missingValue;
+		}
+		int index = indexOf(key);
+		if (this.keys[index] != key) {
+			return missingValue;
+		}
+		long removed = this.values[index];
+		this.size--;
+
+		int free = index;
+		int next = (free + 1) & this.mask;
+		while (this.keys[next] != 0) {
+			int home = slot(this.keys[next]);
+			/*
+			 * The entry at next may move into the free slot only if its home slot is not between the free slot and next
+			 */
+			if (((next - home) & this.mask) >= ((next - free) & this.mask)) {
+				this.keys[free] = this.keys[next];
+				this.values[free] = this.values[next];
+				free = next;
+			}
+			next = (next + 1) & this.mask;
+		}
+		this.keys[free] = 0;
+		this.values[free] = 0;
+		return removed;
+	}
+
+	public void clear() {
+		Arrays.fill(this.keys, 0);
+		Arrays.fill(this.values, 0);
+		this.size = 0;
+	}
+
+	public void forEach(LongLongConsumer consumer) {
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != 0) {
+				consumer.accept(this.keys[i], this.values[i]);
+			}
+		}
+	}
+
+	/*
+	 * Changes the value of every entry in place, the keys stay where they are
+	 */
+	public void replaceAll(LongLongOperator operator) {
+		for (int i = 0; i < this.keys.length; i++) {
+			if (this.keys[i] != 0) {
+				this.values[i] = operator.apply(this.keys[i], this.values[i]);
+			}
+		}
+	}
+
+	private int indexOf(long key) {
+		int index = slot(key);
+		while (this.keys[index] != 0 && this.keys[index] != key) {
+			index = (index + 1) & this.mask;
+		}
+		return index;
+	}
+
+	private int slot(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32)) & this.mask;
+	}
+
+	private void resize(int capacity) {
+		long[] oldKeys = this.keys;
+		long[] oldValues = this.values;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != 0) {
+				int index = indexOf(oldKeys[i]);
+				this.keys[index] = oldKeys[i];
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		this.keys = new long[capacity];
+		this.values = new long[capacity];
+		this.mask = capacity - 1;
+		this.resizeAt = (int) (capacity * MAX_LOAD);
+	}
+
+	private static void checkKey(long key) {
+		if (key == 0) {
+			throw new IllegalArgumentException("0 cannot be used as a key");
+		}
+	}
+
+	@FunctionalInterface
+	public interface LongLongConsumer {
+
+		void accept(long key, long value);
+	}
+
+	@FunctionalInterface
+	public interface LongLongOperator {
+
+		long apply(long key, long value);
+	}
+}
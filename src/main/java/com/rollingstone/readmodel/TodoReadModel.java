@@ -0,0 +1,496 @@
+package com.rollingstone.readmodel;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.consumer.TodoCommandConsumer;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoVersion;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * The query side of the service: every todo held in memory, switched on with todo.read-model.enabled=true
+ * together with command.consumer.enabled=true.
+ *
+ * 1. The todos are kept as UTF-8 bytes in large shared chunks, an id is mapped to the position of its record by a LongLongHashMap,
+ *    so a todo costs its bytes plus two longs in the map instead of an entity, two Strings and a boxed Long
+ * 2. A record is [version][length of short description + 1][short description][length of long description + 1][long description],
+ *    the version and the lengths are variable length integers and a length of 0 stands for a null description
+ * 3. An update appends a new record and points the id at it, the old record becomes garbage, when more than half of the chunks
+ *    is garbage the live records are copied into fresh chunks
+ * 4. The ids are also kept in a sorted array for paging, a deleted id stays in the array until it is compacted and is skipped meanwhile
+ * 5. The model follows the commands the consumer applies, see onTodoEvent, so without the consumer in the same service it would go stale
+ *    and it is not created at all, it is filled from the database when the service starts
+ * 6. Until that first fill is done isReady() is false and TodoService keeps reading from the database
+ */
+@Component
+@ConditionalOnExpression("${todo.read-model.enabled:false} and ${command.consumer.enabled:false}")
+@DependsOn("todoIdBlockSeeder")
+public class TodoReadModel {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoReadModel.class);
+
+	private static final int CHUNK_BITS = 20;
+
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	private static final long MISSING = -1;
+
+	private static final int REBUILD_BATCH = 10000;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final int rebuildThreads;
+
+	private final StampedLock lock = new StampedLock();
+
+	private final LongLongHashMap positions = new LongLongHashMap(1 << 16);
+
+	private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+	private int chunkFill;
+
+	private long usedBytes;
+
+	private long liveBytes;
+
+	private long[] sortedIds = new long[1024];
+
+	private int sortedCount;
+
+	/*
+	 * Ids deleted while the model is being filled, the fill must not bring them back from its older view of the table
+	 */
+	private LongLongHashMap deletedDuringRebuild = new LongLongHashMap(16);
+
+	private volatile boolean ready;
+
+	private Thread rebuilder;
+
+	public TodoReadModel(JdbcTemplate jdbcTemplate, @Value("${todo.read-model.rebuild-threads:0}") int rebuildThreads) {
+		this.jdbcTemplate = jdbcTemplate;
+		this.rebuildThreads = rebuildThreads > 0 ? rebuildThreads : Runtime.getRuntime().availableProcessors();
+		Metrics.gauge("com.rollingstone.todo.read-model.size", this, TodoReadModel::size);
+		Metrics.gauge("com.rollingstone.todo.read-model.bytes", this, TodoReadModel::usedBytes);
+	}
+
+	@PostConstruct
+	public void start() {
+		this.rebuilder = new Thread(this::rebuild, "todo-read-model-rebuild");
+		this.rebuilder.setDaemon(true);
+		this.rebuilder.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		this.rebuilder.interrupt();
+	}
+
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	public int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.positions.size();
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * The bytes taken in the chunks by live and garbage records, read without the lock, so only an estimate while the model changes
+	 */
+	long usedBytes() {
+		return this.usedBytes;
+	}
+
+	public Todo get(long id) {
+		long stamp = this.lock.readLock();
+		try {
+			long position = this.positions.get(id, MISSING);
+			return position == MISSING ? null : read(id, position);
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * The version of the todo, -1 if there is no such todo
+	 */
+	public long getVersion(long id) {
+		long stamp = this.lock.readLock();
+		try {
+			long position = this.positions.get(id, MISSING);
+			if (position == MISSING) {
+				return MISSING;
+			}
+			return readVarLong(this.chunks.get((int) (position >>> 32)), new int[] { (int) position });
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * The ids and versions of up to size todos with an id greater than afterId, in id order, without decoding the descriptions
+	 */
+	public List<TodoVersion> getVersionsAfter(long afterId, int size) {
+		List<TodoVersion> versions = new ArrayList<TodoVersion>(size);
+		long stamp = this.lock.readLock();
+		try {
+			int index = Arrays.binarySearch(this.sortedIds, 0, this.sortedCount, afterId);
+			index = index >= 0 ? index + 1 : -index - 1;
+			for (; index < this.sortedCount && versions.size() < size; index++) {
+				long id = this.sortedIds[index];
+				long position = this.positions.get(id, MISSING);
+				if (position != MISSING) {
+					versions.add(new TodoVersion(id, readVarLong(this.chunks.get((int) (position >>> 32)), new int[] { (int) position })));
+				}
+			}
+			return versions;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * Up to size todos with an id greater than afterId, in id order
+	 */
+	public List<Todo> getAfter(long afterId, int size) {
+		List<Todo> todos = new ArrayList<Todo>(size);
+		long stamp = this.lock.readLock();
+		try {
+			int index = Arrays.binarySearch(this.sortedIds, 0, this.sortedCount, afterId);
+			index = index >= 0 ? index + 1 : -index - 1;
+			for (; index < this.sortedCount && todos.size() < size; index++) {
+				long id = this.sortedIds[index];
+				long position = this.positions.get(id, MISSING);
+				if (position != MISSING) {
+					todos.add(read(id, position));
+				}
+			}
+			return todos;
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public void put(Todo todo) {
+		long stamp = this.lock.writeLock();
+		try {
+			store(todo, true);
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void remove(long id) {
+		long stamp = this.lock.writeLock();
+		try {
+			long position = this.positions.remove(id, MISSING);
+			if (position != MISSING) {
+				this.liveBytes -= recordLength(position);
+			}
+			if (!this.ready) {
+				this.deletedDuringRebuild.put(id, 1, MISSING);
+			}
+			compactIfNeeded();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * Follows the commands the consumer has committed, the events of the controller are left alone because their commands are not applied yet
+	 */
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		Todo todo = todoServiceEvent.getEventTodo();
+		if (todo == null || todo.getId() == 0 || todoServiceEvent.getEventType() == null) {
+			return;
+		}
+		switch (todoServiceEvent.getEventType()) {
+		case TodoCommandConsumer.TODO_CREATE_APPLIED:
+		case TodoCommandConsumer.TODO_UPDATE_APPLIED:
+			put(todo);
+			break;
+		case TodoCommandConsumer.TODO_DELETE_APPLIED:
+			remove(todo.getId());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * 1. The id range of the table is cut into one slice per rebuild thread and the slices are read in parallel
+	 * 2. Every thread reads its slice in batches of REBUILD_BATCH ids and stores each batch under the write lock
+	 * 3. Todos the command stream has already put or removed meanwhile are newer than the database rows and are kept as they are
+	 */
+	void rebuild() {
+		long started = System.nanoTime();
+		try {
+			Long minId = this.jdbcTemplate.queryForObject("select min(id) from rollingstone_aws_sqs_demo_todo", Long.class);
+			Long maxId = this.jdbcTemplate.queryForObject("select max(id) from rollingstone_aws_sqs_demo_todo", Long.class);
+			if (minId != null) {
+				long span = (maxId - minId) / this.rebuildThreads + 1;
+				ExecutorService executor = Executors.newFixedThreadPool(this.rebuildThreads);
+				try {
+					List<Future<?>> slices = new ArrayList<Future<?>>();
+					for (long from = minId; from <= maxId; from += span) {
+						long sliceFrom = from;
+						long sliceTo = Math.min(maxId, from + span - 1);
+						slices.add(executor.submit(() -> loadSlice(sliceFrom, sliceTo)));
+					}
+					for (Future<?> slice : slices) {
+						slice.get();
+					}
+				}
+				finally {
+					executor.shutdownNow();
+				}
+			}
+			long stamp = this.lock.writeLock();
+			try {
+				this.ready = true;
+				this.deletedDuringRebuild = new LongLongHashMap(16);
+			}
+			finally {
+				this.lock.unlockWrite(stamp);
+			}
+			log.info("Todo read model filled with " + size() + " todos in " + (System.nanoTime() - started) / 1000000 + " ms");
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (Exception e) {
+			log.error("Filling the todo read model failed, todos are read from the database", e);
+		}
+	}
+
+	private void loadSlice(long fromId, long toId) {
+		for (long from = fromId; from <= toId && !Thread.currentThread().isInterrupted(); from += REBUILD_BATCH) {
+			List<Todo> batch = this.jdbcTemplate.query(
+					"select id, short_description, long_description, version from rollingstone_aws_sqs_demo_todo where id >= ? and id <= ?",
+					(rs, row) -> {
+						Todo todo = new Todo(rs.getLong(1), rs.getString(2), rs.getString(3));
+						todo.setVersion(rs.getLong(4));
+						return todo;
+					}, from, Math.min(toId, from + REBUILD_BATCH - 1));
+			long stamp = this.lock.writeLock();
+			try {
+				for (Todo todo : batch) {
+					if (!this.positions.containsKey(todo.getId()) && !this.deletedDuringRebuild.containsKey(todo.getId())) {
+						store(todo, false);
+					}
+				}
+			}
+			finally {
+				this.lock.unlockWrite(stamp);
+			}
+		}
+	}
+
+	/*
+	 * Must hold the write lock
+	 */
+	private void store(Todo todo, boolean compact) {
+		byte[] shortDescription = todo.getShortDescription() == null ? null : todo.getShortDescription().getBytes(StandardCharsets.UTF_8);
+		byte[] longDescription = todo.getLongDescription() == null ? null : todo.getLongDescription().getBytes(StandardCharsets.UTF_8);
+		int length = varLongLength(todo.getVersion()) + fieldLength(shortDescription) + fieldLength(longDescription);
+
+		long position = allocate(length);
+		byte[] chunk = this.chunks.get((int) (position >>> 32));
+		int offset = writeVarLong(chunk, (int) position, todo.getVersion());
+		offset = writeField(chunk, offset, shortDescription);
+		writeField(chunk, offset, longDescription);
+
+		long previous = this.positions.put(todo.getId(), position, MISSING);
+		if (previous == MISSING) {
+			addSortedId(todo.getId());
+		}
+		else {
+			this.liveBytes -= recordLength(previous);
+		}
+		this.liveBytes += length;
+		if (compact) {
+			compactIfNeeded();
+		}
+	}
+
+	/*
+	 * A position is the chunk index in the upper and the offset in the lower 32 bits, a record never spans two chunks,
+	 * a record larger than a chunk gets a chunk of its own
+	 */
+	private long allocate(int length) {
+		if (this.chunks.isEmpty() || this.chunkFill + length > this.chunks.get(this.chunks.size() - 1).length) {
+			this.chunks.add(new byte[Math.max(CHUNK_SIZE, length)]);
+			this.chunkFill = 0;
+		}
+		long position = ((long) (this.chunks.size() - 1) << 32) | this.chunkFill;
+		this.chunkFill += length;
+		this.usedBytes += length;
+		return position;
+	}
+
+	private Todo read(long id, long position) {
+		byte[] chunk = this.chunks.get((int) (position >>> 32));
+		int[] offset = { (int) position };
+		long version = readVarLong(chunk, offset);
+		String shortDescription = readField(chunk, offset);
+		String longDescription = readField(chunk, offset);
+		Todo todo = new Todo(id, shortDescription, longDescription);
+		todo.setVersion(version);
+		return todo;
+	}
+
+	private int recordLength(long position) {
+		return recordLength(this.chunks.get((int) (position >>> 32)), (int) position);
+	}
+
+	private static int recordLength(byte[] chunk, int position) {
+		int[] offset = { position };
+		readVarLong(chunk, offset);
+		skipField(chunk, offset);
+		skipField(chunk, offset);
+		return offset[0] - position;
+	}
+
+	private void addSortedId(long id) {
+		if (this.sortedCount == this.sortedIds.length) {
+			this.sortedIds = Arrays.copyOf(this.sortedIds, this.sortedIds.length << 1);
+		}
+		/*
+		 * Ids are handed out in increasing blocks, so almost every new id goes to the end
+		 */
+		if (this.sortedCount == 0 || this.sortedIds[this.sortedCount - 1] < id) {
+			this.sortedIds[this.sortedCount++] = id;
+			return;
+		}
+		int index = Arrays.binarySearch(this.sortedIds, 0, this.sortedCount, id);
+		if (index >= 0) {
+			return;
+		}
+		index = -index - 1;
+		System.arraycopy(this.sortedIds, index, this.sortedIds, index + 1, this.sortedCount - index);
+		this.sortedIds[index] = id;
+		this.sortedCount++;
+	}
+
+	/*
+	 * Must hold the write lock
+	 */
+	private void compactIfNeeded() {
+		if (this.sortedCount > 1024 && this.sortedCount > 2 * this.positions.size()) {
+			int live = 0;
+			for (int i = 0; i < this.sortedCount; i++) {
+				if (this.positions.containsKey(this.sortedIds[i])) {
+					this.sortedIds[live++] = this.sortedIds[i];
+				}
+			}
+			this.sortedCount = live;
+		}
+		if (this.usedBytes > CHUNK_SIZE && this.usedBytes > 2 * this.liveBytes) {
+			List<byte[]> oldChunks = new ArrayList<byte[]>(this.chunks);
+			this.chunks.clear();
+			this.usedBytes = 0;
+			this.positions.replaceAll((id, position) -> {
+				byte[] oldChunk = oldChunks.get((int) (position >>> 32));
+				int length = recordLength(oldChunk, (int) position);
+				long moved = allocate(length);
+				System.arraycopy(oldChunk, (int) position, this.chunks.get((int) (moved >>> 32)), (int) moved, length);
+				return moved;
+			});
+			this.liveBytes = this.usedBytes;
+		}
+	}
+
+	private static int fieldLength(byte[] field) {
+		int length = field == null ? 0 : field.length;
+		return varLongLength(length + (field == null ? 0 : 1)) + length;
+	}
+
+	private static int varLongLength(long value) {
+		int length = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			length++;
+		}
+		return length;
+	}
+
+	private static int writeVarLong(byte[] chunk, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			chunk[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		chunk[offset++] = (byte) value;
+		return offset;
+	}
+
+	private static int writeField(byte[] chunk, int offset, byte[] field) {
+		offset = writeVarLong(chunk, offset, field == null ? 0 : field.length + 1);
+		if (field != null) {
+			System.arraycopy(field, 0, chunk, offset, field.length);
+			offset += field.length;
+		}
+		return offset;
+	}
+
+	private static long readVarLong(byte[] chunk, int[] offset) {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = chunk[offset[0]++];
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static String readField(byte[] chunk, int[] offset) {
+		int length = (int) readVarLong(chunk, offset);
+		if (length == 0) {
+			return null;
+		}
+		String field = new String(chunk, offset[0], length - 1, StandardCharsets.UTF_8);
+		offset[0] += length - 1;
+		return field;
+	}
+
+	private static void skipField(byte[] chunk, int[] offset) {
+		int length = (int) readVarLong(chunk, offset);
+		if (length > 0) {
+			offset[0] += length - 1;
+		}
+	}
+}
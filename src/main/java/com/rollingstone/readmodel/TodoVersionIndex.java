@@ -0,0 +1,93 @@
+package com.rollingstone.readmodel;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rollingstone.consumer.TodoCommandConsumer;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * The last known version of a todo by id, so a conditional request can be answered without loading the todo.
+ *
+ * 1. The versions are kept in a Caffeine cache, an entry is trusted for todo.version-index.ttl-seconds after it was written
+ * 2. The versions of the commands the consumer applies are authoritative and are stored as they come
+ * 3. The controller's TodoUpdated and TodoDeleted events drop the entry, the command is on its way and the version will change
+ * 4. When the consumer runs elsewhere the index cannot see the new version, the ttl is what bounds how long a stale version answers
+ * 5. At most todo.version-index.max-entries ids are indexed, beyond that Caffeine evicts single entries, the ones read least go first
+ */
+@Component
+public class TodoVersionIndex {
+
+	private static final long MISSING = -1;
+
+	private final Cache<Long, Long> versions;
+
+	Counter hitCounter = Metrics.counter("com.rollingstone.todo.version-index.hit");
+
+	Counter missCounter = Metrics.counter("com.rollingstone.todo.version-index.miss");
+
+	public TodoVersionIndex(@Value("${todo.version-index.ttl-seconds:10}") long ttlSeconds,
+			@Value("${todo.version-index.max-entries:1000000}") int maxEntries) {
+		this.versions = Caffeine.newBuilder()
+				.maximumSize(maxEntries)
+				.expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+				.build();
+	}
+
+	/*
+	 * The version of the todo, -1 if the index does not know it or no longer trusts it
+	 */
+	public long get(long id) {
+		Long version = this.versions.getIfPresent(id);
+		if (version != null) {
+			hitCounter.increment();
+			return version;
+		}
+		missCounter.increment();
+		return MISSING;
+	}
+
+	public void put(long id, long version) {
+		if (id == 0) {
+			return;
+		}
+		this.versions.put(id, version);
+	}
+
+	public void remove(long id) {
+		if (id == 0) {
+			return;
+		}
+		this.versions.invalidate(id);
+	}
+
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		Todo todo = todoServiceEvent.getEventTodo();
+		if (todo == null || todo.getId() == 0 || todoServiceEvent.getEventType() == null) {
+			return;
+		}
+		switch (todoServiceEvent.getEventType()) {
+		case TodoCommandConsumer.TODO_CREATE_APPLIED:
+		case TodoCommandConsumer.TODO_UPDATE_APPLIED:
+			put(todo.getId(), todo.getVersion());
+			break;
+		case TodoCommandConsumer.TODO_DELETE_APPLIED:
+		case "TodoUpdated":
+		case "TodoDeleted":
+			remove(todo.getId());
+			break;
+		default:
+			break;
+		}
+	}
+}
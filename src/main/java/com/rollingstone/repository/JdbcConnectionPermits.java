@@ -0,0 +1,162 @@
+package com.rollingstone.repository;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+import org.springframework.stereotype.Component;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * With virtual threads on, the requests are no longer bounded by a pool of threads, so the connections are bounded here instead.
+ *
+ * 1. Every DataSource is wrapped, a connection is only taken from it with one of jdbc.permits.max permits,
+ *    0 means as many permits as the Hikari pool has connections
+ * 2. The permit is held until the connection is closed, that is given back to the pool
+ * 3. Threads waiting for a permit wait in the order they came, a thread that gets none within jdbc.permits.wait-ms
+ *    gets a SQLTransientConnectionException like the one Hikari throws when its pool stays empty
+ * 4. A virtual thread waiting on the semaphore gives its carrier thread back, one waiting inside the pool or inside a JDBC driver
+ *    that synchronizes may not, so at most as many carriers as there are permits are ever held by JDBC
+ */
+@Component
+@ConditionalOnProperty(name = "threads.virtual.enabled", havingValue = "true")
+public class JdbcConnectionPermits implements BeanPostProcessor {
+
+	private static final Logger log = LoggerFactory.getLogger(JdbcConnectionPermits.class);
+
+	private static final int DEFAULT_POOL_SIZE = 10;
+
+	private final int maxPermits;
+
+	private final long waitMillis;
+
+	public JdbcConnectionPermits(@Value("${jdbc.permits.max:0}") int maxPermits,
+			@Value("${jdbc.permits.wait-ms:30000}") long waitMillis) {
+		this.maxPermits = maxPermits;
+		this.waitMillis = waitMillis;
+	}
+
+	@Override
+	public Object postProcessAfterInitialization(Object bean, String beanName) {
+		if (!(bean instanceof DataSource) || bean instanceof PermitDataSource) {
+			return bean;
+		}
+		int permits = this.maxPermits > 0 ? this.maxPermits
+				: bean instanceof HikariDataSource ? ((HikariDataSource) bean).getMaximumPoolSize() : DEFAULT_POOL_SIZE;
+		log.info("Connections of " + beanName + " are limited to " + permits + " at a time");
+		return new PermitDataSource((DataSource) bean, beanName, permits, this.waitMillis);
+	}
+
+	static class PermitDataSource extends DelegatingDataSource {
+
+		private final Semaphore permits;
+
+		private final long waitMillis;
+
+		private final Timer waitTimer;
+
+		PermitDataSource(DataSource dataSource, String name, int permits, long waitMillis) {
+			super(dataSource);
+			this.permits = new Semaphore(permits, true);
+			this.waitMillis = waitMillis;
+			this.waitTimer = Metrics.timer("com.rollingstone.jdbc.permits.wait", "dataSource", name);
+			Metrics.gauge("com.rollingstone.jdbc.permits.waiting", this.permits, Semaphore::getQueueLength);
+		}
+
+		@Override
+		public Connection getConnection() throws SQLException {
+			acquire();
+			try {
+				return permitted(obtainTargetDataSource().getConnection());
+			}
+			catch (SQLException | RuntimeException e) {
+				this.permits.release();
+				throw e;
+			}
+		}
+
+		@Override
+		public Connection getConnection(String username, String password) throws SQLException {
+			acquire();
+			try {
+				return permitted(obtainTargetDataSource().getConnection(username, password));
+			}
+			catch (SQLException | RuntimeException e) {
+				this.permits.release();
+				throw e;
+			}
+		}
+
+		private void acquire() throws SQLException {
+			long started = System.nanoTime();
+			try {
+				if (!this.permits.tryAcquire(this.waitMillis, TimeUnit.MILLISECONDS)) {
+					throw new SQLTransientConnectionException("No connection permit within " + this.waitMillis + " ms, "
+							+ this.permits.getQueueLength() + " threads are waiting for one");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLTransientConnectionException("Interrupted while waiting for a connection permit", e);
+			}
+			finally {
+				this.waitTimer.record(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+			}
+		}
+
+		/*
+		 * The connection gives its permit back the first time it is closed, it behaves like the pool's connection otherwise
+		 */
+		private Connection permitted(Connection connection) {
+			AtomicBoolean released = new AtomicBoolean();
+			InvocationHandler handler = (proxy, method, args) -> {
+				switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "close":
+					try {
+						return invoke(connection, method, args);
+					}
+					finally {
+						if (released.compareAndSet(false, true)) {
+							this.permits.release();
+						}
+					}
+				default:
+					return invoke(connection, method, args);
+				}
+			};
+			return (Connection) Proxy.newProxyInstance(PermitDataSource.class.getClassLoader(), new Class<?>[] { Connection.class }, handler);
+		}
+
+		private static Object invoke(Connection connection, Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(connection, args);
+			}
+			catch (InvocationTargetException e) {
+				throw e.getTargetException();
+			}
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.rollingstone.repository;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.domain.Todo;
+
+/*
+ * Todo ids used to come from an IDENTITY column, now they come in blocks from Todo.ID_BLOCK_TABLE.
+ *
+ * 1. Before anything is inserted the id block row is moved past the highest id that is already in the todo table
+ * 2. Hibernate's pooled optimizer hands out the ids up to next_val, so the row is set to at least max(id) + ID_BLOCK_SIZE + 1
+ * 3. The row is only ever moved up, a node starting later never hands out ids that another node already took
+ * 4. The EntityManagerFactory is taken in the constructor only so that the schema exists before this runs
+ */
+@Component("todoIdBlockSeeder")
+public class TodoIdBlockSeeder {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoIdBlockSeeder.class);
+
+	private final JdbcTemplate jdbcTemplate;
+
+	public TodoIdBlockSeeder(JdbcTemplate jdbcTemplate, EntityManagerFactory entityManagerFactory) {
+		this.jdbcTemplate = jdbcTemplate;
+	}
+
+	@PostConstruct
+	public void seed() {
+		Long maxId = this.jdbcTemplate.queryForObject("select max(id) from rollingstone_aws_sqs_demo_todo", Long.class);
+		long floor = (maxId == null ? 0 : maxId) + Todo.ID_BLOCK_SIZE + 1;
+
+		List<Long> nextVal = this.jdbcTemplate.queryForList("select next_val from " + Todo.ID_BLOCK_TABLE + " where sequence_name = ?",
+				Long.class, Todo.ID_BLOCK_NAME);
+		if (nextVal.isEmpty()) {
+			try {
+				this.jdbcTemplate.update("insert into " + Todo.ID_BLOCK_TABLE + " (sequence_name, next_val) values (?, ?)", Todo.ID_BLOCK_NAME, floor);
+				log.info("Todo id blocks start at " + floor);
+				return;
+			}
+			catch (DuplicateKeyException e) {
+				/*
+				 * Another node created the row in the meantime, it only has to be moved up like an existing one
+				 */
+			}
+		}
+		if (this.jdbcTemplate.update("update " + Todo.ID_BLOCK_TABLE + " set next_val = ? where sequence_name = ? and next_val < ?",
+				floor, Todo.ID_BLOCK_NAME, floor) > 0) {
+			log.info("Todo id blocks moved up to " + floor);
+		}
+	}
+}
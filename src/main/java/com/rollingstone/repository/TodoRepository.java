@@ -1,9 +1,52 @@
 package com.rollingstone.repository;
 
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.hibernate.jpa.QueryHints;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.PagingAndSortingRepository;
+import org.springframework.data.repository.query.Param;
 
 import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoVersion;
 
 public interface TodoRepository extends PagingAndSortingRepository<Todo, Long>{
 
+	String EXPORT_FETCH_SIZE = "1000";
+
+	/*
+	 * Keyset page: the todos after the given id, the pageable only carries the size and the sort by id,
+	 * the database seeks straight to the id on the primary key index however deep the page is
+	 */
+	Slice<Todo> findByIdGreaterThan(long id, Pageable pageable);
+
+	/*
+	 * Only the version column, for answering conditional requests without loading the todo
+	 */
+	@Query("select t.version from Todo t where t.id = :id")
+	Optional<Long> findVersionById(@Param("id") long id);
+
+	/*
+	 * The ids and versions of the same keyset page findByIdGreaterThan returns, for the ETag of a page
+	 */
+	@Query("select new com.rollingstone.domain.TodoVersion(t.id, t.version) from Todo t where t.id > :afterId order by t.id")
+	Slice<TodoVersion> findVersionsByIdGreaterThan(@Param("afterId") long afterId, Pageable pageable);
+
+	/*
+	 * 1. All todos in id order as a forward only cursor, must be consumed inside a transaction and closed afterwards
+	 * 2. The driver fetches EXPORT_FETCH_SIZE rows at a time, on MySQL that needs useCursorFetch=true on the jdbc url
+	 * 3. The todos are loaded read only, so Hibernate keeps no snapshot of them for dirty checking
+	 */
+	@Query("select t from Todo t order by t.id")
+	@org.springframework.data.jpa.repository.QueryHints({
+			@QueryHint(name = QueryHints.HINT_FETCH_SIZE, value = EXPORT_FETCH_SIZE),
+			@QueryHint(name = QueryHints.HINT_READONLY, value = "true"),
+			@QueryHint(name = QueryHints.HINT_CACHEABLE, value = "false") })
+	Stream<Todo> streamAllInIdOrder();
+
 }
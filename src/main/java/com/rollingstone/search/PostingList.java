@@ -0,0 +1,195 @@
+package com.rollingstone.search;
+
+import java.util.Arrays;
+
+import com.rollingstone.readmodel.LongLongHashMap;
+
+/*
+ * The todos that contain one term.
+ *
+ * 1. An entry is [id - id of the previous entry][weight][generation], all variable length integers, in id order,
+ *    so an entry of a dense list is three or four bytes
+ * 2. The generation is the one the todo had when it was indexed, an entry whose generation is no longer the current
+ *    generation of the todo is stale, it is skipped when the list is read and dropped when the list is merged
+ * 3. New ids are almost always the highest ones and are appended to the encoded entries, an entry for a lower id goes
+ *    to a small unencoded tail first, the tail is merged into the encoded entries once it grows past an eighth of the list
+ * 4. Not thread safe, TodoSearchIndex guards every list with its lock
+ */
+class PostingList {
+
+	interface PostingConsumer {
+		void accept(long id, int weight);
+	}
+
+	private static final int MIN_TAIL = 32;
+
+	private byte[] data = new byte[16];
+
+	private int length;
+
+	private int count;
+
+	private long lastId;
+
+	private long[] tailIds = new long[0];
+
+	private long[] tailGenerations = new long[0];
+
+	private int[] tailWeights = new int[0];
+
+	private int tailCount;
+
+	/*
+	 * Entries in the list, stale ones included until the list is merged
+	 */
+	int size() {
+		return this.count + this.tailCount;
+	}
+
+	void add(long id, int weight, long generation, LongLongHashMap generations) {
+		if (this.tailCount == 0 && id >= this.lastId) {
+			append(id, weight, generation);
+			return;
+		}
+		if (this.tailCount == this.tailIds.length) {
+			int capacity = Math.max(4, this.tailCount << 1);
+			this.tailIds = Arrays.copyOf(this.tailIds, capacity);
+			this.tailGenerations = Arrays.copyOf(this.tailGenerations, capacity);
+			this.tailWeights = Arrays.copyOf(this.tailWeights, capacity);
+		}
+		this.tailIds[this.tailCount] = id;
+		this.tailGenerations[this.tailCount] = generation;
+		this.tailWeights[this.tailCount] = weight;
+		this.tailCount++;
+		if (this.tailCount > Math.max(MIN_TAIL, this.count >> 3)) {
+			merge(generations);
+		}
+	}
+
+	/*
+	 * Hands every live entry to the consumer, the encoded entries in id order and then the tail
+	 */
+	void forEach(LongLongHashMap generations, PostingConsumer consumer) {
+		long id = 0;
+		int offset = 0;
+		while (offset < this.length) {
+			long value = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = this.data[offset++];
+				value |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			id += value;
+			int weight = 0;
+			shift = 0;
+			do {
+				b = this.data[offset++];
+				weight |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			long generation = 0;
+			shift = 0;
+			do {
+				b = this.data[offset++];
+				generation |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (generations.get(id, 0) == generation) {
+				consumer.accept(id, weight);
+			}
+		}
+		for (int i = 0; i < this.tailCount; i++) {
+			if (generations.get(this.tailIds[i], 0) == this.tailGenerations[i]) {
+				consumer.accept(this.tailIds[i], this.tailWeights[i]);
+			}
+		}
+	}
+
+	/*
+	 * Re-encodes the list with the tail sorted in and the stale entries left out, a todo has one live entry at most
+	 * since it is indexed once per generation
+	 */
+	void merge(LongLongHashMap generations) {
+		LongLongHashMap tail = new LongLongHashMap(Math.max(16, this.tailCount * 2));
+		for (int i = 0; i < this.tailCount; i++) {
+			if (generations.get(this.tailIds[i], 0) == this.tailGenerations[i]) {
+				tail.put(this.tailIds[i], this.tailWeights[i], -1);
+			}
+		}
+		long[] tailIds = new long[tail.size()];
+		int[] filled = { 0 };
+		tail.forEach((id, weight) -> tailIds[filled[0]++] = id);
+		Arrays.sort(tailIds);
+
+		byte[] oldData = this.data;
+		int oldLength = this.length;
+		this.data = new byte[Math.max(16, oldLength + tailIds.length * 4)];
+		this.length = 0;
+		this.count = 0;
+		this.lastId = 0;
+		this.tailCount = 0;
+
+		int next = 0;
+		long id = 0;
+		int offset = 0;
+		long[] entry = new long[3];
+		while (offset < oldLength) {
+			for (int field = 0; field < 3; field++) {
+				long value = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = oldData[offset++];
+					value |= (long) (b & 0x7F) << shift;
+					shift += 7;
+				} while ((b & 0x80) != 0);
+				entry[field] = value;
+			}
+			id += entry[0];
+			if (generations.get(id, 0) != entry[2]) {
+				continue;
+			}
+			for (; next < tailIds.length && tailIds[next] < id; next++) {
+				append(tailIds[next], (int) tail.get(tailIds[next], 0), generations.get(tailIds[next], 0));
+			}
+			append(id, (int) entry[1], entry[2]);
+		}
+		for (; next < tailIds.length; next++) {
+			append(tailIds[next], (int) tail.get(tailIds[next], 0), generations.get(tailIds[next], 0));
+		}
+		if (this.tailIds.length > MIN_TAIL) {
+			this.tailIds = new long[0];
+			this.tailGenerations = new long[0];
+			this.tailWeights = new int[0];
+		}
+		if (this.length < this.data.length >> 1) {
+			this.data = Arrays.copyOf(this.data, Math.max(16, this.length));
+		}
+	}
+
+	private void append(long id, int weight, long generation) {
+		ensureCapacity(30);
+		this.length = writeVarLong(this.data, this.length, id - this.lastId);
+		this.length = writeVarLong(this.data, this.length, weight);
+		this.length = writeVarLong(this.data, this.length, generation);
+		this.lastId = id;
+		this.count++;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (this.length + extra > this.data.length) {
+			this.data = Arrays.copyOf(this.data, Math.max(this.length + extra, this.data.length + (this.data.length >> 1)));
+		}
+	}
+
+	private static int writeVarLong(byte[] data, int offset, long value) {
+		while ((value & ~0x7FL) != 0) {
+			data[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		data[offset++] = (byte) value;
+		return offset;
+	}
+}
@@ -0,0 +1,502 @@
+package com.rollingstone.search;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.locks.StampedLock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.context.annotation.DependsOn;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import com.rollingstone.consumer.TodoCommandConsumer;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.readmodel.LongLongHashMap;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Metrics;
+
+/*
+ * An inverted index over the short and long descriptions of the todos, switched on with todo.search.enabled=true
+ * together with command.consumer.enabled=true.
+ *
+ * 1. The descriptions are cut into terms at every character that is neither a letter nor a digit, terms are lower cased
+ * 2. Every term has a PostingList of the todos containing it, the terms are kept sorted so a prefix query is a range of terms
+ * 3. An entry carries the weight of the term in the todo, SHORT_DESCRIPTION_WEIGHT for every occurrence in the short description
+ *    and 1 for every occurrence in the long description
+ * 4. Every time a todo is indexed it gets a new generation, the entries of its older generations become stale instead of being
+ *    looked up and removed, when more than half of all entries are stale every list is merged
+ * 5. A query is a list of words, a word ending with * is a prefix, a todo has to match every word, it scores the sum of
+ *    weight * idf over the words and the best size todos are kept in a heap
+ * 6. Like the read model the index follows the commands the consumer applies, see onTodoEvent, so it is not created without
+ *    the consumer in the same service, it is filled from the database when the service starts, until then isReady() is false
+ */
+@Component
+@ConditionalOnExpression("${todo.search.enabled:false} and ${command.consumer.enabled:false}")
+@DependsOn("todoIdBlockSeeder")
+public class TodoSearchIndex {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoSearchIndex.class);
+
+	static final int SHORT_DESCRIPTION_WEIGHT = 3;
+
+	private static final int MAX_WEIGHT = 255;
+
+	private static final int MAX_TERM_LENGTH = 64;
+
+	private static final int MAX_QUERY_WORDS = 8;
+
+	/*
+	 * A prefix matching more terms than this only looks at the terms with the most todos
+	 */
+	private static final int MAX_PREFIX_TERMS = 256;
+
+	private static final int REBUILD_BATCH = 10000;
+
+	private static final long NO_SCORE = Long.MIN_VALUE;
+
+	private final JdbcTemplate jdbcTemplate;
+
+	private final StampedLock lock = new StampedLock();
+
+	private final TreeMap<String, PostingList> terms = new TreeMap<String, PostingList>();
+
+	/*
+	 * The current generation of every indexed todo
+	 */
+	private final LongLongHashMap generations = new LongLongHashMap(1 << 16);
+
+	/*
+	 * The number of terms of every indexed todo, their sum is the number of live entries
+	 */
+	private final LongLongHashMap termCounts = new LongLongHashMap(1 << 16);
+
+	/*
+	 * The last generation of removed todos, an id indexed again continues from it so its stale entries stay stale,
+	 * forgotten once every list has been merged
+	 */
+	private final LongLongHashMap retiredGenerations = new LongLongHashMap(16);
+
+	private long entries;
+
+	private long liveEntries;
+
+	private LongLongHashMap deletedDuringRebuild = new LongLongHashMap(16);
+
+	private volatile boolean ready;
+
+	private Thread rebuilder;
+
+	public TodoSearchIndex(JdbcTemplate jdbcTemplate) {
+		this.jdbcTemplate = jdbcTemplate;
+		Metrics.gauge("com.rollingstone.todo.search.terms", this, TodoSearchIndex::termCount);
+		Metrics.gauge("com.rollingstone.todo.search.entries", this, index -> index.entries);
+	}
+
+	@PostConstruct
+	public void start() {
+		this.rebuilder = new Thread(this::rebuild, "todo-search-index-rebuild");
+		this.rebuilder.setDaemon(true);
+		this.rebuilder.start();
+	}
+
+	@PreDestroy
+	public void stop() {
+		this.rebuilder.interrupt();
+	}
+
+	public boolean isReady() {
+		return this.ready;
+	}
+
+	public int size() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.generations.size();
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public int termCount() {
+		long stamp = this.lock.readLock();
+		try {
+			return this.terms.size();
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/*
+	 * The ids of the size best matching todos, best first, todos with the same score in id order
+	 */
+	public List<Long> search(String query, int size) {
+		List<String> words = new ArrayList<String>();
+		List<Boolean> prefixes = new ArrayList<Boolean>();
+		for (String word : query.trim().split("\\s+")) {
+			boolean prefix = word.endsWith("*");
+			List<String> tokens = tokenize(prefix ? word.substring(0, word.length() - 1) : word);
+			for (int i = 0; i < tokens.size() && words.size() < MAX_QUERY_WORDS; i++) {
+				words.add(tokens.get(i));
+				prefixes.add(prefix && i == tokens.size() - 1);
+			}
+		}
+		if (words.isEmpty() || size < 1) {
+			return Collections.emptyList();
+		}
+
+		long stamp = this.lock.readLock();
+		try {
+			/*
+			 * The word with the fewest entries goes first, every following word only scores the todos still in the running
+			 */
+			List<List<PostingList>> clauses = new ArrayList<List<PostingList>>(words.size());
+			for (int i = 0; i < words.size(); i++) {
+				List<PostingList> lists = prefixes.get(i) ? prefixLists(words.get(i)) : termList(words.get(i));
+				if (lists.isEmpty()) {
+					return Collections.emptyList();
+				}
+				clauses.add(lists);
+			}
+			clauses.sort((a, b) -> Long.compare(entryCount(a), entryCount(b)));
+
+			LongLongHashMap scores = null;
+			for (List<PostingList> clause : clauses) {
+				scores = score(clause, scores);
+				if (scores.size() == 0) {
+					return Collections.emptyList();
+				}
+			}
+			return topK(scores, size);
+		}
+		finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public void put(Todo todo) {
+		Map<String, Integer> weights = termWeights(todo);
+		long stamp = this.lock.writeLock();
+		try {
+			index(todo.getId(), weights);
+			mergeIfNeeded();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	public void remove(long id) {
+		long stamp = this.lock.writeLock();
+		try {
+			long generation = this.generations.remove(id, 0);
+			if (generation != 0) {
+				this.retiredGenerations.put(id, generation, 0);
+				this.liveEntries -= this.termCounts.remove(id, 0);
+			}
+			if (!this.ready) {
+				this.deletedDuringRebuild.put(id, 1, 0);
+			}
+			mergeIfNeeded();
+		}
+		finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/*
+	 * Follows the commands the consumer has committed, the events of the controller are left alone because their commands are not applied yet
+	 */
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		Todo todo = todoServiceEvent.getEventTodo();
+		if (todo == null || todo.getId() == 0 || todoServiceEvent.getEventType() == null) {
+			return;
+		}
+		switch (todoServiceEvent.getEventType()) {
+		case TodoCommandConsumer.TODO_CREATE_APPLIED:
+		case TodoCommandConsumer.TODO_UPDATE_APPLIED:
+			put(todo);
+			break;
+		case TodoCommandConsumer.TODO_DELETE_APPLIED:
+			remove(todo.getId());
+			break;
+		default:
+			break;
+		}
+	}
+
+	/*
+	 * 1. The table is read in id order in batches of REBUILD_BATCH todos, each batch is tokenized outside the lock
+	 * 2. Todos the command stream has already put or removed meanwhile are newer than the database rows and are kept as they are
+	 */
+	void rebuild() {
+		long started = System.nanoTime();
+		try {
+			long afterId = 0;
+			while (!Thread.currentThread().isInterrupted()) {
+				List<Todo> batch = this.jdbcTemplate.query(
+						"select id, short_description, long_description from rollingstone_aws_sqs_demo_todo where id > ? order by id limit ?",
+						(rs, row) -> new Todo(rs.getLong(1), rs.getString(2), rs.getString(3)), afterId, REBUILD_BATCH);
+				if (batch.isEmpty()) {
+					break;
+				}
+				List<Map<String, Integer>> weights = new ArrayList<Map<String, Integer>>(batch.size());
+				for (Todo todo : batch) {
+					weights.add(termWeights(todo));
+				}
+				long stamp = this.lock.writeLock();
+				try {
+					for (int i = 0; i < batch.size(); i++) {
+						long id = batch.get(i).getId();
+						if (!this.generations.containsKey(id) && !this.deletedDuringRebuild.containsKey(id)) {
+							index(id, weights.get(i));
+						}
+					}
+				}
+				finally {
+					this.lock.unlockWrite(stamp);
+				}
+				afterId = batch.get(batch.size() - 1).getId();
+			}
+			if (Thread.currentThread().isInterrupted()) {
+				return;
+			}
+			long stamp = this.lock.writeLock();
+			try {
+				this.ready = true;
+				this.deletedDuringRebuild = new LongLongHashMap(16);
+			}
+			finally {
+				this.lock.unlockWrite(stamp);
+			}
+			log.info("Todo search index filled with " + size() + " todos and " + termCount() + " terms in "
+					+ (System.nanoTime() - started) / 1000000 + " ms");
+		}
+		catch (Exception e) {
+			log.error("Filling the todo search index failed, todos cannot be searched", e);
+		}
+	}
+
+	/*
+	 * Must hold the write lock
+	 */
+	private void index(long id, Map<String, Integer> weights) {
+		long previous = this.generations.get(id, 0);
+		if (previous == 0) {
+			previous = this.retiredGenerations.remove(id, 0);
+		}
+		long generation = previous + 1;
+		this.generations.put(id, generation, 0);
+		this.liveEntries += weights.size() - this.termCounts.put(id, weights.size(), 0);
+		for (Map.Entry<String, Integer> term : weights.entrySet()) {
+			PostingList list = this.terms.get(term.getKey());
+			if (list == null) {
+				list = new PostingList();
+				this.terms.put(term.getKey(), list);
+			}
+			int before = list.size();
+			list.add(id, term.getValue(), generation, this.generations);
+			this.entries += list.size() - before;
+		}
+	}
+
+	/*
+	 * Must hold the write lock
+	 */
+	private void mergeIfNeeded() {
+		if (this.entries <= 1 << 16 || this.entries <= 2 * this.liveEntries) {
+			return;
+		}
+		long started = System.nanoTime();
+		this.entries = 0;
+		Iterator<PostingList> lists = this.terms.values().iterator();
+		while (lists.hasNext()) {
+			PostingList list = lists.next();
+			list.merge(this.generations);
+			if (list.size() == 0) {
+				lists.remove();
+			}
+			this.entries += list.size();
+		}
+		this.retiredGenerations.clear();
+		log.info("Merged the todo search index down to " + this.entries + " entries in " + (System.nanoTime() - started) / 1000000 + " ms");
+	}
+
+	private List<PostingList> termList(String term) {
+		PostingList list = this.terms.get(term);
+		return list == null ? Collections.<PostingList>emptyList() : Collections.singletonList(list);
+	}
+
+	/*
+	 * The lists of the MAX_PREFIX_TERMS largest terms starting with the prefix, kept in a min heap by size while the term range is walked,
+	 * so a short prefix matching most of the terms costs a heap of MAX_PREFIX_TERMS lists instead of a sorted copy of all of them
+	 */
+	private List<PostingList> prefixLists(String prefix) {
+		PriorityQueue<PostingList> largest = new PriorityQueue<PostingList>(MAX_PREFIX_TERMS, (a, b) -> Integer.compare(a.size(), b.size()));
+		for (PostingList list : this.terms.subMap(prefix, true, prefix + Character.MAX_VALUE, true).values()) {
+			if (largest.size() < MAX_PREFIX_TERMS) {
+				largest.add(list);
+			}
+			else if (list.size() > largest.peek().size()) {
+				largest.poll();
+				largest.add(list);
+			}
+		}
+		return new ArrayList<PostingList>(largest);
+	}
+
+	private static long entryCount(List<PostingList> lists) {
+		long count = 0;
+		for (PostingList list : lists) {
+			count += list.size();
+		}
+		return count;
+	}
+
+	/*
+	 * The scores of one word, a todo matching several terms of a prefix scores its best term,
+	 * with the scores of the earlier words the todos not in them are left out and their scores are added
+	 */
+	private LongLongHashMap score(List<PostingList> clause, LongLongHashMap previous) {
+		LongLongHashMap scores = new LongLongHashMap(previous == null ? 1024 : Math.max(16, previous.size()));
+		double todos = this.generations.size();
+		for (PostingList list : clause) {
+			double idf = Math.log(1 + todos / (1 + list.size()));
+			list.forEach(this.generations, (id, weight) -> {
+				if (previous != null && !previous.containsKey(id)) {
+					return;
+				}
+				double score = weight * idf;
+				long best = scores.get(id, NO_SCORE);
+				if (best == NO_SCORE || score > Double.longBitsToDouble(best)) {
+					scores.put(id, Double.doubleToRawLongBits(score), NO_SCORE);
+				}
+			});
+		}
+		if (previous != null) {
+			scores.replaceAll((id, score) -> Double.doubleToRawLongBits(
+					Double.longBitsToDouble(score) + Double.longBitsToDouble(previous.get(id, NO_SCORE))));
+		}
+		return scores;
+	}
+
+	/*
+	 * A min heap of the best size todos seen so far, its root is the one to drop when a better todo comes along
+	 */
+	private static List<Long> topK(LongLongHashMap scores, int size) {
+		int capacity = Math.min(size, scores.size());
+		long[] ids = new long[capacity];
+		double[] heapScores = new double[capacity];
+		int[] count = { 0 };
+		scores.forEach((id, bits) -> {
+			double score = Double.longBitsToDouble(bits);
+			if (count[0] < capacity) {
+				int child = count[0]++;
+				while (child > 0) {
+					int parent = (child - 1) >>> 1;
+					if (!worse(score, id, heapScores[parent], ids[parent])) {
+						break;
+					}
+					ids[child] = ids[parent];
+					heapScores[child] = heapScores[parent];
+					child = parent;
+				}
+				ids[child] = id;
+				heapScores[child] = score;
+			}
+			else if (worse(heapScores[0], ids[0], score, id)) {
+				siftDown(ids, heapScores, capacity, id, score);
+			}
+		});
+		Long[] ranked = new Long[capacity];
+		for (int last = capacity - 1; last >= 0; last--) {
+			ranked[last] = ids[0];
+			siftDown(ids, heapScores, last, ids[last], heapScores[last]);
+		}
+		List<Long> result = new ArrayList<Long>(capacity);
+		Collections.addAll(result, ranked);
+		return result;
+	}
+
+	/*
+	 * Puts id at the root of a heap of the first count entries and moves it down to where it belongs
+	 */
+	private static void siftDown(long[] ids, double[] scores, int count, long id, double score) {
+		int parent = 0;
+		while (true) {
+			int child = 2 * parent + 1;
+			if (child >= count) {
+				break;
+			}
+			if (child + 1 < count && worse(scores[child + 1], ids[child + 1], scores[child], ids[child])) {
+				child++;
+			}
+			if (!worse(scores[child], ids[child], score, id)) {
+				break;
+			}
+			ids[parent] = ids[child];
+			scores[parent] = scores[child];
+			parent = child;
+		}
+		if (count > 0) {
+			ids[parent] = id;
+			scores[parent] = score;
+		}
+	}
+
+	private static boolean worse(double score, long id, double otherScore, long otherId) {
+		return score < otherScore || (score == otherScore && id > otherId);
+	}
+
+	static Map<String, Integer> termWeights(Todo todo) {
+		Map<String, Integer> weights = new HashMap<String, Integer>();
+		addTerms(weights, todo.getShortDescription(), SHORT_DESCRIPTION_WEIGHT);
+		addTerms(weights, todo.getLongDescription(), 1);
+		return weights;
+	}
+
+	private static void addTerms(Map<String, Integer> weights, String text, int weight) {
+		if (text == null) {
+			return;
+		}
+		for (String term : tokenize(text)) {
+			weights.merge(term, weight, (a, b) -> Math.min(MAX_WEIGHT, a + b));
+		}
+	}
+
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		int start = -1;
+		for (int i = 0; i <= text.length(); ) {
+			int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+			if (Character.isLetterOrDigit(codePoint)) {
+				if (start < 0) {
+					start = i;
+				}
+			}
+			else if (start >= 0) {
+				String token = text.substring(start, i).toLowerCase(Locale.ROOT);
+				tokens.add(token.length() > MAX_TERM_LENGTH ? token.substring(0, MAX_TERM_LENGTH) : token);
+				start = -1;
+			}
+			i += i < text.length() ? Character.charCount(codePoint) : 1;
+		}
+		return tokens;
+	}
+}
@@ -1,16 +1,43 @@
 package com.rollingstone.service;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoVersion;
+import com.rollingstone.exception.HTTP404Exception;
+import com.rollingstone.readmodel.TodoReadModel;
+import com.rollingstone.readmodel.TodoVersionIndex;
 import com.rollingstone.repository.TodoRepository;
+import com.rollingstone.search.TodoSearchIndex;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 @Service
 public class TodoService {
@@ -18,29 +45,180 @@ public class TodoService {
 	private static final Logger log  = LoggerFactory.getLogger(TodoService.class);
 	
 	TodoRepository todoRepository;
+	
+	@PersistenceContext
+	private EntityManager entityManager;
+	
+	/*
+	 * 1. Todos read by id are kept in a bounded Caffeine cache, its W-TinyLFU policy keeps the todos that are read often
+	 *    rather than the ones that were read last, so a scan over many cold todos does not push the hot ones out
+	 * 2. Entries expire todo.cache.ttl-seconds after they were loaded, at most todo.cache.max-entries are kept
+	 * 3. Concurrent misses for the same id wait for one load instead of all going to the database
+	 * 4. A todo is invalidated whenever a TodoServiceEvent about it is published, see onTodoEvent
+	 */
+	private final Cache<Long, Todo> todoCache;
+
+	/*
+	 * The in memory read model, only there with todo.read-model.enabled=true, reads go to it once it has been filled
+	 */
+	private final TodoReadModel readModel;
+	
+	private final TodoVersionIndex versionIndex;
 
-	public TodoService(TodoRepository todoRepository) {
+	/*
+	 * The full text index, only there with todo.search.enabled=true
+	 */
+	private final TodoSearchIndex searchIndex;
+
+	public TodoService(TodoRepository todoRepository, ObjectProvider<TodoReadModel> readModel, TodoVersionIndex versionIndex,
+			ObjectProvider<TodoSearchIndex> searchIndex,
+			@Value("${todo.cache.max-entries:100000}") long cacheMaxEntries,
+			@Value("${todo.cache.ttl-seconds:60}") long cacheTtlSeconds) {
 		super();
 		this.todoRepository = todoRepository;
+		this.readModel = readModel.getIfAvailable();
+		this.versionIndex = versionIndex;
+		this.searchIndex = searchIndex.getIfAvailable();
+		this.todoCache = Caffeine.newBuilder()
+				.maximumSize(cacheMaxEntries)
+				.expireAfterWrite(cacheTtlSeconds, TimeUnit.SECONDS)
+				.recordStats()
+				.build();
+		CaffeineCacheMetrics.monitor(Metrics.globalRegistry, this.todoCache, "todos");
+	}
+	
+	/*
+	 * One page of todos in id order, starting after afterId, use 0 for the first page
+	 */
+	public Slice<Todo> getTodosAfter(long afterId, int size) {
+		if (readModel != null && readModel.isReady()) {
+			List<Todo> todos = readModel.getAfter(afterId, size + 1);
+			boolean hasNext = todos.size() > size;
+			return new SliceImpl<Todo>(hasNext ? todos.subList(0, size) : todos, PageRequest.of(0, size), hasNext);
+		}
+		return todoRepository.findByIdGreaterThan(afterId, PageRequest.of(0, size, Sort.by(Sort.Direction.ASC, "id")));
+	}
+	
+	public boolean isSearchReady() {
+		return searchIndex != null && searchIndex.isReady();
 	}
 	
-	public List<Todo> getAllTodos() {
-		Iterable<Todo> todos = todoRepository.findAll();
-		
-		List<Todo> todoList = toList(todos);
-		
-		return todoList;
+	/*
+	 * The size todos matching the query best, best first, the ranking comes from the search index
+	 * and the todos themselves from the read model or in one query from the database
+	 */
+	public List<Todo> searchTodos(String query, int size) {
+		List<Long> ids = searchIndex.search(query, size);
+		List<Todo> todos = new ArrayList<Todo>(ids.size());
+		if (readModel != null && readModel.isReady()) {
+			for (Long id : ids) {
+				Todo todo = readModel.get(id);
+				if (todo != null) {
+					todos.add(todo);
+				}
+			}
+			return todos;
+		}
+		Map<Long, Todo> found = new HashMap<Long, Todo>();
+		for (Todo todo : todoRepository.findAllById(ids)) {
+			found.put(todo.getId(), todo);
+		}
+		for (Long id : ids) {
+			Todo todo = found.get(id);
+			if (todo != null) {
+				todos.add(todo);
+			}
+		}
+		return todos;
 	}
 	
+	/*
+	 * Hands every todo to the sink as it comes off the cursor, the persistence context is cleared every fetch
+	 * so the todos already handed out can be collected, returns the number of todos exported
+	 */
+	@Transactional(readOnly = true)
+	public long exportTodos(Consumer<Todo> sink) {
+		int clearEvery = Integer.parseInt(TodoRepository.EXPORT_FETCH_SIZE);
+		long exported = 0;
+		try (Stream<Todo> todos = todoRepository.streamAllInIdOrder()) {
+			Iterator<Todo> iterator = todos.iterator();
+			while (iterator.hasNext()) {
+				sink.accept(iterator.next());
+				if (++exported % clearEvery == 0) {
+					entityManager.clear();
+				}
+			}
+		}
+		return exported;
+	}
+	
+	/*
+	 * The todo with the id, a HTTP404Exception when there is none
+	 */
 	public Todo getTodo(Long todoId) {
-		Optional<Todo> totoOptional = todoRepository.findById(todoId);
-		
-		Todo todo = totoOptional.get();
-		
+		Todo todo;
+		if (readModel != null && readModel.isReady()) {
+			todo = readModel.get(todoId);
+		}
+		else {
+			todo = todoCache.get(todoId, this::loadTodo);
+		}
+		if (todo == null) {
+			throw new HTTP404Exception("Todo " + todoId + " does not exist");
+		}
+		return todo;
+	}
+	
+	private Todo loadTodo(long todoId) {
+		Todo todo = todoRepository.findById(todoId).orElse(null);
+		if (todo != null) {
+			versionIndex.put(todoId, todo.getVersion());
+		}
 		return todo;
 	}
-	public static <T> List<Todo> toList(Iterable<Todo> todos) {
-		return StreamSupport.stream(todos.spliterator(), false).collect(Collectors.toList());
+	
+	/*
+	 * The current version of a todo, -1 if there is no such todo, the todo itself is not loaded
+	 */
+	public long getTodoVersion(long todoId) {
+		if (readModel != null && readModel.isReady()) {
+			return readModel.getVersion(todoId);
+		}
+		long version = versionIndex.get(todoId);
+		if (version < 0) {
+			Optional<Long> stored = todoRepository.findVersionById(todoId);
+			if (stored.isPresent()) {
+				version = stored.get();
+				versionIndex.put(todoId, version);
+			}
+		}
+		return version;
+	}
+	
+	/*
+	 * The ids and versions of the page getTodosAfter returns for the same arguments
+	 */
+	public Slice<TodoVersion> getTodoVersionsAfter(long afterId, int size) {
+		if (readModel != null && readModel.isReady()) {
+			List<TodoVersion> versions = readModel.getVersionsAfter(afterId, size + 1);
+			boolean hasNext = versions.size() > size;
+			return new SliceImpl<TodoVersion>(hasNext ? versions.subList(0, size) : versions, PageRequest.of(0, size), hasNext);
+		}
+		return todoRepository.findVersionsByIdGreaterThan(afterId, PageRequest.of(0, size));
+	}
+	
+	/*
+	 * 1. The controller announces the updates and deletes it sends, the consumer announces the commands it has applied
+	 * 2. Either way the cached todo may now be out of date and is dropped, the next read loads it again
+	 * 3. A read between sending a command and applying it can load the old todo once more, the event of the consumer
+	 *    drops it again when the consumer runs in this service, otherwise the ttl bounds how long it stays
+	 */
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		Todo todo = todoServiceEvent.getEventTodo();
+		if (todo != null && todo.getId() != 0) {
+			todoCache.invalidate(todo.getId());
+		}
 	}
 
 }
@@ -0,0 +1,11 @@
+package com.rollingstone.service.event;
+
+import java.util.List;
+
+/*
+ * A listener the TodoServiceEventBus delivers to on its own thread, the events come in batches in the order they were published
+ */
+public interface TodoServiceEventBatchListener {
+
+	void onTodoEvents(List<TodoServiceEvent> events);
+}
@@ -0,0 +1,345 @@
+package com.rollingstone.service.event;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.domain.Todo;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/*
+ * Delivers the TodoServiceEvents to the TodoServiceEventBatchListeners on a thread of its own, so the thread publishing an event
+ * only pays for putting it on a queue.
+ *
+ * 1. Every TodoServiceEvent published in the application context is put on a queue of todo.events.queue-capacity events
+ * 2. The delivery thread takes up to todo.events.batch-size events at a time and hands the batch to every listener in turn
+ * 3. When the queue is full todo.events.overflow decides what happens to the event
+ * 		A. drop, the event is counted and forgotten
+ * 		B. block, the publishing thread waits up to todo.events.block-timeout-ms for room and drops the event after that
+ * 		C. spill, the event is appended to a file in todo.events.spill-directory, as are all events after it until the
+ * 		   delivery thread has caught up with the file, so the listeners still see the events in order,
+ * 		   every event is flushed to the file as it is written, so the spilled events survive a crash of the service
+ *    spill is the default, the events are published on the threads that complete the sends of the commands and those must not wait
+ * 4. The listeners that keep caches and indexes in step with the todos, like TodoService, stay plain @EventListeners,
+ *    they are cheap and must not lag behind, this bus is for the listeners that may
+ */
+@Component
+public class TodoServiceEventBus {
+
+	private static final Logger log = LoggerFactory.getLogger(TodoServiceEventBus.class);
+
+	public enum OverflowPolicy {
+		DROP, BLOCK, SPILL
+	}
+
+	private final ObjectProvider<TodoServiceEventBatchListener> listenerProvider;
+
+	private final ObjectMapper objectMapper;
+
+	private final BlockingQueue<TodoServiceEvent> queue;
+
+	private final int batchSize;
+
+	private final OverflowPolicy overflowPolicy;
+
+	private final long blockTimeoutMillis;
+
+	private final Path spillDirectory;
+
+	private final Object spillLock = new Object();
+
+	/*
+	 * True from the first spilled event until the delivery thread has read the last spill file, meanwhile every event is spilled
+	 */
+	private volatile boolean spilling;
+
+	private BufferedWriter spillWriter;
+
+	private Path spillFile;
+
+	private long spillSequence;
+
+	private List<TodoServiceEventBatchListener> listeners;
+
+	private List<Timer> listenerTimers;
+
+	private Thread deliverer;
+
+	private volatile boolean running;
+
+	Counter deliveredCounter = Metrics.counter("com.rollingstone.todo.events.delivered");
+
+	Counter droppedCounter = Metrics.counter("com.rollingstone.todo.events.dropped");
+
+	Counter spilledCounter = Metrics.counter("com.rollingstone.todo.events.spilled");
+
+	Counter listenerFailedCounter = Metrics.counter("com.rollingstone.todo.events.listener.failed");
+
+	public TodoServiceEventBus(ObjectProvider<TodoServiceEventBatchListener> listenerProvider, ObjectMapper objectMapper,
+			@Value("${todo.events.queue-capacity:8192}") int queueCapacity,
+			@Value("${todo.events.batch-size:256}") int batchSize,
+			@Value("${todo.events.overflow:spill}") String overflowPolicy,
+			@Value("${todo.events.block-timeout-ms:100}") long blockTimeoutMillis,
+			@Value("${todo.events.spill-directory:event-spill}") String spillDirectory) {
+		this.listenerProvider = listenerProvider;
+		this.objectMapper = objectMapper;
+		this.queue = new ArrayBlockingQueue<TodoServiceEvent>(queueCapacity);
+		this.batchSize = Math.max(1, batchSize);
+		this.overflowPolicy = OverflowPolicy.valueOf(overflowPolicy.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+		this.blockTimeoutMillis = blockTimeoutMillis;
+		this.spillDirectory = Paths.get(spillDirectory);
+		Metrics.gauge("com.rollingstone.todo.events.queue.depth", this.queue, BlockingQueue::size);
+	}
+
+	/*
+	 * The listeners are looked up here and not in the constructor, a listener may itself depend on beans that publish events
+	 */
+	@PostConstruct
+	public void start() throws IOException {
+		this.listeners = this.listenerProvider.orderedStream().collect(Collectors.toList());
+		this.listenerTimers = new ArrayList<Timer>(this.listeners.size());
+		for (TodoServiceEventBatchListener listener : this.listeners) {
+			this.listenerTimers.add(Metrics.timer("com.rollingstone.todo.events.listener.latency", "listener",
+					listener.getClass().getSimpleName()));
+		}
+		if (this.overflowPolicy == OverflowPolicy.SPILL) {
+			Files.createDirectories(this.spillDirectory);
+			recoverSpillFiles();
+		}
+		this.running = true;
+		this.deliverer = new Thread(this::deliverLoop, "todo-event-bus");
+		this.deliverer.setDaemon(true);
+		this.deliverer.start();
+		log.info("Todo event bus delivering to " + this.listeners.size() + " listeners, overflow policy " + this.overflowPolicy);
+	}
+
+	/*
+	 * Stops taking new events off the queue and delivers what is left on it before returning, spilled events stay on disk
+	 */
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		this.running = false;
+		this.deliverer.interrupt();
+		this.deliverer.join(TimeUnit.SECONDS.toMillis(5));
+		List<TodoServiceEvent> rest = new ArrayList<TodoServiceEvent>();
+		this.queue.drainTo(rest);
+		for (int from = 0; from < rest.size(); from += this.batchSize) {
+			deliver(rest.subList(from, Math.min(rest.size(), from + this.batchSize)));
+		}
+		synchronized (this.spillLock) {
+			closeSpillWriter();
+		}
+	}
+
+	@EventListener
+	public void onTodoEvent(TodoServiceEvent todoServiceEvent) {
+		publish(todoServiceEvent);
+	}
+
+	public void publish(TodoServiceEvent event) {
+		if (!this.spilling && this.queue.offer(event)) {
+			return;
+		}
+		switch (this.overflowPolicy) {
+		case BLOCK:
+			try {
+				if (this.queue.offer(event, this.blockTimeoutMillis, TimeUnit.MILLISECONDS)) {
+					return;
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			droppedCounter.increment();
+			break;
+		case SPILL:
+			synchronized (this.spillLock) {
+				if (!this.spilling && this.queue.offer(event)) {
+					return;
+				}
+				try {
+					spill(event);
+					this.spilling = true;
+					spilledCounter.increment();
+				}
+				catch (IOException e) {
+					log.error("Spilling " + event + " failed, it is dropped", e);
+					droppedCounter.increment();
+				}
+			}
+			break;
+		default:
+			droppedCounter.increment();
+			break;
+		}
+	}
+
+	public int getQueueDepth() {
+		return this.queue.size();
+	}
+
+	private void deliverLoop() {
+		List<TodoServiceEvent> batch = new ArrayList<TodoServiceEvent>(this.batchSize);
+		while (this.running) {
+			try {
+				TodoServiceEvent first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first != null) {
+					batch.add(first);
+					this.queue.drainTo(batch, this.batchSize - 1);
+					deliver(batch);
+					batch.clear();
+				}
+				else if (this.spilling) {
+					deliverSpillFile();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			catch (Exception e) {
+				log.error("Delivering todo events failed", e);
+			}
+		}
+	}
+
+	private void deliver(List<TodoServiceEvent> batch) {
+		for (int i = 0; i < this.listeners.size(); i++) {
+			TodoServiceEventBatchListener listener = this.listeners.get(i);
+			try {
+				this.listenerTimers.get(i).record(() -> listener.onTodoEvents(batch));
+			}
+			catch (RuntimeException e) {
+				listenerFailedCounter.increment();
+				log.error(listener.getClass().getSimpleName() + " failed on " + batch.size() + " todo events", e);
+			}
+		}
+		deliveredCounter.increment(batch.size());
+	}
+
+	/*
+	 * Must hold the spill lock
+	 */
+	private void spill(TodoServiceEvent event) throws IOException {
+		if (this.spillWriter == null) {
+			this.spillFile = this.spillDirectory.resolve(String.format("events-%d-%06d.ndjson", System.currentTimeMillis(), this.spillSequence++));
+			this.spillWriter = Files.newBufferedWriter(this.spillFile, StandardCharsets.UTF_8);
+		}
+		Map<String, Object> record = new LinkedHashMap<String, Object>();
+		record.put("eventType", event.getEventType());
+		record.put("eventTodo", event.getEventTodo());
+		this.spillWriter.write(this.objectMapper.writeValueAsString(record));
+		this.spillWriter.write('\n');
+		this.spillWriter.flush();
+	}
+
+	/*
+	 * Must hold the spill lock
+	 */
+	private void closeSpillWriter() {
+		if (this.spillWriter != null) {
+			try {
+				this.spillWriter.close();
+			}
+			catch (IOException e) {
+				log.error("Closing the event spill file " + this.spillFile + " failed", e);
+			}
+			this.spillWriter = null;
+		}
+	}
+
+	/*
+	 * 1. Takes the file events are spilled to, events spilled from now on go to a new file
+	 * 2. When nothing has been spilled since the last file was taken, the bus stops spilling and events go to the queue again
+	 */
+	private void deliverSpillFile() throws IOException {
+		Path file;
+		synchronized (this.spillLock) {
+			if (this.spillWriter == null) {
+				this.spilling = false;
+				return;
+			}
+			closeSpillWriter();
+			file = this.spillFile;
+		}
+		deliverFile(file);
+	}
+
+	/*
+	 * Spill files left over from an earlier run are delivered first, in the order they were written
+	 */
+	private void recoverSpillFiles() throws IOException {
+		List<Path> files;
+		try (Stream<Path> listed = Files.list(this.spillDirectory)) {
+			files = listed.filter(path -> path.getFileName().toString().endsWith(".ndjson")).sorted().collect(Collectors.toList());
+		}
+		for (Path file : files) {
+			log.info("Delivering todo events spilled to " + file + " before the last shutdown");
+			deliverFile(file);
+		}
+	}
+
+	private void deliverFile(Path file) throws IOException {
+		List<TodoServiceEvent> batch = new ArrayList<TodoServiceEvent>(this.batchSize);
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.isEmpty()) {
+					continue;
+				}
+				try {
+					JsonNode record = this.objectMapper.readTree(line);
+					JsonNode todo = record.get("eventTodo");
+					batch.add(new TodoServiceEvent(this, todo == null || todo.isNull() ? null : this.objectMapper.treeToValue(todo, Todo.class),
+							record.path("eventType").asText(null)));
+				}
+				catch (JsonProcessingException e) {
+					/*
+					 * The last line of a file that was being written when the service went down
+					 */
+					log.warn("Skipping an unreadable todo event in " + file + ": " + e.getOriginalMessage());
+					droppedCounter.increment();
+					continue;
+				}
+				if (batch.size() == this.batchSize) {
+					deliver(batch);
+					batch.clear();
+				}
+			}
+		}
+		if (!batch.isEmpty()) {
+			deliver(batch);
+		}
+		Files.delete(file);
+	}
+}
@@ -0,0 +1,43 @@
+package com.rollingstone.threads;
+
+import java.util.concurrent.ExecutorService;
+
+import org.apache.catalina.connector.Connector;
+import org.apache.coyote.AbstractProtocol;
+import org.apache.coyote.ProtocolHandler;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.tomcat.TomcatServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.stereotype.Component;
+
+/*
+ * 1. With virtual threads on, every request Tomcat takes is handled on a virtual thread of its own instead of one of the server.tomcat.max-threads
+ *    platform threads, a request waiting for SQS or the database no longer keeps another request from being handled
+ * 2. Tomcat stops bounding the requests by threads then, server.tomcat.max-connections bounds the requests being handled
+ */
+@Component
+@ConditionalOnProperty(name = "threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadTomcatCustomizer implements WebServerFactoryCustomizer<TomcatServletWebServerFactory> {
+
+	private final VirtualThreads virtualThreads;
+
+	public VirtualThreadTomcatCustomizer(VirtualThreads virtualThreads) {
+		this.virtualThreads = virtualThreads;
+	}
+
+	@Override
+	public void customize(TomcatServletWebServerFactory factory) {
+		if (!this.virtualThreads.isEnabled()) {
+			return;
+		}
+		factory.addConnectorCustomizers(this::useVirtualThreads);
+	}
+
+	private void useVirtualThreads(Connector connector) {
+		ProtocolHandler protocolHandler = connector.getProtocolHandler();
+		if (protocolHandler instanceof AbstractProtocol) {
+			ExecutorService executor = this.virtualThreads.newExecutor("http");
+			((AbstractProtocol<?>) protocolHandler).setExecutor(executor);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package com.rollingstone.threads;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/*
+ * Virtual threads for the request threads, the SQS sends and the JDBC calls, switched on with threads.virtual.enabled=true.
+ *
+ * 1. The application is built for Java 8, the virtual thread API of Java 21 is reached by reflection, so the same jar runs on both
+ * 2. With the switch on and a JDK without virtual threads the application logs a warning and stays on platform threads
+ * 3. An executor from newExecutor starts a new virtual thread for every task, there is no pool and no queue,
+ *    whatever bounds the work, like the in flight limits of the SQS queues or the JDBC permits, has to bound it before
+ * 4. The executors are shut down with the application
+ */
+@Component
+public class VirtualThreads {
+
+	private static final Logger log = LoggerFactory.getLogger(VirtualThreads.class);
+
+	private final Method ofVirtual;
+
+	private final Method name;
+
+	private final Method factory;
+
+	private final Method newThreadPerTaskExecutor;
+
+	private final List<ExecutorService> executors = new CopyOnWriteArrayList<ExecutorService>();
+
+	public VirtualThreads(@Value("${threads.virtual.enabled:false}") boolean enabled) {
+		Method ofVirtual = null;
+		Method name = null;
+		Method factory = null;
+		Method newThreadPerTaskExecutor = null;
+		if (enabled) {
+			try {
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				name = builder.getMethod("name", String.class, long.class);
+				factory = builder.getMethod("factory");
+				newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+				log.info("Running requests, SQS sends and JDBC calls on virtual threads");
+			}
+			catch (ClassNotFoundException | NoSuchMethodException e) {
+				log.warn("threads.virtual.enabled is set but Java " + System.getProperty("java.version")
+						+ " has no virtual threads, staying on platform threads");
+				ofVirtual = null;
+			}
+		}
+		this.ofVirtual = ofVirtual;
+		this.name = name;
+		this.factory = factory;
+		this.newThreadPerTaskExecutor = newThreadPerTaskExecutor;
+	}
+
+	public boolean isEnabled() {
+		return this.ofVirtual != null;
+	}
+
+	/*
+	 * A thread per task executor of virtual threads named prefix-0, prefix-1 and so on, null when virtual threads are not enabled
+	 */
+	public ExecutorService newExecutor(String prefix) {
+		if (!isEnabled()) {
+			return null;
+		}
+		try {
+			Object builder = this.name.invoke(this.ofVirtual.invoke(null), prefix + "-", 0L);
+			ExecutorService executor = (ExecutorService) this.newThreadPerTaskExecutor.invoke(null, this.factory.invoke(builder));
+			this.executors.add(executor);
+			return executor;
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create a virtual thread executor", e);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		for (ExecutorService executor : this.executors) {
+			executor.shutdown();
+		}
+	}
+}
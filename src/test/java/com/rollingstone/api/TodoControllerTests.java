@@ -0,0 +1,258 @@
+package com.rollingstone.api;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.id.RandomCommandIdGenerator;
+import com.rollingstone.command.interfaces.GenericCommandBus;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoBulkItemResult;
+import com.rollingstone.domain.TodoVersion;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.service.TodoService;
+
+public class TodoControllerTests {
+
+	private static final String API = "/rsecommerce/cqrs/todo/api";
+
+	private final TodoService todoService = mock(TodoService.class);
+
+	private final GenericCommandBus commandBus = mock(GenericCommandBus.class);
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@Test
+	public void answersNotModifiedFromTheVersionAloneWhenTheConsumerRunsHere() throws Exception {
+		when(todoService.getTodoVersion(7)).thenReturn(3L);
+
+		mockMvc(true).perform(get(API + "/7").header(HttpHeaders.IF_NONE_MATCH, "\"3\""))
+				.andExpect(status().isNotModified())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"3\""));
+
+		verify(todoService, never()).getTodo(any());
+	}
+
+	@Test
+	public void comparesTheLoadedTodoWhenTheConsumerRunsElsewhere() throws Exception {
+		when(todoService.getTodo(7L)).thenReturn(todo(7, 3, "groceries"));
+		MockMvc mockMvc = mockMvc(false);
+
+		mockMvc.perform(get(API + "/7").header(HttpHeaders.IF_NONE_MATCH, "W/\"3\""))
+				.andExpect(status().isNotModified());
+		mockMvc.perform(get(API + "/7").header(HttpHeaders.IF_NONE_MATCH, "\"2\""))
+				.andExpect(status().isOk())
+				.andExpect(header().string(HttpHeaders.ETAG, "\"3\""))
+				.andExpect(jsonPath("$.shortDescription").value("groceries"));
+
+		verify(todoService, never()).getTodoVersion(anyLong());
+	}
+
+	@Test
+	public void refusesAnUpdateMadeAgainstAnOlderVersion() throws Exception {
+		when(todoService.getTodoVersion(7)).thenReturn(4L);
+
+		mockMvc(true).perform(put(API + "/7").header(HttpHeaders.IF_MATCH, "\"3\"")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"shortDescription\":\"groceries\"}"))
+				.andExpect(status().isPreconditionFailed());
+
+		verify(commandBus, never()).send(any());
+	}
+
+	@Test
+	public void refusesAnUpdateOfATodoThatDoesNotExist() throws Exception {
+		when(todoService.getTodoVersion(7)).thenReturn(-1L);
+
+		mockMvc(true).perform(put(API + "/7").header(HttpHeaders.IF_MATCH, "\"0\"")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"shortDescription\":\"groceries\"}"))
+				.andExpect(status().isNotFound());
+	}
+
+	@Test
+	public void refusesABodyForAnotherTodoThanThePath() throws Exception {
+		mockMvc(true).perform(put(API + "/7")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"id\":8,\"shortDescription\":\"groceries\"}"))
+				.andExpect(status().isBadRequest());
+
+		verify(commandBus, never()).send(any());
+	}
+
+	@Test
+	public void sendsTheVersionOfIfMatchAsTheExpectedVersion() throws Exception {
+		when(todoService.getTodoVersion(7)).thenReturn(0L);
+		when(commandBus.send(any())).thenReturn(sent());
+
+		/*
+		 * Version 0 is the version of a todo that was just created, it must still make the update conditional
+		 */
+		update(put(API + "/7").header(HttpHeaders.IF_MATCH, "W/\"0\"")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"shortDescription\":\"groceries\"}"));
+
+		TodoCommand command = sentCommand();
+		assertEquals(Long.valueOf(0), command.getExpectedVersion());
+		assertEquals(7, command.getTodo().getId());
+	}
+
+	@Test
+	public void sendsAnUpdateWithoutIfMatchUnconditionally() throws Exception {
+		when(commandBus.send(any())).thenReturn(sent());
+
+		update(put(API + "/7")
+				.contentType(MediaType.APPLICATION_JSON).content("{\"id\":7,\"version\":5,\"shortDescription\":\"groceries\"}"));
+
+		TodoCommand command = sentCommand();
+		assertNull(command.getExpectedVersion());
+		assertEquals(0, command.getTodo().getVersion());
+		verify(todoService, never()).getTodoVersion(anyLong());
+	}
+
+	@Test
+	public void answersAFailedSendWithA502() throws Exception {
+		CompletableFuture<GenericCommandResult> refused = new CompletableFuture<GenericCommandResult>();
+		refused.completeExceptionally(new IllegalStateException("refused"));
+		when(commandBus.send(any())).thenReturn(refused);
+
+		MockMvc mockMvc = mockMvc(true);
+		MvcResult result = mockMvc.perform(post(API)
+				.contentType(MediaType.APPLICATION_JSON).content("{\"shortDescription\":\"groceries\"}"))
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isBadGateway());
+	}
+
+	@Test
+	public void pagesWithAContinuationTokenAndAnswersNotModifiedForAnUnchangedPage() throws Exception {
+		List<Todo> firstPage = Arrays.asList(todo(1, 0, "first"), todo(2, 4, "second"));
+		when(todoService.getTodosAfter(0, 2)).thenReturn(new SliceImpl<Todo>(firstPage, PageRequest.of(0, 2), true));
+		when(todoService.getTodoVersionsAfter(0, 2)).thenReturn(new SliceImpl<TodoVersion>(
+				Arrays.asList(new TodoVersion(1, 0), new TodoVersion(2, 4)), PageRequest.of(0, 2), true));
+		when(todoService.getTodosAfter(2, 2)).thenReturn(new SliceImpl<Todo>(Arrays.asList(todo(3, 0, "third")), PageRequest.of(0, 2), false));
+		MockMvc mockMvc = mockMvc(true);
+
+		MvcResult first = mockMvc.perform(get(API).param("size", "2"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$[1].shortDescription").value("second"))
+				.andReturn();
+		String etag = first.getResponse().getHeader(HttpHeaders.ETAG);
+		String continuationToken = first.getResponse().getHeader("X-Continuation-Token");
+
+		mockMvc.perform(get(API).param("size", "2").header(HttpHeaders.IF_NONE_MATCH, etag))
+				.andExpect(status().isNotModified())
+				.andExpect(header().string("X-Continuation-Token", continuationToken));
+		mockMvc.perform(get(API).param("size", "2").param("continuationToken", continuationToken))
+				.andExpect(status().isOk())
+				.andExpect(header().doesNotExist("X-Continuation-Token"))
+				.andExpect(jsonPath("$[0].id").value(3));
+		mockMvc.perform(get(API).param("continuationToken", "not a token"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void exportsOneTodoPerLine() throws Exception {
+		when(todoService.exportTodos(any())).thenAnswer(invocation -> {
+			Consumer<Todo> sink = invocation.getArgument(0);
+			sink.accept(todo(1, 0, "first"));
+			sink.accept(todo(2, 0, "second"));
+			return 2L;
+		});
+
+		String body = mockMvc(true).perform(get(API + "/export"))
+				.andExpect(status().isOk())
+				.andExpect(content().contentType("application/x-ndjson"))
+				.andReturn().getResponse().getContentAsString();
+
+		String[] lines = body.split("\n");
+		assertEquals(2, lines.length);
+		assertEquals("second", objectMapper.readValue(lines[1], Todo.class).getShortDescription());
+	}
+
+	@Test
+	public void answersEveryTodoOfABulkRequestAndWhereTheBodyBrokeOff() throws Exception {
+		when(commandBus.sendAll(any())).thenAnswer(invocation -> {
+			List<Future<GenericCommandResult>> futures = new ArrayList<Future<GenericCommandResult>>();
+			for (int i = 0; i < ((List<?>) invocation.getArgument(0)).size(); i++) {
+				futures.add(sent());
+			}
+			return futures;
+		});
+
+		mockMvc(true).perform(post(API + "/batch").contentType("application/x-ndjson")
+				.content("{\"shortDescription\":\"first\"}\n{\"shortDescription\":\"second\"}\n{\"shortDescription\":"))
+				.andExpect(status().isOk())
+				.andExpect(jsonPath("$.length()").value(3))
+				.andExpect(jsonPath("$[0].status").value(TodoBulkItemResult.ACCEPTED))
+				.andExpect(jsonPath("$[1].status").value(TodoBulkItemResult.ACCEPTED))
+				.andExpect(jsonPath("$[2].status").value(TodoBulkItemResult.UNREADABLE))
+				.andExpect(jsonPath("$[2].index").value(2));
+	}
+
+	private MockMvc mockMvc(boolean consumerInProcess) {
+		TodoController controller = new TodoController(commandBus, todoService, objectMapper, new TodoJsonCache(objectMapper, 1 << 20),
+				new RandomCommandIdGenerator(), new CommandLatencyRecorder(20, 60), 1000, 3600, 1000, 500, 5000, 5000, consumerInProcess);
+		controller.setApplicationEventPublisher(mock(ApplicationEventPublisher.class));
+		return MockMvcBuilders.standaloneSetup(controller).build();
+	}
+
+	private void update(RequestBuilder update) throws Exception {
+		MockMvc mockMvc = mockMvc(true);
+		MvcResult result = mockMvc.perform(update)
+				.andExpect(request().asyncStarted())
+				.andReturn();
+		mockMvc.perform(asyncDispatch(result))
+				.andExpect(status().isNoContent());
+	}
+
+	private TodoCommand sentCommand() {
+		ArgumentCaptor<TodoCommand> command = ArgumentCaptor.forClass(TodoCommand.class);
+		verify(commandBus).send(command.capture());
+		return command.getValue();
+	}
+
+	private static Future<GenericCommandResult> sent() {
+		return CompletableFuture.<GenericCommandResult>completedFuture(new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS));
+	}
+
+	private static Todo todo(long id, long version, String shortDescription) {
+		Todo todo = new Todo(id, shortDescription, "long description of " + shortDescription);
+		todo.setVersion(version);
+		return todo;
+	}
+}
@@ -0,0 +1,108 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Timestamp;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.services.sqs.model.GetQueueUrlResult;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+
+public class SQSCommandQueueNameResolverTests {
+
+	private static final String URL_PREFIX = "https://sqs.in-process/";
+
+	private static final String QUEUE = "TODO_New_Queue";
+
+	private static final int SHARDS = 4;
+
+	private final AtomicInteger queueUrlLookups = new AtomicInteger();
+
+	private final InProcessAmazonSQS sqs = new InProcessAmazonSQS(0, 0, 0, 30, 1) {
+		@Override
+		public GetQueueUrlResult getQueueUrl(String queueName) {
+			queueUrlLookups.incrementAndGet();
+			return super.getQueueUrl(queueName);
+		}
+	};
+
+	@After
+	public void tearDown() {
+		sqs.stop();
+	}
+
+	@Test
+	public void spreadsCreatesOverTheShardsByTheirCommandId() {
+		SQSCommandQueueNameResolver resolver = new SQSCommandQueueNameResolver(sqs, QUEUE, SHARDS);
+
+		Set<String> urls = new HashSet<String>();
+		for (int i = 0; i < 200; i++) {
+			TodoCommand create = command(GenericCommandType.CREATE_TODO, 0);
+			String url = resolver.resolve(create);
+			assertEquals(shardUrl(SQSCommandQueueNameResolver.shardOf(create.getId().getLeastSignificantBits(), SHARDS)), url);
+			assertEquals(url, resolver.resolve(create));
+			urls.add(url);
+		}
+		assertEquals(SHARDS, urls.size());
+	}
+
+	@Test
+	public void sendsTheUpdatesAndTheDeleteOfATodoToOneShard() {
+		SQSCommandQueueNameResolver resolver = new SQSCommandQueueNameResolver(sqs, QUEUE, SHARDS);
+
+		Set<String> urls = new HashSet<String>();
+		for (long todoId = 1; todoId <= 100; todoId++) {
+			String url = resolver.resolve(command(GenericCommandType.UPDATE_TODO, todoId));
+			assertEquals(shardUrl(SQSCommandQueueNameResolver.shardOf(todoId, SHARDS)), url);
+			assertEquals(url, resolver.resolve(command(GenericCommandType.UPDATE_TODO, todoId)));
+			assertEquals(url, resolver.resolve(command(GenericCommandType.DELETE_TODO, todoId)));
+			urls.add(url);
+		}
+		assertEquals(SHARDS, urls.size());
+	}
+
+	@Test
+	public void looksUpTheUrlOfEveryShardOnlyOnce() {
+		SQSCommandQueueNameResolver resolver = new SQSCommandQueueNameResolver(sqs, QUEUE, SHARDS);
+
+		for (int round = 0; round < 3; round++) {
+			for (long todoId = 1; todoId <= 100; todoId++) {
+				resolver.resolve(command(GenericCommandType.CREATE_TODO, 0));
+				resolver.resolve(command(GenericCommandType.UPDATE_TODO, todoId));
+				resolver.resolve(command(GenericCommandType.DELETE_TODO, todoId));
+			}
+			resolver.resolve(GenericCommandType.CREATE_TODO.toString());
+		}
+		assertEquals(SHARDS, queueUrlLookups.get());
+	}
+
+	@Test
+	public void keepsThePlainQueueNameForASingleShard() {
+		SQSCommandQueueNameResolver resolver = new SQSCommandQueueNameResolver(sqs, QUEUE, 1);
+
+		assertEquals(URL_PREFIX + QUEUE, resolver.resolve(command(GenericCommandType.CREATE_TODO, 0)));
+		assertEquals(URL_PREFIX + QUEUE, resolver.resolve(command(GenericCommandType.DELETE_TODO, 42)));
+		assertArrayEquals(new String[] { QUEUE }, resolver.getQueueNames(GenericCommandType.UPDATE_TODO));
+		assertArrayEquals(new String[] { QUEUE, QUEUE + "_1", QUEUE + "_2", QUEUE + "_3" },
+				new SQSCommandQueueNameResolver(sqs, QUEUE, SHARDS).getQueueNames(GenericCommandType.DELETE_TODO));
+	}
+
+	private static String shardUrl(int shard) {
+		return URL_PREFIX + (shard == 0 ? QUEUE : QUEUE + "_" + shard);
+	}
+
+	private static TodoCommand command(GenericCommandType type, long todoId) {
+		return new TodoCommand(UUID.randomUUID(), new GenericCommandHeader(type.toString(), "1.1", new Timestamp(System.currentTimeMillis())),
+				new Todo(todoId, "todo " + todoId, null));
+	}
+}
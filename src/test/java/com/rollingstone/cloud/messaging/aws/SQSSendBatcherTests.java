@@ -0,0 +1,197 @@
+package com.rollingstone.cloud.messaging.aws;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.services.sqs.model.BatchResultErrorEntry;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest;
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.SendMessageBatchResult;
+import com.amazonaws.services.sqs.model.SendMessageBatchResultEntry;
+import com.rollingstone.command.GenericCommandResult;
+
+public class SQSSendBatcherTests {
+
+	private static final String QUEUE_URL = "https://sqs.in-process/todo-commands";
+
+	private static final long NO_LINGER_FLUSH = 60000;
+
+	private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+	private InProcessAmazonSQS sqs;
+
+	private SQSSendBatcher batcher;
+
+	@After
+	public void tearDown() {
+		if (batcher != null) {
+			batcher.close();
+		}
+		if (sqs != null) {
+			sqs.stop();
+		}
+	}
+
+	@Test
+	public void flushesAsSoonAsTheBatchIsFull() throws Exception {
+		batcher = new SQSSendBatcher(recordingSqs(0), 3, NO_LINGER_FLUSH);
+
+		List<CompletableFuture<GenericCommandResult>> sent = Arrays.asList(
+				batcher.add(QUEUE_URL, entry("first")), batcher.add(QUEUE_URL, entry("second")), batcher.add(QUEUE_URL, entry("third")));
+		for (CompletableFuture<GenericCommandResult> future : sent) {
+			assertFalse(future.get(5, TimeUnit.SECONDS).isFailure());
+		}
+		assertEquals(Collections.singletonList(3), batchSizes);
+
+		CompletableFuture<GenericCommandResult> lingering = batcher.add(QUEUE_URL, entry("fourth"));
+		Thread.sleep(100);
+		assertFalse(lingering.isDone());
+
+		batcher.close();
+		assertFalse(lingering.get(5, TimeUnit.SECONDS).isFailure());
+		assertEquals(Arrays.asList(3, 1), batchSizes);
+	}
+
+	@Test
+	public void flushesBeforeTheNextMessageWouldExceedTheRequestLimit() throws Exception {
+		batcher = new SQSSendBatcher(recordingSqs(0), 10, NO_LINGER_FLUSH);
+		String body = repeat('b', 100 * 1024);
+
+		CompletableFuture<GenericCommandResult> first = batcher.add(QUEUE_URL, entry(body));
+		CompletableFuture<GenericCommandResult> second = batcher.add(QUEUE_URL, entry(body));
+		Thread.sleep(100);
+		assertTrue(batchSizes.isEmpty());
+
+		CompletableFuture<GenericCommandResult> third = batcher.add(QUEUE_URL, entry(body));
+		assertFalse(first.get(5, TimeUnit.SECONDS).isFailure());
+		assertFalse(second.get(5, TimeUnit.SECONDS).isFailure());
+		assertEquals(Collections.singletonList(2), batchSizes);
+		assertFalse(third.isDone());
+	}
+
+	@Test
+	public void countsMessageAttributesAgainstTheRequestLimit() throws Exception {
+		batcher = new SQSSendBatcher(recordingSqs(0), 10, NO_LINGER_FLUSH);
+		assertEquals(120 * 1024 + "contentType".length() + "String".length() + "application/json".length()
+				+ "padding".length() + "String".length() + 10 * 1024, SQSSendBatcher.entryBytes(paddedEntry()));
+
+		/*
+		 * The bodies alone would fit into one request, with the attributes the second message must start the next batch
+		 */
+		CompletableFuture<GenericCommandResult> first = batcher.add(QUEUE_URL, paddedEntry());
+		CompletableFuture<GenericCommandResult> second = batcher.add(QUEUE_URL, paddedEntry());
+		assertFalse(first.get(5, TimeUnit.SECONDS).isFailure());
+		assertEquals(Collections.singletonList(1), batchSizes);
+		assertFalse(second.isDone());
+	}
+
+	@Test
+	public void flushesALingeringBatchAfterTheLinger() throws Exception {
+		batcher = new SQSSendBatcher(recordingSqs(0), 10, 50);
+
+		CompletableFuture<GenericCommandResult> first = batcher.add(QUEUE_URL, entry("first"));
+		CompletableFuture<GenericCommandResult> second = batcher.add(QUEUE_URL, entry("second"));
+
+		assertFalse(first.get(5, TimeUnit.SECONDS).isFailure());
+		assertFalse(second.get(5, TimeUnit.SECONDS).isFailure());
+		assertEquals(Collections.singletonList(2), batchSizes);
+	}
+
+	@Test
+	public void givesEveryCallerTheOutcomeOfItsOwnEntry() throws Exception {
+		sqs = new InProcessAmazonSQS(0, 0, 0, 30, 1) {
+			@Override
+			public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+					AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> asyncHandler) {
+				/*
+				 * SQS answers in its own order, the second entry is refused
+				 */
+				SendMessageBatchResult result = new SendMessageBatchResult();
+				List<SendMessageBatchRequestEntry> entries = new ArrayList<SendMessageBatchRequestEntry>(request.getEntries());
+				Collections.reverse(entries);
+				for (SendMessageBatchRequestEntry entry : entries) {
+					if (entry.getMessageBody().equals("second")) {
+						result.withFailed(new BatchResultErrorEntry().withId(entry.getId()).withCode("InvalidMessageContents")
+								.withMessage("Refused").withSenderFault(true));
+					}
+					else {
+						result.withSuccessful(new SendMessageBatchResultEntry().withId(entry.getId()).withMessageId("id of " + entry.getMessageBody()));
+					}
+				}
+				asyncHandler.onSuccess(request, result);
+				return CompletableFuture.completedFuture(result);
+			}
+		};
+		batcher = new SQSSendBatcher(sqs, 3, NO_LINGER_FLUSH);
+
+		CompletableFuture<GenericCommandResult> first = batcher.add(QUEUE_URL, entry("first"));
+		CompletableFuture<GenericCommandResult> second = batcher.add(QUEUE_URL, entry("second"));
+		CompletableFuture<GenericCommandResult> third = batcher.add(QUEUE_URL, entry("third"));
+
+		assertEquals("id of first", first.get(5, TimeUnit.SECONDS).getMessages().get("messageId"));
+		assertEquals("id of third", third.get(5, TimeUnit.SECONDS).getMessages().get("messageId"));
+		GenericCommandResult refused = second.get(5, TimeUnit.SECONDS);
+		assertTrue(refused.isFailure());
+		assertEquals("InvalidMessageContents Refused", refused.getMessages().get("error"));
+	}
+
+	@Test
+	public void failsEveryCallerWhenTheBatchCallFails() throws Exception {
+		batcher = new SQSSendBatcher(recordingSqs(1), 2, NO_LINGER_FLUSH);
+
+		CompletableFuture<GenericCommandResult> first = batcher.add(QUEUE_URL, entry("first"));
+		CompletableFuture<GenericCommandResult> second = batcher.add(QUEUE_URL, entry("second"));
+
+		assertTrue(first.get(5, TimeUnit.SECONDS).isFailure());
+		assertTrue(second.get(5, TimeUnit.SECONDS).isFailure());
+		assertEquals(Collections.singletonList(2), batchSizes);
+	}
+
+	/*
+	 * The in process SQS, remembering the size of every batch it is sent
+	 */
+	private InProcessAmazonSQS recordingSqs(double errorRate) {
+		sqs = new InProcessAmazonSQS(0, 0, errorRate, 30, 1) {
+			@Override
+			public Future<SendMessageBatchResult> sendMessageBatchAsync(SendMessageBatchRequest request,
+					AsyncHandler<SendMessageBatchRequest, SendMessageBatchResult> asyncHandler) {
+				batchSizes.add(request.getEntries().size());
+				return super.sendMessageBatchAsync(request, asyncHandler);
+			}
+		};
+		return sqs;
+	}
+
+	private static SendMessageBatchRequestEntry entry(String body) {
+		return new SendMessageBatchRequestEntry().withMessageBody(body)
+				.addMessageAttributesEntry("contentType", new MessageAttributeValue().withDataType("String").withStringValue("application/json"));
+	}
+
+	/*
+	 * A 120 KB body with a 10 KB attribute
+	 */
+	private static SendMessageBatchRequestEntry paddedEntry() {
+		return entry(repeat('b', 120 * 1024))
+				.addMessageAttributesEntry("padding", new MessageAttributeValue().withDataType("String").withStringValue(repeat('p', 10 * 1024)));
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
@@ -0,0 +1,222 @@
+package com.rollingstone.command.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+
+public class TodoCommandBinaryCodecTests {
+
+	private final TodoCommandBinaryCodec codec = new TodoCommandBinaryCodec(256);
+
+	@Test
+	public void roundTripsACommandWithACompressedLongDescription() {
+		StringBuilder longDescription = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			longDescription.append("pick up the groceries été ");
+		}
+		TodoCommand command = new TodoCommand(UUID.randomUUID(),
+				new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.0", new Timestamp(System.currentTimeMillis())),
+				new Todo(42L, "groceries", longDescription.toString()));
+
+		byte[] encoded = codec.encode(command);
+		TodoCommand decoded = codec.decode(encoded);
+
+		assertTrue(encoded.length < longDescription.length() / 4);
+		assertEquals(command, decoded);
+		assertEquals(command.getTodo(), decoded.getTodo());
+	}
+
+	@Test
+	public void roundTripsTheVersionAndStageTimingsOfSchemaVersion11() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.putStageTiming("VALIDATE", 120L);
+		header.putStageTiming("BUS", 3_000_000L);
+		Todo todo = new Todo(42L, "groceries", null);
+		todo.setVersion(7);
+		TodoCommand command = new TodoCommand(UUID.randomUUID(), header, todo);
+
+		byte[] encoded = codec.encode(command);
+		TodoCommand decoded = codec.decode(encoded);
+
+		assertEquals(TodoCommandBinaryCodec.FORMAT_V4, encoded[1]);
+		assertEquals(command, decoded);
+		assertEquals(7, decoded.getTodo().getVersion());
+		assertEquals(Arrays.asList("VALIDATE", "BUS"), new ArrayList<String>(decoded.getHeader().getStageTimings().keySet()));
+	}
+
+	@Test
+	public void roundTripsTheIdempotencyKey() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.setIdempotencyKey("order-7f3a");
+		TodoCommand command = new TodoCommand(UUID.randomUUID(), header, new Todo(0L, "groceries", "milk"));
+
+		TodoCommand decoded = codec.decode(codec.encode(command));
+
+		assertEquals("order-7f3a", decoded.getHeader().getIdempotencyKey());
+		assertEquals(command.getTodo(), decoded.getTodo());
+	}
+
+	@Test
+	public void roundTripsTheExpectedVersionOfAConditionalUpdate() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.setIdempotencyKey("order-7f3a");
+		TodoCommand conditional = new TodoCommand(UUID.randomUUID(), header, new Todo(42L, "groceries", null));
+		conditional.setExpectedVersion(0L);
+		TodoCommand unconditional = new TodoCommand(UUID.randomUUID(), header, new Todo(42L, "groceries", null));
+
+		assertEquals(Long.valueOf(0), codec.decode(codec.encode(conditional)).getExpectedVersion());
+		assertNull(codec.decode(codec.encode(unconditional)).getExpectedVersion());
+	}
+
+	@Test
+	public void stillReadsFormat3() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.setIdempotencyKey("order-7f3a");
+		TodoCommand command = new TodoCommand(UUID.randomUUID(), header, new Todo(0L, "groceries", "milk"));
+
+		/*
+		 * Without an expected version format 4 is laid out byte for byte like format 3
+		 */
+		byte[] encoded = codec.encode(command);
+		encoded[1] = TodoCommandBinaryCodec.FORMAT_V3;
+		TodoCommand decoded = codec.decode(encoded);
+
+		assertEquals(command, decoded);
+		assertEquals("order-7f3a", decoded.getHeader().getIdempotencyKey());
+		assertNull(decoded.getExpectedVersion());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnExpectedVersionInFormat3() {
+		TodoCommand command = new TodoCommand(UUID.randomUUID(),
+				new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", null), new Todo(42L, "groceries", null));
+		command.setExpectedVersion(3L);
+		byte[] encoded = codec.encode(command);
+		encoded[1] = TodoCommandBinaryCodec.FORMAT_V3;
+		codec.decode(encoded);
+	}
+
+	@Test
+	public void stillReadsFormat2() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.putStageTiming("BUS", 42L);
+		Todo todo = new Todo(42L, "groceries", "milk");
+		todo.setVersion(3);
+		TodoCommand command = new TodoCommand(UUID.randomUUID(), header, todo);
+
+		/*
+		 * Without an idempotency key and an expected version format 4 is laid out byte for byte like format 2
+		 */
+		byte[] encoded = codec.encode(command);
+		encoded[1] = TodoCommandBinaryCodec.FORMAT_V2;
+		TodoCommand decoded = codec.decode(encoded);
+
+		assertEquals(command, decoded);
+		assertEquals(3, decoded.getTodo().getVersion());
+		assertNull(decoded.getHeader().getIdempotencyKey());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnIdempotencyKeyInFormat2() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.1", null);
+		header.setIdempotencyKey("order-7f3a");
+		byte[] encoded = codec.encode(new TodoCommand(UUID.randomUUID(), header, new Todo(0L, "groceries", null)));
+		encoded[1] = TodoCommandBinaryCodec.FORMAT_V2;
+		codec.decode(encoded);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesUnknownPresenceBitsInFormat1() {
+		TodoCommand command = new TodoCommand();
+		command.setTodo(new Todo(42L, "groceries", null));
+		byte[] encoded = codec.encode(command);
+		encoded[2] |= (byte) 0x80;
+		codec.decode(encoded);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesAnIdempotencyKeyForSchemaVersion10() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.0", null);
+		header.setIdempotencyKey("order-7f3a");
+		codec.encode(new TodoCommand(UUID.randomUUID(), header, new Todo(0L, "groceries", null)));
+	}
+
+	@Test
+	public void keepsMissingPartsMissing() {
+		TodoCommand command = new TodoCommand();
+		command.setTodo(new Todo());
+
+		TodoCommand decoded = codec.decode(codec.encode(command));
+
+		assertNull(decoded.getId());
+		assertNull(decoded.getHeader());
+		assertNull(decoded.getTodo().getShortDescription());
+		assertNull(decoded.getTodo().getLongDescription());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesSchemaVersionsWithoutABinaryFormat() {
+		TodoCommand command = new TodoCommand();
+		command.setHeader(new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "9.9", null));
+		codec.encode(command);
+	}
+
+	@Test
+	public void refusesEveryTruncatedCommandWithAnIllegalArgumentException() {
+		GenericCommandHeader header = new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis()));
+		header.putStageTiming("VALIDATE", 120L);
+		header.setIdempotencyKey("order-7f3a");
+		Todo todo = new Todo(42L, "groceries", String.join("", Collections.nCopies(100, "pick up the groceries ")));
+		todo.setVersion(7);
+		TodoCommand command = new TodoCommand(UUID.randomUUID(), header, todo);
+		command.setExpectedVersion(7L);
+		byte[] encoded = codec.encode(command);
+
+		for (int length = 0; length < encoded.length; length++) {
+			try {
+				codec.decode(Arrays.copyOf(encoded, length));
+				fail("The first " + length + " of " + encoded.length + " bytes should have been refused");
+			}
+			catch (IllegalArgumentException expected) {
+			}
+		}
+		assertEquals(command, codec.decode(encoded));
+	}
+
+	@Test
+	public void refusesADeflatedLongDescriptionAboveTheInflateLimit() {
+		String longDescription = String.join("", Collections.nCopies(TodoCommandBinaryCodec.SQS_MAX_MESSAGE_BYTES / 10 + 1, "groceries "));
+		byte[] encoded = codec.encode(new TodoCommand(UUID.randomUUID(),
+				new GenericCommandHeader(GenericCommandType.UPDATE_TODO.toString(), "1.0", null), new Todo(42L, "groceries", longDescription)));
+		assertTrue(encoded.length < TodoCommandBinaryCodec.SQS_MAX_MESSAGE_BYTES / 100);
+
+		assertEquals(longDescription, codec.decode(encoded).getTodo().getLongDescription());
+		try {
+			new TodoCommandBinaryCodec(256, 1).decode(encoded);
+			fail("A longDescription above the limit should have been refused");
+		}
+		catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesANegativeLength() {
+		byte[] encoded = new byte[] { TodoCommandBinaryCodec.MAGIC, TodoCommandBinaryCodec.FORMAT_V1, (1 << 3) | (1 << 4), 42,
+				(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1 };
+		codec.decode(encoded);
+	}
+}
@@ -0,0 +1,57 @@
+package com.rollingstone.command.id;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class TimeOrderedCommandIdGeneratorTests {
+
+	private final TimeOrderedCommandIdGenerator generator = new TimeOrderedCommandIdGenerator();
+
+	@Test
+	public void idsOfOneThreadAreVersion7AndStrictlyIncreasing() {
+		long before = System.currentTimeMillis();
+		UUID previous = generator.nextId();
+		for (int i = 0; i < 500000; i++) {
+			UUID id = generator.nextId();
+			assertEquals(7, id.version());
+			assertEquals(2, id.variant());
+			assertTrue(previous + " " + id, previous.compareTo(id) < 0);
+			previous = id;
+		}
+		assertTrue(previous.getMostSignificantBits() >>> 16 >= before);
+	}
+
+	@Test
+	public void idsOfManyThreadsAreUnique() throws Exception {
+		Set<UUID> ids = ConcurrentHashMap.newKeySet();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<?>> futures = new ArrayList<Future<?>>();
+			for (int t = 0; t < 8; t++) {
+				futures.add(executor.submit(() -> {
+					for (int i = 0; i < 100000; i++) {
+						ids.add(generator.nextId());
+					}
+				}));
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+		assertEquals(800000, ids.size());
+	}
+}
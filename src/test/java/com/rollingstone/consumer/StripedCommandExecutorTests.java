@@ -0,0 +1,44 @@
+package com.rollingstone.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class StripedCommandExecutorTests {
+
+	@Test
+	public void workForOneKeyRunsInSubmissionOrder() throws Exception {
+		StripedCommandExecutor executor = new StripedCommandExecutor("test-lane", 4, 8);
+		Map<Long, List<Integer>> seen = new ConcurrentHashMap<Long, List<Integer>>();
+
+		List<CompletableFuture<Integer>> done = new ArrayList<CompletableFuture<Integer>>();
+		for (int i = 0; i < 2000; i++) {
+			long key = i % 37;
+			int sequence = i;
+			done.add(executor.submit(executor.laneOf(key), () -> {
+				seen.computeIfAbsent(key, k -> new ArrayList<Integer>()).add(sequence);
+				return sequence;
+			}));
+		}
+		for (CompletableFuture<Integer> future : done) {
+			future.get(5, TimeUnit.SECONDS);
+		}
+		executor.close();
+
+		assertEquals(37, seen.size());
+		for (List<Integer> sequences : seen.values()) {
+			for (int i = 1; i < sequences.size(); i++) {
+				assertTrue(sequences.get(i - 1) < sequences.get(i));
+			}
+		}
+		assertTrue(executor.getSkew() >= 1.0);
+	}
+}
@@ -0,0 +1,249 @@
+package com.rollingstone.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.converter.MessageConverter;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.amazonaws.services.sqs.model.AmazonSQSException;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchRequestEntry;
+import com.amazonaws.services.sqs.model.DeleteMessageBatchResult;
+import com.amazonaws.services.sqs.model.GetQueueAttributesRequest;
+import com.amazonaws.services.sqs.model.MessageAttributeValue;
+import com.amazonaws.services.sqs.model.SendMessageRequest;
+import com.rollingstone.cloud.messaging.aws.InProcessAmazonSQS;
+import com.rollingstone.cloud.messaging.aws.SQSCommandQueueNameResolver;
+import com.rollingstone.cloud.messaging.aws.TodoCommandMessageConverter;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder;
+import com.rollingstone.repository.TodoIdBlockSeeder;
+import com.rollingstone.repository.TodoRepository;
+import com.rollingstone.service.event.TodoServiceEvent;
+
+@RunWith(SpringRunner.class)
+@DataJpaTest(properties = "spring.jpa.properties.hibernate.dialect=org.hibernate.dialect.H2Dialect")
+@Import({ TodoBatchWriter.class, TodoIdBlockSeeder.class })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+public class TodoCommandConsumerTests {
+
+	private static final String QUEUE = "TODO_New_Queue";
+
+	@Autowired
+	private TodoBatchWriter batchWriter;
+
+	@Autowired
+	private TodoRepository todoRepository;
+
+	private final MessageConverter producerConverter = TodoCommandMessageConverter.withJsonFallback(1024, 16);
+
+	private final List<Object> events = Collections.synchronizedList(new ArrayList<Object>());
+
+	private InProcessAmazonSQS sqs;
+
+	private TodoCommandConsumer consumer;
+
+	private String queueUrl;
+
+	@Before
+	public void setUp() {
+		todoRepository.deleteAll();
+		sqs = new InProcessAmazonSQS(0, 0, 0, 30, 1);
+		consumer = newConsumer(sqs, 4);
+		queueUrl = sqs.getQueueUrl(QUEUE).getQueueUrl();
+	}
+
+	@After
+	public void tearDown() {
+		sqs.stop();
+	}
+
+	@Test
+	public void appliesABatchInOneGoAndDeletesTheMessagesAfterwards() {
+		for (int i = 0; i < 25; i++) {
+			send(GenericCommandType.CREATE_TODO, new Todo(0, "todo " + i, "created in bulk"));
+		}
+
+		assertEquals(25, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals(25, todoRepository.count());
+		assertEquals(0, messages("ApproximateNumberOfMessages"));
+		assertEquals(0, messages("ApproximateNumberOfMessagesNotVisible"));
+		assertEquals(25, events.size());
+
+		List<Todo> todos = new ArrayList<Todo>();
+		todoRepository.findAll().forEach(todos::add);
+		Todo first = todos.get(0);
+		Todo second = todos.get(1);
+		assertTrue(first.getId() > 0 && first.getId() != second.getId());
+
+		send(GenericCommandType.UPDATE_TODO, new Todo(first.getId(), "updated", "twice"));
+		send(GenericCommandType.UPDATE_TODO, new Todo(first.getId(), "updated", "the last update wins"));
+		send(GenericCommandType.DELETE_TODO, new Todo(second.getId(), null, null));
+
+		assertEquals(3, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals("the last update wins", todoRepository.findById(first.getId()).get().getLongDescription());
+		assertFalse(todoRepository.findById(second.getId()).isPresent());
+		assertEquals(24, todoRepository.count());
+		assertTrue(events.stream().anyMatch(event -> TodoCommandConsumer.TODO_DELETE_APPLIED.equals(((TodoServiceEvent) event).getEventType())));
+	}
+
+	@Test
+	public void leavesAnUndecodableMessageOnTheQueue() {
+		sendMessage("not a command", "application/x-rs-todo-command");
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "valid", "still applied"));
+
+		assertEquals(1, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals(1, todoRepository.count());
+		assertEquals(1, messages("ApproximateNumberOfMessagesNotVisible"));
+	}
+
+	@Test
+	public void appliesARedeliveredCommandOnlyOnce() {
+		TodoCommand create = command(GenericCommandType.CREATE_TODO, new Todo(0, "created", "once"));
+		send(create);
+		send(create);
+
+		assertEquals(2, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals(1, todoRepository.count());
+
+		send(create);
+
+		consumer.pollOnce(queueUrl).join();
+		assertEquals(1, todoRepository.count());
+		assertEquals(0, messages("ApproximateNumberOfMessages"));
+		assertEquals(0, messages("ApproximateNumberOfMessagesNotVisible"));
+		assertEquals(1, events.stream().filter(event -> TodoCommandConsumer.TODO_CREATE_APPLIED.equals(((TodoServiceEvent) event).getEventType())).count());
+	}
+
+	@Test
+	public void appliesTheOtherCommandsOneByOneWhenTheBatchFails() {
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "existing", "updated with nothing"));
+		consumer.pollOnce(queueUrl).join();
+		long existingId = todoRepository.findAll().iterator().next().getId();
+		consumer = newConsumer(sqs, 1);
+
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "before", "the bad update"));
+		send(GenericCommandType.UPDATE_TODO, new Todo(existingId, null, null));
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "after", "the bad update"));
+
+		assertEquals(2, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals(3, todoRepository.count());
+		assertEquals("updated with nothing", todoRepository.findById(existingId).get().getLongDescription());
+		assertEquals(1, messages("ApproximateNumberOfMessagesNotVisible"));
+	}
+
+	@Test
+	public void doesNotApplyACommandAgainWhenItsMessageCouldNotBeDeleted() {
+		AtomicInteger failedDeletes = new AtomicInteger();
+		InProcessAmazonSQS failingDeletes = new InProcessAmazonSQS(0, 0, 0, 0, 1) {
+			@Override
+			public DeleteMessageBatchResult deleteMessageBatch(String queueUrl, List<DeleteMessageBatchRequestEntry> entries) {
+				if (failedDeletes.getAndIncrement() == 0) {
+					throw new AmazonSQSException("Delete failed");
+				}
+				return super.deleteMessageBatch(queueUrl, entries);
+			}
+		};
+		sqs.stop();
+		sqs = failingDeletes;
+		consumer = newConsumer(sqs, 4);
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "created", "before the delete failed"));
+
+		assertEquals(1, consumer.pollOnce(queueUrl).join().intValue());
+		assertEquals(1, todoRepository.count());
+		assertEquals(1, messages("ApproximateNumberOfMessages") + messages("ApproximateNumberOfMessagesNotVisible"));
+
+		consumer.pollOnce(queueUrl).join();
+		assertEquals(1, todoRepository.count());
+		assertEquals(0, messages("ApproximateNumberOfMessages") + messages("ApproximateNumberOfMessagesNotVisible"));
+		assertEquals(2, failedDeletes.get());
+	}
+
+	@Test
+	public void appliesOnlyTheFirstOfTwoUpdatesMadeAgainstTheSameVersion() {
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "created", "not updated yet"));
+		consumer.pollOnce(queueUrl).join();
+		Todo created = todoRepository.findAll().iterator().next();
+
+		TodoCommand first = command(GenericCommandType.UPDATE_TODO, new Todo(created.getId(), "updated", "by the first client"));
+		first.setExpectedVersion(created.getVersion());
+		TodoCommand second = command(GenericCommandType.UPDATE_TODO, new Todo(created.getId(), "updated", "by the second client"));
+		second.setExpectedVersion(created.getVersion());
+		List<Todo> applied = batchWriter.apply(Arrays.asList(first, second));
+
+		assertNotNull(applied.get(0));
+		assertNull(applied.get(1));
+		Todo updated = todoRepository.findById(created.getId()).get();
+		assertEquals("by the first client", updated.getLongDescription());
+		assertEquals(created.getVersion() + 1, updated.getVersion());
+	}
+
+	@Test
+	public void purgesTheProcessedCommandsOlderThanTheRetention() {
+		batchWriter.purgeProcessedCommands(new Timestamp(System.currentTimeMillis() + 60000));
+		send(GenericCommandType.CREATE_TODO, new Todo(0, "created", "long ago"));
+		consumer.pollOnce(queueUrl).join();
+
+		assertEquals(0, batchWriter.purgeProcessedCommands(new Timestamp(System.currentTimeMillis() - 60000)));
+		assertEquals(1, batchWriter.purgeProcessedCommands(new Timestamp(System.currentTimeMillis() + 60000)));
+	}
+
+	private TodoCommandConsumer newConsumer(InProcessAmazonSQS sqs, int lanes) {
+		return new TodoCommandConsumer(sqs, new SQSCommandQueueNameResolver(sqs, QUEUE, 1), batchWriter, events::add, new CommandLatencyRecorder(20, 60), 100, 0, 1024, 16, lanes, 16, 336);
+	}
+
+	private void send(GenericCommandType type, Todo todo) {
+		send(command(type, todo));
+	}
+
+	private static TodoCommand command(GenericCommandType type, Todo todo) {
+		TodoCommand command = new TodoCommand();
+		command.setId(UUID.randomUUID());
+		command.setTodo(todo);
+		command.setHeader(new GenericCommandHeader(type.toString(), "1.0", new Timestamp(System.currentTimeMillis())));
+		return command;
+	}
+
+	private void send(TodoCommand command) {
+		Message<?> message = producerConverter.toMessage(command, null);
+		Object contentType = message.getHeaders().get(MessageHeaders.CONTENT_TYPE);
+		sendMessage(message.getPayload().toString(), contentType == null ? null : contentType.toString());
+	}
+
+	private void sendMessage(String body, String contentType) {
+		SendMessageRequest request = new SendMessageRequest(queueUrl, body);
+		if (contentType != null) {
+			request.addMessageAttributesEntry(MessageHeaders.CONTENT_TYPE, new MessageAttributeValue().withDataType("String").withStringValue(contentType));
+		}
+		sqs.sendMessage(request);
+	}
+
+	private int messages(String attribute) {
+		return Integer.parseInt(sqs.getQueueAttributes(new GetQueueAttributesRequest(queueUrl).withAttributeNames(attribute)).getAttributes().get(attribute));
+	}
+}
@@ -0,0 +1,114 @@
+package com.rollingstone.dispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.rollingstone.exception.HTTP409Exception;
+import com.rollingstone.exception.HTTP422Exception;
+import com.rollingstone.exception.HTTP502Exception;
+
+public class IdempotencyCacheTests {
+
+	@Test
+	public void aRepeatGetsTheFirstResponseWithoutRunningAgain() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 1000);
+		AtomicInteger sent = new AtomicInteger();
+
+		assertEquals("sent-1", cache.computeIfAbsent("key", "fingerprint", () -> completed("sent-" + sent.incrementAndGet())).get());
+		assertEquals("sent-1", cache.computeIfAbsent("key", "fingerprint", () -> completed("sent-" + sent.incrementAndGet())).get());
+
+		assertEquals(1, sent.get());
+	}
+
+	@Test
+	public void aFailedSendIsNotRememberedAndTheRetryRunsAgain() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 1000);
+
+		try {
+			cache.computeIfAbsent("key", "fingerprint", () -> {
+				throw new HTTP502Exception("refused");
+			});
+			fail("The failure of the send should reach the caller");
+		}
+		catch (HTTP502Exception e) {
+			// expected
+		}
+		assertEquals(0, cache.size());
+
+		CompletableFuture<String> refused = new CompletableFuture<String>();
+		refused.completeExceptionally(new HTTP502Exception("refused later"));
+		assertFailed(HTTP502Exception.class, cache.computeIfAbsent("key", "fingerprint", () -> refused));
+		assertEquals(0, cache.size());
+
+		assertEquals("sent", cache.computeIfAbsent("key", "fingerprint", () -> completed("sent")).get());
+	}
+
+	@Test(expected = HTTP422Exception.class)
+	public void theSameKeyForADifferentRequestIsRejected() {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 1000);
+
+		cache.computeIfAbsent("key", "fingerprint", () -> completed("sent"));
+		cache.computeIfAbsent("key", "other fingerprint", () -> completed("sent again"));
+	}
+
+	@Test
+	public void aConcurrentRepeatWaitsForTheFirstResponse() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 5000);
+		CompletableFuture<String> sending = new CompletableFuture<String>();
+
+		CompletableFuture<String> first = cache.computeIfAbsent("key", "fingerprint", () -> sending);
+		CompletableFuture<String> repeat = cache.computeIfAbsent("key", "fingerprint", () -> completed("repeat"));
+		assertFalse(repeat.isDone());
+		sending.complete("first");
+
+		assertEquals("first", first.get(5, TimeUnit.SECONDS));
+		assertEquals("first", repeat.get(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void aConcurrentRepeatTakesOverWhenTheFirstSendFails() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 5000);
+		CompletableFuture<String> sending = new CompletableFuture<String>();
+
+		CompletableFuture<String> first = cache.computeIfAbsent("key", "fingerprint", () -> sending);
+		CompletableFuture<String> repeat = cache.computeIfAbsent("key", "fingerprint", () -> completed("repeat"));
+		sending.completeExceptionally(new HTTP502Exception("refused"));
+
+		assertEquals("repeat", repeat.get(5, TimeUnit.SECONDS));
+		assertFailed(HTTP502Exception.class, first);
+	}
+
+	@Test
+	public void aRepeatWaitsOnlyAsLongAsAllowed() throws Exception {
+		IdempotencyCache<String> cache = new IdempotencyCache<String>(100, 1, TimeUnit.HOURS, 50);
+		CompletableFuture<String> sending = new CompletableFuture<String>();
+
+		CompletableFuture<String> first = cache.computeIfAbsent("key", "fingerprint", () -> sending);
+		assertFailed(HTTP409Exception.class, cache.computeIfAbsent("key", "fingerprint", () -> completed("repeat")));
+
+		sending.complete("first");
+		assertEquals("first", first.get(5, TimeUnit.SECONDS));
+	}
+
+	private static CompletableFuture<String> completed(String value) {
+		return CompletableFuture.completedFuture(value);
+	}
+
+	private static void assertFailed(Class<? extends Exception> expected, CompletableFuture<String> future) throws Exception {
+		try {
+			future.get(5, TimeUnit.SECONDS);
+			fail("Expected " + expected.getSimpleName());
+		}
+		catch (ExecutionException e) {
+			assertEquals(expected, CompletableFutures.unwrap(e).getClass());
+		}
+	}
+}
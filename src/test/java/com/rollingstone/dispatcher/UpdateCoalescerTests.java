@@ -0,0 +1,165 @@
+package com.rollingstone.dispatcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.command.interfaces.GenericCommand;
+import com.rollingstone.domain.Todo;
+
+public class UpdateCoalescerTests {
+
+	private final List<GenericCommand> dispatched = Collections.synchronizedList(new ArrayList<GenericCommand>());
+
+	@Test
+	public void dispatchesOnlyTheLastUpdateOfTheWindow() throws Exception {
+		GenericCommandResult sent = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS);
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			dispatched.add(command);
+			return CompletableFuture.completedFuture(sent);
+		}, 50);
+
+		TodoCommand last = command(GenericCommandType.UPDATE_TODO, 7, "third");
+		List<Future<GenericCommandResult>> callers = Arrays.asList(
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "first")),
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "second")),
+				coalescer.send(last));
+
+		for (Future<GenericCommandResult> caller : callers) {
+			assertSame(sent, caller.get(5, TimeUnit.SECONDS));
+		}
+		assertEquals(Collections.singletonList(last), dispatched);
+	}
+
+	@Test
+	public void keepsTheUpdatesOfDifferentTodosApart() throws Exception {
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			dispatched.add(command);
+			return CompletableFuture.completedFuture(new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS));
+		}, 50);
+
+		Future<GenericCommandResult> first = coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "seven"));
+		Future<GenericCommandResult> second = coalescer.send(command(GenericCommandType.UPDATE_TODO, 8, "eight"));
+
+		first.get(5, TimeUnit.SECONDS);
+		second.get(5, TimeUnit.SECONDS);
+		assertEquals(2, dispatched.size());
+	}
+
+	@Test
+	public void aDeleteCancelsThePendingUpdateOfItsTodo() throws Exception {
+		GenericCommandResult deletedResult = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS);
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			dispatched.add(command);
+			return CompletableFuture.completedFuture(deletedResult);
+		}, 50);
+
+		Future<GenericCommandResult> update = coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "never sent"));
+		TodoCommand delete = command(GenericCommandType.DELETE_TODO, 7, null);
+		Future<GenericCommandResult> deleted = coalescer.send(delete);
+
+		assertSame(deletedResult, deleted.get(5, TimeUnit.SECONDS));
+		assertSame(deletedResult, update.get(5, TimeUnit.SECONDS));
+		Thread.sleep(150);
+		assertEquals(Collections.singletonList(delete), dispatched);
+	}
+
+	@Test
+	public void everyCoalescedCallerGetsTheFailureOfTheSend() throws Exception {
+		IllegalStateException failure = new IllegalStateException("SQS refused the update");
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			dispatched.add(command);
+			CompletableFuture<GenericCommandResult> failed = new CompletableFuture<GenericCommandResult>();
+			failed.completeExceptionally(failure);
+			return failed;
+		}, 50);
+
+		List<Future<GenericCommandResult>> callers = Arrays.asList(
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "first")),
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "second")));
+
+		for (Future<GenericCommandResult> caller : callers) {
+			assertSame(failure, causeOf(caller));
+		}
+		assertEquals(1, dispatched.size());
+	}
+
+	@Test
+	public void everyCoalescedCallerGetsTheFailureWhenTheDispatcherThrows() throws Exception {
+		IllegalStateException failure = new IllegalStateException("Too many commands in flight");
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			throw failure;
+		}, 50);
+
+		List<Future<GenericCommandResult>> callers = Arrays.asList(
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "first")),
+				coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "second")));
+
+		for (Future<GenericCommandResult> caller : callers) {
+			assertSame(failure, causeOf(caller));
+		}
+	}
+
+	@Test
+	public void aBlockingDispatchDoesNotHoldUpTheWindowsOfOtherTodos() throws Exception {
+		GenericCommandResult sent = new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS);
+		CountDownLatch released = new CountDownLatch(1);
+		UpdateCoalescer coalescer = new UpdateCoalescer(command -> {
+			if (((TodoCommand) command).getTodo().getId() == 7) {
+				try {
+					released.await();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			dispatched.add(command);
+			return CompletableFuture.completedFuture(sent);
+		}, 50);
+
+		Future<GenericCommandResult> blocked = coalescer.send(command(GenericCommandType.UPDATE_TODO, 7, "seven"));
+		Thread.sleep(100);
+		Future<GenericCommandResult> other = coalescer.send(command(GenericCommandType.UPDATE_TODO, 8, "eight"));
+
+		assertSame(sent, other.get(5, TimeUnit.SECONDS));
+		assertFalse(blocked.isDone());
+		released.countDown();
+		assertSame(sent, blocked.get(5, TimeUnit.SECONDS));
+	}
+
+	private static Throwable causeOf(Future<GenericCommandResult> caller) throws Exception {
+		try {
+			caller.get(5, TimeUnit.SECONDS);
+			fail("The send should have failed");
+			return null;
+		}
+		catch (ExecutionException e) {
+			return e.getCause();
+		}
+	}
+
+	private static TodoCommand command(GenericCommandType type, long todoId, String longDescription) {
+		return new TodoCommand(UUID.randomUUID(), new GenericCommandHeader(type.toString(), "1.1", new Timestamp(System.currentTimeMillis())),
+				new Todo(todoId, "todo " + todoId, longDescription));
+	}
+}
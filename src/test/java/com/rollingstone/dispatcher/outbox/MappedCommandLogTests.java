@@ -0,0 +1,188 @@
+package com.rollingstone.dispatcher.outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedCommandLogTests {
+
+	/*
+	 * Three records of "command n" fit into a segment, the fourth starts the next one
+	 */
+	private static final int SEGMENT_BYTES = 64;
+
+	@Rule
+	public TemporaryFolder directory = new TemporaryFolder();
+
+	@Test
+	public void rollsOverToANewSegmentAndReadsAcrossSegments() throws Exception {
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 10);
+
+			assertEquals(payloads(0, 10), readAll(log, 0L));
+			assertEquals(4, segmentFiles().size());
+		}
+	}
+
+	@Test
+	public void keepsTheRecordsBeforeARecordTornInTheMiddle() throws Exception {
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 3);
+		}
+		Path segment = segmentFiles().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.truncate(17 + 17 + 12);
+		}
+
+		try (MappedCommandLog log = open()) {
+			assertEquals(payloads(0, 2), readAll(log, 0L));
+
+			append(log, 3, 1);
+			List<String> expected = payloads(0, 2);
+			expected.addAll(payloads(3, 1));
+			assertEquals(expected, readAll(log, 0L));
+		}
+	}
+
+	@Test
+	public void discardsARecordWhoseCrcDoesNotMatch() throws Exception {
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 3);
+		}
+		Path segment = segmentFiles().get(0);
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), 17 + 17 + 8);
+		}
+
+		try (MappedCommandLog log = open()) {
+			assertEquals(payloads(0, 2), readAll(log, 0L));
+		}
+	}
+
+	@Test
+	public void replaysTheSegmentsBehindAnOlderSegmentThatWasNotFullyWritten() throws Exception {
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 10);
+		}
+		List<Path> segments = segmentFiles();
+		/*
+		 * The end of segment mark of the first segment never reached the disk and the last record of the second one is torn
+		 */
+		try (FileChannel channel = FileChannel.open(segments.get(0), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[4]), 3 * 17);
+		}
+		try (FileChannel channel = FileChannel.open(segments.get(1), StandardOpenOption.WRITE)) {
+			channel.write(ByteBuffer.wrap(new byte[] { 'X' }), 17 + 17 + 8);
+		}
+
+		try (MappedCommandLog log = open()) {
+			List<String> expected = payloads(0, 5);
+			expected.addAll(payloads(6, 4));
+			assertEquals(expected, readAll(log, 0L));
+		}
+	}
+
+	@Test
+	public void reloadsTheCheckpointAndReplaysWhatCameAfterIt() throws Exception {
+		long checkpoint;
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 5);
+			checkpoint = log.read(log.read(0L).getNextPosition()).getNextPosition();
+			log.checkpoint(checkpoint);
+		}
+
+		try (MappedCommandLog log = open()) {
+			assertEquals(checkpoint, log.getCheckpointPosition());
+			assertEquals(payloads(2, 3), readAll(log, log.getCheckpointPosition()));
+		}
+	}
+
+	@Test
+	public void deletesTheSegmentsBelowTheCheckpoint() throws Exception {
+		try (MappedCommandLog log = open()) {
+			append(log, 0, 10);
+			List<Path> segments = segmentFiles();
+			long afterSix = positionAfter(log, 6);
+			long afterSeven = positionAfter(log, 7);
+			long afterTen = positionAfter(log, 10);
+
+			log.checkpoint(afterSix);
+			assertFalse(Files.exists(segments.get(0)));
+			assertTrue(Files.exists(segments.get(1)));
+
+			log.checkpoint(afterSeven);
+			assertFalse(Files.exists(segments.get(1)));
+			assertTrue(Files.exists(segments.get(2)));
+			assertEquals(payloads(7, 3), readAll(log, log.getCheckpointPosition()));
+
+			log.checkpoint(afterTen);
+			assertEquals(1, segmentFiles().size());
+			assertNull(log.read(log.getCheckpointPosition()));
+		}
+	}
+
+	private MappedCommandLog open() throws IOException {
+		return new MappedCommandLog(this.directory.getRoot().toPath(), SEGMENT_BYTES, 1);
+	}
+
+	private static void append(MappedCommandLog log, int from, int count) throws Exception {
+		long position = 0;
+		for (int i = from; i < from + count; i++) {
+			position = log.append(("command " + i).getBytes(StandardCharsets.UTF_8));
+		}
+		assertTrue(log.awaitDurable(position, 5000));
+	}
+
+	private static List<String> readAll(MappedCommandLog log, long from) {
+		List<String> payloads = new ArrayList<String>();
+		MappedCommandLog.Record record;
+		long position = from;
+		while ((record = log.read(position)) != null) {
+			payloads.add(new String(record.getPayload(), StandardCharsets.UTF_8));
+			position = record.getNextPosition();
+		}
+		return payloads;
+	}
+
+	/*
+	 * The position right behind the first count records of the log
+	 */
+	private static long positionAfter(MappedCommandLog log, int count) {
+		long position = 0;
+		for (int i = 0; i < count; i++) {
+			position = log.read(position).getNextPosition();
+		}
+		return position;
+	}
+
+	private static List<String> payloads(int from, int count) {
+		List<String> payloads = new ArrayList<String>();
+		for (int i = from; i < from + count; i++) {
+			payloads.add("command " + i);
+		}
+		return payloads;
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		try (Stream<Path> files = Files.list(this.directory.getRoot().toPath())) {
+			return files.filter(file -> file.getFileName().toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package com.rollingstone.dispatcher.ringbuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.rollingstone.command.GenericCommandResult;
+import com.rollingstone.command.ResultCode;
+import com.rollingstone.command.TodoCommand;
+
+public class CommandRingBufferTests {
+
+	@Test
+	public void everyPublishedCommandIsHandledOnceWithManyProducers() throws Exception {
+		for (String waitStrategy : new String[] { "busy-spin", "yielding", "sleeping", "blocking" }) {
+			AtomicLong handled = new AtomicLong();
+			CommandRingBuffer ringBuffer = new CommandRingBuffer(16, WaitStrategy.forName(waitStrategy), command -> {
+				handled.incrementAndGet();
+				return new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS);
+			});
+
+			ExecutorService producers = Executors.newFixedThreadPool(4);
+			List<Future<?>> done = new ArrayList<Future<?>>();
+			for (int p = 0; p < 4; p++) {
+				done.add(producers.submit(() -> {
+					for (int i = 0; i < 5000; i++) {
+						CompletableFuture<GenericCommandResult> future;
+						while ((future = ringBuffer.tryPublish(new TodoCommand())) == null) {
+							Thread.yield();
+						}
+						assertEquals(ResultCode.OPERATION_SUCCESS, future.get(5, TimeUnit.SECONDS).getCode());
+					}
+					return null;
+				}));
+			}
+			for (Future<?> future : done) {
+				future.get();
+			}
+			producers.shutdown();
+			ringBuffer.close();
+
+			assertEquals(waitStrategy, 20000, handled.get());
+		}
+	}
+
+	@Test
+	public void publishFailsFastWhenTheRingIsFull() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CommandRingBuffer ringBuffer = new CommandRingBuffer(2, WaitStrategy.forName("blocking"), command -> {
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return new GenericCommandResult<String>(ResultCode.OPERATION_SUCCESS);
+		});
+
+		CompletableFuture<GenericCommandResult> first = ringBuffer.tryPublish(new TodoCommand());
+		ringBuffer.tryPublish(new TodoCommand());
+		assertNull(ringBuffer.tryPublish(new TodoCommand()));
+
+		release.countDown();
+		first.get(5, TimeUnit.SECONDS);
+		ringBuffer.close();
+	}
+}
@@ -0,0 +1,62 @@
+package com.rollingstone.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.junit.Test;
+
+import com.rollingstone.command.CommandStage;
+import com.rollingstone.command.GenericCommandHeader;
+import com.rollingstone.command.GenericCommandType;
+import com.rollingstone.command.TodoCommand;
+import com.rollingstone.domain.Todo;
+import com.rollingstone.metrics.CommandLatencyRecorder.Completion;
+
+public class CommandLatencyRecorderTests {
+
+	@Test
+	public void keepsTheSlowestCommandsWithTheirStages() {
+		CommandLatencyRecorder recorder = new CommandLatencyRecorder(3, 60);
+
+		for (long bus = 1; bus <= 10; bus++) {
+			TodoCommand command = newCommand();
+			recorder.stage(command, CommandStage.VALIDATE, System.nanoTime());
+			command.getHeader().putStageTiming(CommandStage.BUS.name(), bus * 1000);
+			recorder.complete(command, Completion.DISPATCHED);
+		}
+
+		List<Map<String, Object>> slowest = recorder.slowest();
+		assertEquals(3, slowest.size());
+		assertEquals(Arrays.asList(10.0, 9.0, 8.0), Arrays.asList(busMillis(slowest.get(0)), busMillis(slowest.get(1)), busMillis(slowest.get(2))));
+		assertEquals(GenericCommandType.CREATE_TODO.toString(), slowest.get(0).get("commandType"));
+	}
+
+	@Test
+	public void timesACommandFromElsewhereFromItsCreateDate() {
+		CommandLatencyRecorder recorder = new CommandLatencyRecorder(3, 60);
+		TodoCommand command = newCommand();
+		command.getHeader().setCreateDate(new Timestamp(System.currentTimeMillis() - 5000));
+
+		recorder.stage(command, CommandStage.DWELL);
+
+		long dwell = command.getHeader().getStageTimings().get(CommandStage.DWELL.name());
+		assertTrue(dwell >= 5_000_000 && dwell < 6_000_000);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static double busMillis(Map<String, Object> slow) {
+		return ((Map<String, Double>) slow.get("stagesMs")).get(CommandStage.BUS.name());
+	}
+
+	private static TodoCommand newCommand() {
+		return new TodoCommand(UUID.randomUUID(),
+				new GenericCommandHeader(GenericCommandType.CREATE_TODO.toString(), "1.1", new Timestamp(System.currentTimeMillis())),
+				new Todo(1L, "groceries", null));
+	}
+}
@@ -0,0 +1,60 @@
+package com.rollingstone.readmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongLongHashMapTests {
+
+	@Test
+	public void behavesLikeAHashMapUnderRandomPutsAndRemoves() {
+		LongLongHashMap map = new LongLongHashMap(4);
+		Map<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 200000; i++) {
+			long key = 1 + random.nextInt(5000);
+			if (random.nextInt(3) == 0) {
+				assertEquals((long) (expected.containsKey(key) ? expected.remove(key) : -1L), map.remove(key, -1));
+			}
+			else {
+				long value = random.nextLong();
+				Long previous = expected.put(key, value);
+				assertEquals((long) (previous == null ? -1L : previous), map.put(key, value, -1));
+			}
+		}
+
+		assertEquals(expected.size(), map.size());
+		for (long key = 1; key <= 5000; key++) {
+			assertEquals((long) (expected.containsKey(key) ? expected.get(key) : -1L), map.get(key, -1));
+		}
+	}
+
+	@Test
+	public void neverFindsKey0() {
+		LongLongHashMap map = new LongLongHashMap(4);
+
+		/*
+		 * A free slot holds key 0, so the lookup of 0 lands on one as soon as the slot of 0 is free
+		 */
+		assertFalse(map.containsKey(0));
+		assertEquals(-1L, map.get(0, -1));
+		for (long key = 1; key <= 100; key++) {
+			map.put(key, key * 10, -1);
+		}
+		assertFalse(map.containsKey(0));
+		assertEquals(-1L, map.get(0, -1));
+		assertEquals(-1L, map.remove(0, -1));
+		assertEquals(100, map.size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void refusesToPutKey0() {
+		new LongLongHashMap(4).put(0, 1, -1);
+	}
+}
@@ -0,0 +1,202 @@
+package com.rollingstone.readmodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+import com.rollingstone.domain.Todo;
+import com.rollingstone.domain.TodoVersion;
+
+public class TodoReadModelTests {
+
+	private static final int CHUNK_SIZE = 1 << 20;
+
+	@Test
+	public void readsBackWhatWasPutAcrossUpdatesOfAnotherLength() {
+		TodoReadModel model = new TodoReadModel(null, 1);
+
+		model.put(todo(1, 0, "short", "long"));
+		model.put(todo(2, 0, null, null));
+		assertTodo(todo(1, 0, "short", "long"), model.get(1));
+		assertTodo(todo(2, 0, null, null), model.get(2));
+
+		model.put(todo(1, 1, "short", repeat('x', 300)));
+		assertTodo(todo(1, 1, "short", repeat('x', 300)), model.get(1));
+
+		model.put(todo(1, 2, "ä", ""));
+		assertTodo(todo(1, 2, "ä", ""), model.get(1));
+		assertEquals(2, model.getVersion(1));
+		assertEquals(-1, model.getVersion(3));
+		assertNull(model.get(3));
+		assertEquals(-1, model.getVersion(0));
+		assertNull(model.get(0));
+		assertEquals(2, model.size());
+	}
+
+	@Test
+	public void doesNotBringBackATodoRemovedWhileTheModelIsFilled() {
+		TodoReadModel model = new TodoReadModel(new TableOf(todos(1, 10)), 2);
+
+		model.put(todo(3, 4, "newer", "than the table"));
+		model.remove(5);
+		model.remove(42);
+		model.rebuild();
+
+		assertTrue(model.isReady());
+		assertEquals(9, model.size());
+		assertNull(model.get(5));
+		assertTodo(todo(3, 4, "newer", "than the table"), model.get(3));
+		assertTodo(todo(10, 0, "todo 10", "long description of todo 10"), model.get(10));
+
+		model.put(todo(5, 0, "created again", null));
+		assertTodo(todo(5, 0, "created again", null), model.get(5));
+	}
+
+	@Test
+	public void keepsEveryTodoWhenUpdatesCompactTheChunks() {
+		TodoReadModel model = new TodoReadModel(null, 1);
+		String description = repeat('d', 1000);
+		int count = 1500;
+
+		for (int round = 0; round < 4; round++) {
+			for (long id = 1; id <= count; id++) {
+				model.put(todo(id, round, "todo " + id, description));
+			}
+		}
+
+		/*
+		 * Four rounds of about 1.5 MB each would take 6 MB without compaction, with it the chunks hold at most twice the live records
+		 */
+		assertTrue(model.usedBytes() < 4L * CHUNK_SIZE);
+		assertEquals(count, model.size());
+		for (long id = 1; id <= count; id++) {
+			assertTodo(todo(id, 3, "todo " + id, description), model.get(id));
+		}
+	}
+
+	@Test
+	public void storesARecordLargerThanAChunk() {
+		TodoReadModel model = new TodoReadModel(null, 1);
+		String large = repeat('l', CHUNK_SIZE + CHUNK_SIZE / 2);
+
+		model.put(todo(1, 0, "small", "before"));
+		model.put(todo(2, 0, "large", large));
+		model.put(todo(3, 0, "small", "after"));
+		assertTodo(todo(2, 0, "large", large), model.get(2));
+		assertTodo(todo(3, 0, "small", "after"), model.get(3));
+
+		/*
+		 * Replacing the large record makes most of the chunks garbage, the compaction must move the others intact
+		 */
+		model.put(todo(2, 1, "large", repeat('m', CHUNK_SIZE + 1)));
+		model.put(todo(2, 2, "no longer large", null));
+		assertTrue(model.usedBytes() < CHUNK_SIZE);
+		assertTodo(todo(1, 0, "small", "before"), model.get(1));
+		assertTodo(todo(2, 2, "no longer large", null), model.get(2));
+		assertTodo(todo(3, 0, "small", "after"), model.get(3));
+	}
+
+	@Test
+	public void pagesOverRemovedTodos() {
+		TodoReadModel model = new TodoReadModel(null, 1);
+		for (long id = 1; id <= 3000; id++) {
+			model.put(todo(id, 0, "todo " + id, null));
+		}
+		/*
+		 * Removing all but every third todo shrinks the live ids below half of the sorted ids, so they are compacted on the way
+		 */
+		for (long id = 1; id <= 3000; id++) {
+			if (id % 3 != 0) {
+				model.remove(id);
+			}
+		}
+
+		List<Long> paged = new ArrayList<Long>();
+		long afterId = 0;
+		List<Todo> page;
+		while (!(page = model.getAfter(afterId, 100)).isEmpty()) {
+			for (Todo todo : page) {
+				paged.add(todo.getId());
+			}
+			afterId = page.get(page.size() - 1).getId();
+		}
+		assertEquals(1000, paged.size());
+		for (int i = 0; i < paged.size(); i++) {
+			assertEquals(Long.valueOf(3L * (i + 1)), paged.get(i));
+		}
+
+		List<TodoVersion> versions = model.getVersionsAfter(4, 3);
+		assertEquals(3, versions.size());
+		assertEquals(6, versions.get(0).getId());
+		assertEquals(12, versions.get(2).getId());
+		assertEquals(3000, model.getAfter(2999, 10).get(0).getId());
+		assertTrue(model.getAfter(3000, 10).isEmpty());
+	}
+
+	private static void assertTodo(Todo expected, Todo actual) {
+		assertEquals(expected.getId(), actual.getId());
+		assertEquals(expected.getVersion(), actual.getVersion());
+		assertEquals(expected.getShortDescription(), actual.getShortDescription());
+		assertEquals(expected.getLongDescription(), actual.getLongDescription());
+	}
+
+	private static Todo todo(long id, long version, String shortDescription, String longDescription) {
+		Todo todo = new Todo(id, shortDescription, longDescription);
+		todo.setVersion(version);
+		return todo;
+	}
+
+	private static List<Todo> todos(long fromId, long toId) {
+		List<Todo> todos = new ArrayList<Todo>();
+		for (long id = fromId; id <= toId; id++) {
+			todos.add(todo(id, 0, "todo " + id, "long description of todo " + id));
+		}
+		return todos;
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	/*
+	 * Answers the queries of the rebuild from a list instead of the todo table
+	 */
+	private static class TableOf extends JdbcTemplate {
+
+		private final List<Todo> rows;
+
+		TableOf(List<Todo> rows) {
+			this.rows = rows;
+		}
+
+		@Override
+		public <T> T queryForObject(String sql, Class<T> requiredType) {
+			long id = sql.contains("min(") ? this.rows.get(0).getId() : this.rows.get(this.rows.size() - 1).getId();
+			return requiredType.cast(Long.valueOf(id));
+		}
+
+		@Override
+		@SuppressWarnings("unchecked")
+		public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+			long from = (Long) args[0];
+			long to = (Long) args[1];
+			List<Todo> slice = new ArrayList<Todo>();
+			for (Todo row : this.rows) {
+				if (row.getId() >= from && row.getId() <= to) {
+					slice.add(todo(row.getId(), row.getVersion(), row.getShortDescription(), row.getLongDescription()));
+				}
+			}
+			return (List<T>) slice;
+		}
+	}
+}
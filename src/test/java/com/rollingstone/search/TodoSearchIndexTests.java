@@ -0,0 +1,113 @@
+package com.rollingstone.search;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.rollingstone.domain.Todo;
+
+public class TodoSearchIndexTests {
+
+	@Test
+	public void ranksShortDescriptionMatchesFirstAndRequiresEveryWord() {
+		TodoSearchIndex index = new TodoSearchIndex(null);
+		index.put(new Todo(1, "Buy milk", "and bread from the shop"));
+		index.put(new Todo(2, "Call the plumber", "about the milk stain"));
+		index.put(new Todo(3, "Büro aufräumen", "Milkshake machine too"));
+
+		assertEquals(Arrays.asList(1L, 2L), index.search("milk", 10));
+		assertEquals(Arrays.asList(1L, 3L, 2L), index.search("MILK*", 10));
+		assertEquals(Arrays.asList(2L), index.search("milk plumb*", 10));
+		assertEquals(Arrays.asList(3L), index.search("büro", 10));
+		assertEquals(Collections.emptyList(), index.search("milk tractor", 10));
+
+		index.put(new Todo(1, "Buy bread", "no more dairy"));
+		index.remove(2);
+		assertEquals(Arrays.asList(3L), index.search("milk*", 10));
+	}
+
+	@Test
+	public void matchesABruteForceSearchUnderRandomUpdates() {
+		String[] words = { "alpha", "alps", "beta", "bet", "gamma", "delta", "deli", "epsilon", "zeta", "eta" };
+		TodoSearchIndex index = new TodoSearchIndex(null);
+		Map<Long, Todo> expected = new HashMap<Long, Todo>();
+		Random random = new Random(7);
+
+		for (int i = 0; i < 100000; i++) {
+			long id = 1 + random.nextInt(3000);
+			if (random.nextInt(4) == 0) {
+				index.remove(id);
+				expected.remove(id);
+			}
+			else {
+				Todo todo = new Todo(id, randomText(random, words, 2), randomText(random, words, 6));
+				index.put(todo);
+				expected.put(id, todo);
+			}
+		}
+
+		for (String query : new String[] { "alpha", "al*", "bet", "be* zeta", "deli eta", "e*" }) {
+			List<Long> hits = index.search(query, 5000);
+			List<Long> matching = new ArrayList<Long>();
+			for (Todo todo : expected.values()) {
+				if (matches(todo, query)) {
+					matching.add(todo.getId());
+				}
+			}
+			Collections.sort(matching);
+			List<Long> sortedHits = new ArrayList<Long>(hits);
+			Collections.sort(sortedHits);
+			assertEquals(query, matching, sortedHits);
+		}
+	}
+
+	@Test
+	public void aPrefixMatchingTooManyTermsKeepsTheTermsWithTheMostTodos() {
+		TodoSearchIndex index = new TodoSearchIndex(null);
+		for (long id = 1; id <= 1000; id++) {
+			index.put(new Todo(id, "item" + id, null));
+		}
+		for (long id = 1001; id <= 1003; id++) {
+			index.put(new Todo(id, "itemshared", "itemcommon"));
+		}
+		index.put(new Todo(1004, "itemcommon", null));
+
+		/*
+		 * itemcommon and itemshared plus 254 of the terms with a single todo
+		 */
+		List<Long> hits = index.search("item*", 5000);
+		assertTrue(hits.containsAll(Arrays.asList(1001L, 1002L, 1003L, 1004L)));
+		assertEquals(4 + 254, hits.size());
+	}
+
+	private static boolean matches(Todo todo, String query) {
+		List<String> terms = new ArrayList<String>(TodoSearchIndex.termWeights(todo).keySet());
+		for (String word : query.split(" ")) {
+			boolean found = false;
+			for (String term : terms) {
+				found |= word.endsWith("*") ? term.startsWith(word.substring(0, word.length() - 1)) : term.equals(word);
+			}
+			if (!found) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String randomText(Random random, String[] words, int count) {
+		StringBuilder text = new StringBuilder();
+		for (int i = random.nextInt(count + 1); i > 0; i--) {
+			text.append(words[random.nextInt(words.length)]).append(random.nextBoolean() ? " " : ", ");
+		}
+		return text.length() == 0 && random.nextBoolean() ? null : text.toString();
+	}
+}
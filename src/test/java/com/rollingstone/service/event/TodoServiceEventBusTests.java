@@ -0,0 +1,105 @@
+package com.rollingstone.service.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.beans.factory.support.DefaultListableBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rollingstone.domain.Todo;
+
+public class TodoServiceEventBusTests {
+
+	@Rule
+	public TemporaryFolder spillDirectory = new TemporaryFolder();
+
+	@Test
+	public void spilledEventsAreDeliveredInOrderOnceTheListenerCatchesUp() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		List<Long> delivered = new ArrayList<Long>();
+		CountDownLatch allDelivered = new CountDownLatch(50);
+		DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+		beans.registerSingleton("slowListener", (TodoServiceEventBatchListener) events -> {
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			for (TodoServiceEvent event : events) {
+				delivered.add(event.getEventTodo().getId());
+				allDelivered.countDown();
+			}
+		});
+		TodoServiceEventBus bus = new TodoServiceEventBus(beans.getBeanProvider(TodoServiceEventBatchListener.class), new ObjectMapper(),
+				4, 3, "spill", 0, spillDirectory.getRoot().getPath());
+		bus.start();
+		try {
+			List<Long> published = new ArrayList<Long>();
+			for (long id = 1; id <= 50; id++) {
+				bus.publish(new TodoServiceEvent(this, new Todo(id, "short " + id, "long " + id), "TodoCreated"));
+				published.add(id);
+			}
+			release.countDown();
+			allDelivered.await(10, TimeUnit.SECONDS);
+			assertEquals(published, delivered);
+		}
+		finally {
+			bus.stop();
+		}
+	}
+
+	@Test
+	public void spilledEventsAreInTheFileBeforeItIsClosed() throws Exception {
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		DefaultListableBeanFactory beans = new DefaultListableBeanFactory();
+		beans.registerSingleton("slowListener", (TodoServiceEventBatchListener) events -> {
+			entered.countDown();
+			try {
+				release.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		TodoServiceEventBus bus = new TodoServiceEventBus(beans.getBeanProvider(TodoServiceEventBatchListener.class), new ObjectMapper(),
+				4, 3, "spill", 0, spillDirectory.getRoot().getPath());
+		bus.start();
+		try {
+			bus.publish(new TodoServiceEvent(this, new Todo(1, "short 1", "long 1"), "TodoCreated"));
+			assertTrue(entered.await(10, TimeUnit.SECONDS));
+			for (long id = 2; id <= 21; id++) {
+				bus.publish(new TodoServiceEvent(this, new Todo(id, "short " + id, "long " + id), "TodoCreated"));
+			}
+
+			/*
+			 * The listener holds the first event and the queue the next 4, the other 16 are spilled
+			 */
+			long spilledLines = 0;
+			try (Stream<Path> files = Files.list(spillDirectory.getRoot().toPath())) {
+				for (Path file : files.collect(Collectors.toList())) {
+					spilledLines += Files.readAllLines(file, StandardCharsets.UTF_8).size();
+				}
+			}
+			assertEquals(16, spilledLines);
+		}
+		finally {
+			release.countDown();
+			bus.stop();
+		}
+	}
+}